@@ -0,0 +1,18 @@
+#!/bin/sh
+# Run the load test with DAO operations on the request threads (blocking)
+# and on the DAO's own pool (async), and write the results to
+# dao-blocking.json and dao-async.json.
+#
+# Usage: bench/compare-async.sh CLASSPATH [LoadTest options]
+# e.g.   bench/compare-async.sh "$CP" -clients 512 -duration 60
+# The file DAO is used by default, since it is the one that blocks; set
+# JAVA_OPTS to change it or to add server settings, e.g.
+# JAVA_OPTS="-Dcontact.dao=file -Dcontact.server.threads.max=50"
+set -e
+CP="$1"
+shift
+JAVA_OPTS="${JAVA_OPTS:--Dcontact.dao=file}"
+echo "== blocking"
+java $JAVA_OPTS -Dcontact.dao.async.threads=0 -cp "$CP" contact.bench.LoadTest -out dao-blocking.json "$@"
+echo "== async"
+java $JAVA_OPTS -cp "$CP" contact.bench.LoadTest -out dao-async.json "$@"
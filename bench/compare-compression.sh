@@ -0,0 +1,24 @@
+#!/bin/sh
+# Run the load test without compression, with gzip at levels 1 and 6, and
+# with gzip over h2c, and write the results to compression-*.json.  The
+# bytes/req column shows the response bytes on the wire.
+#
+# Usage: bench/compare-compression.sh CLASSPATH [LoadTest options]
+# e.g.   bench/compare-compression.sh "$CP" -mix get=40,list=40,all=5,post=15
+# The h2c run needs Jetty's http2-server and HTTP/2 client modules on the
+# classpath.  Other server settings can be added in JAVA_OPTS.
+set -e
+CP="$1"
+shift
+# run NAME SERVER-OPTIONS LOADTEST-ARGS...
+run() {
+	name="$1"
+	server="$2"
+	shift 2
+	echo "== $name"
+	java $JAVA_OPTS $server -cp "$CP" contact.bench.LoadTest -out "compression-$name.json" "$@"
+}
+run identity "-Dcontact.server.gzip.level=0" -gzip false "$@"
+run gzip1 "-Dcontact.server.gzip.level=1" -gzip true "$@"
+run gzip6 "-Dcontact.server.gzip.level=6" -gzip true "$@"
+run h2c-gzip6 "-Dcontact.server.gzip.level=6 -Dcontact.server.http2=true" -gzip true -h2c true "$@"
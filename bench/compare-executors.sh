@@ -0,0 +1,16 @@
+#!/bin/sh
+# Run the load test against Jetty's thread pool and against virtual threads
+# (JDK 21 or later), and write the results to executor-pool.json and
+# executor-virtual.json.
+#
+# Usage: bench/compare-executors.sh CLASSPATH [LoadTest options]
+# e.g.   bench/compare-executors.sh "$CP" -clients 512 -duration 60
+# Server settings can be added as system properties in JAVA_OPTS,
+# e.g. JAVA_OPTS=-Dcontact.server.threads.max=50 to make the pool scarce.
+set -e
+CP="$1"
+shift
+for mode in pool virtual; do
+	echo "== threads=$mode"
+	java $JAVA_OPTS -Dcontact.server.threads=$mode -cp "$CP" contact.bench.LoadTest -out "executor-$mode.json" "$@"
+done
@@ -0,0 +1,44 @@
+package contact.bench;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks once for each thread count and write the results
+ * as JSON, one file per thread count, so runs of different versions can
+ * be compared.
+ * <p>
+ * Usage: <code>java contact.bench.BenchmarkMain [prefix [jmh options]]</code>
+ * <br>
+ * Results go to <code>prefix-t1.json</code>, <code>prefix-t4.json</code> and
+ * <code>prefix-tN.json</code>, where N is the number of processors.
+ * Other arguments are passed to JMH, for example
+ * <code>-p size=10000000 -jvmArgsAppend "-Xmx8g -XX:MaxDirectMemorySize=8g"</code>
+ * to use the 10M store, or a regular expression to choose benchmarks.
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws Exception {
+		String prefix = (args.length > 0) ? args[0] : "jmh-result";
+		String[] jmhArgs = (args.length > 1) ? Arrays.copyOfRange(args, 1, args.length) : new String[0];
+		Set<Integer> threadCounts = new LinkedHashSet<Integer>(
+				Arrays.asList(1, 4, Runtime.getRuntime().availableProcessors()));
+		for(int threads : threadCounts) {
+			String result = prefix + "-t" + threads + ".json";
+			System.out.println("Running with " + threads + " threads; results in " + result);
+			OptionsBuilder options = new OptionsBuilder();
+			options.parent(new CommandLineOptions(jmhArgs))
+					.threads(threads)
+					.resultFormat(ResultFormatType.JSON)
+					.result(result);
+			// with no benchmark pattern on the command line, run everything in this package
+			if (jmhArgs.length == 0) options.include("contact\\.bench\\..*");
+			new Runner(options.build()).run();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package contact.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import contact.entity.Contact;
+import contact.service.ContactDao;
+import contact.service.mem.MemContactDao;
+import contact.service.offheap.OffHeapContactDao;
+
+/**
+ * Benchmarks of the in-memory DAOs at several store sizes.
+ * Thread counts are set when running (see BenchmarkMain), since JMH
+ * cannot take them as a parameter.
+ * <p>
+ * By default the stores hold 1000 and 100000 contacts, and the fork has a
+ * 1 GB heap.  The 10M store needs a much larger heap (about 6 GB for
+ * "mem") and direct memory for "offheap", so it is only run when asked
+ * for, with the memory it needs, as the "large" profile in bench/pom.xml does:
+ * <code>-p size=10000000 -jvmArgsAppend "-Xms8g -Xmx8g -XX:MaxDirectMemorySize=8g"</code>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(value=1, jvmArgsAppend={"-Xms1g", "-Xmx1g"})
+public class ContactDaoBenchmark {
+	/** Number of contacts in each insertAll call while filling a store. */
+	private static final int FILL_BATCH = 10000;
+
+	/** A filled store, shared by all threads. */
+	@State(Scope.Benchmark)
+	public static class Store {
+		@Param({"1000", "100000"})
+		int size;
+		@Param({"mem", "offheap"})
+		String dao;
+
+		ContactDao contacts;
+		/** Ids of the stored contacts, so benchmarks can pick one at random. */
+		long[] ids;
+
+		@Setup(Level.Trial)
+		public void fill() {
+			contacts = dao.equals("offheap") ? new OffHeapContactDao() : new MemContactDao();
+			ids = new long[size];
+			List<Contact> batch = new ArrayList<Contact>(FILL_BATCH);
+			for(int k=0; k<size; k++) {
+				batch.add(contact(k));
+				if (batch.size() == FILL_BATCH || k == size - 1) {
+					contacts.insertAll(batch);
+					int first = k + 1 - batch.size();
+					for(int j=0; j<batch.size(); j++) ids[first + j] = batch.get(j).getId();
+					batch.clear();
+				}
+			}
+		}
+	}
+
+	/** Per-thread random numbers, so threads do not contend on a shared Random. */
+	@State(Scope.Thread)
+	public static class Choice {
+		SplittableRandom random = new SplittableRandom();
+
+		int next(int bound) {
+			return random.nextInt(bound);
+		}
+	}
+
+	static Contact contact(int k) {
+		return new Contact("Contact " + k, "Person " + k, "person" + k + "@example.com");
+	}
+
+	@Benchmark
+	public Contact find(Store store, Choice choice) {
+		return store.contacts.find(store.ids[choice.next(store.size)]);
+	}
+
+	@Benchmark
+	public Contact findMissing(Store store, Choice choice) {
+		return store.contacts.find(-1 - choice.next(store.size));
+	}
+
+	@Benchmark
+	public Contact findByTitle(Store store, Choice choice) {
+		return store.contacts.findByTitle("contact " + choice.next(store.size));
+	}
+
+	@Benchmark
+	public Contact findByTitleCaseSensitive(Store store, Choice choice) {
+		return store.contacts.findByTitle("Contact " + choice.next(store.size), true);
+	}
+
+	@Benchmark
+	public List<Contact> searchPrefix(Store store, Choice choice) {
+		return store.contacts.search("contact " + choice.next(1000), true, 10);
+	}
+
+	/** Replace an existing contact, so the store keeps its size. */
+	@Benchmark
+	public boolean saveExisting(Store store, Choice choice) {
+		int k = choice.next(store.size);
+		Contact contact = contact(k);
+		contact.setId(store.ids[k]);
+		return store.contacts.save(contact);
+	}
+
+	/** Save a new contact, which assigns a new id, then delete it so the store keeps its size. */
+	@Benchmark
+	public boolean saveNewAndDelete(Store store, Choice choice) {
+		Contact contact = contact(store.size + choice.next(store.size));
+		store.contacts.save(contact);
+		return store.contacts.delete(contact.getId());
+	}
+
+	@Benchmark
+	public boolean update(Store store, Choice choice) {
+		Contact update = new Contact(store.ids[choice.next(store.size)]);
+		update.setEmail("changed" + choice.next(100) + "@example.com");
+		return store.contacts.update(update);
+	}
+}
@@ -0,0 +1,455 @@
+package contact.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpClientTransport;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+
+import contact.JettyMain;
+import contact.entity.Contact;
+import contact.metrics.Histogram;
+import contact.resource.ContactJson;
+import contact.resource.ContactXml;
+
+/**
+ * HTTP load test of the whole Jetty, Jersey and DAO path.  Many clients
+ * send a weighted mix of requests for a fixed time, and the latency of
+ * each kind of request is recorded in a {@link Histogram}.  At the end
+ * the throughput and the p50, p99 and p99.9 latency of each kind are printed.
+ * <p>
+ * By default each client sends its next request as soon as the last one
+ * completes.  With <code>-rate</code> the clients send on a fixed schedule
+ * instead, and latency is measured from when a request should have been
+ * sent, so a stalled server is not hidden by clients that wait for it
+ * (coordinated omission).
+ * <p>
+ * Usage: <code>java contact.bench.LoadTest [options]</code>
+ * <pre>
+ *   -url URL       server to test, e.g. http://host:8080 (default: start one here)
+ *   -port N        port for the local server (8080)
+ *   -clients N     concurrent clients (64)
+ *   -warmup S      seconds to run before measuring (10)
+ *   -duration S    seconds to measure (30)
+ *   -contacts N    contacts to create before the test (10000)
+ *   -rate N        requests per second from all clients, or 0 for as fast as possible (0)
+ *   -mix LIST      weights of the requests (get=50,title=15,list=5,post=10,put=10,patch=5,delete=5)
+ *   -format TYPE   xml or json, for request and response bodies (xml)
+ *   -gzip BOOL     ask for gzip responses with Accept-Encoding (false)
+ *   -h2c BOOL      use HTTP/2 without TLS instead of HTTP/1.1 (false)
+ *   -out FILE      also write the results as JSON
+ * </pre>
+ * The request kinds are <code>get</code> (by id), <code>title</code> (by title),
+ * <code>list</code> (first page of 100), <code>all</code> (every contact),
+ * <code>post</code>, <code>put</code>, <code>patch</code> and <code>delete</code>.
+ * The local server uses the DAO chosen by the <code>contact.dao</code> property,
+ * and the server settings in the <code>contact.server</code> properties (see ServerConfig).
+ * Response bodies are counted as received, before any decompression, so
+ * the bytes per request show the effect of compression.  <code>-h2c</code>
+ * needs Jetty's HTTP/2 client modules on the classpath.
+ *
+ * @author jim
+ */
+public class LoadTest {
+	/** Contacts per request when creating the initial contacts. */
+	private static final int PRELOAD_BATCH = 1000;
+	private static final String XML = "application/xml";
+	private static final String JSON = "application/json";
+
+	/** Kinds of request, in the order they are reported. */
+	enum Op {
+		GET, TITLE, LIST, ALL, POST, PUT, PATCH, DELETE;
+
+		String label() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	/** Results for one kind of request. */
+	static class OpStats {
+		final Histogram latency = new Histogram();
+		final LongAdder ok = new LongAdder();
+		final LongAdder notFound = new LongAdder();
+		final LongAdder failed = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+
+		void record(long nanos, int status, int length) {
+			latency.record(nanos);
+			bytes.add(length);
+			if (status >= 200 && status < 300) ok.increment();
+			else if (status == 404) notFound.increment();
+			else failed.increment();
+		}
+
+		void reset() {
+			latency.reset();
+			ok.reset();
+			notFound.reset();
+			failed.reset();
+			bytes.reset();
+		}
+	}
+
+	private String url = null;
+	private int port = 8080;
+	private int clients = 64;
+	private int warmup = 10;
+	private int duration = 30;
+	private int contacts = 10000;
+	private double rate = 0;
+	private String mix = "get=50,title=15,list=5,post=10,put=10,patch=5,delete=5";
+	/** media type of request and response bodies, except the preload batches, which are XML */
+	private String format = XML;
+	private boolean gzip = false;
+	private boolean h2c = false;
+	private String out = null;
+
+	private final int[] weights = new int[Op.values().length];
+	private int totalWeight;
+	private final OpStats[] stats = new OpStats[Op.values().length];
+	private HttpClient client;
+	private String base;
+	/** Ids of contacts that clients may use; 0 is an empty slot. */
+	private AtomicLongArray ids;
+	/** Numbers for the titles of new contacts. */
+	private final AtomicLong serial = new AtomicLong();
+	private volatile boolean measuring;
+	private volatile boolean stopped;
+
+	public static void main(String[] args) throws Exception {
+		LoadTest test = new LoadTest();
+		test.parseArgs(args);
+		test.run();
+	}
+
+	void parseArgs(String[] args) {
+		for(int k=0; k<args.length; k++) {
+			String option = args[k];
+			if (k + 1 == args.length) throw new IllegalArgumentException("missing value for " + option);
+			String value = args[++k];
+			if (option.equals("-url")) url = value;
+			else if (option.equals("-port")) port = Integer.parseInt(value);
+			else if (option.equals("-clients")) clients = Integer.parseInt(value);
+			else if (option.equals("-warmup")) warmup = Integer.parseInt(value);
+			else if (option.equals("-duration")) duration = Integer.parseInt(value);
+			else if (option.equals("-contacts")) contacts = Integer.parseInt(value);
+			else if (option.equals("-rate")) rate = Double.parseDouble(value);
+			else if (option.equals("-mix")) mix = value;
+			else if (option.equals("-format")) format = value.equalsIgnoreCase("json") ? JSON : XML;
+			else if (option.equals("-gzip")) gzip = Boolean.parseBoolean(value);
+			else if (option.equals("-h2c")) h2c = Boolean.parseBoolean(value);
+			else if (option.equals("-out")) out = value;
+			else throw new IllegalArgumentException("unknown option " + option);
+		}
+		for(String part : mix.split(",")) {
+			String[] pair = part.split("=");
+			if (pair.length != 2) throw new IllegalArgumentException("bad mix entry " + part);
+			Op op = Op.valueOf(pair[0].trim().toUpperCase(Locale.ROOT));
+			weights[op.ordinal()] = Integer.parseInt(pair[1].trim());
+		}
+		for(int w : weights) totalWeight += w;
+		if (totalWeight <= 0) throw new IllegalArgumentException("the mix has no requests");
+	}
+
+	void run() throws Exception {
+		boolean local = (url == null);
+		if (local) {
+			JettyMain.startServer(port);
+			url = "http://localhost:" + port;
+		}
+		base = url + "/contacts";
+		for(int k=0; k<stats.length; k++) stats[k] = new OpStats();
+		client = newClient();
+		// count response bodies as they arrive; the benchmark does not need them decompressed
+		client.getContentDecoderFactories().clear();
+		client.setMaxConnectionsPerDestination(clients);
+		client.setMaxRequestsQueuedPerDestination(clients * 2);
+		client.start();
+		try {
+			preload();
+			List<Thread> threads = new ArrayList<Thread>();
+			for(int k=0; k<clients; k++) {
+				Thread thread = new Thread(new Client(), "load-client-" + k);
+				thread.setDaemon(true);
+				threads.add(thread);
+				thread.start();
+			}
+			System.out.printf("Warming up for %d s with %d clients%n", warmup, clients);
+			TimeUnit.SECONDS.sleep(warmup);
+			for(OpStats s : stats) s.reset();
+			measuring = true;
+			long start = System.nanoTime();
+			System.out.printf("Measuring for %d s%n", duration);
+			TimeUnit.SECONDS.sleep(duration);
+			measuring = false;
+			double seconds = (System.nanoTime() - start) / 1e9;
+			stopped = true;
+			for(Thread thread : threads) thread.join();
+			report(seconds);
+		} finally {
+			client.stop();
+			if (local) JettyMain.stopServer();
+		}
+	}
+
+	/**
+	 * Create an HTTP/1.1 client, or an h2c client if asked.  The HTTP/2
+	 * transport is found by reflection, so the load test runs without
+	 * Jetty's HTTP/2 client modules unless it is used.
+	 */
+	private HttpClient newClient() throws Exception {
+		if (! h2c) return new HttpClient();
+		Object http2Client = Class.forName("org.eclipse.jetty.http2.client.HTTP2Client").newInstance();
+		Class<?> transportType = Class.forName("org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2");
+		HttpClientTransport transport = (HttpClientTransport) transportType.getConstructor(http2Client.getClass()).newInstance(http2Client);
+		return new HttpClient(transport, null);
+	}
+
+	/** Create the initial contacts with batch requests, and remember their ids. */
+	private void preload() throws Exception {
+		ids = new AtomicLongArray(Math.max(contacts, PRELOAD_BATCH));
+		int filled = 0;
+		System.out.printf("Creating %d contacts%n", contacts);
+		while (filled < contacts) {
+			int n = Math.min(PRELOAD_BATCH, contacts - filled);
+			List<Contact> batch = new ArrayList<Contact>(n);
+			for(int k=0; k<n; k++) batch.add(newContact(filled + k));
+			ByteArrayOutputStream body = new ByteArrayOutputStream(n * 160);
+			ContactXml.writeAll(batch, body);
+			ContentResponse response = client.newRequest(base + "/batch")
+					.method("POST")
+					.header("Accept", XML)
+					.content(new BytesContentProvider(body.toByteArray()), XML)
+					.send();
+			if (response.getStatus() != 200) throw new IOException("batch insert failed with status " + response.getStatus());
+			for(long id : createdIds(response.getContent())) ids.set(filled++, id);
+		}
+		serial.set(contacts);
+	}
+
+	/** @return ids of the CREATED results in a batch response */
+	private static List<Long> createdIds(byte[] results) throws XMLStreamException {
+		List<Long> created = new ArrayList<Long>();
+		XMLStreamReader reader = ContactXml.createReader(new ByteArrayInputStream(results));
+		while (reader.hasNext()) {
+			if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("result")
+					&& "CREATED".equals(reader.getAttributeValue(null, "status"))) {
+				created.add(Long.parseLong(reader.getAttributeValue(null, "id")));
+			}
+		}
+		reader.close();
+		return created;
+	}
+
+	/** Contact number n.  Its title is unique, so it can be found by title. */
+	static Contact newContact(long n) {
+		return new Contact("Load contact " + n, "Load Tester " + n, "load" + n + "@example.com");
+	}
+
+	/** Encoded title of contact number n, for a query string. */
+	static String titleQuery(long n) {
+		return "Load%20contact%20" + n;
+	}
+
+	/** One client: sends requests until the test stops. */
+	class Client implements Runnable {
+		private final SplittableRandom random = new SplittableRandom();
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			// each client sends every interval nanoseconds, so together they send at the rate
+			long interval = (rate > 0) ? (long) (clients * 1e9 / rate) : 0;
+			long next = System.nanoTime() + random.nextLong(Math.max(interval, 1));
+			while (! stopped) {
+				Op op = choose();
+				long start;
+				if (interval > 0) {
+					start = next;
+					next += interval;
+					long wait;
+					while ((wait = start - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+				}
+				else start = System.nanoTime();
+				ContentResponse response;
+				int status;
+				try {
+					response = send(op);
+					status = (response == null) ? 0 : response.getStatus();
+				} catch (Exception e) {
+					response = null;
+					status = -1;
+				}
+				if (status == 0) continue; // no contact to use
+				long latency = System.nanoTime() - start;
+				int length = (response == null) ? 0 : response.getContent().length;
+				if (measuring) stats[op.ordinal()].record(latency, status, length);
+			}
+		}
+
+		private Op choose() {
+			int w = random.nextInt(totalWeight);
+			for(Op op : Op.values()) {
+				w -= weights[op.ordinal()];
+				if (w < 0) return op;
+			}
+			throw new IllegalStateException();
+		}
+
+		/** @return index of a random slot holding an id, or -1 if none was found */
+		private int pickSlot() {
+			for(int tries=0; tries<8; tries++) {
+				int slot = random.nextInt(ids.length());
+				if (ids.get(slot) != 0) return slot;
+			}
+			return -1;
+		}
+
+		/**
+		 * Send one request.
+		 * @return the response, or null if the request was not sent
+		 */
+		private ContentResponse send(Op op) throws Exception {
+			long n = random.nextLong(Math.max(serial.get(), 1));
+			int slot;
+			long id;
+			switch (op) {
+			case GET:
+				if ((slot = pickSlot()) < 0) return null;
+				return request("GET", base + "/" + ids.get(slot), null);
+			case TITLE:
+				return request("GET", base + "?title=" + titleQuery(n), null);
+			case LIST:
+				return request("GET", base + "?limit=100", null);
+			case ALL:
+				return request("GET", base, null);
+			case POST:
+				Contact contact = newContact(serial.getAndIncrement());
+				ContentResponse response = request("POST", base, encode(contact));
+				String location = response.getHeaders().get("Location");
+				if (response.getStatus() == 201 && location != null) {
+					id = Long.parseLong(location.substring(location.lastIndexOf('/') + 1));
+					// take an empty slot if one is found quickly, else replace an id
+					slot = random.nextInt(ids.length());
+					for(int tries=0; tries<8 && ids.get(slot) != 0; tries++) slot = random.nextInt(ids.length());
+					ids.set(slot, id);
+				}
+				return response;
+			case PUT:
+				if ((slot = pickSlot()) < 0) return null;
+				id = ids.get(slot);
+				Contact replacement = newContact(n);
+				replacement.setId(id);
+				replacement.setEmail("put" + n + "@example.com");
+				return request("PUT", base + "/" + id, encode(replacement));
+			case PATCH:
+				if ((slot = pickSlot()) < 0) return null;
+				id = ids.get(slot);
+				Contact update = new Contact(id);
+				update.setEmail("patch" + n + "@example.com");
+				return request("PATCH", base + "/" + id, encode(update));
+			case DELETE:
+				if ((slot = pickSlot()) < 0) return null;
+				// take the id out of the pool first, so no other client uses it
+				id = ids.getAndSet(slot, 0);
+				if (id == 0) return null;
+				return request("DELETE", base + "/" + id, null);
+			default:
+				throw new IllegalStateException(op.toString());
+			}
+		}
+
+		private byte[] encode(Contact contact) {
+			return (format == JSON) ? ContactJson.toBytes(contact) : ContactXml.toBytes(contact);
+		}
+
+		private ContentResponse request(String method, String uri, byte[] body) throws Exception {
+			Request request = client.newRequest(uri)
+					.method(method)
+					.header("Accept", format)
+					.timeout(30, TimeUnit.SECONDS);
+			if (gzip) request.header("Accept-Encoding", "gzip");
+			if (body != null) request.content(new BytesContentProvider(body), format);
+			return request.send();
+		}
+	}
+
+	/** Print the results, and write them to the output file if there is one. */
+	private void report(double seconds) throws IOException {
+		System.out.printf("%-8s %10s %10s %10s %10s %10s %10s %10s %8s %8s%n",
+				"request", "count", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "bytes/req", "404", "errors");
+		long total = 0;
+		StringBuilder json = new StringBuilder();
+		json.append("{\"clients\":").append(clients)
+			.append(",\"seconds\":").append(String.format(Locale.ROOT, "%.3f", seconds))
+			.append(",\"rate\":").append(rate)
+			.append(",\"format\":\"").append(format).append('"')
+			.append(",\"gzip\":").append(gzip)
+			.append(",\"h2c\":").append(h2c)
+			.append(",\"requests\":{");
+		boolean first = true;
+		for(Op op : Op.values()) {
+			OpStats s = stats[op.ordinal()];
+			Histogram.Snapshot h = s.latency.snapshot();
+			if (h.getCount() == 0) continue;
+			total += h.getCount();
+			double throughput = h.getCount() / seconds;
+			long bytesPerRequest = s.bytes.sum() / h.getCount();
+			System.out.printf(Locale.ROOT, "%-8s %10d %10.1f %10.3f %10.3f %10.3f %10.3f %10d %8d %8d%n",
+					op.label(), h.getCount(), throughput,
+					millis(h.getValueAtPercentile(50)), millis(h.getValueAtPercentile(99)),
+					millis(h.getValueAtPercentile(99.9)), millis(h.getMax()),
+					bytesPerRequest, s.notFound.sum(), s.failed.sum());
+			if (! first) json.append(',');
+			first = false;
+			json.append('"').append(op.label()).append("\":{")
+				.append("\"count\":").append(h.getCount())
+				.append(",\"throughput\":").append(String.format(Locale.ROOT, "%.1f", throughput))
+				.append(",\"p50\":").append(h.getValueAtPercentile(50))
+				.append(",\"p99\":").append(h.getValueAtPercentile(99))
+				.append(",\"p999\":").append(h.getValueAtPercentile(99.9))
+				.append(",\"max\":").append(h.getMax())
+				.append(",\"bytes\":").append(s.bytes.sum())
+				.append(",\"notFound\":").append(s.notFound.sum())
+				.append(",\"errors\":").append(s.failed.sum())
+				.append('}');
+		}
+		json.append("},\"throughput\":").append(String.format(Locale.ROOT, "%.1f", total / seconds))
+			.append(",\"latencyUnit\":\"ns\"}");
+		System.out.printf(Locale.ROOT, "total    %10d %10.1f%n", total, total / seconds);
+		if (out != null) {
+			Writer writer = new FileWriter(out);
+			try {
+				writer.write(json.toString());
+				writer.write('\n');
+			} finally {
+				writer.close();
+			}
+		}
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+}
@@ -0,0 +1,206 @@
+package contact.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import contact.entity.Contact;
+import contact.resource.ContactBinary;
+import contact.resource.ContactJson;
+import contact.resource.ContactXml;
+import contact.service.file.ContactRecords;
+
+/**
+ * Benchmarks of encoding and decoding one contact: JAXB, the StAX code
+ * in ContactXml used by the message body writers, the JSON codec in
+ * ContactJson, and the binary records of the file DAO.  The list
+ * benchmarks write and read a page of contacts as XML, as JSON and in
+ * the ContactBinary export format.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class SerializationBenchmark {
+	private static final JAXBContext jaxb = createContext();
+	/** Contacts in a list, the default page size. */
+	private static final int LIST_SIZE = 100;
+
+	private static JAXBContext createContext() {
+		try {
+			return JAXBContext.newInstance(Contact.class);
+		} catch (JAXBException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** Marshallers are not thread-safe, so each thread has its own. */
+	@State(Scope.Thread)
+	public static class Codec {
+		Contact contact;
+		byte[] xml;
+		byte[] json;
+		byte[] record;
+		List<Contact> list;
+		byte[] xmlList;
+		byte[] jsonList;
+		byte[] binaryList;
+		Marshaller marshaller;
+		Unmarshaller unmarshaller;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+
+		@Setup(Level.Trial)
+		public void setUp() throws JAXBException {
+			contact = new Contact("Test contact", "Joe Experimental", "none@testing.com");
+			contact.setId(1234);
+			contact.setPhotoUrl("http://example.com/photos/1234.jpg");
+			xml = ContactXml.toBytes(contact);
+			json = ContactJson.toBytes(contact);
+			record = ContactRecords.put(contact);
+			list = new ArrayList<Contact>(LIST_SIZE);
+			for(int k=0; k<LIST_SIZE; k++) {
+				Contact item = new Contact("Contact " + k, "Name " + k, "contact" + k + "@testing.com");
+				item.setId(1000 + k);
+				list.add(item);
+			}
+			try {
+				out.reset();
+				ContactXml.writeAll(list, out);
+				xmlList = out.toByteArray();
+				out.reset();
+				ContactJson.writeAll(list, out);
+				jsonList = out.toByteArray();
+				out.reset();
+				ContactBinary.writeAll(list, out);
+				binaryList = out.toByteArray();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			marshaller = jaxb.createMarshaller();
+			unmarshaller = jaxb.createUnmarshaller();
+		}
+	}
+
+	@Benchmark
+	public int jaxbMarshal(Codec codec) throws JAXBException {
+		codec.out.reset();
+		codec.marshaller.marshal(codec.contact, codec.out);
+		return codec.out.size();
+	}
+
+	@Benchmark
+	public int staxWrite(Codec codec) throws IOException {
+		codec.out.reset();
+		ContactXml.write(codec.contact, codec.out);
+		return codec.out.size();
+	}
+
+	@Benchmark
+	public Object jaxbUnmarshal(Codec codec) throws JAXBException {
+		return codec.unmarshaller.unmarshal(new ByteArrayInputStream(codec.xml));
+	}
+
+	@Benchmark
+	public Contact staxRead(Codec codec) throws XMLStreamException {
+		XMLStreamReader reader = ContactXml.createReader(new ByteArrayInputStream(codec.xml));
+		ContactXml.nextContact(reader);
+		return ContactXml.readContact(reader);
+	}
+
+	@Benchmark
+	public int jsonWrite(Codec codec) throws IOException {
+		codec.out.reset();
+		ContactJson.write(codec.contact, codec.out);
+		return codec.out.size();
+	}
+
+	@Benchmark
+	public Contact jsonRead(Codec codec) throws IOException {
+		return ContactJson.read(new ByteArrayInputStream(codec.json));
+	}
+
+	@Benchmark
+	public int staxWriteList(Codec codec) throws IOException {
+		codec.out.reset();
+		ContactXml.writeAll(codec.list, codec.out);
+		return codec.out.size();
+	}
+
+	@Benchmark
+	public int jsonWriteList(Codec codec) throws IOException {
+		codec.out.reset();
+		ContactJson.writeAll(codec.list, codec.out);
+		return codec.out.size();
+	}
+
+	@Benchmark
+	public int staxReadList(Codec codec) throws XMLStreamException {
+		XMLStreamReader reader = ContactXml.createReader(new ByteArrayInputStream(codec.xmlList));
+		int count = 0;
+		while (ContactXml.nextContact(reader)) {
+			ContactXml.readContact(reader);
+			count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int jsonReadList(Codec codec) throws IOException {
+		ContactJson.Parser parser = ContactJson.createParser(new ByteArrayInputStream(codec.jsonList));
+		int count = 0;
+		while (parser.nextContact()) {
+			parser.readContact();
+			count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int binaryWriteList(Codec codec) throws IOException {
+		codec.out.reset();
+		ContactBinary.writeAll(codec.list, codec.out);
+		return codec.out.size();
+	}
+
+	@Benchmark
+	public int binaryReadList(Codec codec) throws IOException {
+		ContactBinary.Reader reader = ContactBinary.createReader(new ByteArrayInputStream(codec.binaryList));
+		int count = 0;
+		while (reader.next() != null) count++;
+		return count;
+	}
+
+	@Benchmark
+	public byte[] recordEncode(Codec codec) {
+		return ContactRecords.put(codec.contact);
+	}
+
+	@Benchmark
+	public Contact recordDecode(Codec codec) {
+		return ContactRecords.decodePut(ByteBuffer.wrap(codec.record));
+	}
+}
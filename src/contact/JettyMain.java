@@ -1,15 +1,24 @@
 package contact;
 
+import java.io.IOException;
 import java.util.EnumSet;
 
 import javax.servlet.DispatcherType;
 
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.glassfish.jersey.server.ServerProperties;
 
+import contact.log.RequestLog;
+import contact.log.RequestLogFilter;
+import contact.metrics.MetricsFilter;
+import contact.metrics.MetricsRegistry;
+import contact.metrics.ThreadPoolMetrics;
+import contact.service.DaoFactory;
+
 /**
  * <p>
  * This example shows how to deploy a RESTful web service
@@ -68,17 +77,21 @@ public class JettyMain {
 	 */
 	static final int PORT = 8080;
 	static Server server;
+	static RequestLog requestLog;
 	/**
 	 * Create a Jetty server and a context, add Jetty ServletContainer
 	 * which dispatches requests to JAX-RS resource objects,
 	 * and start the Jetty server.
 	 * 
-	 * @param args not used
+	 * @param args server settings of the form name=value, such as threads.max=400;
+	 *    see ServerConfig for the names
 	 * @throws Exception if Jetty server encounters any problem
 	 */
 	public static void main(String[] args) throws Exception {
-		int port = PORT;  // the port the server will listen to for HTTP requests
-		Server server = new Server( port );
+		// the port, thread pool and connector come from system properties and args
+		ServerConfig config = ServerConfig.fromSystemProperties(args);
+		int port = config.getPort();  // the port the server will listen to for HTTP requests
+		Server server = config.createServer();
 		
 		// (1) Use a ServletContextHandler to hold a "context" (our application)
 		// that will be deployed on the server.
@@ -110,11 +123,15 @@ public class JettyMain {
 		// all resource classes (classes with @Path annotation) in the named package(s). 
 		holder.setInitParameter(ServerProperties.PROVIDER_PACKAGES, RESOURCE_PACKAGE);
 		holder.setInitParameter(ServerProperties.JSON_PROCESSING_FEATURE_DISABLE, "false");
+		// resource methods suspend requests while the DAO works (see AsyncContactDao)
+		holder.setAsyncSupported(true);
+		config.configure(holder);
 		
 		context.addServlet( holder, "/*" );
 		
 		// (optional) add a filter.  Here I wrote a filter to log requests.
-//		context.addFilter(RequestLogFilter.class, "/", EnumSet.of(DispatcherType.REQUEST) );
+		addRequestLog(context);
+		addMetrics(server, context);
 
 		// (5) Add the context (our application) to the Jetty server.
 		server.setHandler( context );
@@ -126,10 +143,14 @@ public class JettyMain {
 		int ch = System.in.read();
 		System.out.println("Stopping server.");
 		server.stop();
+		closeRequestLog();
+		DaoFactory.getInstance().shutdown();
 	}
 
 	public static Boolean startServer(int port) throws Exception {
-		server = new Server( port );
+		ServerConfig config = ServerConfig.fromSystemProperties();
+		config.setPort(port);
+		server = config.createServer();
 		ServletContextHandler context = new ServletContextHandler( ServletContextHandler.SESSIONS );
 		
 		context.setContextPath("/");
@@ -137,8 +158,12 @@ public class JettyMain {
 		ServletHolder holder = new ServletHolder( org.glassfish.jersey.servlet.ServletContainer.class );
 		holder.setInitParameter(ServerProperties.PROVIDER_PACKAGES, RESOURCE_PACKAGE);
 		holder.setInitParameter(ServerProperties.JSON_PROCESSING_FEATURE_DISABLE, "false");
+		holder.setAsyncSupported(true);
+		config.configure(holder);
 		
 		context.addServlet( holder, "/*" );
+		addRequestLog(context);
+		addMetrics(server, context);
 		
 		server.setHandler( context );
 		server.start();
@@ -146,9 +171,40 @@ public class JettyMain {
 		return true;
 	}
 
+	/**
+	 * Time every request with a MetricsFilter, and publish the utilization
+	 * of the server's thread pool on the /metrics endpoint.
+	 */
+	static void addMetrics(Server server, ServletContextHandler context) {
+		FilterHolder filter = new FilterHolder(new MetricsFilter());
+		filter.setAsyncSupported(true);
+		context.addFilter(filter, "/*", EnumSet.of(DispatcherType.REQUEST));
+		ThreadPoolMetrics.register(MetricsRegistry.getInstance(), server.getThreadPool());
+	}
+
+	/**
+	 * Log requests with a RequestLogFilter, configured by the contact.log
+	 * system properties (see RequestLog), unless the level is OFF.
+	 */
+	static void addRequestLog(ServletContextHandler context) throws IOException {
+		requestLog = RequestLog.fromSystemProperties();
+		if (requestLog == null) return;
+		FilterHolder filter = new FilterHolder(new RequestLogFilter(requestLog));
+		filter.setAsyncSupported(true);
+		context.addFilter(filter, "/*", EnumSet.of(DispatcherType.REQUEST));
+	}
+
+	/** Write any buffered request log entries and close the log file. */
+	static void closeRequestLog() throws IOException {
+		if (requestLog != null) requestLog.close();
+		requestLog = null;
+	}
+
 	public static Boolean stopServer() throws Exception {
 
 		server.stop();
+		closeRequestLog();
+		DaoFactory.getInstance().shutdown();
 		return true;
 	}
 	
@@ -0,0 +1,234 @@
+package contact;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import contact.resource.GzipWriterInterceptor;
+
+/**
+ * Settings for the Jetty server: port, thread pool, connector and compression.
+ * Each setting is read from a system property named "contact.server."
+ * plus its name, and can be overridden by a <code>name=value</code>
+ * command line argument to JettyMain, such as <code>threads.max=400</code>.
+ * <table summary="settings">
+ * <tr><td>port</td><td>port to listen on (8080)</td></tr>
+ * <tr><td>threads</td><td>"pool" for Jetty's QueuedThreadPool (the default), or "virtual"
+ *     to run every task on a new virtual thread (JDK 21 or later)</td></tr>
+ * <tr><td>threads.min</td><td>threads kept in the pool when idle (8)</td></tr>
+ * <tr><td>threads.max</td><td>most threads in the pool (200)</td></tr>
+ * <tr><td>threads.idle</td><td>milliseconds before an idle thread above the minimum stops (60000)</td></tr>
+ * <tr><td>queue</td><td>most jobs waiting for a pool thread, or 0 for no limit (0).
+ *     When the queue is full, new connections are rejected instead of waiting.</td></tr>
+ * <tr><td>acceptors</td><td>threads accepting connections, or -1 for Jetty's choice (-1)</td></tr>
+ * <tr><td>selectors</td><td>threads selecting on connections, or -1 for Jetty's choice (-1)</td></tr>
+ * <tr><td>accept.queue</td><td>length of the operating system's accept backlog, or 0 for the default (0)</td></tr>
+ * <tr><td>http2</td><td>"true" to also accept HTTP/2 without TLS (h2c) on the connector, by
+ *     upgrade or prior knowledge (false).  Needs Jetty's http2-server module.</td></tr>
+ * <tr><td>gzip.level</td><td>gzip level for responses to clients that accept it, from 1 (fastest)
+ *     to 9 (smallest), or 0 to send responses uncompressed (6)</td></tr>
+ * <tr><td>gzip.min</td><td>smallest response in bytes that is compressed (1024)</td></tr>
+ * </table>
+ * The thread settings apply to the pool only; in virtual mode there is
+ * no limit on threads and no queue.
+ *
+ * @author jim
+ */
+public class ServerConfig {
+	/** Prefix of the system properties. */
+	public static final String PREFIX = "contact.server.";
+	/** Value of the "threads" setting for a pool of platform threads. */
+	public static final String POOL = "pool";
+	/** Value of the "threads" setting for a virtual thread per task. */
+	public static final String VIRTUAL = "virtual";
+
+	private int port;
+	private final boolean virtualThreads;
+	private final int minThreads;
+	private final int maxThreads;
+	private final int idleTimeout;
+	private final int queueSize;
+	private final int acceptors;
+	private final int selectors;
+	private final int acceptQueueSize;
+	private final boolean http2;
+	private final int gzipLevel;
+	private final int gzipMinSize;
+
+	/**
+	 * Read settings.
+	 * @param settings values by setting name, without the prefix
+	 */
+	public ServerConfig(Properties settings) {
+		port = intSetting(settings, "port", JettyMain.PORT);
+		String threads = settings.getProperty("threads", POOL);
+		if (threads.equalsIgnoreCase(VIRTUAL)) virtualThreads = true;
+		else if (threads.equalsIgnoreCase(POOL)) virtualThreads = false;
+		else throw new IllegalArgumentException("threads must be " + POOL + " or " + VIRTUAL + ", not " + threads);
+		minThreads = intSetting(settings, "threads.min", 8);
+		maxThreads = intSetting(settings, "threads.max", 200);
+		idleTimeout = intSetting(settings, "threads.idle", 60000);
+		queueSize = intSetting(settings, "queue", 0);
+		acceptors = intSetting(settings, "acceptors", -1);
+		selectors = intSetting(settings, "selectors", -1);
+		acceptQueueSize = intSetting(settings, "accept.queue", 0);
+		http2 = booleanSetting(settings, "http2", false);
+		gzipLevel = intSetting(settings, "gzip.level", GzipWriterInterceptor.DEFAULT_LEVEL);
+		gzipMinSize = intSetting(settings, "gzip.min", GzipWriterInterceptor.DEFAULT_MIN_SIZE);
+		if (minThreads < 1 || maxThreads < minThreads) {
+			throw new IllegalArgumentException("need 1 <= threads.min <= threads.max");
+		}
+		if (queueSize < 0) throw new IllegalArgumentException("queue may not be negative");
+		if (gzipLevel < 0 || gzipLevel > 9) throw new IllegalArgumentException("gzip.level must be 0 to 9");
+		if (gzipMinSize < 0) throw new IllegalArgumentException("gzip.min may not be negative");
+	}
+
+	/**
+	 * Read settings from the system properties, overridden by arguments.
+	 * @param args arguments of the form name=value; a leading "--" is ignored
+	 */
+	public static ServerConfig fromSystemProperties(String... args) {
+		Properties settings = new Properties();
+		Properties system = System.getProperties();
+		for(String name : system.stringPropertyNames()) {
+			if (name.startsWith(PREFIX)) settings.setProperty(name.substring(PREFIX.length()), system.getProperty(name));
+		}
+		for(String arg : args) {
+			if (arg.startsWith("--")) arg = arg.substring(2);
+			int eq = arg.indexOf('=');
+			if (eq <= 0) throw new IllegalArgumentException("expected name=value, not " + arg);
+			settings.setProperty(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		return new ServerConfig(settings);
+	}
+
+	private static int intSetting(Properties settings, String name, int defaultValue) {
+		String value = settings.getProperty(name);
+		if (value == null) return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be a number, not " + value);
+		}
+	}
+
+	private static boolean booleanSetting(Properties settings, String name, boolean defaultValue) {
+		String value = settings.getProperty(name);
+		if (value == null) return defaultValue;
+		value = value.trim();
+		if (value.equalsIgnoreCase("true")) return true;
+		if (value.equalsIgnoreCase("false")) return false;
+		throw new IllegalArgumentException(name + " must be true or false, not " + value);
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public boolean isHttp2() {
+		return http2;
+	}
+
+	public int getGzipLevel() {
+		return gzipLevel;
+	}
+
+	public int getGzipMinSize() {
+		return gzipMinSize;
+	}
+
+	/**
+	 * Create a server with the configured thread pool and one connector,
+	 * for HTTP/1.1 and, if http2 is set, h2c.
+	 * @return the server, not started
+	 */
+	public Server createServer() {
+		Server server = new Server(createThreadPool());
+		HttpConfiguration httpConfig = new HttpConfiguration();
+		ConnectionFactory[] factories;
+		if (http2) factories = new ConnectionFactory[] { new HttpConnectionFactory(httpConfig), newH2cFactory(httpConfig) };
+		else factories = new ConnectionFactory[] { new HttpConnectionFactory(httpConfig) };
+		ServerConnector connector = new ServerConnector(server, acceptors, selectors, factories);
+		connector.setPort(port);
+		if (acceptQueueSize > 0) connector.setAcceptQueueSize(acceptQueueSize);
+		server.addConnector(connector);
+		return server;
+	}
+
+	/**
+	 * Pass the settings that the Jersey application reads, such as
+	 * compression, to its servlet as init parameters.
+	 * @param holder the holder of Jersey's ServletContainer
+	 */
+	public void configure(ServletHolder holder) {
+		holder.setInitParameter(GzipWriterInterceptor.LEVEL_PROPERTY, Integer.toString(gzipLevel));
+		holder.setInitParameter(GzipWriterInterceptor.MIN_SIZE_PROPERTY, Integer.toString(gzipMinSize));
+	}
+
+	/** @return the thread pool for the server */
+	ThreadPool createThreadPool() {
+		if (virtualThreads) return new VirtualThreadPool(newVirtualThreadExecutor());
+		QueuedThreadPool pool;
+		if (queueSize > 0) {
+			// a bounded queue sheds load when full, instead of letting latency grow without limit
+			int initial = Math.min(minThreads, queueSize);
+			pool = new QueuedThreadPool(maxThreads, minThreads, idleTimeout,
+					new BlockingArrayQueue<Runnable>(initial, initial, queueSize));
+		}
+		else pool = new QueuedThreadPool(maxThreads, minThreads, idleTimeout, null);
+		pool.setName("jetty-worker");
+		return pool;
+	}
+
+	/**
+	 * Create an executor that runs each task on a new virtual thread.
+	 * It is found by reflection, so the service still compiles and runs
+	 * on JDKs without virtual threads.
+	 * @throws IllegalStateException if the JDK has no virtual threads
+	 */
+	static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("virtual threads need JDK 21 or later; this is "
+					+ System.getProperty("java.version"), e);
+		}
+	}
+
+	/**
+	 * Create the connection factory for HTTP/2 without TLS.  Like the
+	 * virtual thread executor it is found by reflection, so the server
+	 * still runs without the http2-server module unless h2c is wanted.
+	 * @throws IllegalStateException if the module is not on the classpath
+	 */
+	static ConnectionFactory newH2cFactory(HttpConfiguration httpConfig) {
+		try {
+			Class<?> type = Class.forName("org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory");
+			Constructor<?> constructor = type.getConstructor(HttpConfiguration.class);
+			return (ConnectionFactory) constructor.newInstance(httpConfig);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("http2 needs Jetty's http2-server module (Jetty 9.3 or later)", e);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package contact;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * A Jetty thread pool that runs every task on a new virtual thread.
+ * Jetty 9.4's ExecutorThreadPool only wraps a ThreadPoolExecutor, so this
+ * forwards tasks to any ExecutorService, such as the JDK's virtual thread
+ * per task executor.  There are no idle threads, and the pool is never low
+ * on threads; getThreads counts the tasks running.  Stopping the server
+ * stops the executor.
+ *
+ * @author jim
+ */
+class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+	private final ExecutorService executor;
+	private final AtomicInteger running = new AtomicInteger();
+
+	/**
+	 * @param executor runs each task on its own thread
+	 */
+	VirtualThreadPool(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	@Override
+	public void execute(final Runnable task) {
+		executor.execute(() -> {
+			running.incrementAndGet();
+			try {
+				task.run();
+			} finally {
+				running.decrementAndGet();
+			}
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.jetty.util.component.AbstractLifeCycle#doStop()
+	 */
+	@Override
+	protected void doStop() throws Exception {
+		executor.shutdown();
+		super.doStop();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.jetty.util.thread.ThreadPool#join()
+	 */
+	@Override
+	public void join() throws InterruptedException {
+		while (! executor.awaitTermination(1, TimeUnit.MINUTES)) { }
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.jetty.util.thread.ThreadPool#getThreads()
+	 */
+	@Override
+	public int getThreads() {
+		return running.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.jetty.util.thread.ThreadPool#getIdleThreads()
+	 */
+	@Override
+	public int getIdleThreads() {
+		return 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.jetty.util.thread.ThreadPool#isLowOnThreads()
+	 */
+	@Override
+	public boolean isLowOnThreads() {
+		return false;
+	}
+}
@@ -1,15 +1,21 @@
 package contact.entity;
 import java.io.Serializable;
+import java.util.Locale;
 
 import javax.persistence.Entity;
-import javax.persistence.GenerationType;
-import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.PrePersist;
+import javax.persistence.Table;
+import javax.persistence.Version;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 
 /**
  * A person is a contact with a name, title, and email.
@@ -17,29 +23,54 @@ import javax.xml.bind.annotation.XmlRootElement;
  * such as a nickname or company name.
  */
 @Entity
+@Table(indexes={
+		@Index(name="contact_title", columnList="title"),
+		@Index(name="contact_title_key", columnList="titleKey") })
+@NamedQueries({
+	@NamedQuery(name="Contact.findAll", query="SELECT c FROM Contact c ORDER BY c.id"),
+	@NamedQuery(name="Contact.count", query="SELECT COUNT(c) FROM Contact c"),
+	@NamedQuery(name="Contact.findPage", query="SELECT c FROM Contact c WHERE c.id > :after ORDER BY c.id"),
+	@NamedQuery(name="Contact.findByTitle", query="SELECT c FROM Contact c WHERE c.title = :title ORDER BY c.id"),
+	@NamedQuery(name="Contact.findByTitleKey", query="SELECT c FROM Contact c WHERE c.titleKey = :key ORDER BY c.id"),
+	@NamedQuery(name="Contact.findIds", query="SELECT c.id FROM Contact c WHERE c.id IN :ids"),
+	@NamedQuery(name="Contact.findByIds", query="SELECT c FROM Contact c WHERE c.id IN :ids"),
+	@NamedQuery(name="Contact.deleteById", query="DELETE FROM Contact c WHERE c.id = :id"),
+	@NamedQuery(name="Contact.deleteByIdAndVersion", query="DELETE FROM Contact c WHERE c.id = :id AND c.version = :version"),
+	@NamedQuery(name="Contact.deleteByIds", query="DELETE FROM Contact c WHERE c.id IN :ids")
+})
 @XmlRootElement(name="contact")
 @XmlAccessorType(XmlAccessType.FIELD)
 public class Contact implements Serializable {
 	private static final long serialVersionUID = 1L;
 
+	/** Assigned by the DAO that saves the contact. */
 	@Id
-	@GeneratedValue(strategy=GenerationType.AUTO)
 	@XmlAttribute
 	private long id;
 	@XmlElement(required=true,nillable=false)
 	private String title;
+	/** Lowercase title, stored so case-insensitive lookups can use an index. */
+	@XmlTransient
+	private String titleKey;
 	private String name;
 	
 	private String email;
 	/** URL of photo */
 	private String photoUrl;
+	/**
+	 * Version of this contact, assigned by the DAO and increased on every change.
+	 * It is used for entity tags, so it is not part of the XML representation.
+	 */
+	@Version
+	@XmlTransient
+	private long version;
 	
 	/** Create a new contact with no data.  Intended for use by persistence framework. */
 	public Contact() { }
 	
 	/** Create a new contact with the given title, name, and email address. */
 	public Contact(String title, String name, String email ) {
-		this.title = title;
+		setTitle(title);
 		this.name = name;
 		this.email = email;
 		this.photoUrl = "";
@@ -72,6 +103,22 @@ public class Contact implements Serializable {
 
 	public void setTitle(String title) {
 		this.title = title;
+		this.titleKey = foldTitle(title);
+	}
+
+	/**
+	 * Get the form of a title used for case-insensitive matching.
+	 * @param title a title, may be null
+	 * @return title in lowercase, or null
+	 */
+	public static String foldTitle(String title) {
+		return (title == null) ? null : title.toLowerCase(Locale.ROOT);
+	}
+
+	/** Set the title key of a contact whose title field was set directly, as JAXB does. */
+	@PrePersist
+	void prePersist() {
+		titleKey = foldTitle(title);
 	}
 
 	public String getEmail() {
@@ -90,6 +137,14 @@ public class Contact implements Serializable {
 		this.id = id;
 	}
 
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
 	@Override
 	public String toString() {
 		return String.format("%s: %s <%s> (%d)", title, name, email, id);
@@ -104,10 +159,16 @@ public class Contact implements Serializable {
 		Contact contact = (Contact) other;
 		return contact.getId() == this.getId();
 	}
+
+	/** Consistent with equals: the hash code depends only on the id. */
+	@Override
+	public int hashCode() {
+		return Long.hashCode(id);
+	}
 	
 	/**
 	 * Copy another contact's data into this contact.
-	 * The id of this contact is not changed.  This allows
+	 * The id and version of this contact are not changed.  This allows
 	 * complete updates of an existing contact without
 	 * changing the object's identity.
 	 * @param other another Contact whose fields are copied to this contact.
@@ -121,6 +182,19 @@ public class Contact implements Serializable {
 		this.setPhotoUrl(other.getPhotoUrl());
 	}
 	
+	/**
+	 * Create a copy of this contact, including its id and version.
+	 * DAOs store copies, so that later changes to a contact by the
+	 * caller do not change the stored one.
+	 * @return a new contact equal to this one in every field
+	 */
+	public Contact copy() {
+		Contact copy = new Contact(id);
+		copy.copyOf(this);
+		copy.version = version;
+		return copy;
+	}
+
 	/**
 	 * Update this contact's data from another Contact.
 	 * The id field of the update must either be 0 or the same value as this contact!
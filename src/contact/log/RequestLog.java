@@ -0,0 +1,317 @@
+package contact.log;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * A log of HTTP requests, written as one JSON object per line to a file
+ * that is rolled over when it grows too large.
+ * <p>
+ * Request threads put entries in a preallocated ring buffer and never
+ * wait for I/O: recording claims a slot with one compare-and-set and
+ * stores references and numbers in parallel arrays, so it allocates nothing.
+ * If the buffer is full the entry is dropped and counted, rather than
+ * slowing the request.  A daemon thread drains the buffer, formats the
+ * entries and writes them to the file.
+ * <p>
+ * Files are named <code>requests.log</code>, and rolled over to
+ * <code>requests.log.1</code>, <code>requests.log.2</code>, and so on;
+ * the oldest beyond the file limit is deleted.
+ *
+ * @author jim
+ */
+public class RequestLog implements Closeable {
+	/** Which requests are logged, by response status. */
+	public enum Level {
+		/** log nothing */
+		OFF,
+		/** log server errors (status 500 and up) */
+		ERROR,
+		/** log client and server errors (status 400 and up) */
+		WARN,
+		/** log every request */
+		INFO;
+
+		/** @return true if a response with this status is logged at this level */
+		public boolean accepts(int status) {
+			switch (this) {
+			case INFO: return true;
+			case WARN: return status >= 400;
+			case ERROR: return status >= 500;
+			default: return false;
+			}
+		}
+	}
+
+	/** System property for the level: OFF, ERROR, WARN or INFO (the default). */
+	public static final String LEVEL_PROPERTY = "contact.log.level";
+	/** System property for the directory of log files, by default "logs". */
+	public static final String DIR_PROPERTY = "contact.log.dir";
+	/** System property for the number of entries in the buffer, by default 8192. */
+	public static final String BUFFER_PROPERTY = "contact.log.buffer";
+	/** System property for the size in bytes at which a file is rolled over, by default 10 MB. */
+	public static final String FILE_BYTES_PROPERTY = "contact.log.file.bytes";
+	/** System property for the number of old files kept, by default 5. */
+	public static final String FILES_PROPERTY = "contact.log.files";
+
+	/** Name of the current log file. */
+	public static final String FILE_NAME = "requests.log";
+	/** How long the writer sleeps when the buffer is empty. */
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+	private static final Logger logger = Logger.getLogger(RequestLog.class.getName());
+
+	private final File dir;
+	private final long maxFileBytes;
+	private final int maxFiles;
+	private volatile Level level;
+
+	// the ring buffer: entry number n is in slot n & mask
+	private final int mask;
+	private final long[] times;
+	private final long[] durations;
+	private final int[] statuses;
+	private final String[] remotes;
+	private final String[] methods;
+	private final String[] uris;
+	private final String[] queries;
+	/** Number of the entry published in each slot; a slot is readable when it holds the entry number. */
+	private final AtomicLongArray published;
+	/** Number of the next entry to claim. */
+	private final AtomicLong head = new AtomicLong();
+	/** Number of the next entry to write; only the writer thread advances it. */
+	private volatile long tail;
+	private final LongAdder dropped = new LongAdder();
+
+	private final Thread writerThread;
+	private volatile boolean closed;
+	private Writer out;
+	private long fileBytes;
+
+	/**
+	 * Create a log and start its writer thread.
+	 * @param dir directory for the log files, created if needed
+	 * @param level which requests to log
+	 * @param bufferSize number of entries the buffer holds; rounded up to a power of 2
+	 * @param maxFileBytes size at which a file is rolled over
+	 * @param maxFiles number of old files to keep
+	 */
+	public RequestLog(File dir, Level level, int bufferSize, long maxFileBytes, int maxFiles) throws IOException {
+		if (! dir.isDirectory() && ! dir.mkdirs()) throw new IOException("cannot create " + dir);
+		this.dir = dir;
+		this.level = level;
+		this.maxFileBytes = maxFileBytes;
+		this.maxFiles = maxFiles;
+		int capacity = 1;
+		while (capacity < bufferSize) capacity <<= 1;
+		mask = capacity - 1;
+		times = new long[capacity];
+		durations = new long[capacity];
+		statuses = new int[capacity];
+		remotes = new String[capacity];
+		methods = new String[capacity];
+		uris = new String[capacity];
+		queries = new String[capacity];
+		published = new AtomicLongArray(capacity);
+		for(int k=0; k<capacity; k++) published.set(k, -1);
+		openFile();
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				drainUntilClosed();
+			}
+		}, "request-log-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Create a log configured by the system properties.
+	 * @return the log, or null if the level is OFF
+	 */
+	public static RequestLog fromSystemProperties() throws IOException {
+		Level level = Level.valueOf(System.getProperty(LEVEL_PROPERTY, "INFO").toUpperCase());
+		if (level == Level.OFF) return null;
+		return new RequestLog(new File(System.getProperty(DIR_PROPERTY, "logs")), level,
+				Integer.getInteger(BUFFER_PROPERTY, 8192),
+				Long.getLong(FILE_BYTES_PROPERTY, 10L << 20),
+				Integer.getInteger(FILES_PROPERTY, 5));
+	}
+
+	/** @return which requests are logged */
+	public Level getLevel() {
+		return level;
+	}
+
+	/** Change which requests are logged.  Takes effect immediately. */
+	public void setLevel(Level level) {
+		this.level = level;
+	}
+
+	/** @return true if a request with this response status should be recorded */
+	public boolean isLogged(int status) {
+		return level.accepts(status);
+	}
+
+	/** @return number of entries dropped because the buffer was full, and not yet reported in the file */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Add an entry to the log, unless the buffer is full.
+	 * @param time when the request arrived, in milliseconds since the epoch
+	 * @param remote client address
+	 * @param method HTTP method
+	 * @param uri request path
+	 * @param query query string, or null
+	 * @param status response status
+	 * @param nanos time taken to handle the request
+	 * @return false if the entry was dropped
+	 */
+	public boolean record(long time, String remote, String method, String uri, String query, int status, long nanos) {
+		long n;
+		do {
+			n = head.get();
+			if (n - tail > mask || closed) {
+				dropped.increment();
+				return false;
+			}
+		} while (! head.compareAndSet(n, n + 1));
+		int slot = (int) n & mask;
+		times[slot] = time;
+		durations[slot] = nanos;
+		statuses[slot] = status;
+		remotes[slot] = remote;
+		methods[slot] = method;
+		uris[slot] = uri;
+		queries[slot] = query;
+		// a volatile write, so the writer sees the fields once it sees n
+		published.set(slot, n);
+		return true;
+	}
+
+	private void drainUntilClosed() {
+		StringBuilder line = new StringBuilder(256);
+		while (true) {
+			boolean stopping = closed;
+			try {
+				if (drain(line) == 0) {
+					if (stopping) break;
+					out.flush();
+					LockSupport.parkNanos(IDLE_NANOS);
+				}
+			} catch (IOException e) {
+				logger.warning("cannot write request log: " + e);
+				// the file may never be writable again, so close gives up rather than wait forever
+				if (stopping) {
+					logger.warning("request log closed with " + (head.get() - tail) + " entries not written");
+					break;
+				}
+				LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+			}
+		}
+	}
+
+	/**
+	 * Write the published entries.
+	 * @return number of entries written
+	 */
+	private int drain(StringBuilder line) throws IOException {
+		int count = 0;
+		long n = tail;
+		while (true) {
+			int slot = (int) n & mask;
+			if (published.get(slot) != n) break;
+			line.setLength(0);
+			line.append("{\"time\":\"").append(Instant.ofEpochMilli(times[slot])).append('"');
+			appendField(line, "remote", remotes[slot]);
+			appendField(line, "method", methods[slot]);
+			appendField(line, "uri", uris[slot]);
+			if (queries[slot] != null) appendField(line, "query", queries[slot]);
+			line.append(",\"status\":").append(statuses[slot]);
+			line.append(",\"micros\":").append(durations[slot] / 1000);
+			line.append("}\n");
+			// release the references before the slot can be reused
+			remotes[slot] = methods[slot] = uris[slot] = queries[slot] = null;
+			tail = ++n;
+			write(line);
+			count++;
+		}
+		long lost = dropped.sumThenReset();
+		if (lost > 0) {
+			line.setLength(0);
+			line.append("{\"time\":\"").append(Instant.now()).append("\",\"dropped\":").append(lost).append("}\n");
+			write(line);
+		}
+		return count;
+	}
+
+	private static void appendField(StringBuilder line, String name, String value) {
+		line.append(",\"").append(name).append("\":");
+		if (value == null) {
+			line.append("null");
+			return;
+		}
+		line.append('"');
+		for(int k=0; k<value.length(); k++) {
+			char c = value.charAt(k);
+			if (c == '"' || c == '\\') line.append('\\').append(c);
+			else if (c < 0x20) line.append(String.format("\\u%04x", (int) c));
+			else line.append(c);
+		}
+		line.append('"');
+	}
+
+	private void write(CharSequence text) throws IOException {
+		if (fileBytes >= maxFileBytes) rollOver();
+		out.append(text);
+		// close enough for ASCII, which request lines nearly always are
+		fileBytes += text.length();
+	}
+
+	private void openFile() throws IOException {
+		File file = new File(dir, FILE_NAME);
+		fileBytes = file.length();
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 65536);
+	}
+
+	/** Close the current file, shift the old files up by one, and start a new file. */
+	private void rollOver() throws IOException {
+		out.close();
+		new File(dir, FILE_NAME + "." + maxFiles).delete();
+		for(int k=maxFiles-1; k>=1; k--) {
+			File file = new File(dir, FILE_NAME + "." + k);
+			if (file.exists()) file.renameTo(new File(dir, FILE_NAME + "." + (k + 1)));
+		}
+		if (maxFiles > 0) new File(dir, FILE_NAME).renameTo(new File(dir, FILE_NAME + ".1"));
+		else new File(dir, FILE_NAME).delete();
+		openFile();
+	}
+
+	/**
+	 * Stop accepting entries, write those in the buffer and close the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		out.close();
+	}
+}
@@ -0,0 +1,88 @@
+package contact.log;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet filter that records each request in a RequestLog after the
+ * response is written, if the log's level accepts the response status.
+ * The request thread only stores the entry in the log's buffer; the file
+ * is written by the log's own thread.
+ *
+ * @author jim
+ */
+public class RequestLogFilter implements Filter {
+	/** Status logged when the request threw an exception. */
+	private static final int SERVER_ERROR = 500;
+
+	private final RequestLog log;
+
+	/**
+	 * @param log where to record requests
+	 */
+	public RequestLogFilter(RequestLog log) {
+		this.log = log;
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.servlet.Filter#init(javax.servlet.FilterConfig)
+	 */
+	@Override
+	public void init(FilterConfig config) throws ServletException {
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.servlet.Filter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, javax.servlet.FilterChain)
+	 */
+	@Override
+	public void doFilter(final ServletRequest request, final ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		final long time = System.currentTimeMillis();
+		final long start = System.nanoTime();
+		boolean completed = false;
+		try {
+			chain.doFilter(request, response);
+			completed = true;
+		} finally {
+			if (completed && request.isAsyncStarted()) {
+				request.getAsyncContext().addListener(new AsyncListener() {
+					public void onComplete(AsyncEvent event) {
+						record(request, status(response), time, start);
+					}
+					public void onTimeout(AsyncEvent event) { }
+					public void onError(AsyncEvent event) { }
+					public void onStartAsync(AsyncEvent event) { }
+				});
+			}
+			else record(request, completed ? status(response) : SERVER_ERROR, time, start);
+		}
+	}
+
+	private static int status(ServletResponse response) {
+		return (response instanceof HttpServletResponse) ? ((HttpServletResponse) response).getStatus() : 0;
+	}
+
+	private void record(ServletRequest request, int status, long time, long start) {
+		if (! log.isLogged(status) || ! (request instanceof HttpServletRequest)) return;
+		HttpServletRequest http = (HttpServletRequest) request;
+		log.record(time, http.getRemoteAddr(), http.getMethod(), http.getRequestURI(), http.getQueryString(),
+				status, System.nanoTime() - start);
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.servlet.Filter#destroy()
+	 */
+	@Override
+	public void destroy() {
+	}
+}
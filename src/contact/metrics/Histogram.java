@@ -0,0 +1,138 @@
+package contact.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of non-negative <code>long</code> values, such as
+ * latencies in nanoseconds, in the style of an HDR histogram.
+ * <p>
+ * Buckets are log-linear: values below 2<sup>{@value #SUB_BITS}</sup> have a
+ * bucket each, and every power of 2 above that is split into
+ * 2<sup>{@value #SUB_BITS}-1</sup> equal buckets, so a recorded value is
+ * reported within 1% of its true value over the whole range of
+ * <code>long</code>.  Recording is wait-free apart from the maximum, and
+ * allocates nothing, so it can be used on the request path.
+ * <p>
+ * A {@link Snapshot} copies the counts for computing percentiles.
+ * Values recorded while a snapshot is taken may or may not be included.
+ *
+ * @author jim
+ */
+public final class Histogram {
+	/** Bits of precision in each power of 2. */
+	static final int SUB_BITS = 8;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF_COUNT = SUB_COUNT / 2;
+	/** Enough buckets for Long.MAX_VALUE. */
+	private static final int BUCKETS = indexOf(Long.MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/** @return the bucket holding value */
+	static int indexOf(long value) {
+		if (value < SUB_COUNT) return (int) value;
+		// shift so the value keeps its top SUB_BITS bits
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BITS - 1);
+		return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (value >>> shift) - HALF_COUNT;
+	}
+
+	/** @return the largest value in a bucket */
+	static long highestValue(int index) {
+		if (index < SUB_COUNT) return index;
+		int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+		long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * Record a value.
+	 * @param value the value; negative values are recorded as 0
+	 */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		counts.incrementAndGet(indexOf(value));
+		sum.add(value);
+		long m;
+		while (value > (m = max.get()) && ! max.compareAndSet(m, value)) { }
+	}
+
+	/**
+	 * Discard all recorded values.  Values recorded concurrently with
+	 * a reset may be partly kept.
+	 */
+	public void reset() {
+		for(int k=0; k<BUCKETS; k++) counts.set(k, 0);
+		sum.reset();
+		max.set(0);
+	}
+
+	/** @return a copy of the current counts */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		long count = 0;
+		for(int k=0; k<BUCKETS; k++) {
+			copy[k] = counts.get(k);
+			count += copy[k];
+		}
+		return new Snapshot(copy, count, sum.sum(), max.get());
+	}
+
+	/**
+	 * Recorded values at one moment, for computing percentiles.
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		private Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/** @return number of values recorded */
+		public long getCount() {
+			return count;
+		}
+
+		/** @return sum of the values recorded */
+		public long getSum() {
+			return sum;
+		}
+
+		/** @return largest value recorded, or 0 if none */
+		public long getMax() {
+			return max;
+		}
+
+		/** @return mean of the values recorded, or 0 if none */
+		public double getMean() {
+			return (count == 0) ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * Get the value at a percentile: the smallest value that at least
+		 * that percentage of recorded values are less than or equal to.
+		 * @param percentile percentile from 0 to 100, e.g. 99.9
+		 * @return the value, within the histogram's precision, or 0 if nothing was recorded
+		 */
+		public long getValueAtPercentile(double percentile) {
+			if (count == 0) return 0;
+			long rank = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count);
+			rank = Math.max(rank, 1);
+			long seen = 0;
+			for(int k=0; k<counts.length; k++) {
+				seen += counts[k];
+				if (seen >= rank) return Math.min(highestValue(k), max);
+			}
+			return max;
+		}
+	}
+}
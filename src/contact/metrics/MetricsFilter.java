@@ -0,0 +1,90 @@
+package contact.metrics;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet filter that times every request, from when it reaches the
+ * servlet until the response is written, and records it in the
+ * RouteMetrics that the resource layer stored in the request attribute
+ * {@link #ROUTE_ATTRIBUTE}.  Requests that matched no resource method are
+ * recorded under the route "unmatched".
+ *
+ * @author jim
+ */
+public class MetricsFilter implements Filter {
+	/** Request attribute holding the RouteMetrics of the matched resource method. */
+	public static final String ROUTE_ATTRIBUTE = "contact.metrics.route";
+	/** Status recorded when the request threw an exception. */
+	private static final int SERVER_ERROR = 500;
+
+	private final RouteMetrics unmatched;
+
+	public MetricsFilter() {
+		this(MetricsRegistry.getInstance());
+	}
+
+	public MetricsFilter(MetricsRegistry registry) {
+		unmatched = registry.route("unmatched");
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.servlet.Filter#init(javax.servlet.FilterConfig)
+	 */
+	@Override
+	public void init(FilterConfig config) throws ServletException {
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.servlet.Filter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, javax.servlet.FilterChain)
+	 */
+	@Override
+	public void doFilter(final ServletRequest request, final ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		final long start = System.nanoTime();
+		boolean completed = false;
+		try {
+			chain.doFilter(request, response);
+			completed = true;
+		} finally {
+			if (completed && request.isAsyncStarted()) {
+				// the response is written later, by another thread
+				request.getAsyncContext().addListener(new AsyncListener() {
+					public void onComplete(AsyncEvent event) {
+						record(request, status(response), start);
+					}
+					public void onTimeout(AsyncEvent event) { }
+					public void onError(AsyncEvent event) { }
+					public void onStartAsync(AsyncEvent event) { }
+				});
+			}
+			else record(request, completed ? status(response) : SERVER_ERROR, start);
+		}
+	}
+
+	private static int status(ServletResponse response) {
+		return (response instanceof HttpServletResponse) ? ((HttpServletResponse) response).getStatus() : 0;
+	}
+
+	private void record(ServletRequest request, int status, long start) {
+		Object route = request.getAttribute(ROUTE_ATTRIBUTE);
+		RouteMetrics metrics = (route instanceof RouteMetrics) ? (RouteMetrics) route : unmatched;
+		metrics.record(System.nanoTime() - start, status);
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.servlet.Filter#destroy()
+	 */
+	@Override
+	public void destroy() {
+	}
+}
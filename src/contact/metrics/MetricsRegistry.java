@@ -0,0 +1,200 @@
+package contact.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Metrics of the running service, written in the Prometheus text
+ * exposition format (version 0.0.4) for the /metrics endpoint.
+ * <p>
+ * A metric is registered once, by name and labels, and the caller keeps
+ * the returned object and records into it directly, so recording never
+ * touches the registry and does not allocate.  There are three kinds:
+ * <ul>
+ * <li>summaries: a {@link Histogram} of durations recorded in nanoseconds,
+ *     exported in seconds as the p50, p99 and p99.9 quantiles, sum and count
+ * <li>counters: a LongAdder that only increases
+ * <li>gauges: a function that is read when metrics are written
+ * </ul>
+ * Labels are given as the text that goes inside the braces, such as
+ * <code>operation="find"</code>; use {@link #label(String, String)} to build it.
+ *
+ * @author jim
+ */
+public class MetricsRegistry {
+	/** Quantiles reported for each summary. */
+	private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+	private static final double SECONDS_PER_NANO = 1e-9;
+
+	private static MetricsRegistry registry;
+
+	private enum Type {
+		SUMMARY, COUNTER, GAUGE;
+
+		String label() {
+			return name().toLowerCase();
+		}
+	}
+
+	/** Metrics with the same name but different labels. */
+	private static class Family {
+		final String name;
+		final String help;
+		final Type type;
+		/** metrics by label text, sorted so the output is stable */
+		final Map<String,Object> metrics = new TreeMap<String,Object>();
+
+		Family(String name, String help, Type type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private final Map<String,Family> families = new LinkedHashMap<String,Family>();
+	private final Map<String,RouteMetrics> routes = new LinkedHashMap<String,RouteMetrics>();
+
+	/** @return the registry shared by the whole service */
+	public static synchronized MetricsRegistry getInstance() {
+		if (registry == null) registry = new MetricsRegistry();
+		return registry;
+	}
+
+	private Family family(String name, String help, Type type) {
+		Family family = families.get(name);
+		if (family == null) {
+			family = new Family(name, help, type);
+			families.put(name, family);
+		}
+		else if (family.type != type) {
+			throw new IllegalArgumentException(name + " is already registered as a " + family.type.label());
+		}
+		return family;
+	}
+
+	/**
+	 * Get or create a summary of durations.
+	 * @param name metric name, which should end in "_seconds"
+	 * @param help description of the metric
+	 * @param labels label text, or "" for none
+	 * @return the histogram to record durations in, in nanoseconds
+	 */
+	public synchronized Histogram summary(String name, String help, String labels) {
+		Family family = family(name, help, Type.SUMMARY);
+		Histogram histogram = (Histogram) family.metrics.get(labels);
+		if (histogram == null) {
+			histogram = new Histogram();
+			family.metrics.put(labels, histogram);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Get or create a counter.
+	 * @param name metric name, which should end in "_total"
+	 * @param help description of the metric
+	 * @param labels label text, or "" for none
+	 * @return the counter
+	 */
+	public synchronized LongAdder counter(String name, String help, String labels) {
+		Family family = family(name, help, Type.COUNTER);
+		LongAdder counter = (LongAdder) family.metrics.get(labels);
+		if (counter == null) {
+			counter = new LongAdder();
+			family.metrics.put(labels, counter);
+		}
+		return counter;
+	}
+
+	/**
+	 * Register a gauge, replacing any gauge with the same name and labels.
+	 * @param name metric name
+	 * @param help description of the metric
+	 * @param labels label text, or "" for none
+	 * @param value reads the current value; called when metrics are written
+	 */
+	public synchronized void gauge(String name, String help, String labels, DoubleSupplier value) {
+		family(name, help, Type.GAUGE).metrics.put(labels, value);
+	}
+
+	/**
+	 * Get or create the metrics of an HTTP route.
+	 * @param route the route, such as "GET /contacts/{id}"
+	 */
+	public synchronized RouteMetrics route(String route) {
+		RouteMetrics metrics = routes.get(route);
+		if (metrics == null) {
+			metrics = new RouteMetrics(this, route);
+			routes.put(route, metrics);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Build the text for one label, escaping the value.
+	 * @return text such as <code>route="GET /contacts"</code>
+	 */
+	public static String label(String name, String value) {
+		String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+		return name + "=\"" + escaped + "\"";
+	}
+
+	/**
+	 * Write all metrics in the Prometheus text format.
+	 * @param out where to write
+	 */
+	public synchronized void write(Writer out) throws IOException {
+		for(Family family : families.values()) {
+			out.write("# HELP " + family.name + " " + family.help + "\n");
+			out.write("# TYPE " + family.name + " " + family.type.label() + "\n");
+			for(Map.Entry<String,Object> entry : family.metrics.entrySet()) {
+				String labels = entry.getKey();
+				switch (family.type) {
+				case SUMMARY:
+					Histogram.Snapshot snapshot = ((Histogram) entry.getValue()).snapshot();
+					for(double q : QUANTILES) {
+						String quantile = label("quantile", Double.toString(q));
+						writeSample(out, family.name, labels.isEmpty() ? quantile : labels + "," + quantile,
+								snapshot.getValueAtPercentile(q * 100) * SECONDS_PER_NANO);
+					}
+					writeSample(out, family.name + "_sum", labels, snapshot.getSum() * SECONDS_PER_NANO);
+					writeSample(out, family.name + "_count", labels, snapshot.getCount());
+					break;
+				case COUNTER:
+					writeSample(out, family.name, labels, ((LongAdder) entry.getValue()).sum());
+					break;
+				case GAUGE:
+					double value;
+					try {
+						value = ((DoubleSupplier) entry.getValue()).getAsDouble();
+					} catch (RuntimeException e) {
+						// e.g. a database that is down; report the gauge as unknown
+						value = Double.NaN;
+					}
+					writeSample(out, family.name, labels, value);
+					break;
+				}
+			}
+		}
+	}
+
+	private static void writeSample(Writer out, String name, String labels, double value) throws IOException {
+		out.write(name);
+		if (! labels.isEmpty()) out.write("{" + labels + "}");
+		out.write(' ');
+		out.write(format(value));
+		out.write('\n');
+	}
+
+	private static String format(double value) {
+		if (Double.isNaN(value)) return "NaN";
+		if (Double.isInfinite(value)) return value > 0 ? "+Inf" : "-Inf";
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+		return Double.toString(value);
+	}
+}
@@ -0,0 +1,52 @@
+package contact.metrics;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and response status counts of one HTTP route.
+ * A counter for a status code is registered the first time the route
+ * returns that code; after that recording does not allocate.
+ *
+ * @author jim
+ */
+public class RouteMetrics {
+	/** Largest status code that gets its own counter. */
+	private static final int MAX_STATUS = 599;
+
+	private final MetricsRegistry registry;
+	private final String route;
+	private final String routeLabel;
+	private final Histogram latency;
+	private final AtomicReferenceArray<LongAdder> statuses = new AtomicReferenceArray<LongAdder>(MAX_STATUS + 1);
+
+	RouteMetrics(MetricsRegistry registry, String route) {
+		this.registry = registry;
+		this.route = route;
+		this.routeLabel = MetricsRegistry.label("route", route);
+		this.latency = registry.summary("contact_http_request_duration_seconds",
+				"Time to handle a request, including writing the response.", routeLabel);
+	}
+
+	/** @return the route, such as "GET /contacts/{id}" */
+	public String getRoute() {
+		return route;
+	}
+
+	/**
+	 * Record a completed request.
+	 * @param nanos time taken
+	 * @param status HTTP status of the response
+	 */
+	public void record(long nanos, int status) {
+		latency.record(nanos);
+		if (status < 0 || status > MAX_STATUS) status = 0;
+		LongAdder counter = statuses.get(status);
+		if (counter == null) {
+			counter = registry.counter("contact_http_responses_total", "Responses by route and status code.",
+					routeLabel + "," + MetricsRegistry.label("code", Integer.toString(status)));
+			statuses.set(status, counter);
+		}
+		counter.increment();
+	}
+}
@@ -0,0 +1,37 @@
+package contact.metrics;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Gauges for the utilization of a Jetty server's thread pool.
+ *
+ * @author jim
+ */
+public final class ThreadPoolMetrics {
+	private static final String THREADS = "jetty_threads";
+	private static final String THREADS_HELP = "Threads in the Jetty thread pool, by state.";
+
+	private ThreadPoolMetrics() { }
+
+	/**
+	 * Register gauges for a thread pool, replacing those of any earlier pool.
+	 * @param registry where to register the gauges
+	 * @param pool the server's thread pool
+	 */
+	public static void register(MetricsRegistry registry, final ThreadPool pool) {
+		registry.gauge(THREADS, THREADS_HELP, MetricsRegistry.label("state", "total"), () -> pool.getThreads());
+		registry.gauge(THREADS, THREADS_HELP, MetricsRegistry.label("state", "idle"), () -> pool.getIdleThreads());
+		registry.gauge(THREADS, THREADS_HELP, MetricsRegistry.label("state", "busy"),
+				() -> pool.getThreads() - pool.getIdleThreads());
+		registry.gauge("jetty_threads_low", "1 if the pool is low on threads, else 0.", "",
+				() -> pool.isLowOnThreads() ? 1 : 0);
+		if (pool instanceof QueuedThreadPool) {
+			final QueuedThreadPool queued = (QueuedThreadPool) pool;
+			registry.gauge(THREADS, THREADS_HELP, MetricsRegistry.label("state", "max"), () -> queued.getMaxThreads());
+			registry.gauge("jetty_thread_pool_utilization", "Busy threads as a fraction of the maximum.", "",
+					() -> (double) (queued.getThreads() - queued.getIdleThreads()) / queued.getMaxThreads());
+			registry.gauge("jetty_queued_jobs", "Jobs waiting for a thread.", "", () -> queued.getQueueSize());
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package contact.resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import contact.service.WriteStatus;
+
+/**
+ * Per-item results of a bulk operation, kept as parallel primitive arrays
+ * (an id and a status per item) so that even millions of results take little memory.
+ * It is written to the response as:
+ * <pre>
+ * &lt;results total="3" succeeded="2" failed="1"&gt;
+ *   &lt;result index="0" id="1001" status="CREATED"/&gt;
+ *   ...
+ * &lt;/results&gt;
+ * </pre>
+ */
+public class BatchResult implements StreamingOutput {
+	private static final WriteStatus[] STATUSES = WriteStatus.values();
+	private static final XMLOutputFactory FACTORY = XMLOutputFactory.newInstance();
+
+	private long[] ids = new long[64];
+	private byte[] statuses = new byte[64];
+	private int size;
+	private int failed;
+
+	/**
+	 * Record the outcome of the next item.
+	 * @param id id of the contact, or 0 if unknown
+	 * @param status what happened to it
+	 */
+	public void add(long id, WriteStatus status) {
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+			statuses = Arrays.copyOf(statuses, size * 2);
+		}
+		ids[size] = id;
+		statuses[size] = (byte) status.ordinal();
+		size++;
+		if (! status.isSuccess()) failed++;
+	}
+
+	/** @return number of items recorded */
+	public int size() {
+		return size;
+	}
+
+	/** @return number of items that were not written */
+	public int getFailed() {
+		return failed;
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.ws.rs.core.StreamingOutput#write(java.io.OutputStream)
+	 */
+	@Override
+	public void write(OutputStream out) throws IOException {
+		try {
+			XMLStreamWriter writer = FACTORY.createXMLStreamWriter(out, ContactXml.ENCODING);
+			writer.writeStartDocument(ContactXml.ENCODING, "1.0");
+			writer.writeStartElement("results");
+			writer.writeAttribute("total", Integer.toString(size));
+			writer.writeAttribute("succeeded", Integer.toString(size - failed));
+			writer.writeAttribute("failed", Integer.toString(failed));
+			for(int k=0; k<size; k++) {
+				writer.writeEmptyElement("result");
+				writer.writeAttribute("index", Integer.toString(k));
+				writer.writeAttribute("id", Long.toString(ids[k]));
+				writer.writeAttribute("status", STATUSES[statuses[k]].name());
+			}
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package contact.resource;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+import contact.entity.Contact;
+
+/**
+ * Compact binary encoding of a stream of contacts, for backups and bulk
+ * copies between stores.  It is much smaller than XML and needs no parsing:
+ * <pre>
+ * header:  4 bytes "CBIN", int format version (1)
+ * block:   int contact count (&gt; 0), int payload length, payload, int CRC32 of the payload
+ * end:     int 0, long total number of contacts
+ * payload: for each contact: long id, title, name, email, photoUrl
+ * </pre>
+ * Each string is an int byte count (-1 for null) followed by UTF-8 bytes,
+ * as in the file DAO's records; numbers are big-endian.
+ * <p>
+ * The writer collects contacts into blocks of about {@value #BLOCK_BYTES}
+ * bytes, so any number of contacts is streamed.  The reader checks each
+ * block's checksum before returning any of its contacts, and the total at
+ * the end, so a damaged or truncated stream is detected rather than
+ * silently loading part of it.
+ */
+public final class ContactBinary {
+	/** Media type of the encoding. */
+	public static final String MEDIA_TYPE = "application/x-contact-binary";
+	static final byte[] MAGIC = { 'C', 'B', 'I', 'N' };
+	static final int VERSION = 1;
+	/** Payload size at which a block is written. */
+	static final int BLOCK_BYTES = 64 * 1024;
+	/** Largest payload the reader accepts, so a bad length cannot exhaust memory. */
+	static final int MAX_BLOCK_BYTES = 16 * 1024 * 1024;
+	/** Smallest encoded contact: an id and four null strings. */
+	private static final int MIN_CONTACT_BYTES = 8 + 4 * 4;
+
+	private ContactBinary() { }
+
+	/** A stream that is not in this format, or is damaged or truncated. */
+	public static class FormatException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public FormatException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Write contacts as a complete stream.
+	 * Contacts are written as they are iterated, so the collection is never
+	 * copied and memory use does not grow with its size.
+	 * @param contacts the contacts to write
+	 * @param out where to write. It is not closed.
+	 * @return number of contacts written
+	 */
+	public static long writeAll(Iterable<Contact> contacts, OutputStream out) throws IOException {
+		Writer writer = new Writer(out);
+		for(Contact contact : contacts) writer.write(contact);
+		return writer.finish();
+	}
+
+	/**
+	 * Create a reader for a stream written by {@link #writeAll(Iterable, OutputStream)}.
+	 * The header is read when the first contact is.
+	 * @param in the stream
+	 */
+	public static Reader createReader(InputStream in) {
+		return new Reader(in);
+	}
+
+	/** The payload of the block being built, with access to its bytes for the checksum. */
+	private static final class Block extends ByteArrayOutputStream {
+		Block() {
+			super(BLOCK_BYTES + 1024);
+		}
+
+		void writeTo(DataOutputStream out, CRC32 crc) throws IOException {
+			crc.reset();
+			crc.update(buf, 0, count);
+			out.write(buf, 0, count);
+			out.writeInt((int) crc.getValue());
+		}
+	}
+
+	/** Writes contacts in checksummed blocks. */
+	private static final class Writer {
+		private final DataOutputStream out;
+		private final Block block = new Block();
+		private final DataOutputStream payload = new DataOutputStream(block);
+		private final CRC32 crc = new CRC32();
+		private int blockCount;
+		private long total;
+
+		Writer(OutputStream out) throws IOException {
+			this.out = new DataOutputStream(out);
+			this.out.write(MAGIC);
+			this.out.writeInt(VERSION);
+		}
+
+		void write(Contact contact) throws IOException {
+			payload.writeLong(contact.getId());
+			writeString(contact.getTitle());
+			writeString(contact.getName());
+			writeString(contact.getEmail());
+			writeString(contact.getPhotoUrl());
+			blockCount++;
+			total++;
+			if (block.size() >= BLOCK_BYTES) flushBlock();
+		}
+
+		private void writeString(String value) throws IOException {
+			if (value == null) {
+				payload.writeInt(-1);
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			payload.writeInt(bytes.length);
+			payload.write(bytes);
+		}
+
+		private void flushBlock() throws IOException {
+			if (blockCount == 0) return;
+			out.writeInt(blockCount);
+			out.writeInt(block.size());
+			block.writeTo(out, crc);
+			block.reset();
+			blockCount = 0;
+		}
+
+		/** Write the last block and the end marker. @return number of contacts written */
+		long finish() throws IOException {
+			flushBlock();
+			out.writeInt(0);
+			out.writeLong(total);
+			out.flush();
+			return total;
+		}
+	}
+
+	/**
+	 * Reads contacts from a stream, one block at a time.
+	 * Call {@link #next()} until it returns null.
+	 */
+	public static final class Reader {
+		private final DataInputStream in;
+		private final CRC32 crc = new CRC32();
+		private byte[] payload = new byte[BLOCK_BYTES + 1024];
+		private ByteBuffer block;
+		private int remaining;
+		private long total;
+		private boolean started;
+		private boolean ended;
+
+		Reader(InputStream in) {
+			this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+		}
+
+		/**
+		 * Read the next contact.
+		 * @return the contact, or null at the end of the stream
+		 * @throws FormatException if the stream is not valid, or a block's checksum does not match
+		 */
+		public Contact next() throws IOException {
+			try {
+				if (! started) readHeader();
+				while (remaining == 0) {
+					if (ended || ! readBlock()) return null;
+				}
+				remaining--;
+				total++;
+				Contact contact = readContact();
+				if (remaining == 0 && block.hasRemaining()) throw new FormatException("extra bytes in block");
+				return contact;
+			} catch (EOFException e) {
+				throw new FormatException("stream is truncated after " + total + " contacts");
+			} catch (RuntimeException e) {
+				// lengths that do not fit the block
+				throw new FormatException("bad contact in block: " + e.getMessage());
+			}
+		}
+
+		private void readHeader() throws IOException {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			for(int k=0; k<MAGIC.length; k++) {
+				if (magic[k] != MAGIC[k]) throw new FormatException("not a contact stream");
+			}
+			int version = in.readInt();
+			if (version != VERSION) throw new FormatException("unknown format version " + version);
+			started = true;
+		}
+
+		/** Read and check the next block. @return false at the end marker */
+		private boolean readBlock() throws IOException {
+			int count = in.readInt();
+			if (count == 0) {
+				long expected = in.readLong();
+				if (expected != total) throw new FormatException("stream has " + total + " contacts, expected " + expected);
+				ended = true;
+				return false;
+			}
+			int length = in.readInt();
+			if (count < 0 || length < 0 || length > MAX_BLOCK_BYTES || (long) count * MIN_CONTACT_BYTES > length) {
+				throw new FormatException("bad block header after " + total + " contacts");
+			}
+			if (length > payload.length) payload = new byte[length];
+			in.readFully(payload, 0, length);
+			crc.reset();
+			crc.update(payload, 0, length);
+			if (in.readInt() != (int) crc.getValue()) {
+				throw new FormatException("checksum mismatch in block after " + total + " contacts");
+			}
+			block = ByteBuffer.wrap(payload, 0, length);
+			remaining = count;
+			return true;
+		}
+
+		private Contact readContact() throws FormatException {
+			Contact contact = new Contact(block.getLong());
+			contact.setTitle(readString());
+			contact.setName(readString());
+			contact.setEmail(readString());
+			contact.setPhotoUrl(readString());
+			return contact;
+		}
+
+		private String readString() throws FormatException {
+			int length = block.getInt();
+			if (length < 0) return null;
+			if (length > block.remaining()) throw new FormatException("string length " + length + " exceeds block");
+			String value = new String(payload, block.position(), length, StandardCharsets.UTF_8);
+			block.position(block.position() + length);
+			return value;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package contact.resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.Collections;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import contact.entity.Contact;
+
+/**
+ * Stream a collection of contacts, or a single contact, in the
+ * {@link ContactBinary} format.  This is how the whole store is exported.
+ */
+@Provider
+@Produces(ContactBinary.MEDIA_TYPE)
+public class ContactBinaryWriter implements MessageBodyWriter<Object> {
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		if (Contact.class.isAssignableFrom(type)) return true;
+		return Iterable.class.isAssignableFrom(type) && ContactListXmlWriter.isContactCollection(genericType);
+	}
+
+	@Override
+	public long getSize(Object entity, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return -1; // unknown until written
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void writeTo(Object entity, Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType, MultivaluedMap<String,Object> headers, OutputStream out) throws IOException {
+		if (entity instanceof Contact) ContactBinary.writeAll(Collections.singletonList((Contact) entity), out);
+		else ContactBinary.writeAll((Iterable<Contact>) entity, out);
+	}
+}
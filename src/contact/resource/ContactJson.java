@@ -0,0 +1,502 @@
+package contact.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import contact.entity.Contact;
+
+/**
+ * Read and write contacts as JSON, without a JSON library or reflection.
+ * A contact is an object with the same fields as the XML form:
+ * <pre>
+ * {"id":1234,"title":"Joe","name":"Joe Contact","email":"joe@foo.com","photoUrl":"..."}
+ * </pre>
+ * where null fields are omitted.  A collection is an array of contacts.
+ * <p>
+ * The writer encodes UTF-8 straight into a byte buffer that is flushed to
+ * the stream when full, so a collection of any size is streamed and a
+ * contact costs no allocation beyond the buffer.  The parser decodes UTF-8
+ * from a byte buffer and only allocates the field values it keeps;
+ * unknown fields are skipped.
+ */
+public final class ContactJson {
+	/** Size of the buffer for writing one contact. */
+	private static final int CONTACT_BUFFER = 512;
+	/** Size of the buffers for streaming collections and parsing. */
+	private static final int STREAM_BUFFER = 8192;
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private ContactJson() { }
+
+	/** A request body that is not valid JSON, or not a contact. */
+	public static class JsonSyntaxException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public JsonSyntaxException(String message, long offset) {
+			super(message + " at byte " + offset);
+		}
+	}
+
+	/**
+	 * Write one contact as a JSON object.
+	 * @param contact the contact to write
+	 * @param out where to write the UTF-8 encoded object. It is not closed.
+	 */
+	public static void write(Contact contact, OutputStream out) throws IOException {
+		Utf8Writer writer = new Utf8Writer(out, CONTACT_BUFFER);
+		writer.writeContact(contact);
+		writer.flush();
+	}
+
+	/**
+	 * Write a collection of contacts as a JSON array.
+	 * Contacts are written as they are iterated, so the collection is never
+	 * copied and memory use does not grow with its size.
+	 * @param contacts the contacts to write
+	 * @param out where to write the UTF-8 encoded array. It is not closed.
+	 */
+	public static void writeAll(Iterable<Contact> contacts, OutputStream out) throws IOException {
+		Utf8Writer writer = new Utf8Writer(out, STREAM_BUFFER);
+		writer.write('[');
+		boolean first = true;
+		for(Contact contact : contacts) {
+			if (! first) writer.write(',');
+			first = false;
+			writer.writeContact(contact);
+		}
+		writer.write(']');
+		writer.flush();
+	}
+
+	/**
+	 * Encode one contact as a JSON object.
+	 * @param contact the contact to encode
+	 * @return the UTF-8 encoded object
+	 */
+	public static byte[] toBytes(Contact contact) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		try {
+			write(contact, out);
+		} catch (IOException e) {
+			// a ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Read a document holding one contact object.
+	 * @param in the JSON document
+	 * @return the contact
+	 * @throws JsonSyntaxException if the document is not a contact object
+	 */
+	public static Contact read(InputStream in) throws IOException {
+		Parser parser = new Parser(in);
+		Contact contact = parser.readContact();
+		parser.expectEnd();
+		return contact;
+	}
+
+	/**
+	 * Create a parser for a document holding a contact or an array of contacts.
+	 * @param in the JSON document
+	 * @return a parser positioned at the start of the document
+	 */
+	public static Parser createParser(InputStream in) {
+		return new Parser(in);
+	}
+
+	/** Writes UTF-8 JSON into a buffer, flushing it to a stream when full. */
+	private static final class Utf8Writer {
+		private final OutputStream out;
+		private final byte[] buffer;
+		private int count;
+
+		Utf8Writer(OutputStream out, int size) {
+			this.out = out;
+			this.buffer = new byte[size];
+		}
+
+		/** Make room for n bytes. */
+		private void ensure(int n) throws IOException {
+			if (count + n > buffer.length) {
+				out.write(buffer, 0, count);
+				count = 0;
+			}
+		}
+
+		void write(char ascii) throws IOException {
+			ensure(1);
+			buffer[count++] = (byte) ascii;
+		}
+
+		void flush() throws IOException {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+
+		/** Write a contact object, in the field order of the XML form. */
+		void writeContact(Contact contact) throws IOException {
+			writeName("{\"id\":");
+			writeLong(contact.getId());
+			writeField(",\"title\":", contact.getTitle());
+			writeField(",\"name\":", contact.getName());
+			writeField(",\"email\":", contact.getEmail());
+			writeField(",\"photoUrl\":", contact.getPhotoUrl());
+			write('}');
+		}
+
+		private void writeField(String name, String value) throws IOException {
+			if (value == null) return;
+			writeName(name);
+			writeString(value);
+		}
+
+		/** Write ASCII text that needs no escaping. */
+		private void writeName(String text) throws IOException {
+			int n = text.length();
+			ensure(n);
+			for(int k=0; k<n; k++) buffer[count++] = (byte) text.charAt(k);
+		}
+
+		private void writeLong(long value) throws IOException {
+			// 20 bytes holds Long.MIN_VALUE
+			ensure(20);
+			if (value == Long.MIN_VALUE) {
+				writeName(Long.toString(value));
+				return;
+			}
+			if (value < 0) {
+				buffer[count++] = '-';
+				value = -value;
+			}
+			int start = count;
+			do {
+				buffer[count++] = (byte) ('0' + value % 10);
+				value /= 10;
+			} while (value != 0);
+			// the digits were written backwards
+			for(int i=start, j=count-1; i<j; i++, j--) {
+				byte digit = buffer[i];
+				buffer[i] = buffer[j];
+				buffer[j] = digit;
+			}
+		}
+
+		private void writeString(String value) throws IOException {
+			write('"');
+			int n = value.length();
+			for(int k=0; k<n; k++) {
+				char c = value.charAt(k);
+				// the longest output for one char is a \\u escape
+				ensure(6);
+				if (c < 0x80) {
+					if (c == '"' || c == '\\') {
+						buffer[count++] = '\\';
+						buffer[count++] = (byte) c;
+					}
+					else if (c < 0x20) writeControl(c);
+					else buffer[count++] = (byte) c;
+				}
+				else if (c < 0x800) {
+					buffer[count++] = (byte) (0xc0 | (c >> 6));
+					buffer[count++] = (byte) (0x80 | (c & 0x3f));
+				}
+				else if (Character.isHighSurrogate(c) && k + 1 < n && Character.isLowSurrogate(value.charAt(k + 1))) {
+					int cp = Character.toCodePoint(c, value.charAt(++k));
+					buffer[count++] = (byte) (0xf0 | (cp >> 18));
+					buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					buffer[count++] = (byte) (0x80 | (cp & 0x3f));
+				}
+				else if (Character.isSurrogate(c)) writeEscape(c); // unpaired, so not valid UTF-8
+				else {
+					buffer[count++] = (byte) (0xe0 | (c >> 12));
+					buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					buffer[count++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			write('"');
+		}
+
+		private void writeControl(char c) {
+			switch (c) {
+			case '\n': buffer[count++] = '\\'; buffer[count++] = 'n'; break;
+			case '\r': buffer[count++] = '\\'; buffer[count++] = 'r'; break;
+			case '\t': buffer[count++] = '\\'; buffer[count++] = 't'; break;
+			default: writeEscape(c);
+			}
+		}
+
+		private void writeEscape(char c) {
+			buffer[count++] = '\\';
+			buffer[count++] = 'u';
+			buffer[count++] = HEX[(c >> 12) & 0xf];
+			buffer[count++] = HEX[(c >> 8) & 0xf];
+			buffer[count++] = HEX[(c >> 4) & 0xf];
+			buffer[count++] = HEX[c & 0xf];
+		}
+	}
+
+	/**
+	 * Pull parser for a contact object or an array of contact objects.
+	 * Call {@link #nextContact()} to move to each contact and
+	 * {@link #readContact()} to read it.
+	 */
+	public static final class Parser {
+		private final InputStream in;
+		private final byte[] buffer = new byte[STREAM_BUFFER];
+		private int position;
+		private int limit;
+		/** bytes consumed before the buffer, for error messages */
+		private long offset;
+		/** reused for field names and values */
+		private final StringBuilder text = new StringBuilder(64);
+		/** 0 before the document, 1 in an array, 2 after a single contact or the end of the array */
+		private int state;
+		private boolean first = true;
+
+		Parser(InputStream in) {
+			this.in = in;
+		}
+
+		/**
+		 * Advance to the next contact: the document itself if it is an
+		 * object, or the next element if it is an array.
+		 * @return true if the parser is at a contact, false at the end of the document
+		 */
+		public boolean nextContact() throws IOException {
+			if (state == 0) {
+				int c = peekToken();
+				if (c == '{') {
+					state = 2;
+					return true;
+				}
+				expect('[');
+				state = 1;
+			}
+			if (state == 2) return false;
+			int c = peekToken();
+			if (c == ']') {
+				position++;
+				state = 2;
+				expectEnd();
+				return false;
+			}
+			if (! first) {
+				expect(',');
+				peekToken();
+			}
+			first = false;
+			return true;
+		}
+
+		/**
+		 * Read the contact object at the parser's position.
+		 * Unknown fields are skipped.
+		 * @return the contact
+		 */
+		public Contact readContact() throws IOException {
+			Contact contact = new Contact();
+			expect('{');
+			if (peekToken() == '}') {
+				position++;
+				return contact;
+			}
+			do {
+				expect('"');
+				readString();
+				expect(':');
+				if (fieldIs("id")) contact.setId(readId());
+				else if (fieldIs("title")) contact.setTitle(readStringOrNull());
+				else if (fieldIs("name")) contact.setName(readStringOrNull());
+				else if (fieldIs("email")) contact.setEmail(readStringOrNull());
+				else if (fieldIs("photoUrl")) contact.setPhotoUrl(readStringOrNull());
+				else skipValue();
+			} while (nextMember('}'));
+			return contact;
+		}
+
+		/**
+		 * Check that nothing but white space follows.
+		 * @throws JsonSyntaxException if there is more
+		 */
+		public void expectEnd() throws IOException {
+			if (peekToken() >= 0) throw error("unexpected content after the document");
+		}
+
+		private boolean fieldIs(String name) {
+			if (text.length() != name.length()) return false;
+			for(int k=0; k<name.length(); k++) {
+				if (text.charAt(k) != name.charAt(k)) return false;
+			}
+			return true;
+		}
+
+		/** Consume a comma, or the closing bracket. @return true if there is another member */
+		private boolean nextMember(char close) throws IOException {
+			int c = peekToken();
+			position++;
+			if (c == ',') {
+				peekToken();
+				return true;
+			}
+			if (c == close) return false;
+			position--;
+			throw error("expected , or " + close);
+		}
+
+		private long readId() throws IOException {
+			int c = peekToken();
+			if (c == 'n') {
+				expectLiteral("null");
+				return 0;
+			}
+			boolean negative = (c == '-');
+			if (negative) position++;
+			long value = 0;
+			int digits = 0;
+			while ((c = peek()) >= '0' && c <= '9') {
+				position++;
+				if (value > (Long.MAX_VALUE - (c - '0')) / 10) throw error("id is too large");
+				value = value * 10 + (c - '0');
+				digits++;
+			}
+			if (digits == 0) throw error("id must be a number");
+			if (c == '.' || c == 'e' || c == 'E') throw error("id must be an integer");
+			return negative ? -value : value;
+		}
+
+		private String readStringOrNull() throws IOException {
+			int c = peekToken();
+			if (c == 'n') {
+				expectLiteral("null");
+				return null;
+			}
+			expect('"');
+			readString();
+			return text.toString();
+		}
+
+		/** Read a string after its opening quote into text. */
+		private void readString() throws IOException {
+			text.setLength(0);
+			while (true) {
+				int b = read();
+				if (b == '"') return;
+				if (b == '\\') readEscape();
+				else if (b < 0) throw error("unterminated string");
+				else if (b < 0x20) throw error("control character in string");
+				else if (b < 0x80) text.append((char) b);
+				else readMultiByte(b);
+			}
+		}
+
+		private void readEscape() throws IOException {
+			int c = read();
+			switch (c) {
+			case '"': case '\\': case '/': text.append((char) c); break;
+			case 'b': text.append('\b'); break;
+			case 'f': text.append('\f'); break;
+			case 'n': text.append('\n'); break;
+			case 'r': text.append('\r'); break;
+			case 't': text.append('\t'); break;
+			case 'u':
+				int value = 0;
+				for(int k=0; k<4; k++) {
+					int digit = Character.digit(read(), 16);
+					if (digit < 0) throw error("bad \\u escape");
+					value = (value << 4) | digit;
+				}
+				text.append((char) value);
+				break;
+			default:
+				throw error("bad escape");
+			}
+		}
+
+		/** Decode a UTF-8 sequence that starts with byte b. */
+		private void readMultiByte(int b) throws IOException {
+			int more;
+			int cp;
+			if ((b & 0xe0) == 0xc0) { more = 1; cp = b & 0x1f; }
+			else if ((b & 0xf0) == 0xe0) { more = 2; cp = b & 0x0f; }
+			else if ((b & 0xf8) == 0xf0) { more = 3; cp = b & 0x07; }
+			else throw error("bad UTF-8");
+			for(int k=0; k<more; k++) {
+				int next = read();
+				if ((next & 0xc0) != 0x80) throw error("bad UTF-8");
+				cp = (cp << 6) | (next & 0x3f);
+			}
+			if (cp > Character.MAX_CODE_POINT) throw error("bad UTF-8");
+			text.appendCodePoint(cp);
+		}
+
+		/** Skip any value: a string, number, literal, object or array. */
+		private void skipValue() throws IOException {
+			int depth = 0;
+			do {
+				int c = peekToken();
+				position++;
+				if (c == '"') readString();
+				else if (c == '{' || c == '[') depth++;
+				else if (c == '}' || c == ']') depth--;
+				else if (c == ',' || c == ':') {
+					if (depth == 0) throw error("expected a value");
+				}
+				else if (c == '-' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')) {
+					// numbers and literals run until a delimiter
+					while ((c = peek()) >= 0 && c != ',' && c != '}' && c != ']' && c > ' ') position++;
+				}
+				else throw error("expected a value");
+			} while (depth > 0);
+			if (depth < 0) throw error("unbalanced brackets");
+		}
+
+		private void expectLiteral(String literal) throws IOException {
+			for(int k=0; k<literal.length(); k++) {
+				if (read() != literal.charAt(k)) throw error("expected " + literal);
+			}
+		}
+
+		private void expect(char c) throws IOException {
+			if (peekToken() != c) throw error("expected " + c);
+			position++;
+		}
+
+		/** @return the next byte that is not white space, without consuming it, or -1 at the end */
+		private int peekToken() throws IOException {
+			int c;
+			while ((c = peek()) == ' ' || c == '\n' || c == '\r' || c == '\t') position++;
+			return c;
+		}
+
+		/** @return the next byte without consuming it, or -1 at the end */
+		private int peek() throws IOException {
+			if (position == limit && ! fill()) return -1;
+			return buffer[position] & 0xff;
+		}
+
+		/** @return the next byte, or -1 at the end */
+		private int read() throws IOException {
+			if (position == limit && ! fill()) return -1;
+			return buffer[position++] & 0xff;
+		}
+
+		private boolean fill() throws IOException {
+			offset += limit;
+			position = limit = 0;
+			int n = in.read(buffer);
+			if (n <= 0) return false;
+			limit = n;
+			return true;
+		}
+
+		private JsonSyntaxException error(String message) {
+			return new JsonSyntaxException(message, offset + position);
+		}
+	}
+}
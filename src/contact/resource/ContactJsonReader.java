@@ -0,0 +1,40 @@
+package contact.resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Provider;
+
+import contact.entity.Contact;
+
+/**
+ * Read a Contact from a JSON request body using {@link ContactJson}.
+ * A body that is not a contact object is a bad request.
+ */
+@Provider
+@Consumes(MediaType.APPLICATION_JSON)
+public class ContactJsonReader implements MessageBodyReader<Contact> {
+
+	@Override
+	public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return type == Contact.class;
+	}
+
+	@Override
+	public Contact readFrom(Class<Contact> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String,String> headers, InputStream in) throws IOException {
+		try {
+			return ContactJson.read(in);
+		} catch (ContactJson.JsonSyntaxException e) {
+			throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package contact.resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import contact.entity.Contact;
+
+/**
+ * Stream a collection of contacts, such as a GenericEntity&lt;List&lt;Contact&gt;&gt;,
+ * as a JSON array while the collection is iterated.
+ */
+@Provider
+@Produces(MediaType.APPLICATION_JSON)
+public class ContactListJsonWriter implements MessageBodyWriter<Iterable<Contact>> {
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return Iterable.class.isAssignableFrom(type) && ContactListXmlWriter.isContactCollection(genericType);
+	}
+
+	@Override
+	public long getSize(Iterable<Contact> contacts, Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType) {
+		return -1; // unknown until written
+	}
+
+	@Override
+	public void writeTo(Iterable<Contact> contacts, Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType, MultivaluedMap<String,Object> headers, OutputStream out) throws IOException {
+		ContactJson.writeAll(contacts, out);
+	}
+}
@@ -0,0 +1,50 @@
+package contact.resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import contact.entity.Contact;
+
+/**
+ * Stream a collection of contacts, such as a GenericEntity&lt;List&lt;Contact&gt;&gt;,
+ * as XML.  Contacts are written straight to the response while the collection
+ * is iterated, so a full export does not build a JAXB document in memory.
+ */
+@Provider
+@Produces({MediaType.APPLICATION_XML, MediaType.TEXT_XML})
+public class ContactListXmlWriter implements MessageBodyWriter<Iterable<Contact>> {
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return Iterable.class.isAssignableFrom(type) && isContactCollection(genericType);
+	}
+
+	/** Test if genericType is a collection type whose element type is Contact. */
+	static boolean isContactCollection(Type genericType) {
+		if (! (genericType instanceof ParameterizedType)) return false;
+		Type[] args = ((ParameterizedType) genericType).getActualTypeArguments();
+		return args.length == 1 && args[0] instanceof Class
+				&& Contact.class.isAssignableFrom((Class<?>) args[0]);
+	}
+
+	@Override
+	public long getSize(Iterable<Contact> contacts, Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType) {
+		return -1; // unknown until written
+	}
+
+	@Override
+	public void writeTo(Iterable<Contact> contacts, Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType, MultivaluedMap<String,Object> headers, OutputStream out) throws IOException {
+		ContactXml.writeAll(contacts, out);
+	}
+}
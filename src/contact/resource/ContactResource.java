@@ -1,11 +1,31 @@
 package contact.resource;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
 
 import javax.inject.Singleton;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
@@ -14,19 +34,29 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.container.TimeoutHandler;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import contact.annotations.PATCH;
 import contact.entity.Contact;
+import contact.service.AsyncContactDao;
+import contact.service.CancellableAsyncContactDao;
 import contact.service.ContactDao;
-import contact.service.mem.MemDaoFactory;
+import contact.service.DaoFactory;
+import contact.service.WriteStatus;
 
 
 /**
@@ -39,121 +69,465 @@ import contact.service.mem.MemDaoFactory;
 @Path("/contacts")
 @Singleton
 public class ContactResource {
-	
+	private static final Logger logger = Logger.getLogger(ContactResource.class.getName());
 
 	ContactDao dao;
+	/** The same DAO, for the request methods, which must not block. */
+	AsyncContactDao async;
+	/** Encoded contacts for getContact, invalidated by the DAO on every change. */
+	RepresentationCache cache;
 	
 	public ContactResource() {
-		dao = MemDaoFactory.getInstance().getContactDao();
-		System.out.println("Created a new ContactResource");
+		dao = DaoFactory.getInstance().getContactDao();
+		async = DaoFactory.getInstance().getAsyncContactDao();
+		cache = new RepresentationCache();
+		dao.addContactListener(cache);
+		logger.info("Created a new ContactResource");
 	}
 
+	/** Value of the "case" query parameter for case-sensitive title match. */
+	static final String CASE_SENSITIVE = "sensitive";
+	/** Value of the "case" query parameter for case-insensitive title match (the default). */
+	static final String CASE_INSENSITIVE = "insensitive";
+	/** Value of the "match" query parameter to search title prefixes only. */
+	static final String MATCH_PREFIX = "prefix";
+	/** Value of the "match" query parameter to search anywhere in titles (the default). */
+	static final String MATCH_SUBSTRING = "substring";
+	/** Default and largest number of search results. */
+	static final int DEFAULT_SEARCH_LIMIT = 10;
+	static final int MAX_SEARCH_LIMIT = 100;
+	/** Default and largest page size when paging through all contacts. */
+	static final int DEFAULT_PAGE_SIZE = 100;
+	static final int MAX_PAGE_SIZE = 1000;
+	/** Seconds an asynchronous request may take before it gets 503 Service Unavailable. */
+	static final long ASYNC_TIMEOUT_SECONDS = 30;
+	/** Times PUT or PATCH without If-Match computes its change before giving up on a busy contact. */
+	static final int MAX_REPLACE_ATTEMPTS = 8;
+	/** Resumes requests whose work finished on a DAO thread; see {@link #resume}. */
+	private static final ExecutorService RESPONSES = newResponseExecutor();
+	/** Number of contacts passed to the DAO at a time by bulk operations. */
+	static final int BATCH_CHUNK = 1000;
+	/** Representations of contacts, in order of preference when the client has none. */
+	static final List<Variant> VARIANTS =
+			Variant.mediaTypes(MediaType.APPLICATION_XML_TYPE, MediaType.APPLICATION_JSON_TYPE).build();
+	/** Representations of lists, which can also be exported in the binary format. */
+	static final List<Variant> LIST_VARIANTS = Variant.mediaTypes(MediaType.APPLICATION_XML_TYPE,
+			MediaType.APPLICATION_JSON_TYPE, MediaType.valueOf(ContactBinary.MEDIA_TYPE)).build();
+
 	/**
 	 * Get all contacts, , or contact by title if title specified.
 	 * @param title Contact title
-	 * @return Contact corresponding to title. If no title provide, return all contacts
+	 * @param caseMode "sensitive" to match title exactly, or "insensitive" (default) to ignore letter case
+	 * @param query text to search for in titles, for type-ahead. Takes precedence over title.
+	 * @param match "prefix" to only search title prefixes, or "substring" (default)
+	 * @param limit maximum number of search results, or page size when listing contacts
+	 * @param cursor opaque cursor from the "next" link of the previous page
+	 * @param request the request, for conditional GET
+	 * @param response resumed with the Contact corresponding to title, or contacts matching query.
+	 *    If no title provide, all contacts, or one page of contacts if limit or cursor is given.
 	 */
 	@GET
-	@Produces(MediaType.APPLICATION_XML)
-	public Response getContacts(@QueryParam("title") String title) {
+	@Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, ContactBinary.MEDIA_TYPE})
+	public void getContacts(@QueryParam("title") final String title,
+			@QueryParam("case") @DefaultValue(CASE_INSENSITIVE) final String caseMode,
+			@QueryParam("q") final String query,
+			@QueryParam("match") @DefaultValue(MATCH_SUBSTRING) final String match,
+			@QueryParam("limit") final Integer limit,
+			@QueryParam("cursor") final String cursor,
+			@Context final UriInfo uriInfo,
+			@Context final Request request,
+			@Suspended AsyncResponse response) {
+		resume(response, async, calls -> getContacts(calls, title, caseMode, query, match, limit, cursor, uriInfo, request));
+	}
 
-		System.out.println("GET is called.");
-		System.out.println("GET: title = " + title);
-		ResponseBuilder builder = null;
+	private CompletableFuture<Response> getContacts(AsyncContactDao calls, String title, String caseMode, String query, String match,
+			Integer limit, String cursor, UriInfo uriInfo, Request request) {
+		// every result depends only on the store contents and the representation,
+		// so an unchanged store means an unchanged result; check before touching any contacts
+		final MediaType type = negotiate(request, LIST_VARIANTS);
+		final Date lastModified = new Date(dao.getLastModified());
+		final EntityTag storeTag = storeTag(lastModified.getTime(), dao.getModificationCount(), type);
+		ResponseBuilder builder = request.evaluatePreconditions(lastModified, storeTag);
+		if (builder != null) {
+			return completed(builder.tag(storeTag).lastModified(lastModified).build());
+		}
+		CompletableFuture<ResponseBuilder> result;
+		// search query takes precedence over exact title
+		if (query != null) {
+			boolean prefixOnly;
+			if (MATCH_PREFIX.equalsIgnoreCase(match)) prefixOnly = true;
+			else if (MATCH_SUBSTRING.equalsIgnoreCase(match)) prefixOnly = false;
+			else throw new WebApplicationException(Response.Status.BAD_REQUEST);
+			int max = (limit == null) ? DEFAULT_SEARCH_LIMIT : limit;
+			if (max <= 0) throw new WebApplicationException(Response.Status.BAD_REQUEST);
+			result = calls.search(query, prefixOnly, Math.min(max, MAX_SEARCH_LIMIT)).thenApply(contacts ->
+					Response.ok(new GenericEntity<List<Contact>>(contacts){}, type));
+		}
 		// if title provided, deal with it
-		if (title != null) {
-			System.out.println("GET: There is a title field!");
-			Contact contact = dao.findByTitle(title);
-			if(contact == null) { // no match contact title
-				System.out.println("GET: No matched title found");
-				builder = Response.status(Response.Status.NOT_FOUND);
-			}
-			else { // title match contact
-				System.out.println("GET: Matched title found!");
-				builder = Response.ok(contact, "application/xml");
-			}
+		else if (title != null) {
+			boolean caseSensitive;
+			if (CASE_SENSITIVE.equalsIgnoreCase(caseMode)) caseSensitive = true;
+			else if (CASE_INSENSITIVE.equalsIgnoreCase(caseMode)) caseSensitive = false;
+			else throw new WebApplicationException(Response.Status.BAD_REQUEST);
+			return calls.findByTitle(title, caseSensitive).thenApply(contact -> {
+				if(contact == null) { // no match contact title
+					return Response.status(Response.Status.NOT_FOUND).build();
+				}
+				// title match contact
+				return Response.ok(contact, type).tag(storeTag).lastModified(lastModified).build();
+			});
+		}
+		// page through contacts if the client asked for pages
+		else if (limit != null || cursor != null) {
+			result = getPage(calls, limit, cursor, uriInfo, type);
 		}
 		// no title provided, return all contacts
 		else {
-			System.out.println("GET: No title field");
-			List<Contact> contacts = dao.findAll();
-			builder = Response.ok(
-					new GenericEntity<List<Contact>>(contacts){}, MediaType.APPLICATION_XML);
+			result = calls.findAll().thenApply(contacts ->
+					Response.ok(new GenericEntity<List<Contact>>(contacts){}, type));
 		}
-		return builder.build();
+		return result.thenApply(ok -> ok.tag(storeTag).lastModified(lastModified).build());
+	}
 
+	/**
+	 * Get the entity tag for every collection result at a given store state.
+	 * Including the time makes tags from before a restart differ from new ones.
+	 * @param type the media type of the result, since each representation needs its own tag
+	 */
+	static EntityTag storeTag(long lastModified, long modifications, MediaType type) {
+		return new EntityTag(Long.toHexString(lastModified) + "-" + modifications + "-" + format(type));
+	}
+
+	/** @return the short name of a representation, for entity tags */
+	static String format(MediaType type) {
+		if (MediaType.APPLICATION_JSON_TYPE.isCompatible(type)) return "json";
+		if (MediaType.valueOf(ContactBinary.MEDIA_TYPE).isCompatible(type)) return "bin";
+		return "xml";
+	}
 
+	/**
+	 * Get one page of contacts in id order, with a "next" link if there may be more.
+	 * @param calls the DAO for this request
+	 * @param limit page size, or null for the default
+	 * @param cursor cursor from the previous page, or null for the first page
+	 * @param uriInfo the request URI, used to build the next link
+	 * @param type media type of the page
+	 */
+	private CompletableFuture<ResponseBuilder> getPage(AsyncContactDao calls, Integer limit, String cursor, final UriInfo uriInfo,
+			final MediaType type) {
+		int size = (limit == null) ? DEFAULT_PAGE_SIZE : limit;
+		if (size <= 0) throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		final int pageSize = Math.min(size, MAX_PAGE_SIZE);
+		long afterId;
+		try {
+			afterId = PageCursor.decode(cursor);
+		} catch (IllegalArgumentException e) {
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		// fetch one extra contact to learn whether there is a next page
+		return calls.findPage(afterId, pageSize + 1).thenApply(contacts -> {
+			boolean more = contacts.size() > pageSize;
+			if (more) contacts = contacts.subList(0, pageSize);
+			ResponseBuilder builder = Response.ok(new GenericEntity<List<Contact>>(contacts){}, type);
+			if (more) {
+				String next = PageCursor.encode(contacts.get(pageSize - 1).getId());
+				builder.link(uriInfo.getRequestUriBuilder().replaceQueryParam("cursor", next).build(), "next");
+			}
+			return builder;
+		});
 	}
 	
 	/**
 	 * Get the specified contact by ID
 	 * @param id Contact ID
-	 * @return Information of such contact
+	 * @param response resumed with information of such contact
 	 */
 	@GET
 	@Path("{id : \\d+}")
-	@Produces("application/xml")
-	public Response getContact(@PathParam("id") long id, @Context Request request) {
-		Contact contact = dao.find(id);
-		EntityTag tag = new EntityTag(Integer.toString(contact.hashCode()));
-		ResponseBuilder builder = request.evaluatePreconditions(tag);
-		if (builder != null) {
-			return builder.build();
+	@Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+	public void getContact(@PathParam("id") final long id, @Context final Request request,
+			@Suspended AsyncResponse response) {
+		final MediaType type = negotiate(request, VARIANTS);
+		final boolean json = MediaType.APPLICATION_JSON_TYPE.isCompatible(type);
+		final int format = json ? RepresentationCache.JSON : RepresentationCache.XML;
+		resume(response, async, calls -> calls.find(id).thenCompose(contact -> {
+			if (contact == null) {
+				throw new WebApplicationException(Response.Status.NOT_FOUND);
+			}
+			ResponseBuilder builder = request.evaluatePreconditions(tagFor(contact, type));
+			if (builder != null) {
+				return completed(builder.build());
+			}
+			// Preconditions not met!
+			byte[] body = cache.get(id, format, contact.getVersion());
+			if (body != null) {
+				return completed(Response.ok(body, type).tag(tagFor(contact, type)).build());
+			}
+			// reserve the cache entry before reading the contact again, so a concurrent change cancels it
+			final Object ticket = cache.reserve(id, format);
+			return calls.find(id).thenApply(current -> {
+				if (current == null) {
+					cache.invalidate(id);
+					throw new WebApplicationException(Response.Status.NOT_FOUND);
+				}
+				byte[] encoded = json ? ContactJson.toBytes(current) : ContactXml.toBytes(current);
+				cache.fill(id, format, ticket, current.getVersion(), encoded);
+				return Response.ok(encoded, type).tag(tagFor(current, type)).build();
+			});
+		}));
+	}
+
+	/**
+	 * Choose the representation from the request's Accept header.
+	 * @param variants the representations the method produces
+	 * @return the media type to respond with; XML if the client has no preference
+	 */
+	static MediaType negotiate(Request request, List<Variant> variants) {
+		Variant variant = request.selectVariant(variants);
+		return (variant == null) ? MediaType.APPLICATION_XML_TYPE : variant.getMediaType();
+	}
+
+	/**
+	 * Get the entity tag for the current state of a contact.
+	 * The DAO gives each contact a new version on every change, so the tag
+	 * is strong and changes whenever the contact does.  Versions can repeat
+	 * after a restart, or when a deleted id is used again, so the tag also
+	 * has a hash of the contact's fields: an old tag then matches only if
+	 * the contact is the same as the one it was given for.  The XML and
+	 * JSON representations are different bytes, so each has its own tag.
+	 * @param contact a saved contact
+	 * @param type the media type of the representation
+	 * @return entity tag based on the contact's version and fields, and the representation
+	 */
+	static EntityTag tagFor(Contact contact, MediaType type) {
+		return new EntityTag(Long.toString(contact.getVersion()) + "-" + Long.toHexString(contentHash(contact))
+				+ "-" + format(type));
+	}
+
+	/**
+	 * Evaluate the preconditions of a write against the current state of a
+	 * contact.  The client may hold the tag of any representation, whatever
+	 * it sends or accepts now, so If-Match passes if it names the current
+	 * version in any of them, and If-None-Match fails if it does.
+	 * @param request the request, for its preconditions
+	 * @param headers the request's headers
+	 * @param current the contact the write would change
+	 * @return null if the write may go ahead, else the response to send
+	 */
+	static ResponseBuilder evaluateWritePreconditions(Request request, HttpHeaders headers, Contact current) {
+		boolean ifMatch = headers.getHeaderString(HttpHeaders.IF_MATCH) != null;
+		ResponseBuilder failed = null;
+		for(Variant variant : VARIANTS) {
+			ResponseBuilder builder = request.evaluatePreconditions(tagFor(current, variant.getMediaType()));
+			// one matching tag is enough for If-Match; any match fails If-None-Match
+			if (builder == null && ifMatch) return null;
+			if (builder != null && failed == null) failed = builder;
 		}
-		// Preconditions not met!
-		builder = Response.ok(contact, "application/xml");
-		builder.tag(tag);
-		return builder.build();
+		return failed;
+	}
+
+	/** @return a 64-bit FNV-1a hash of a contact's id and fields */
+	static long contentHash(Contact contact) {
+		long h = 0xcbf29ce484222325L;
+		h = hash(h, Long.toString(contact.getId()));
+		h = hash(h, contact.getTitle());
+		h = hash(h, contact.getName());
+		h = hash(h, contact.getEmail());
+		return hash(h, contact.getPhotoUrl());
+	}
+
+	private static long hash(long h, String value) {
+		if (value != null) {
+			for(int k=0; k<value.length(); k++) {
+				h ^= value.charAt(k);
+				h *= 0x100000001b3L;
+			}
+		}
+		// end each field with a value no char has, different for null and ""
+		h ^= (value == null) ? 0x10000 : 0x10001;
+		return h * 0x100000001b3L;
 	}
 	
 	/**
 	 * Create a new contact.
 	 */
 	@POST
-	@Consumes("application/xml")
-	public Response createContact(Contact contact) {
+	@Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+	public void createContact(final Contact contact, @Context final Request request, @Suspended AsyncResponse response) {
 // You have to handle 3 cases here:
 // 1. contact has an id attribute > 0 and the id conflicts with an existing contact (return CONFLICT)
 // 2. contact doesn't have id attribute or it is zero. 
 // 2a. save returns true.. this is the case you have
 // 2b. save returns false.. could be application failure or bad request.
-		dao.save(contact);
-		EntityTag tag = new EntityTag(Integer.toString(contact.hashCode()));
+		resume(response, async, calls -> calls.save(contact).thenApply(saved -> {
+			EntityTag tag = tagFor(contact, negotiate(request, VARIANTS));
 // You must use the uriInfo to discover the actual uri. Don't assume it.
-		ResponseBuilder builder = Response.created(URI.create("/contacts/" + contact.getId()));
-		builder.tag(tag);
-		return builder.build();
+			ResponseBuilder builder = Response.created(URI.create("/contacts/" + contact.getId()));
+			builder.tag(tag);
+			return builder.build();
+		}));
+	}
+
+	/**
+	 * Create many contacts from a &lt;contacts&gt; document, or restore
+	 * them from a {@link ContactBinary} export.
+	 * The body is parsed incrementally and contacts are inserted in chunks,
+	 * so it is never held in memory.  A contact whose id is already in use is
+	 * reported as a CONFLICT and not saved.
+	 * @param body the XML document or binary stream
+	 * @param headers the request headers, whose Content-Type tells which
+	 * @return per-contact results, in document order
+	 */
+	@POST
+	@Path("batch")
+	@Consumes({MediaType.APPLICATION_XML, ContactBinary.MEDIA_TYPE})
+	@Produces("application/xml")
+	public Response createContacts(InputStream body, @Context HttpHeaders headers) {
+		return applyBatch(body, headers, new BatchOperation() {
+			public WriteStatus[] apply(List<Contact> chunk) {
+				return dao.insertAll(chunk);
+			}
+		});
+	}
+
+	/**
+	 * Update many contacts from a &lt;contacts&gt; document of partial updates.
+	 * Each contact element must have the id of the contact to update, and only
+	 * the fields it contains are changed, as for PATCH.
+	 * @param body the XML document or binary stream
+	 * @param headers the request headers, whose Content-Type tells which
+	 * @return per-contact results, in document order
+	 */
+	@PATCH
+	@Path("batch")
+	@Consumes({MediaType.APPLICATION_XML, ContactBinary.MEDIA_TYPE})
+	@Produces("application/xml")
+	public Response updateContacts(InputStream body, @Context HttpHeaders headers) {
+		return applyBatch(body, headers, new BatchOperation() {
+			public WriteStatus[] apply(List<Contact> chunk) {
+				return dao.updateAll(chunk);
+			}
+		});
+	}
+
+	/**
+	 * Delete many contacts.  The body is a &lt;contacts&gt; document whose
+	 * contact elements only need an id attribute.
+	 * @param body the XML document or binary stream
+	 * @param headers the request headers, whose Content-Type tells which
+	 * @return per-contact results, in document order
+	 */
+	@POST
+	@Path("batch/delete")
+	@Consumes({MediaType.APPLICATION_XML, ContactBinary.MEDIA_TYPE})
+	@Produces("application/xml")
+	public Response deleteContacts(InputStream body, @Context HttpHeaders headers) {
+		return applyBatch(body, headers, new BatchOperation() {
+			public WriteStatus[] apply(List<Contact> chunk) {
+				long[] ids = new long[chunk.size()];
+				for(int k=0; k<ids.length; k++) ids[k] = chunk.get(k).getId();
+				return dao.deleteAll(ids);
+			}
+		});
+	}
+
+	/**
+	 * Copy a binary stream to a temporary file and read it through once,
+	 * so it is known to be complete and undamaged before any of it is applied.
+	 * @return the file, which the caller must delete
+	 * @throws IOException if the stream is damaged or truncated, or cannot be spooled
+	 */
+	private static File spoolBinary(InputStream body) throws IOException {
+		File spool = File.createTempFile("contacts", ".bin");
+		try {
+			Files.copy(body, spool.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			try (InputStream in = new FileInputStream(spool)) {
+				ContactBinary.Reader reader = ContactBinary.createReader(in);
+				while (reader.next() != null) { }
+			}
+			return spool;
+		} catch (IOException e) {
+			spool.delete();
+			throw e;
+		}
+	}
+
+	/** A bulk DAO operation applied to each chunk of a batch request. */
+	private interface BatchOperation {
+		WriteStatus[] apply(List<Contact> chunk);
+	}
+
+	/**
+	 * Parse a &lt;contacts&gt; document or binary stream incrementally and
+	 * apply an operation to each chunk of contacts, so the body is never held in memory.
+	 * A binary stream is restored all or nothing: it is first spooled to a
+	 * temporary file and checked to the end, including the total in its
+	 * trailer, and only then applied.  A document is applied as it is parsed.
+	 * @return per-contact results.  If a binary stream is damaged or
+	 *    truncated, the status is 400 and nothing is applied.  If a document
+	 *    is malformed, the status is 400 and the results list the contacts
+	 *    processed before the error.
+	 */
+	private Response applyBatch(InputStream body, HttpHeaders headers, BatchOperation operation) {
+		BatchResult result = new BatchResult();
+		List<Contact> chunk = new ArrayList<Contact>(BATCH_CHUNK);
+		boolean malformed = false;
+		MediaType type = headers.getMediaType();
+		try {
+			if (type != null && type.isCompatible(MediaType.valueOf(ContactBinary.MEDIA_TYPE))) {
+				File spool = spoolBinary(body);
+				try (InputStream in = new FileInputStream(spool)) {
+					ContactBinary.Reader reader = ContactBinary.createReader(in);
+					Contact contact;
+					while ((contact = reader.next()) != null) {
+						chunk.add(contact);
+						if (chunk.size() == BATCH_CHUNK) applyChunk(chunk, operation, result);
+					}
+				} finally {
+					spool.delete();
+				}
+			}
+			else {
+				XMLStreamReader reader = ContactXml.createReader(body);
+				while (ContactXml.nextContact(reader)) {
+					chunk.add(ContactXml.readContact(reader));
+					if (chunk.size() == BATCH_CHUNK) applyChunk(chunk, operation, result);
+				}
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			// contacts read before the error are still processed, and reported
+			malformed = true;
+		} catch (IOException e) {
+			// a damaged or truncated binary stream, found before any of it was applied
+			malformed = true;
+		}
+		applyChunk(chunk, operation, result);
+		Response.Status status = malformed ? Response.Status.BAD_REQUEST : Response.Status.OK;
+		return Response.status(status).entity(result).type(MediaType.APPLICATION_XML).build();
+	}
+
+	/** Apply an operation to a chunk of contacts, record the results and empty the chunk. */
+	private void applyChunk(List<Contact> chunk, BatchOperation operation, BatchResult result) {
+		if (chunk.isEmpty()) return;
+		WriteStatus[] status = operation.apply(chunk);
+		for(int k=0; k<status.length; k++) result.add(chunk.get(k).getId(), status[k]);
+		chunk.clear();
 	}
 
-	// TODO
-	// correctly update and return ETag whenever PUT is performed
 	/**
 	 * Replace the existing contact with a newer one.
 	 */
 	@PUT
 	@Path("{id : \\d+}")
-	@Consumes("application/xml")
-	public Response updateContact(@PathParam("id") int id, Contact update, @Context Request request) {
-		Contact current = dao.find(id);
-		// validate update info
-		if (current == null) {
-			throw new WebApplicationException(Response.Status.NOT_FOUND);
-		}
-		EntityTag tag = new EntityTag(Integer.toString(current.hashCode()));
-		ResponseBuilder builder = request.evaluatePreconditions(tag);
-		if (builder != null) {
-			// Preconditions not met!
-			return builder.build();
-		}
-		// perform the update
-		current.copyOf(update);
-		dao.update(current);
-// Should test wheter update returned true of false.
-		tag = new EntityTag(Integer.toString(current.hashCode()));
-		builder = Response.ok();
-		builder.tag(tag);
-		return builder.build();
-		
+	@Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+	public void updateContact(@PathParam("id") final int id, final Contact update, @Context final Request request,
+			@Context final HttpHeaders headers, @Suspended AsyncResponse response) {
+		resume(response, async, calls -> replace(calls, id, request, headers, current -> {
+			Contact replacement = current.copy();
+			replacement.copyOf(update);
+			return replacement;
+		}, 1));
 	}
 	
 	// TODO
@@ -166,50 +540,163 @@ public class ContactResource {
 
 	@PATCH
 	@Path("{id : \\d+}")
-	@Consumes("application/xml")
-	public Response patchContact(@PathParam("id") int id, Contact update, @Context Request request) {
-		System.out.println("Patch is called.");
-		Contact current = dao.find(id);
-		// validate patch info
-		if (current == null) {
-			throw new WebApplicationException(Response.Status.NOT_FOUND);
-		}
-		EntityTag tag = new EntityTag(Integer.toString(current.hashCode()));
-		ResponseBuilder builder = request.evaluatePreconditions(tag);
-		if (builder != null) {
-			// Preconditions not met!
-			return builder.build();
-		}
-		// perform the patch
-		current.applyUpdate(update);
-		dao.update(current);
-		return Response.ok().build();
+	@Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+	public void patchContact(@PathParam("id") final int id, final Contact update, @Context final Request request,
+			@Context final HttpHeaders headers, @Suspended AsyncResponse response) {
+		resume(response, async, calls -> replace(calls, id, request, headers, current -> {
+			Contact patched = current.copy();
+			patched.applyUpdate(update);
+			return patched;
+		}, 1));
+	}
+
+	/**
+	 * Replace a contact with a new state computed from a copy of the
+	 * current one, for PUT and PATCH.  The shared contact the DAO returns
+	 * is never changed, and the DAO replaces it only if it is still the
+	 * version the new state was computed from, so concurrent writers need
+	 * no lock.  If another writer got there first, a request with If-Match
+	 * fails with 412 Precondition Failed, since the version it named is
+	 * gone; other requests compute their change again from the new version,
+	 * up to {@value #MAX_REPLACE_ATTEMPTS} times, and then get 409 Conflict.
+	 * @param calls the DAO for this request
+	 * @param id the contact to change
+	 * @param headers the request's headers, for If-Match
+	 * @param change computes the new state from a copy of the current one
+	 * @param attempt number of this attempt, from 1
+	 */
+	private CompletableFuture<Response> replace(final AsyncContactDao calls, final long id, final Request request,
+			final HttpHeaders headers, final Function<Contact,Contact> change, final int attempt) {
+		final boolean conditional = headers.getHeaderString(HttpHeaders.IF_MATCH) != null;
+		return calls.find(id).thenCompose(current -> {
+			if (current == null) {
+				throw new WebApplicationException(Response.Status.NOT_FOUND);
+			}
+			ResponseBuilder builder = evaluateWritePreconditions(request, headers, current);
+			if (builder != null) {
+				// Preconditions not met!
+				return completed(builder.build());
+			}
+			final Contact replacement = change.apply(current);
+			final MediaType type = negotiate(request, VARIANTS);
+			return calls.replace(replacement, current.getVersion()).thenCompose(status -> {
+				if (status == WriteStatus.UPDATED) {
+					return completed(Response.ok().tag(tagFor(replacement, type)).build());
+				}
+				if (status == WriteStatus.NOT_FOUND) {
+					throw new WebApplicationException(Response.Status.NOT_FOUND);
+				}
+				// changed by another writer since it was read
+				if (conditional) return completed(Response.status(Response.Status.PRECONDITION_FAILED).build());
+				if (attempt >= MAX_REPLACE_ATTEMPTS) return completed(Response.status(Response.Status.CONFLICT).build());
+				return replace(calls, id, request, headers, change, attempt + 1);
+			});
+		});
 	}
 
 	
 	/**
-	 * Delete the existing contact.
+	 * Delete the existing contact.  With If-Match, the contact is deleted
+	 * only if it is still the version the client named, even if another
+	 * writer changes it between the check and the delete.
 	 */
 	@DELETE
 	@Path("{id : \\d+}")
-	public Response delete(@PathParam("id") int id, @Context Request request) {
-		Contact current = dao.find(id);
-		// check contact availability
-		if(current == null) {
-			throw new WebApplicationException(Response.Status.NOT_FOUND);
+	public void delete(@PathParam("id") final int id, @Context final Request request,
+			@Context final HttpHeaders headers, @Suspended AsyncResponse response) {
+		final boolean conditional = headers.getHeaderString(HttpHeaders.IF_MATCH) != null;
+		resume(response, async, calls -> calls.find(id).thenCompose(current -> {
+			// check contact availability
+			if(current == null) {
+				throw new WebApplicationException(Response.Status.NOT_FOUND);
+			}
+			ResponseBuilder builder = evaluateWritePreconditions(request, headers, current);
+			if (builder != null) {
+				// Preconditions not met!
+				return completed(builder.build());
+			}
+			if (! conditional) return calls.delete(id).thenApply(deleted -> Response.ok().build());
+			return calls.delete(id, current.getVersion()).thenApply(status -> {
+				if (status == WriteStatus.DELETED) return Response.ok().build();
+				if (status == WriteStatus.NOT_FOUND) throw new WebApplicationException(Response.Status.NOT_FOUND);
+				// changed by another writer since it was read
+				return Response.status(Response.Status.PRECONDITION_FAILED).build();
+			});
+		}));
+	}
+
+	/**
+	 * Resume a suspended request with the response a piece of work produces.
+	 * If the work throws, or its future fails, the request is resumed with
+	 * the exception, which JAX-RS maps to a response (e.g. a
+	 * WebApplicationException to its status) as if the method had thrown it.
+	 * A request whose response takes longer than {@value #ASYNC_TIMEOUT_SECONDS}
+	 * seconds gets 503 Service Unavailable, and so does one whose DAO
+	 * operation was rejected because the DAO's queue was full.
+	 * <p>
+	 * The work gets its own view of the DAO, whose operations are cancelled
+	 * when the request times out: an operation still waiting in the DAO's
+	 * queue then never runs, so a client told 503 does not find its change
+	 * applied later.  An operation already running is not stopped.
+	 * <p>
+	 * Resuming writes the response, which for an export of the whole store
+	 * to a slow client lasts as long as the transfer.  Work that finishes
+	 * on a DAO thread is therefore resumed on a thread of its own, so the
+	 * DAO's few threads are never held by clients reading responses.
+	 * @param response the suspended request
+	 * @param async the DAO the work uses
+	 * @param work starts the work with a view of the DAO and returns its future response
+	 */
+	static void resume(final AsyncResponse response, AsyncContactDao async,
+			Function<AsyncContactDao,CompletableFuture<Response>> work) {
+		final CancellableAsyncContactDao calls = new CancellableAsyncContactDao(async);
+		response.setTimeoutHandler(new TimeoutHandler() {
+			public void handleTimeout(AsyncResponse timedOut) {
+				calls.cancel();
+				timedOut.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE).build());
+			}
+		});
+		response.setTimeout(ASYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		CompletableFuture<Response> result;
+		try {
+			result = work.apply(calls);
+		} catch (RuntimeException e) {
+			fail(response, e);
+			return;
 		}
-		
-		EntityTag tag = new EntityTag(Integer.toString(current.hashCode()));
-		ResponseBuilder builder = request.evaluatePreconditions(tag);
-		if (builder != null) {
-			// Preconditions not met!
-			return builder.build();
+		BiConsumer<Response,Throwable> finish = (value, error) -> {
+			if (error == null) response.resume(value);
+			else fail(response, error);
+		};
+		// work done in this thread is resumed here; work done on a DAO thread is not
+		if (result.isDone()) result.whenComplete(finish);
+		else result.whenCompleteAsync(finish, RESPONSES);
+	}
+
+	private static ExecutorService newResponseExecutor() {
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = Executors.defaultThreadFactory().newThread(task);
+				thread.setName("contact-response-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/** Resume a request with the exception that failed it. */
+	private static void fail(AsyncResponse response, Throwable error) {
+		if (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+		// the DAO is overloaded, which is not the client's fault and may pass
+		if (error instanceof RejectedExecutionException) {
+			response.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE).build());
 		}
-		dao.delete(id);
-		return Response.ok().build();
+		else response.resume(error);
 	}
-	
-	
 
-	
+	/** @return a future that is already complete with a response */
+	private static CompletableFuture<Response> completed(Response response) {
+		return CompletableFuture.completedFuture(response);
+	}
 }
@@ -0,0 +1,170 @@
+package contact.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import contact.entity.Contact;
+
+/**
+ * Read and write contacts as XML with StAX, without JAXB.
+ * The output has the same shape that JAXB produces from the annotations
+ * on {@link Contact}: a <code>contact</code> element with an <code>id</code>
+ * attribute and <code>title</code>, <code>name</code>, <code>email</code>
+ * and <code>photoUrl</code> child elements, where null fields are omitted.
+ * A collection is wrapped in a <code>contacts</code> element.
+ */
+public final class ContactXml {
+	static final String ENCODING = "UTF-8";
+	static final String CONTACT = "contact";
+	static final String CONTACTS = "contacts";
+
+	/** Factories are thread-safe once configured, so share one. */
+	private static final XMLOutputFactory FACTORY = XMLOutputFactory.newInstance();
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+	static {
+		// request bodies are untrusted: no DTDs, no external entities
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	private ContactXml() { }
+
+	/**
+	 * Write one contact as an XML document.
+	 * @param contact the contact to write
+	 * @param out where to write the UTF-8 encoded document. It is not closed.
+	 */
+	public static void write(Contact contact, OutputStream out) throws IOException {
+		try {
+			XMLStreamWriter writer = FACTORY.createXMLStreamWriter(out, ENCODING);
+			writer.writeStartDocument(ENCODING, "1.0");
+			writeContact(writer, contact);
+			writer.writeEndDocument();
+			writer.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Write a collection of contacts as an XML document.
+	 * Contacts are written as they are iterated, so the collection is never
+	 * copied and memory use does not grow with its size.
+	 * @param contacts the contacts to write
+	 * @param out where to write the UTF-8 encoded document. It is not closed.
+	 */
+	public static void writeAll(Iterable<Contact> contacts, OutputStream out) throws IOException {
+		try {
+			XMLStreamWriter writer = FACTORY.createXMLStreamWriter(out, ENCODING);
+			writer.writeStartDocument(ENCODING, "1.0");
+			writer.writeStartElement(CONTACTS);
+			for(Contact contact : contacts) writeContact(writer, contact);
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Encode one contact as an XML document.
+	 * @param contact the contact to encode
+	 * @return the UTF-8 encoded document
+	 */
+	public static byte[] toBytes(Contact contact) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		try {
+			write(contact, out);
+		} catch (IOException e) {
+			// a ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/** Write a contact element, in the field order used by JAXB. */
+	private static void writeContact(XMLStreamWriter writer, Contact contact) throws XMLStreamException {
+		writer.writeStartElement(CONTACT);
+		writer.writeAttribute("id", Long.toString(contact.getId()));
+		writeElement(writer, "title", contact.getTitle());
+		writeElement(writer, "name", contact.getName());
+		writeElement(writer, "email", contact.getEmail());
+		writeElement(writer, "photoUrl", contact.getPhotoUrl());
+		writer.writeEndElement();
+	}
+
+	private static void writeElement(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+		if (value == null) return;
+		writer.writeStartElement(name);
+		writer.writeCharacters(value);
+		writer.writeEndElement();
+	}
+
+	/**
+	 * Create a pull parser for a document of contacts.
+	 * @param in the XML document
+	 * @return a reader positioned at the start of the document
+	 */
+	public static XMLStreamReader createReader(InputStream in) throws XMLStreamException {
+		return INPUT_FACTORY.createXMLStreamReader(in);
+	}
+
+	/**
+	 * Advance reader to the next contact element.
+	 * @param reader a reader created by createReader
+	 * @return true if the reader is at the start of a contact element, false at the end of the document
+	 */
+	public static boolean nextContact(XMLStreamReader reader) throws XMLStreamException {
+		while (reader.hasNext()) {
+			if (reader.next() == XMLStreamConstants.START_ELEMENT && CONTACT.equals(reader.getLocalName())) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Read the contact element at the reader's position.
+	 * Unknown child elements are ignored.
+	 * @param reader a reader positioned at the start of a contact element
+	 * @return the contact.  On return the reader is at the end of the contact element.
+	 */
+	public static Contact readContact(XMLStreamReader reader) throws XMLStreamException {
+		Contact contact = new Contact();
+		String id = reader.getAttributeValue(null, "id");
+		if (id != null) {
+			try {
+				contact.setId(Long.parseLong(id.trim()));
+			} catch (NumberFormatException e) {
+				throw new XMLStreamException("bad contact id " + id, reader.getLocation());
+			}
+		}
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String name = reader.getLocalName();
+			if ("title".equals(name)) contact.setTitle(reader.getElementText());
+			else if ("name".equals(name)) contact.setName(reader.getElementText());
+			else if ("email".equals(name)) contact.setEmail(reader.getElementText());
+			else if ("photoUrl".equals(name)) contact.setPhotoUrl(reader.getElementText());
+			else skipElement(reader);
+		}
+		return contact;
+	}
+
+	/** Skip the element at the reader's position, including its children. */
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,39 @@
+package contact.resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import contact.entity.Contact;
+
+/**
+ * Write a single Contact as XML using {@link ContactXml} instead of JAXB.
+ * Jersey finds this provider by scanning the resource package.
+ */
+@Provider
+@Produces({MediaType.APPLICATION_XML, MediaType.TEXT_XML})
+public class ContactXmlWriter implements MessageBodyWriter<Contact> {
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return Contact.class.isAssignableFrom(type);
+	}
+
+	@Override
+	public long getSize(Contact contact, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return -1; // unknown until written
+	}
+
+	@Override
+	public void writeTo(Contact contact, Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType, MultivaluedMap<String,Object> headers, OutputStream out) throws IOException {
+		ContactXml.write(contact, out);
+	}
+}
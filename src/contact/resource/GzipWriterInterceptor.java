@@ -0,0 +1,256 @@
+package contact.resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.Configuration;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+/**
+ * Compress response entities with gzip when the client accepts it.
+ * Small entities gain little from compression and cost CPU, so the first
+ * bytes are held back: if the entity ends within the minimum size it is
+ * sent as is, otherwise the Content-Encoding header is set and everything
+ * is compressed as it is written.  Large entities, such as the list of
+ * all contacts, are still streamed.
+ * <p>
+ * A compressed entity is not the same bytes as the plain one, so its
+ * entity tag gets the suffix {@value #GZIP_TAG_SUFFIX}.  As a request
+ * filter, this class removes the suffix from the tags in If-Match and
+ * If-None-Match, so resources compare the tags they know.
+ * <p>
+ * The level and minimum size are read from the application properties
+ * {@value #LEVEL_PROPERTY} and {@value #MIN_SIZE_PROPERTY}, which
+ * JettyMain sets from the ServerConfig.  Level 0 turns compression off.
+ *
+ * @author jim
+ */
+@Provider
+public class GzipWriterInterceptor implements WriterInterceptor, ContainerRequestFilter {
+	/** Property for the compression level, from 1 (fastest) to 9 (smallest), or 0 for none. */
+	public static final String LEVEL_PROPERTY = "contact.gzip.level";
+	/** Property for the smallest entity, in bytes, that is compressed. */
+	public static final String MIN_SIZE_PROPERTY = "contact.gzip.min";
+	/** Level used if the property is not set. */
+	public static final int DEFAULT_LEVEL = 6;
+	/** Minimum size used if the property is not set; below about a packet there is little to gain. */
+	public static final int DEFAULT_MIN_SIZE = 1024;
+	/** Added to the entity tag of a compressed entity. */
+	public static final String GZIP_TAG_SUFFIX = "-gzip";
+
+	private final int level;
+	private final int minSize;
+	@Context
+	private HttpHeaders requestHeaders;
+
+	/**
+	 * @param config the application configuration, holding the level and minimum size
+	 */
+	public GzipWriterInterceptor(@Context Configuration config) {
+		this(intProperty(config, LEVEL_PROPERTY, DEFAULT_LEVEL), intProperty(config, MIN_SIZE_PROPERTY, DEFAULT_MIN_SIZE));
+	}
+
+	/**
+	 * @param level compression level, from 1 to 9, or 0 for none
+	 * @param minSize smallest entity, in bytes, that is compressed
+	 */
+	public GzipWriterInterceptor(int level, int minSize) {
+		if (level < 0 || level > Deflater.BEST_COMPRESSION) throw new IllegalArgumentException("gzip level must be 0 to 9");
+		if (minSize < 0) throw new IllegalArgumentException("gzip minimum size may not be negative");
+		this.level = level;
+		this.minSize = minSize;
+	}
+
+	private static int intProperty(Configuration config, String name, int defaultValue) {
+		Object value = (config == null) ? null : config.getProperty(name);
+		if (value == null) return defaultValue;
+		return Integer.parseInt(value.toString().trim());
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.ws.rs.ext.WriterInterceptor#aroundWriteTo(javax.ws.rs.ext.WriterInterceptorContext)
+	 */
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+		MultivaluedMap<String,Object> headers = context.getHeaders();
+		if (level == 0 || headers.containsKey(HttpHeaders.CONTENT_ENCODING)) {
+			context.proceed();
+			return;
+		}
+		// the response depends on Accept-Encoding even when it is not compressed
+		headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		if (! acceptsGzip(requestHeaders.getHeaderString(HttpHeaders.ACCEPT_ENCODING))) {
+			context.proceed();
+			return;
+		}
+		ThresholdGzipOutputStream out = new ThresholdGzipOutputStream(context.getOutputStream(), headers, level, minSize);
+		context.setOutputStream(out);
+		context.proceed();
+		out.finish();
+	}
+
+	/**
+	 * Test whether an Accept-Encoding header allows gzip, either by name or
+	 * by "*", without a quality of 0.  Naming gzip takes precedence over "*",
+	 * so "gzip;q=0, *" refuses gzip.
+	 * @param acceptEncoding value of the header, or null if there is none
+	 */
+	public static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) return false;
+		Boolean star = null;
+		for(String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim();
+			if (name.equalsIgnoreCase("gzip")) return ! refused(parts);
+			if (name.equals("*")) star = ! refused(parts);
+		}
+		return (star != null) && star;
+	}
+
+	/** @return true if the parameters of a coding give it a quality of 0, or one that cannot be read */
+	private static boolean refused(String[] parts) {
+		boolean refused = false;
+		for(int k=1; k<parts.length; k++) {
+			String param = parts[k].trim();
+			if (! param.startsWith("q=")) continue;
+			try {
+				refused = Double.parseDouble(param.substring(2)) <= 0;
+			} catch (NumberFormatException e) {
+				refused = true;
+			}
+		}
+		return refused;
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.ws.rs.container.ContainerRequestFilter#filter(javax.ws.rs.container.ContainerRequestContext)
+	 */
+	@Override
+	public void filter(ContainerRequestContext request) {
+		// a client that got a gzipped entity names it by the tag with the suffix; resources know the plain one
+		MultivaluedMap<String,String> headers = request.getHeaders();
+		for(String name : new String[] { HttpHeaders.IF_MATCH, HttpHeaders.IF_NONE_MATCH }) {
+			List<String> values = headers.get(name);
+			if (values == null) continue;
+			List<String> plain = new ArrayList<String>(values.size());
+			for(String value : values) plain.add(value.replace(GZIP_TAG_SUFFIX + "\"", "\""));
+			headers.put(name, plain);
+		}
+	}
+
+	/**
+	 * Add the gzip suffix to the entity tag of a response, if it has one.
+	 * @param tag the value of the ETag header, an EntityTag or a string
+	 * @return the tag of the gzipped entity
+	 */
+	static Object gzipTag(Object tag) {
+		if (tag instanceof EntityTag) {
+			EntityTag entityTag = (EntityTag) tag;
+			return new EntityTag(entityTag.getValue() + GZIP_TAG_SUFFIX, entityTag.isWeak());
+		}
+		String text = tag.toString();
+		if (! text.endsWith("\"")) return text;
+		return text.substring(0, text.length() - 1) + GZIP_TAG_SUFFIX + "\"";
+	}
+
+	/**
+	 * Holds back the first minSize bytes, then switches to gzip if more
+	 * are written.  The headers can still be changed while bytes are held
+	 * back, since nothing has been written to the response.
+	 */
+	public static class ThresholdGzipOutputStream extends OutputStream {
+		private final OutputStream out;
+		private final MultivaluedMap<String,Object> headers;
+		private final int level;
+		private byte[] buffer;
+		private int count;
+		private GZIPOutputStream gzip;
+		private boolean finished;
+
+		/**
+		 * @param out where the entity is written
+		 * @param headers the response headers, changed if the entity is compressed
+		 * @param level compression level, from 1 to 9
+		 * @param minSize smallest entity, in bytes, that is compressed
+		 */
+		public ThresholdGzipOutputStream(OutputStream out, MultivaluedMap<String,Object> headers, int level, int minSize) {
+			this.out = out;
+			this.headers = headers;
+			this.level = level;
+			this.buffer = new byte[minSize];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (gzip == null && count < buffer.length) buffer[count++] = (byte) b;
+			else {
+				startGzip();
+				gzip.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			if (gzip == null && count + length <= buffer.length) {
+				System.arraycopy(bytes, offset, buffer, count, length);
+				count += length;
+			}
+			else {
+				startGzip();
+				gzip.write(bytes, offset, length);
+			}
+		}
+
+		private void startGzip() throws IOException {
+			if (gzip != null) return;
+			headers.remove(HttpHeaders.CONTENT_LENGTH);
+			headers.putSingle(HttpHeaders.CONTENT_ENCODING, "gzip");
+			// the gzipped bytes differ from the plain ones, so a strong tag must too
+			Object tag = headers.getFirst(HttpHeaders.ETAG);
+			if (tag != null) headers.putSingle(HttpHeaders.ETAG, gzipTag(tag));
+			gzip = new LeveledGZIPOutputStream(out, level);
+			gzip.write(buffer, 0, count);
+			buffer = null;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// flushing held back bytes would commit the headers before the choice is made
+			if (gzip != null) gzip.flush();
+		}
+
+		/** Write what is held back, or the end of the gzip stream, without closing the response. */
+		public void finish() throws IOException {
+			if (finished) return;
+			finished = true;
+			if (gzip != null) gzip.finish();
+			else if (count > 0) out.write(buffer, 0, count);
+		}
+
+		@Override
+		public void close() throws IOException {
+			finish();
+			out.close();
+		}
+	}
+
+	/** A GZIPOutputStream with a chosen compression level. */
+	private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+		LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+			super(out, 8192);
+			def.setLevel(level);
+		}
+	}
+}
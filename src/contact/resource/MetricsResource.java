@@ -0,0 +1,41 @@
+package contact.resource;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import javax.inject.Singleton;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+import contact.metrics.MetricsRegistry;
+
+/**
+ * Serves the service's metrics in the Prometheus text format:
+ * request latency and status codes by route, DAO operation timings,
+ * the number of contacts, and Jetty thread pool use.
+ *
+ * @author jim
+ */
+@Path("/metrics")
+@Singleton
+public class MetricsResource {
+	/** Media type of the Prometheus text exposition format. */
+	static final String TEXT_FORMAT = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final MetricsRegistry registry = MetricsRegistry.getInstance();
+
+	/**
+	 * Get the current value of every metric.
+	 * @return the metrics as text
+	 */
+	@GET
+	@Produces(TEXT_FORMAT)
+	public Response getMetrics() throws IOException {
+		// write to memory first, so a slow client does not hold the registry's lock
+		StringWriter text = new StringWriter(8192);
+		registry.write(text);
+		return Response.ok(text.toString(), TEXT_FORMAT).build();
+	}
+}
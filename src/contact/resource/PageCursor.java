@@ -0,0 +1,43 @@
+package contact.resource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Encode and decode the opaque cursor used to page through contacts.
+ * A cursor holds the id of the last contact on the previous page.
+ * Clients should not depend on its format.
+ */
+final class PageCursor {
+	/** Marks a cursor so that arbitrary strings are rejected. */
+	private static final String PREFIX = "after:";
+
+	private PageCursor() { }
+
+	/**
+	 * Create a cursor for the page after a contact.
+	 * @param lastId id of the last contact on the current page
+	 * @return an opaque, URL-safe cursor
+	 */
+	static String encode(long lastId) {
+		byte[] bytes = (PREFIX + lastId).getBytes(StandardCharsets.US_ASCII);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+
+	/**
+	 * Get the id that a cursor continues after.
+	 * @param cursor a cursor created by encode, or null for the first page
+	 * @return the id of the last contact on the previous page, or 0 for the first page
+	 * @throws IllegalArgumentException if cursor is not a valid cursor
+	 */
+	static long decode(String cursor) {
+		if (cursor == null || cursor.isEmpty()) return 0L;
+		String text = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII);
+		if (! text.startsWith(PREFIX)) throw new IllegalArgumentException("not a contact cursor");
+		try {
+			return Long.parseLong(text.substring(PREFIX.length()));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("not a contact cursor", e);
+		}
+	}
+}
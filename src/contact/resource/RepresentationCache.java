@@ -0,0 +1,119 @@
+package contact.resource;
+
+import contact.service.ContactListener;
+import contact.service.SegmentedLruCache;
+
+/**
+ * Cache of encoded contact representations, keyed by contact id and format.
+ * Each entry records the contact version it was encoded from, and is only
+ * returned for that version.
+ * Register it as a listener on the ContactDao so that any change to a
+ * contact drops its cached bytes.
+ * <p>
+ * To avoid caching bytes encoded from a contact that changed while it was
+ * being encoded, a reader first reserves the entry, then reads and encodes
+ * the contact, then fills the reservation.  An invalidation in between
+ * makes the reservation stale, so the fill is ignored.
+ * <p>
+ * Each format holds at most a fixed number of entries in a
+ * {@link SegmentedLruCache}, so when it is full the least recently used
+ * representations that were read only once make room for new ones.
+ */
+public class RepresentationCache implements ContactListener {
+	/** Format index for XML representations. */
+	public static final int XML = 0;
+	/** Format index for JSON representations. */
+	public static final int JSON = 1;
+	/** Number of formats cached. */
+	static final int FORMATS = 2;
+	/** Default maximum number of entries per format. */
+	static final int DEFAULT_CAPACITY = 100000;
+
+	/** Entries for each format, or null if the cache is disabled. */
+	private final SegmentedLruCache<Long,Entry>[] entries;
+
+	public RepresentationCache() {
+		this(Integer.getInteger("contact.cache.representations", DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * Create a cache.
+	 * @param capacity maximum number of entries per format. 0 disables the cache.
+	 */
+	@SuppressWarnings("unchecked")
+	public RepresentationCache(int capacity) {
+		if (capacity <= 0) {
+			entries = null;
+			return;
+		}
+		entries = new SegmentedLruCache[FORMATS];
+		for(int k=0; k<FORMATS; k++) entries[k] = new SegmentedLruCache<Long,Entry>(capacity);
+	}
+
+	/**
+	 * Get the cached representation of a version of a contact.
+	 * @param id the contact id
+	 * @param format the format, such as XML
+	 * @param version the contact version wanted
+	 * @return the encoded contact, or null if that version is not cached
+	 */
+	public byte[] get(long id, int format, long version) {
+		if (entries == null) return null;
+		Entry entry = entries[format].get(id);
+		if (entry == null || entry.version != version) return null;
+		return entry.bytes;
+	}
+
+	/**
+	 * Reserve an entry before reading the contact that will fill it.
+	 * @param id the contact id
+	 * @param format the format, such as XML
+	 * @return a ticket to pass to fill, or null if the cache is disabled
+	 */
+	public Object reserve(long id, int format) {
+		if (entries == null) return null;
+		return Long.valueOf(entries[format].stamp(id));
+	}
+
+	/**
+	 * Fill a reserved entry. If the contact changed since the entry was reserved
+	 * the bytes are discarded.
+	 * @param id the contact id
+	 * @param format the format, such as XML
+	 * @param ticket the value returned by reserve. May be null, then nothing happens.
+	 * @param version the version of the contact that was encoded
+	 * @param bytes the encoded contact
+	 */
+	public void fill(long id, int format, Object ticket, long version, byte[] bytes) {
+		if (! (ticket instanceof Long)) return;
+		entries[format].putIfUnchanged(id, new Entry(version, bytes), (Long) ticket);
+	}
+
+	/**
+	 * Drop all representations of a contact.
+	 * @param id the contact id
+	 */
+	public void invalidate(long id) {
+		if (entries == null) return;
+		for(SegmentedLruCache<Long,Entry> cache : entries) cache.invalidate(id);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactListener#contactChanged(long)
+	 */
+	@Override
+	public void contactChanged(long id) {
+		invalidate(id);
+	}
+
+	/** A cached representation. */
+	private static final class Entry {
+		final long version;
+		final byte[] bytes;
+
+		Entry(long version, byte[] bytes) {
+			this.version = version;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package contact.resource;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.Path;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.DynamicFeature;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.FeatureContext;
+import javax.ws.rs.ext.Provider;
+
+import contact.metrics.MetricsFilter;
+import contact.metrics.MetricsRegistry;
+import contact.metrics.RouteMetrics;
+
+/**
+ * Gives each resource method a filter that marks its requests with the
+ * method's RouteMetrics, so MetricsFilter can record them by route.
+ * The route is found once, when the application starts, so marking a
+ * request costs one attribute assignment.
+ *
+ * @author jim
+ */
+@Provider
+public class RouteMetricsFeature implements DynamicFeature {
+
+	/* (non-Javadoc)
+	 * @see javax.ws.rs.container.DynamicFeature#configure(javax.ws.rs.container.ResourceInfo, javax.ws.rs.core.FeatureContext)
+	 */
+	@Override
+	public void configure(ResourceInfo resourceInfo, FeatureContext context) {
+		String route = routeOf(resourceInfo.getResourceClass(), resourceInfo.getResourceMethod());
+		if (route == null) return;
+		context.register(new RouteFilter(MetricsRegistry.getInstance().route(route)));
+	}
+
+	/**
+	 * Describe the route of a resource method, such as "GET /contacts/{id}".
+	 * Regular expressions in path parameters are left out.
+	 * @return the route, or null if the method has no HTTP method annotation
+	 */
+	static String routeOf(Class<?> type, Method method) {
+		String verb = null;
+		for(Annotation annotation : method.getAnnotations()) {
+			HttpMethod http = annotation.annotationType().getAnnotation(HttpMethod.class);
+			if (http != null) verb = http.value();
+		}
+		if (verb == null) return null;
+		StringBuilder path = new StringBuilder();
+		appendPath(path, type.getAnnotation(Path.class));
+		appendPath(path, method.getAnnotation(Path.class));
+		if (path.length() == 0) path.append('/');
+		return verb + " " + path.toString().replaceAll("\\{\\s*(\\w+)\\s*:[^}]*\\}", "{$1}");
+	}
+
+	private static void appendPath(StringBuilder path, Path annotation) {
+		if (annotation == null) return;
+		String value = annotation.value();
+		if (value.startsWith("/")) value = value.substring(1);
+		if (value.endsWith("/")) value = value.substring(0, value.length() - 1);
+		if (! value.isEmpty()) path.append('/').append(value);
+	}
+
+	/** Stores the route's metrics as a request property, which is also a servlet request attribute. */
+	private static class RouteFilter implements ContainerRequestFilter {
+		private final RouteMetrics metrics;
+
+		RouteFilter(RouteMetrics metrics) {
+			this.metrics = metrics;
+		}
+
+		/* (non-Javadoc)
+		 * @see javax.ws.rs.container.ContainerRequestFilter#filter(javax.ws.rs.container.ContainerRequestContext)
+		 */
+		@Override
+		public void filter(ContainerRequestContext request) {
+			request.setProperty(MetricsFilter.ROUTE_ATTRIBUTE, metrics);
+		}
+	}
+}
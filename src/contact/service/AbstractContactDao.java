@@ -0,0 +1,62 @@
+package contact.service;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base class for ContactDao implementations.
+ * It keeps the list of listeners and notifies them of changes,
+ * and tracks when the store as a whole was last modified.
+ * Subclasses must call {@link #fireChanged(long)} after each
+ * successful save, update or delete.
+ */
+public abstract class AbstractContactDao implements ContactDao {
+	private final List<ContactListener> listeners = new CopyOnWriteArrayList<ContactListener>();
+	private final AtomicLong modifications = new AtomicLong();
+	/** Time of the last change, or of creation, so a restarted store has a new value. */
+	private volatile long lastModified = System.currentTimeMillis();
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#getModificationCount()
+	 */
+	@Override
+	public long getModificationCount() {
+		return modifications.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#getLastModified()
+	 */
+	@Override
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#addContactListener(contact.service.ContactListener)
+	 */
+	@Override
+	public void addContactListener(ContactListener listener) {
+		if (listener == null) throw new IllegalArgumentException("listener may not be null");
+		listeners.add(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#removeContactListener(contact.service.ContactListener)
+	 */
+	@Override
+	public void removeContactListener(ContactListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Notify listeners that a contact was saved, updated or deleted.
+	 * @param id the id of the contact that changed
+	 */
+	protected void fireChanged(long id) {
+		lastModified = System.currentTimeMillis();
+		modifications.incrementAndGet();
+		for(ContactListener listener : listeners) listener.contactChanged(id);
+	}
+}
@@ -0,0 +1,50 @@
+package contact.service;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import contact.entity.Contact;
+
+/**
+ * Non-blocking view of a ContactDao: each operation returns a future that
+ * completes with the result, or exceptionally with the DAO's exception.
+ * The operations mean the same as in {@link ContactDao}.
+ * <p>
+ * Callers must not block on the futures from a request thread, or nothing
+ * is gained; chain the work that needs the result instead.
+ *
+ * @author jim
+ */
+public interface AsyncContactDao {
+
+	public abstract CompletableFuture<Contact> find(long id);
+
+	public abstract CompletableFuture<Contact> findByTitle(String title, boolean caseSensitive);
+
+	public abstract CompletableFuture<List<Contact>> search(String text, boolean prefixOnly, int limit);
+
+	public abstract CompletableFuture<List<Contact>> findAll();
+
+	public abstract CompletableFuture<List<Contact>> findPage(long afterId, int limit);
+
+	public abstract CompletableFuture<Long> count();
+
+	public abstract CompletableFuture<Boolean> delete(long id);
+
+	public abstract CompletableFuture<WriteStatus> delete(long id, long expectedVersion);
+
+	public abstract CompletableFuture<Boolean> save(Contact contact);
+
+	public abstract CompletableFuture<WriteStatus[]> insertAll(List<Contact> contacts);
+
+	public abstract CompletableFuture<Boolean> update(Contact update);
+
+	public abstract CompletableFuture<WriteStatus> replace(Contact contact, long expectedVersion);
+
+	public abstract CompletableFuture<WriteStatus[]> updateAll(List<Contact> updates);
+
+	public abstract CompletableFuture<WriteStatus[]> deleteAll(long[] ids);
+
+	/** @return the blocking DAO that does the work, for listeners and modification counts */
+	public abstract ContactDao getContactDao();
+}
@@ -0,0 +1,315 @@
+package contact.service;
+
+import java.util.List;
+
+import contact.entity.Contact;
+import contact.metrics.MetricsRegistry;
+
+/**
+ * A ContactDao that keeps recently read contacts in memory in front of a
+ * slower DAO, such as the file or JPA DAO.  Lookups by id and by title go
+ * through {@link SegmentedLruCache}s, which also remember ids and titles
+ * that were not found, so repeated lookups of missing contacts do not
+ * reach the backing DAO either.  Searches, pages and counts are not cached.
+ * <p>
+ * Writes go to the backing DAO and then invalidate what they may have
+ * changed: the contact's id, and its title, for which a contact may now
+ * exist.  The cache also listens to the backing DAO, so changes that do
+ * not pass through this object drop cached contacts too.  A cached title
+ * remembers only the id of its contact, and the contact is checked to
+ * still have that title when it is found, so renaming a contact needs no
+ * search of the title cache.
+ * <p>
+ * Contacts found are shared, as the DAO's own are, so a cached contact is
+ * returned as is; writes replace contacts rather than change them.
+ * Hits, misses and evictions of both caches are counted in the
+ * MetricsRegistry.
+ *
+ * @author jim
+ */
+public class CachingContactDao implements ContactDao, ContactListener {
+	/** Cached in place of a contact that does not exist. */
+	private static final Contact ABSENT = new Contact();
+	/** Cached in place of the id when no contact has a title. */
+	private static final Long NO_ID = Long.valueOf(0);
+	private static final String REQUESTS = "contact_cache_requests_total";
+	private static final String REQUESTS_HELP = "Lookups in the DAO cache, by result.";
+	private static final String EVICTIONS = "contact_cache_evictions_total";
+	private static final String EVICTIONS_HELP = "Entries evicted from the DAO cache to make room.";
+
+	private final ContactDao dao;
+	private final SegmentedLruCache<Long,Contact> contacts;
+	private final SegmentedLruCache<String,Long> titles;
+
+	/**
+	 * @param dao the DAO to cache
+	 * @param capacity most entries in each of the id and title caches
+	 * @param registry where to count hits, misses and evictions
+	 */
+	public CachingContactDao(ContactDao dao, int capacity, MetricsRegistry registry) {
+		this.dao = dao;
+		contacts = newCache(registry, "contacts", capacity);
+		titles = newCache(registry, "titles", capacity);
+		registry.gauge("contact_cache_entries", "Entries in the DAO cache.",
+				MetricsRegistry.label("cache", "contacts"), () -> contacts.size());
+		registry.gauge("contact_cache_entries", "Entries in the DAO cache.",
+				MetricsRegistry.label("cache", "titles"), () -> titles.size());
+		dao.addContactListener(this);
+	}
+
+	private static <K,V> SegmentedLruCache<K,V> newCache(MetricsRegistry registry, String name, int capacity) {
+		String cache = MetricsRegistry.label("cache", name);
+		return new SegmentedLruCache<K,V>(capacity,
+				registry.counter(REQUESTS, REQUESTS_HELP, cache + "," + MetricsRegistry.label("result", "hit")),
+				registry.counter(REQUESTS, REQUESTS_HELP, cache + "," + MetricsRegistry.label("result", "miss")),
+				registry.counter(EVICTIONS, EVICTIONS_HELP, cache));
+	}
+
+	/** @return the DAO that holds the contacts */
+	public ContactDao getDelegate() {
+		return dao;
+	}
+
+	/** @return the cache of contacts by id, for its statistics */
+	public SegmentedLruCache<Long,Contact> getContactCache() {
+		return contacts;
+	}
+
+	/** @return the cache of contact ids by title, for its statistics */
+	public SegmentedLruCache<String,Long> getTitleCache() {
+		return titles;
+	}
+
+	/** Key of a title in the title cache; exact and case-insensitive lookups are kept apart. */
+	private static String titleKey(String title, boolean caseSensitive) {
+		return caseSensitive ? "=" + title : "~" + Contact.foldTitle(title);
+	}
+
+	private static boolean hasTitle(Contact contact, String title, boolean caseSensitive) {
+		if (contact.getTitle() == null) return false;
+		if (caseSensitive) return title.equals(contact.getTitle());
+		return Contact.foldTitle(title).equals(Contact.foldTitle(contact.getTitle()));
+	}
+
+	/** Forget a contact, and any lookup of its title that found nothing. */
+	private void invalidate(Contact contact) {
+		contacts.invalidate(contact.getId());
+		String title = contact.getTitle();
+		if (title != null) {
+			titles.invalidate(titleKey(title, true));
+			titles.invalidate(titleKey(title, false));
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#find(long)
+	 */
+	@Override
+	public Contact find(long id) {
+		Long key = id;
+		Contact cached = contacts.get(key);
+		if (cached != null) return (cached == ABSENT) ? null : cached;
+		long stamp = contacts.stamp(key);
+		Contact contact = dao.find(id);
+		contacts.putIfUnchanged(key, (contact == null) ? ABSENT : contact, stamp);
+		return contact;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findByTitle(String)
+	 */
+	@Override
+	public Contact findByTitle(String title) {
+		// the DAOs differ on letter case here, so only the explicit form is cached
+		return dao.findByTitle(title);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findByTitle(String, boolean)
+	 */
+	@Override
+	public Contact findByTitle(String title, boolean caseSensitive) {
+		if (title == null) return dao.findByTitle(title, caseSensitive);
+		String key = titleKey(title, caseSensitive);
+		Long id = titles.get(key);
+		if (id != null) {
+			if (id.longValue() == NO_ID.longValue()) return null;
+			Contact contact = find(id);
+			if (contact != null && hasTitle(contact, title, caseSensitive)) return contact;
+			// renamed or deleted since the title was cached
+			titles.invalidate(key);
+		}
+		long stamp = titles.stamp(key);
+		Contact contact = dao.findByTitle(title, caseSensitive);
+		titles.putIfUnchanged(key, (contact == null) ? NO_ID : Long.valueOf(contact.getId()), stamp);
+		return contact;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#search(String, boolean, int)
+	 */
+	@Override
+	public List<Contact> search(String text, boolean prefixOnly, int limit) {
+		return dao.search(text, prefixOnly, limit);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findAll()
+	 */
+	@Override
+	public List<Contact> findAll() {
+		return dao.findAll();
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#count()
+	 */
+	@Override
+	public long count() {
+		return dao.count();
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findPage(long, int)
+	 */
+	@Override
+	public List<Contact> findPage(long afterId, int limit) {
+		return dao.findPage(afterId, limit);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#delete(long)
+	 */
+	@Override
+	public boolean delete(long id) {
+		try {
+			return dao.delete(id);
+		} finally {
+			contacts.invalidate(id);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#delete(long, long)
+	 */
+	@Override
+	public WriteStatus delete(long id, long expectedVersion) {
+		try {
+			return dao.delete(id, expectedVersion);
+		} finally {
+			contacts.invalidate(id);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#save(contact.entity.Contact)
+	 */
+	@Override
+	public boolean save(Contact contact) {
+		try {
+			return dao.save(contact);
+		} finally {
+			invalidate(contact);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#insertAll(java.util.List)
+	 */
+	@Override
+	public WriteStatus[] insertAll(List<Contact> contacts) {
+		try {
+			return dao.insertAll(contacts);
+		} finally {
+			for(Contact contact : contacts) invalidate(contact);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#update(contact.entity.Contact)
+	 */
+	@Override
+	public boolean update(Contact update) {
+		try {
+			return dao.update(update);
+		} finally {
+			invalidate(update);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#replace(contact.entity.Contact, long)
+	 */
+	@Override
+	public WriteStatus replace(Contact contact, long expectedVersion) {
+		try {
+			return dao.replace(contact, expectedVersion);
+		} finally {
+			invalidate(contact);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#updateAll(java.util.List)
+	 */
+	@Override
+	public WriteStatus[] updateAll(List<Contact> updates) {
+		try {
+			return dao.updateAll(updates);
+		} finally {
+			for(Contact update : updates) invalidate(update);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#deleteAll(long[])
+	 */
+	@Override
+	public WriteStatus[] deleteAll(long[] ids) {
+		try {
+			return dao.deleteAll(ids);
+		} finally {
+			for(long id : ids) contacts.invalidate(id);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactListener#contactChanged(long)
+	 */
+	@Override
+	public void contactChanged(long id) {
+		contacts.invalidate(id);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#addContactListener(contact.service.ContactListener)
+	 */
+	@Override
+	public void addContactListener(ContactListener listener) {
+		dao.addContactListener(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#removeContactListener(contact.service.ContactListener)
+	 */
+	@Override
+	public void removeContactListener(ContactListener listener) {
+		dao.removeContactListener(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#getModificationCount()
+	 */
+	@Override
+	public long getModificationCount() {
+		return dao.getModificationCount();
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#getLastModified()
+	 */
+	@Override
+	public long getLastModified() {
+		return dao.getLastModified();
+	}
+}
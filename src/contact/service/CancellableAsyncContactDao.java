@@ -0,0 +1,191 @@
+package contact.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import contact.entity.Contact;
+
+/**
+ * An AsyncContactDao for the operations of one request, which can all be
+ * cancelled at once, for example when the request times out.  Cancelling
+ * cancels the futures of operations that have not completed, so an
+ * operation still waiting for a thread in {@link ExecutorAsyncContactDao}
+ * never runs, and operations started afterwards, by work chained on
+ * earlier results, are not started at all.  An operation already running
+ * when it is cancelled still completes, but its result is discarded.
+ *
+ * @author jim
+ */
+public class CancellableAsyncContactDao implements AsyncContactDao {
+	private final AsyncContactDao dao;
+	/** Futures of operations not yet complete.  Also guards cancelled. */
+	private final Set<CompletableFuture<?>> pending = new HashSet<CompletableFuture<?>>();
+	private boolean cancelled;
+
+	/**
+	 * @param dao the DAO that runs the operations
+	 */
+	public CancellableAsyncContactDao(AsyncContactDao dao) {
+		this.dao = dao;
+	}
+
+	/** Start an operation, unless cancelled, and remember its future until it completes. */
+	private <T> CompletableFuture<T> track(Supplier<CompletableFuture<T>> operation) {
+		synchronized (pending) {
+			if (cancelled) {
+				CompletableFuture<T> future = new CompletableFuture<T>();
+				future.cancel(false);
+				return future;
+			}
+		}
+		final CompletableFuture<T> future = operation.get();
+		synchronized (pending) {
+			// cancelled while the operation was being started
+			if (cancelled) future.cancel(false);
+			else if (! future.isDone()) pending.add(future);
+		}
+		future.whenComplete((value, error) -> {
+			synchronized (pending) {
+				pending.remove(future);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Cancel the operations not yet complete, and any started later.
+	 */
+	public void cancel() {
+		List<CompletableFuture<?>> started;
+		synchronized (pending) {
+			cancelled = true;
+			started = new ArrayList<CompletableFuture<?>>(pending);
+			pending.clear();
+		}
+		for(CompletableFuture<?> future : started) future.cancel(false);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#getContactDao()
+	 */
+	@Override
+	public ContactDao getContactDao() {
+		return dao.getContactDao();
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#find(long)
+	 */
+	@Override
+	public CompletableFuture<Contact> find(final long id) {
+		return track(() -> dao.find(id));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#findByTitle(String, boolean)
+	 */
+	@Override
+	public CompletableFuture<Contact> findByTitle(final String title, final boolean caseSensitive) {
+		return track(() -> dao.findByTitle(title, caseSensitive));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#search(String, boolean, int)
+	 */
+	@Override
+	public CompletableFuture<List<Contact>> search(final String text, final boolean prefixOnly, final int limit) {
+		return track(() -> dao.search(text, prefixOnly, limit));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#findAll()
+	 */
+	@Override
+	public CompletableFuture<List<Contact>> findAll() {
+		return track(() -> dao.findAll());
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#findPage(long, int)
+	 */
+	@Override
+	public CompletableFuture<List<Contact>> findPage(final long afterId, final int limit) {
+		return track(() -> dao.findPage(afterId, limit));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#count()
+	 */
+	@Override
+	public CompletableFuture<Long> count() {
+		return track(() -> dao.count());
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#delete(long)
+	 */
+	@Override
+	public CompletableFuture<Boolean> delete(final long id) {
+		return track(() -> dao.delete(id));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#delete(long, long)
+	 */
+	@Override
+	public CompletableFuture<WriteStatus> delete(final long id, final long expectedVersion) {
+		return track(() -> dao.delete(id, expectedVersion));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#save(contact.entity.Contact)
+	 */
+	@Override
+	public CompletableFuture<Boolean> save(final Contact contact) {
+		return track(() -> dao.save(contact));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#insertAll(java.util.List)
+	 */
+	@Override
+	public CompletableFuture<WriteStatus[]> insertAll(final List<Contact> contacts) {
+		return track(() -> dao.insertAll(contacts));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#update(contact.entity.Contact)
+	 */
+	@Override
+	public CompletableFuture<Boolean> update(final Contact update) {
+		return track(() -> dao.update(update));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#replace(contact.entity.Contact, long)
+	 */
+	@Override
+	public CompletableFuture<WriteStatus> replace(final Contact contact, final long expectedVersion) {
+		return track(() -> dao.replace(contact, expectedVersion));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#updateAll(java.util.List)
+	 */
+	@Override
+	public CompletableFuture<WriteStatus[]> updateAll(final List<Contact> updates) {
+		return track(() -> dao.updateAll(updates));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#deleteAll(long[])
+	 */
+	@Override
+	public CompletableFuture<WriteStatus[]> deleteAll(final long[] ids) {
+		return track(() -> dao.deleteAll(ids));
+	}
+}
@@ -7,6 +7,8 @@ import contact.entity.Contact;
 public interface ContactDao {
 
 	/** Find a contact by ID in contacts.
+	 * The contact may be shared with other callers, so it must not be changed;
+	 * to change a contact, save or replace a copy of it.
 	 * @param id the id of contact to find
 	 * @return the matching contact or null if the id is not found
 	 */
@@ -19,8 +21,49 @@ public interface ContactDao {
 	 */
 	public abstract Contact findByTitle(String title);
 
+	/**
+	 * Find a contact by Title in contacts, optionally matching letter case.
+	 * @param title the title of contact to find
+	 * @param caseSensitive if true the title must match exactly,
+	 *    otherwise differences in letter case are ignored
+	 * @return the matching contact or null if the title is not found
+	 */
+	public abstract Contact findByTitle(String title, boolean caseSensitive);
+
+	/**
+	 * Search for contacts whose title starts with or contains some text,
+	 * ignoring letter case.  Titles that start with the text are returned first.
+	 * @param text the text to search for
+	 * @param prefixOnly if true only match titles that start with text
+	 * @param limit the maximum number of contacts to return
+	 * @return at most limit matching contacts, never null
+	 */
+	public abstract List<Contact> search(String text, boolean prefixOnly, int limit);
+
+	/**
+	 * Get all contacts.  The in-memory DAOs return a live, read-only view,
+	 * so a store of any size is never copied.  The view is not RandomAccess:
+	 * get walks it from the start, so copy the list, e.g. into an ArrayList,
+	 * to access many contacts by index.
+	 * @return the contacts, never null
+	 */
 	public abstract List<Contact> findAll();
 
+	/**
+	 * Count the saved contacts.
+	 * @return the number of contacts
+	 */
+	public abstract long count();
+
+	/**
+	 * Get one page of contacts in ascending id order.
+	 * The cost is proportional to the page size, not the number of contacts.
+	 * @param afterId only return contacts with id greater than this; use 0 for the first page
+	 * @param limit the maximum number of contacts to return
+	 * @return at most limit contacts with id greater than afterId, never null
+	 */
+	public abstract List<Contact> findPage(long afterId, int limit);
+
 	/**
 	 * Delete a saved contact.
 	 * @param id the id of contact to delete
@@ -28,6 +71,16 @@ public interface ContactDao {
 	 */
 	public abstract boolean delete(long id);
 
+	/**
+	 * Delete a contact only if it has not changed since it was read, that is,
+	 * if its version is still expectedVersion.  The check and the delete are atomic.
+	 * @param id the id of contact to delete
+	 * @param expectedVersion the version of the contact the caller last saw
+	 * @return DELETED, NOT_FOUND if there is no such contact,
+	 *    or CONFLICT if its version is not expectedVersion
+	 */
+	public abstract WriteStatus delete(long id, long expectedVersion);
+
 	/**
 	 * Save or replace a contact.
 	 * If the contact.id is 0 then it is assumed to be a
@@ -35,17 +88,84 @@ public interface ContactDao {
 	 * is assigned to the contact.  
 	 * If the contact.id is not zero and the contact already
 	 * exists in saved contacts, the old contact is replaced.
+	 * In both cases the DAO assigns the contact a new version,
+	 * greater than any version it had before.
 	 * @param contact the contact to save or replace.
 	 * @return true if saved successfully
 	 */
 	public abstract boolean save(Contact contact);
 
+	/**
+	 * Insert many new contacts.  Contacts with id 0 are assigned a unique id.
+	 * A contact whose id is already in use is not saved, unlike {@link #save(Contact)}.
+	 * A contact without a title is not saved.
+	 * @param contacts the contacts to insert
+	 * @return the outcome for each contact, in the same order: CREATED, CONFLICT or INVALID
+	 */
+	public abstract WriteStatus[] insertAll(List<Contact> contacts);
+
 	/**
 	 * Update a Contact.  Only the non-null fields of the
-	 * update are applied to the contact.
+	 * update are applied to the contact, and the contact
+	 * is given a new version.
 	 * @param update update info for the contact.
 	 * @return true if the update is applied successfully.
 	 */
 	public abstract boolean update(Contact update);
 
+	/**
+	 * Replace a contact only if it has not changed since it was read,
+	 * that is, if its version is still expectedVersion.  The check and the
+	 * replacement are atomic, so of two callers that read the same version
+	 * only one succeeds; the other can read the contact again and retry.
+	 * All fields of the contact are replaced, as by {@link #save(Contact)},
+	 * and on success it is given its new version.
+	 * @param contact the new state of the contact, with the id of the contact to replace
+	 * @param expectedVersion the version of the contact the new state is based on
+	 * @return UPDATED, NOT_FOUND if there is no such contact,
+	 *    or CONFLICT if its version is not expectedVersion
+	 */
+	public abstract WriteStatus replace(Contact contact, long expectedVersion);
+
+	/**
+	 * Apply many updates.  Each update is applied as by {@link #update(Contact)}.
+	 * @param updates the updates; each must have the id of the contact to update
+	 * @return the outcome for each update, in the same order: UPDATED, NOT_FOUND or INVALID
+	 */
+	public abstract WriteStatus[] updateAll(List<Contact> updates);
+
+	/**
+	 * Delete many contacts.
+	 * @param ids the ids of contacts to delete
+	 * @return the outcome for each id, in the same order: DELETED or NOT_FOUND
+	 */
+	public abstract WriteStatus[] deleteAll(long[] ids);
+
+
+	/**
+	 * Register a listener to be told when a contact is saved, updated or deleted.
+	 * @param listener the listener to add
+	 */
+	public abstract void addContactListener(ContactListener listener);
+
+	/**
+	 * Stop notifying a listener.
+	 * @param listener the listener to remove
+	 */
+	public abstract void removeContactListener(ContactListener listener);
+
+	/**
+	 * Get the number of changes made to this DAO since it was created.
+	 * It increases after every save, update or delete, so a client can
+	 * tell whether anything changed by comparing counts.
+	 * @return the number of changes made so far
+	 */
+	public abstract long getModificationCount();
+
+	/**
+	 * Get the time of the most recent change to any contact.
+	 * Before the first change this is the time the DAO was created.
+	 * @return time of the last change in milliseconds since the epoch
+	 */
+	public abstract long getLastModified();
 }
\ No newline at end of file
@@ -0,0 +1,15 @@
+package contact.service;
+
+/**
+ * Receives notice when a ContactDao saves, updates or deletes a contact.
+ * Used to keep derived data, such as cached representations, in step with the DAO.
+ */
+public interface ContactListener {
+
+	/**
+	 * Called after a contact has been saved, updated or deleted.
+	 * This is called on the thread that made the change, so it must be quick.
+	 * @param id the id of the contact that changed
+	 */
+	public abstract void contactChanged(long id);
+}
@@ -0,0 +1,18 @@
+package contact.service;
+
+/**
+ * Thrown when a DAO cannot reach or update its underlying storage,
+ * for example when a log write fails.  This is an application failure,
+ * not a problem with the caller's request.
+ */
+public class DaoException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public DaoException(String message) {
+		super(message);
+	}
+
+	public DaoException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
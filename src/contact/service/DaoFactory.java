@@ -1,14 +1,52 @@
 package contact.service;
 
+import contact.metrics.MetricsRegistry;
+import contact.service.file.FileDaoFactory;
+import contact.service.jpa.JpaDaoFactory;
+import contact.service.offheap.OffHeapDaoFactory;
 import contact.service.mem.MemDaoFactory;
 
+/**
+ * Manage the Data Access Objects (DAO) used in the app.
+ * The kind of DAO is chosen by the system property <code>contact.dao</code>:
+ * "mem" (the default) keeps contacts in memory only, "offheap" keeps
+ * them in memory outside the Java heap, "file" also writes them to a log
+ * on disk (see FileDaoFactory), and "jpa" stores them in a database
+ * (see JpaDaoFactory).
+ * The DAO given to the application is wrapped in an InstrumentedContactDao,
+ * so its operations appear on the /metrics endpoint.
+ * If the system property <code>contact.dao.cache</code> is set to a number
+ * of entries, contacts read by id or title are also kept in a
+ * CachingContactDao of that size, which is worth it in front of the file
+ * and JPA DAOs.
+ */
 public class DaoFactory {
+	/** System property that selects the DAO implementation. */
+	public static final String DAO_PROPERTY = "contact.dao";
+	/** System property for the number of threads running operations for the async DAO. */
+	public static final String ASYNC_THREADS_PROPERTY = "contact.dao.async.threads";
+	/** Threads for the async DAO if the DAO blocks on I/O and the property is not set. */
+	static final int DEFAULT_ASYNC_THREADS = 32;
+	/** System property for the most operations waiting for a thread of the async DAO. */
+	public static final String ASYNC_QUEUE_PROPERTY = "contact.dao.async.queue";
+	/** System property for the most entries in the DAO cache; 0 or not set for no cache. */
+	public static final String CACHE_PROPERTY = "contact.dao.cache";
+	/** How long shutdown waits for async operations to finish. */
+	static final long SHUTDOWN_MILLIS = 10000;
 
 	private static DaoFactory factory;
 	protected ContactDao daoInstance;
+	private ContactDao instrumented;
+	private ExecutorAsyncContactDao async;
 
-	public static DaoFactory getInstance() {
-		if (factory == null) factory = new MemDaoFactory();
+	public static synchronized DaoFactory getInstance() {
+		if (factory == null) {
+			String kind = System.getProperty(DAO_PROPERTY, "mem");
+			if (kind.equalsIgnoreCase("file")) factory = new FileDaoFactory();
+			else if (kind.equalsIgnoreCase("jpa")) factory = new JpaDaoFactory();
+			else if (kind.equalsIgnoreCase("offheap")) factory = new OffHeapDaoFactory();
+			else factory = new MemDaoFactory();
+		}
 		return factory;
 	}
 
@@ -16,8 +54,58 @@ public class DaoFactory {
 		super();
 	}
 
-	public ContactDao getContactDao() {
-		return daoInstance;
+	public synchronized ContactDao getContactDao() {
+		if (instrumented == null && daoInstance != null) {
+			ContactDao dao = daoInstance;
+			int cacheSize = Integer.getInteger(CACHE_PROPERTY, 0);
+			if (cacheSize > 0) dao = new CachingContactDao(dao, cacheSize, MetricsRegistry.getInstance());
+			instrumented = new InstrumentedContactDao(dao, MetricsRegistry.getInstance());
+		}
+		return instrumented;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Get the DAO for callers that must not block, such as asynchronous
+	 * resource methods.  Its operations run on a pool of
+	 * <code>contact.dao.async.threads</code> threads; if the property is not set,
+	 * DAOs that wait for I/O get {@value #DEFAULT_ASYNC_THREADS} threads and the
+	 * in-memory DAOs run operations in the caller.  Set the property to 0 to
+	 * run every DAO in the caller, as the blocking code did.
+	 * At most <code>contact.dao.async.queue</code> operations wait for a thread
+	 * ({@value ExecutorAsyncContactDao#DEFAULT_QUEUE_SIZE} if not set); more are rejected.
+	 */
+	public synchronized AsyncContactDao getAsyncContactDao() {
+		if (async == null) {
+			int threads = Integer.getInteger(ASYNC_THREADS_PROPERTY, isBlocking() ? DEFAULT_ASYNC_THREADS : 0);
+			int queueSize = Integer.getInteger(ASYNC_QUEUE_PROPERTY, ExecutorAsyncContactDao.DEFAULT_QUEUE_SIZE);
+			async = new ExecutorAsyncContactDao(getContactDao(), threads, queueSize);
+		}
+		return async;
+	}
+
+	/**
+	 * @return true if the DAO's operations wait for I/O, so callers that
+	 *    must not block need a pool of threads to run them
+	 */
+	protected boolean isBlocking() {
+		return false;
+	}
+
+	/**
+	 * Release resources held by the DAO, such as open files.
+	 * Call this when the application stops.
+	 * Subclasses that override it must call it first.
+	 * The next {@link #getInstance()} creates a new factory, which opens
+	 * the store again, so a server restarted in the same JVM does not get
+	 * a stopped pool or a closed store.
+	 */
+	public synchronized void shutdown() {
+		synchronized (DaoFactory.class) {
+			if (factory == this) factory = null;
+		}
+		// let operations already handed to the async DAO finish
+		if (async != null) async.shutdown(SHUTDOWN_MILLIS);
+		async = null;
+	}
+
+}
@@ -0,0 +1,237 @@
+package contact.service;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import contact.entity.Contact;
+
+/**
+ * An AsyncContactDao that runs the operations of a blocking ContactDao on
+ * its own pool of threads, so that slow storage (a log that is forced to
+ * disk, or a database) holds a storage thread instead of a request thread.
+ * <p>
+ * With no pool the operations run on the caller's thread and the futures
+ * are already complete when returned.  That suits the in-memory DAOs,
+ * whose operations are too quick to be worth a hand-off between threads.
+ * <p>
+ * Operations wait for a thread in a queue of bounded size.  When it is
+ * full, an operation is not queued and its future fails at once with
+ * RejectedExecutionException, so an overloaded store sheds work instead
+ * of building a backlog that clients have given up on.  An operation
+ * whose future is cancelled while it waits is skipped.
+ *
+ * @author jim
+ */
+public class ExecutorAsyncContactDao implements AsyncContactDao {
+	/** Operations that may wait for a thread if no queue size is given. */
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+	private final ContactDao dao;
+	/** runs the operations, or null to run them in the caller */
+	private final ExecutorService executor;
+
+	/**
+	 * Run operations on a pool of daemon threads, with a queue of {@value #DEFAULT_QUEUE_SIZE}.
+	 * @param dao the DAO that does the work
+	 * @param threads number of threads, or 0 to run operations in the caller
+	 */
+	public ExecutorAsyncContactDao(ContactDao dao, int threads) {
+		this(dao, threads, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * Run operations on a pool of daemon threads.
+	 * @param dao the DAO that does the work
+	 * @param threads number of threads, or 0 to run operations in the caller
+	 * @param queueSize most operations that may wait for a thread, or 0 to
+	 *    reject an operation at once when every thread is busy
+	 */
+	public ExecutorAsyncContactDao(ContactDao dao, int threads, int queueSize) {
+		if (queueSize < 0) throw new IllegalArgumentException("queue size must not be negative: " + queueSize);
+		this.dao = dao;
+		this.executor = (threads > 0) ? newPool(threads, queueSize) : null;
+	}
+
+	private static ExecutorService newPool(int threads, int queueSize) {
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = Executors.defaultThreadFactory().newThread(task);
+				thread.setName("contact-dao-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		// an ArrayBlockingQueue must hold at least one operation; a SynchronousQueue holds none
+		BlockingQueue<Runnable> queue = (queueSize > 0) ? new ArrayBlockingQueue<Runnable>(queueSize)
+				: new SynchronousQueue<Runnable>();
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, factory);
+	}
+
+	/** Run an operation on the pool, or now if there is no pool. */
+	private <T> CompletableFuture<T> call(Supplier<T> operation) {
+		CompletableFuture<T> result;
+		if (executor != null) {
+			try {
+				// the pool skips the operation if the future is cancelled first
+				return CompletableFuture.supplyAsync(operation, executor);
+			} catch (RejectedExecutionException e) {
+				result = new CompletableFuture<T>();
+				result.completeExceptionally(e);
+				return result;
+			}
+		}
+		result = new CompletableFuture<T>();
+		try {
+			result.complete(operation.get());
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#getContactDao()
+	 */
+	@Override
+	public ContactDao getContactDao() {
+		return dao;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#find(long)
+	 */
+	@Override
+	public CompletableFuture<Contact> find(final long id) {
+		return call(() -> dao.find(id));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#findByTitle(String, boolean)
+	 */
+	@Override
+	public CompletableFuture<Contact> findByTitle(final String title, final boolean caseSensitive) {
+		return call(() -> dao.findByTitle(title, caseSensitive));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#search(String, boolean, int)
+	 */
+	@Override
+	public CompletableFuture<List<Contact>> search(final String text, final boolean prefixOnly, final int limit) {
+		return call(() -> dao.search(text, prefixOnly, limit));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#findAll()
+	 */
+	@Override
+	public CompletableFuture<List<Contact>> findAll() {
+		return call(() -> dao.findAll());
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#findPage(long, int)
+	 */
+	@Override
+	public CompletableFuture<List<Contact>> findPage(final long afterId, final int limit) {
+		return call(() -> dao.findPage(afterId, limit));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#count()
+	 */
+	@Override
+	public CompletableFuture<Long> count() {
+		return call(() -> dao.count());
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#delete(long)
+	 */
+	@Override
+	public CompletableFuture<Boolean> delete(final long id) {
+		return call(() -> dao.delete(id));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#delete(long, long)
+	 */
+	@Override
+	public CompletableFuture<WriteStatus> delete(final long id, final long expectedVersion) {
+		return call(() -> dao.delete(id, expectedVersion));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#save(contact.entity.Contact)
+	 */
+	@Override
+	public CompletableFuture<Boolean> save(final Contact contact) {
+		return call(() -> dao.save(contact));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#insertAll(java.util.List)
+	 */
+	@Override
+	public CompletableFuture<WriteStatus[]> insertAll(final List<Contact> contacts) {
+		return call(() -> dao.insertAll(contacts));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#update(contact.entity.Contact)
+	 */
+	@Override
+	public CompletableFuture<Boolean> update(final Contact update) {
+		return call(() -> dao.update(update));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#replace(contact.entity.Contact, long)
+	 */
+	@Override
+	public CompletableFuture<WriteStatus> replace(final Contact contact, final long expectedVersion) {
+		return call(() -> dao.replace(contact, expectedVersion));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#updateAll(java.util.List)
+	 */
+	@Override
+	public CompletableFuture<WriteStatus[]> updateAll(final List<Contact> updates) {
+		return call(() -> dao.updateAll(updates));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.AsyncContactDao#deleteAll(long[])
+	 */
+	@Override
+	public CompletableFuture<WriteStatus[]> deleteAll(final long[] ids) {
+		return call(() -> dao.deleteAll(ids));
+	}
+
+	/**
+	 * Stop the pool after the operations already submitted have run.
+	 * @param timeoutMillis how long to wait for them
+	 */
+	public void shutdown(long timeoutMillis) {
+		if (executor == null) return;
+		executor.shutdown();
+		try {
+			executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,359 @@
+package contact.service;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import contact.entity.Contact;
+import contact.metrics.Histogram;
+import contact.metrics.MetricsRegistry;
+
+/**
+ * A ContactDao that passes every call to another DAO and records how
+ * long each operation takes, and how many failed, in a MetricsRegistry.
+ * It also registers gauges for the number of contacts and changes.
+ * Recording does not allocate, so the overhead is two calls to
+ * System.nanoTime and a few atomic increments per operation.
+ *
+ * @author jim
+ */
+public class InstrumentedContactDao implements ContactDao {
+	private static final String DURATION = "contact_dao_operation_duration_seconds";
+	private static final String DURATION_HELP = "Time taken by each ContactDao operation.";
+	private static final String ERRORS = "contact_dao_errors_total";
+	private static final String ERRORS_HELP = "ContactDao operations that threw an exception.";
+
+	/** Timing and errors of one DAO operation. */
+	private static class Operation {
+		final Histogram latency;
+		final LongAdder errors;
+
+		Operation(MetricsRegistry registry, String name) {
+			String label = MetricsRegistry.label("operation", name);
+			latency = registry.summary(DURATION, DURATION_HELP, label);
+			errors = registry.counter(ERRORS, ERRORS_HELP, label);
+		}
+
+		void record(long start) {
+			latency.record(System.nanoTime() - start);
+		}
+	}
+
+	private final ContactDao dao;
+	private final Operation find;
+	private final Operation findByTitle;
+	private final Operation search;
+	private final Operation findAll;
+	private final Operation count;
+	private final Operation findPage;
+	private final Operation delete;
+	private final Operation deleteIfUnchanged;
+	private final Operation save;
+	private final Operation insertAll;
+	private final Operation update;
+	private final Operation replace;
+	private final Operation updateAll;
+	private final Operation deleteAll;
+
+	/**
+	 * @param dao the DAO to instrument
+	 * @param registry where to record metrics
+	 */
+	public InstrumentedContactDao(final ContactDao dao, MetricsRegistry registry) {
+		this.dao = dao;
+		find = new Operation(registry, "find");
+		findByTitle = new Operation(registry, "findByTitle");
+		search = new Operation(registry, "search");
+		findAll = new Operation(registry, "findAll");
+		count = new Operation(registry, "count");
+		findPage = new Operation(registry, "findPage");
+		delete = new Operation(registry, "delete");
+		deleteIfUnchanged = new Operation(registry, "deleteIfUnchanged");
+		save = new Operation(registry, "save");
+		insertAll = new Operation(registry, "insertAll");
+		update = new Operation(registry, "update");
+		replace = new Operation(registry, "replace");
+		updateAll = new Operation(registry, "updateAll");
+		deleteAll = new Operation(registry, "deleteAll");
+		registry.gauge("contact_store_size", "Number of contacts in the store.", "", () -> dao.count());
+		registry.gauge("contact_store_modifications", "Changes to the store since it was opened.", "",
+				() -> dao.getModificationCount());
+	}
+
+	/** @return the DAO that does the work */
+	public ContactDao getDelegate() {
+		return dao;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#find(long)
+	 */
+	@Override
+	public Contact find(long id) {
+		long start = System.nanoTime();
+		try {
+			return dao.find(id);
+		} catch (RuntimeException e) {
+			find.errors.increment();
+			throw e;
+		} finally {
+			find.record(start);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findByTitle(String)
+	 */
+	@Override
+	public Contact findByTitle(String title) {
+		long start = System.nanoTime();
+		try {
+			return dao.findByTitle(title);
+		} catch (RuntimeException e) {
+			findByTitle.errors.increment();
+			throw e;
+		} finally {
+			findByTitle.record(start);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findByTitle(String, boolean)
+	 */
+	@Override
+	public Contact findByTitle(String title, boolean caseSensitive) {
+		long start = System.nanoTime();
+		try {
+			return dao.findByTitle(title, caseSensitive);
+		} catch (RuntimeException e) {
+			findByTitle.errors.increment();
+			throw e;
+		} finally {
+			findByTitle.record(start);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#search(String, boolean, int)
+	 */
+	@Override
+	public List<Contact> search(String text, boolean prefixOnly, int limit) {
+		long start = System.nanoTime();
+		try {
+			return dao.search(text, prefixOnly, limit);
+		} catch (RuntimeException e) {
+			search.errors.increment();
+			throw e;
+		} finally {
+			search.record(start);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findAll()
+	 */
+	@Override
+	public List<Contact> findAll() {
+		// for the in-memory DAOs this only times getting the view, not iterating it
+		long start = System.nanoTime();
+		try {
+			return dao.findAll();
+		} catch (RuntimeException e) {
+			findAll.errors.increment();
+			throw e;
+		} finally {
+			findAll.record(start);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#count()
+	 */
+	@Override
+	public long count() {
+		long start = System.nanoTime();
+		try {
+			return dao.count();
+		} catch (RuntimeException e) {
+			count.errors.increment();
+			throw e;
+		} finally {
+			count.record(start);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findPage(long, int)
+	 */
+	@Override
+	public List<Contact> findPage(long afterId, int limit) {
+		long start = System.nanoTime();
+		try {
+			return dao.findPage(afterId, limit);
+		} catch (RuntimeException e) {
+			findPage.errors.increment();
+			throw e;
+		} finally {
+			findPage.record(start);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#delete(long)
+	 */
+	@Override
+	public boolean delete(long id) {
+		long start = System.nanoTime();
+		try {
+			return dao.delete(id);
+		} catch (RuntimeException e) {
+			delete.errors.increment();
+			throw e;
+		} finally {
+			delete.record(start);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#delete(long, long)
+	 */
+	@Override
+	public WriteStatus delete(long id, long expectedVersion) {
+		long start = System.nanoTime();
+		try {
+			return dao.delete(id, expectedVersion);
+		} catch (RuntimeException e) {
+			deleteIfUnchanged.errors.increment();
+			throw e;
+		} finally {
+			deleteIfUnchanged.record(start);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#save(contact.entity.Contact)
+	 */
+	@Override
+	public boolean save(Contact contact) {
+		long start = System.nanoTime();
+		try {
+			return dao.save(contact);
+		} catch (RuntimeException e) {
+			save.errors.increment();
+			throw e;
+		} finally {
+			save.record(start);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#insertAll(java.util.List)
+	 */
+	@Override
+	public WriteStatus[] insertAll(List<Contact> contacts) {
+		long start = System.nanoTime();
+		try {
+			return dao.insertAll(contacts);
+		} catch (RuntimeException e) {
+			insertAll.errors.increment();
+			throw e;
+		} finally {
+			insertAll.record(start);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#update(contact.entity.Contact)
+	 */
+	@Override
+	public boolean update(Contact contact) {
+		long start = System.nanoTime();
+		try {
+			return dao.update(contact);
+		} catch (RuntimeException e) {
+			update.errors.increment();
+			throw e;
+		} finally {
+			update.record(start);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#replace(contact.entity.Contact, long)
+	 */
+	@Override
+	public WriteStatus replace(Contact contact, long expectedVersion) {
+		long start = System.nanoTime();
+		try {
+			return dao.replace(contact, expectedVersion);
+		} catch (RuntimeException e) {
+			replace.errors.increment();
+			throw e;
+		} finally {
+			replace.record(start);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#updateAll(java.util.List)
+	 */
+	@Override
+	public WriteStatus[] updateAll(List<Contact> updates) {
+		long start = System.nanoTime();
+		try {
+			return dao.updateAll(updates);
+		} catch (RuntimeException e) {
+			updateAll.errors.increment();
+			throw e;
+		} finally {
+			updateAll.record(start);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#deleteAll(long[])
+	 */
+	@Override
+	public WriteStatus[] deleteAll(long[] ids) {
+		long start = System.nanoTime();
+		try {
+			return dao.deleteAll(ids);
+		} catch (RuntimeException e) {
+			deleteAll.errors.increment();
+			throw e;
+		} finally {
+			deleteAll.record(start);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#addContactListener(contact.service.ContactListener)
+	 */
+	@Override
+	public void addContactListener(ContactListener listener) {
+		dao.addContactListener(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#removeContactListener(contact.service.ContactListener)
+	 */
+	@Override
+	public void removeContactListener(ContactListener listener) {
+		dao.removeContactListener(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#getModificationCount()
+	 */
+	@Override
+	public long getModificationCount() {
+		return dao.getModificationCount();
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#getLastModified()
+	 */
+	@Override
+	public long getLastModified() {
+		return dao.getLastModified();
+	}
+}
@@ -0,0 +1,248 @@
+package contact.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache with segmented LRU (SLRU) eviction.  Each entry starts
+ * in a probation segment and moves to a protected segment the first time
+ * it is read again; only probation entries are evicted, and protected
+ * entries that fall out of the protected segment go back to probation.
+ * So entries read more than once survive a scan of entries read once,
+ * which would flush a plain LRU cache.
+ * <p>
+ * The cache is split into independently locked shards by key hash, so
+ * threads using different keys rarely wait for each other.  Values may
+ * not be null; callers cache a "not found" result as a sentinel value.
+ * <p>
+ * To avoid caching a value read from the backing store just before it
+ * changed, a caller takes a {@link #stamp(Object)} before reading the
+ * store and passes it to {@link #putIfUnchanged(Object, Object, long)},
+ * which does nothing if the key's shard was invalidated in between.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ * @author jim
+ */
+public class SegmentedLruCache<K,V> {
+	/** Share of each shard's capacity kept for entries read more than once. */
+	private static final double PROTECTED_SHARE = 0.8;
+	/** Most shards, and fewest entries per shard. */
+	private static final int MAX_SHARDS = 64;
+	private static final int MIN_SHARD_CAPACITY = 16;
+
+	private final Shard<K,V>[] shards;
+	private final int mask;
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+
+	/**
+	 * Create a cache that counts its statistics in the given counters.
+	 * @param capacity most entries the cache holds, at least 1
+	 * @param hits counts lookups that found a value
+	 * @param misses counts lookups that did not
+	 * @param evictions counts entries removed to make room
+	 */
+	@SuppressWarnings("unchecked")
+	public SegmentedLruCache(int capacity, LongAdder hits, LongAdder misses, LongAdder evictions) {
+		if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1");
+		int count = 1;
+		while (count < MAX_SHARDS && capacity / (count * 2) >= MIN_SHARD_CAPACITY) count *= 2;
+		shards = new Shard[count];
+		int shardCapacity = (capacity + count - 1) / count;
+		for(int k=0; k<count; k++) shards[k] = new Shard<K,V>(shardCapacity);
+		mask = count - 1;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+	}
+
+	/** Create a cache with its own statistics counters. */
+	public SegmentedLruCache(int capacity) {
+		this(capacity, new LongAdder(), new LongAdder(), new LongAdder());
+	}
+
+	private Shard<K,V> shard(Object key) {
+		int h = key.hashCode();
+		return shards[(h ^ (h >>> 16)) & mask];
+	}
+
+	/**
+	 * Look up a value, and record a hit or miss.
+	 * @return the cached value, or null if the key is not cached
+	 */
+	public V get(K key) {
+		V value = shard(key).get(key);
+		if (value == null) misses.increment();
+		else hits.increment();
+		return value;
+	}
+
+	/**
+	 * Get the state of a key's shard, to pass to putIfUnchanged after
+	 * reading the value from the backing store.
+	 */
+	public long stamp(K key) {
+		return shard(key).stamp();
+	}
+
+	/**
+	 * Cache a value, unless the key's shard was invalidated since the stamp was taken.
+	 * @param key the key
+	 * @param value the value, not null
+	 * @param stamp the value of stamp(key) taken before the value was read
+	 */
+	public void putIfUnchanged(K key, V value, long stamp) {
+		if (shard(key).put(key, value, stamp)) evictions.increment();
+	}
+
+	/** Remove a key, and make fills of it that are in progress fail. */
+	public void invalidate(K key) {
+		shard(key).invalidate(key);
+	}
+
+	/** Remove every entry. */
+	public void clear() {
+		for(Shard<K,V> shard : shards) shard.clear();
+	}
+
+	/** @return number of entries cached */
+	public int size() {
+		int size = 0;
+		for(Shard<K,V> shard : shards) size += shard.size();
+		return size;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/** An entry, linked into its segment's list. */
+	private static final class Node<K,V> {
+		final K key;
+		V value;
+		boolean isProtected;
+		Node<K,V> prev;
+		Node<K,V> next;
+
+		Node(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * One lock's worth of the cache: a map and two circular lists, each with
+	 * a sentinel node, the least recently used entry first.
+	 */
+	private static final class Shard<K,V> {
+		private final Map<K,Node<K,V>> map;
+		private final Node<K,V> probation = sentinel();
+		private final Node<K,V> protectedList = sentinel();
+		private final int capacity;
+		private final int protectedCapacity;
+		private int protectedSize;
+		/** Incremented by every invalidation. */
+		private long invalidations;
+
+		Shard(int capacity) {
+			this.capacity = capacity;
+			this.protectedCapacity = Math.max(1, (int) (capacity * PROTECTED_SHARE));
+			this.map = new HashMap<K,Node<K,V>>(capacity * 4 / 3 + 1);
+		}
+
+		private static <K,V> Node<K,V> sentinel() {
+			Node<K,V> node = new Node<K,V>(null, null);
+			node.prev = node.next = node;
+			return node;
+		}
+
+		synchronized V get(K key) {
+			Node<K,V> node = map.get(key);
+			if (node == null) return null;
+			unlink(node);
+			if (! node.isProtected) {
+				node.isProtected = true;
+				protectedSize++;
+				if (protectedSize > protectedCapacity) {
+					// the least recently used protected entry gets another chance in probation
+					Node<K,V> demoted = protectedList.next;
+					unlink(demoted);
+					demoted.isProtected = false;
+					protectedSize--;
+					linkLast(probation, demoted);
+				}
+			}
+			linkLast(protectedList, node);
+			return node.value;
+		}
+
+		synchronized long stamp() {
+			return invalidations;
+		}
+
+		/** @return true if an entry was evicted */
+		synchronized boolean put(K key, V value, long stamp) {
+			if (stamp != invalidations) return false;
+			Node<K,V> node = map.get(key);
+			if (node != null) {
+				node.value = value;
+				return false;
+			}
+			node = new Node<K,V>(key, value);
+			map.put(key, node);
+			linkLast(probation, node);
+			if (map.size() <= capacity) return false;
+			Node<K,V> victim = (probation.next != probation) ? probation.next : protectedList.next;
+			remove(victim);
+			return true;
+		}
+
+		synchronized void invalidate(K key) {
+			invalidations++;
+			Node<K,V> node = map.get(key);
+			if (node != null) remove(node);
+		}
+
+		synchronized void clear() {
+			invalidations++;
+			map.clear();
+			probation.prev = probation.next = probation;
+			protectedList.prev = protectedList.next = protectedList;
+			protectedSize = 0;
+		}
+
+		synchronized int size() {
+			return map.size();
+		}
+
+		private void remove(Node<K,V> node) {
+			map.remove(node.key);
+			unlink(node);
+			if (node.isProtected) protectedSize--;
+		}
+
+		private static <K,V> void unlink(Node<K,V> node) {
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+			node.prev = node.next = null;
+		}
+
+		private static <K,V> void linkLast(Node<K,V> list, Node<K,V> node) {
+			node.prev = list.prev;
+			node.next = list;
+			list.prev.next = node;
+			list.prev = node;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package contact.service;
+
+/**
+ * Outcome of writing one contact in a bulk ContactDao operation.
+ */
+public enum WriteStatus {
+	/** A new contact was saved. */
+	CREATED,
+	/** An existing contact was changed. */
+	UPDATED,
+	/** An existing contact was deleted. */
+	DELETED,
+	/** There is no contact with the given id. */
+	NOT_FOUND,
+	/** A contact with the given id already exists. */
+	CONFLICT,
+	/** The contact data is not acceptable, such as a missing title. */
+	INVALID;
+
+	/** @return true if the contact was written */
+	public boolean isSuccess() {
+		return this == CREATED || this == UPDATED || this == DELETED;
+	}
+}
@@ -0,0 +1,136 @@
+package contact.service.file;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import contact.entity.Contact;
+
+/**
+ * Binary encoding of the changes written to the contact log.
+ * A PUT record holds the complete state of a contact after a save or update,
+ * so replaying records in order rebuilds the store.  A DELETE record holds an id.
+ * <pre>
+ * PUT:    byte 'P', long id, long version, title, name, email, photoUrl
+ * DELETE: byte 'D', long id
+ * </pre>
+ * Each string is an int byte count (-1 for null) followed by UTF-8 bytes.
+ */
+public final class ContactRecords {
+	static final byte PUT = 'P';
+	static final byte DELETE = 'D';
+
+	/** Receives decoded records. */
+	public interface Handler {
+		/** A contact was saved or updated; contact is its complete new state. */
+		void put(Contact contact);
+		/** The contact with this id was deleted. */
+		void delete(long id);
+	}
+
+	private ContactRecords() { }
+
+	/**
+	 * Encode the current state of a contact.
+	 * @param contact a saved contact
+	 * @return the PUT record
+	 */
+	public static byte[] put(Contact contact) {
+		byte[] title = bytes(contact.getTitle());
+		byte[] name = bytes(contact.getName());
+		byte[] email = bytes(contact.getEmail());
+		byte[] photo = bytes(contact.getPhotoUrl());
+		ByteBuffer buf = ByteBuffer.allocate(1 + 8 + 8 + size(title) + size(name) + size(email) + size(photo));
+		buf.put(PUT).putLong(contact.getId()).putLong(contact.getVersion());
+		putString(buf, title);
+		putString(buf, name);
+		putString(buf, email);
+		putString(buf, photo);
+		return buf.array();
+	}
+
+	/**
+	 * Encode the deletion of a contact.
+	 * @param id id of the deleted contact
+	 * @return the DELETE record
+	 */
+	public static byte[] delete(long id) {
+		return ByteBuffer.allocate(1 + 8).put(DELETE).putLong(id).array();
+	}
+
+	/**
+	 * Decode one record and pass it to handler.
+	 * @param record the record, from its position to its limit
+	 * @param handler receives the decoded record
+	 * @throws IllegalArgumentException if the record is not valid
+	 */
+	public static void read(ByteBuffer record, Handler handler) {
+		byte type = record.get();
+		if (type == DELETE) {
+			handler.delete(record.getLong());
+		}
+		else if (type == PUT) {
+			handler.put(readContact(record));
+		}
+		else throw new IllegalArgumentException("unknown record type " + type);
+	}
+
+	/**
+	 * Decode a PUT record.
+	 * @param record the record, from its position to its limit
+	 * @return the contact in the record
+	 * @throws IllegalArgumentException if the record is not a valid PUT record
+	 */
+	public static Contact decodePut(ByteBuffer record) {
+		byte type = record.get();
+		if (type != PUT) throw new IllegalArgumentException("not a PUT record: " + type);
+		return readContact(record);
+	}
+
+	/**
+	 * Read the fields of a PUT record after its type byte.
+	 * @param buf buffer positioned at the id
+	 * @return the contact; the buffer is left after the last field
+	 */
+	static Contact readContact(ByteBuffer buf) {
+		Contact contact = new Contact(buf.getLong());
+		contact.setVersion(buf.getLong());
+		contact.setTitle(getString(buf));
+		contact.setName(getString(buf));
+		contact.setEmail(getString(buf));
+		contact.setPhotoUrl(getString(buf));
+		return contact;
+	}
+
+	private static byte[] bytes(String s) {
+		return (s == null) ? null : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int size(byte[] b) {
+		return 4 + ((b == null) ? 0 : b.length);
+	}
+
+	private static void putString(ByteBuffer buf, byte[] b) {
+		if (b == null) {
+			buf.putInt(-1);
+		}
+		else {
+			buf.putInt(b.length);
+			buf.put(b);
+		}
+	}
+
+	private static String getString(ByteBuffer buf) {
+		int length = buf.getInt();
+		if (length < 0) return null;
+		if (length > buf.remaining()) throw new IllegalArgumentException("string length " + length + " exceeds record");
+		if (buf.hasArray()) {
+			String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+			buf.position(buf.position() + length);
+			return s;
+		}
+		// direct or mapped buffer
+		byte[] b = new byte[length];
+		buf.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+}
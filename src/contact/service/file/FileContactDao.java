@@ -0,0 +1,490 @@
+package contact.service.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import contact.entity.Contact;
+import contact.service.DaoException;
+import contact.service.WriteStatus;
+import contact.service.file.WriteAheadLog.SyncPolicy;
+import contact.service.mem.MemContactDao;
+
+/**
+ * A durable ContactDao.  Contacts are kept in memory, as in MemContactDao,
+ * and every save, update and delete is also appended to a write-ahead log.
+ * When the DAO is created it loads the latest snapshot, if any, and replays
+ * the log written after it to rebuild the in-memory store.  The title index
+ * is then built by a background thread, so the store serves requests as
+ * soon as its contacts are loaded.  The price is that until the index is
+ * ready, each findByTitle and search scans every contact, which for a
+ * large store is far slower than an indexed lookup; callers are not made
+ * to wait for the index.
+ * <p>
+ * A change is committed to the log (see {@link WriteAheadLog} for group
+ * commit and sync policies) before it is made in memory, so readers never
+ * see a change that a crash could lose, and a failed write changes nothing.
+ * Changes to one id are serialized by a striped lock, held until the
+ * change is in memory, so the log holds the changes to each contact in
+ * the order they were applied.  Bulk operations lock the stripes of all
+ * their ids, append all their records as one batch and wait once.
+ * <p>
+ * {@link #snapshot()} writes every contact to a new snapshot file and
+ * deletes the log segments it covers, so startup time depends on the
+ * number of contacts rather than the length of their history.
+ * Snapshots can be taken periodically in the background with
+ * {@link #scheduleSnapshots(long, long)}.
+ *
+ * @author jim
+ */
+public class FileContactDao extends MemContactDao implements Closeable {
+	/** Name of the log segment files in the data directory. */
+	public static final String LOG_NAME = "contacts";
+	/** Number of locks used to order changes to the same contact. */
+	private static final int LOCKS = 256;
+	private static final Logger logger = Logger.getLogger(FileContactDao.class.getName());
+
+	private final File dir;
+	private final WriteAheadLog log;
+	private final ReentrantLock[] locks = new ReentrantLock[LOCKS];
+	/** Runs background snapshots; null until scheduleSnapshots is called. */
+	private ScheduledExecutorService snapshotter;
+
+	/**
+	 * Open or create a contact store in a directory.
+	 * @param dir directory for the log and snapshots; created if needed
+	 * @param policy when log records are forced to disk
+	 * @param syncIntervalMillis for SyncPolicy.INTERVAL, the longest time a write stays unforced
+	 * @throws IOException if the log or snapshot cannot be opened or read
+	 */
+	public FileContactDao(File dir, SyncPolicy policy, long syncIntervalMillis) throws IOException {
+		super(false);
+		for(int k=0; k<LOCKS; k++) locks[k] = new ReentrantLock();
+		if (! dir.isDirectory() && ! dir.mkdirs()) throw new IOException("cannot create directory " + dir);
+		this.dir = dir;
+		deferTitleIndex();
+		Snapshot snapshot = Snapshot.latest(dir);
+		if (snapshot != null) snapshot.read(replayer);
+		long firstSegment = (snapshot == null) ? 0 : snapshot.getSegment();
+		log = new WriteAheadLog(dir, LOG_NAME, firstSegment, policy, syncIntervalMillis, new Consumer<ByteBuffer>() {
+			public void accept(ByteBuffer record) {
+				ContactRecords.read(record, replayer);
+			}
+		});
+		// index titles in the background, so the store is usable as soon as it is loaded
+		Thread indexer = new Thread(new Runnable() {
+			public void run() {
+				indexTitles();
+			}
+		}, "contact-title-index");
+		indexer.setDaemon(true);
+		indexer.start();
+	}
+
+	/** Applies log records to memory during startup, without logging them again. */
+	private final ContactRecords.Handler replayer = new ContactRecords.Handler() {
+		public void put(Contact contact) {
+			restore(contact);
+		}
+
+		public void delete(long id) {
+			FileContactDao.super.delete(id);
+		}
+	};
+
+	private ReentrantLock lockFor(long id) {
+		return locks[(int) (id ^ (id >>> 32)) & (LOCKS - 1)];
+	}
+
+	/**
+	 * Lock the stripes of many ids.  Stripes are always locked in the same
+	 * order, so batches cannot deadlock with each other or with snapshots.
+	 * @param ids the ids, or null for every stripe
+	 * @return the locks taken, to pass to unlockAll
+	 */
+	private ReentrantLock[] lockAll(long[] ids) {
+		boolean[] wanted = new boolean[LOCKS];
+		int count = 0;
+		for(int k=0; k<LOCKS; k++) {
+			wanted[k] = (ids == null);
+		}
+		if (ids != null) {
+			for(long id : ids) wanted[(int) (id ^ (id >>> 32)) & (LOCKS - 1)] = true;
+		}
+		for(boolean w : wanted) if (w) count++;
+		ReentrantLock[] held = new ReentrantLock[count];
+		count = 0;
+		for(int k=0; k<LOCKS; k++) {
+			if (! wanted[k]) continue;
+			locks[k].lock();
+			held[count++] = locks[k];
+		}
+		return held;
+	}
+
+	private static void unlockAll(ReentrantLock[] held) {
+		for(int k=held.length-1; k>=0; k--) held[k].unlock();
+	}
+
+	/** @return a new id that is not one of the ids a batch chose */
+	private long newId(Set<Long> chosen) {
+		long id = newId();
+		while (chosen.contains(id)) id = newId();
+		return id;
+	}
+
+	/**
+	 * Get a new id whose stripe this thread holds, so no other writer can
+	 * take it before this one publishes it.
+	 * @param chosen ids chosen by the caller of the batch, which must not be taken
+	 */
+	private long newHeldId(Set<Long> chosen) {
+		while (true) {
+			long id = newId(chosen);
+			if (lockFor(id).isHeldByCurrentThread() && find(id) == null) return id;
+		}
+	}
+
+	/** Write a record and wait until it is committed. */
+	private void commit(byte[] record) {
+		log.await(log.append(record));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.mem.MemContactDao#save(contact.entity.Contact)
+	 */
+	@Override
+	public boolean save(Contact contact) {
+		ReentrantLock lock;
+		if (contact.getId() != 0) {
+			lock = lockFor(contact.getId());
+			lock.lock();
+		}
+		else {
+			// the id is free only if no writer that chose it holds its stripe
+			while (true) {
+				long id = newId();
+				lock = lockFor(id);
+				lock.lock();
+				if (find(id) == null) {
+					contact.setId(id);
+					break;
+				}
+				lock.unlock();
+			}
+		}
+		try {
+			Contact snapshot = contact.copy();
+			snapshot.setVersion( newVersion() );
+			commit(ContactRecords.put(snapshot));
+			publish(snapshot);
+			contact.setVersion( snapshot.getVersion() );
+		} finally {
+			lock.unlock();
+		}
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.mem.MemContactDao#update(contact.entity.Contact)
+	 */
+	@Override
+	public boolean update(Contact update) {
+		ReentrantLock lock = lockFor(update.getId());
+		lock.lock();
+		try {
+			Contact snapshot = updated(find(update.getId()), update);
+			if (snapshot == null) return false;
+			commit(ContactRecords.put(snapshot));
+			publish(snapshot);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return a new snapshot of current with an update applied and a new version, or null if current is null */
+	private Contact updated(Contact current, Contact update) {
+		if (current == null) return null;
+		Contact snapshot = current.copy();
+		snapshot.applyUpdate(update);
+		snapshot.setVersion( newVersion() );
+		return snapshot;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.mem.MemContactDao#replace(contact.entity.Contact, long)
+	 */
+	@Override
+	public WriteStatus replace(Contact contact, long expectedVersion) {
+		ReentrantLock lock = lockFor(contact.getId());
+		lock.lock();
+		try {
+			Contact current = find(contact.getId());
+			if (current == null) return WriteStatus.NOT_FOUND;
+			if (current.getVersion() != expectedVersion) return WriteStatus.CONFLICT;
+			Contact snapshot = contact.copy();
+			snapshot.setVersion( newVersion() );
+			commit(ContactRecords.put(snapshot));
+			publish(snapshot);
+			contact.setVersion( snapshot.getVersion() );
+			return WriteStatus.UPDATED;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.mem.MemContactDao#delete(long, long)
+	 */
+	@Override
+	public WriteStatus delete(long id, long expectedVersion) {
+		ReentrantLock lock = lockFor(id);
+		lock.lock();
+		try {
+			Contact current = find(id);
+			if (current == null) return WriteStatus.NOT_FOUND;
+			if (current.getVersion() != expectedVersion) return WriteStatus.CONFLICT;
+			commit(ContactRecords.delete(id));
+			super.delete(id);
+			return WriteStatus.DELETED;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.mem.MemContactDao#delete(long)
+	 */
+	@Override
+	public boolean delete(long id) {
+		ReentrantLock lock = lockFor(id);
+		lock.lock();
+		try {
+			if (find(id) == null) return false;
+			commit(ContactRecords.delete(id));
+			return super.delete(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.mem.MemContactDao#insertAll(java.util.List)
+	 */
+	@Override
+	public WriteStatus[] insertAll(List<Contact> contacts) {
+		Contact[] batch = contacts.toArray(new Contact[contacts.size()]);
+		WriteStatus[] result = new WriteStatus[batch.length];
+		long[] ids = new long[batch.length];
+		boolean[] assigned = new boolean[batch.length];
+		// ids chosen by the caller, which the ids assigned here must not take
+		Set<Long> chosen = new HashSet<Long>();
+		for(Contact contact : batch) if (contact.getId() != 0) chosen.add(contact.getId());
+		for(int k=0; k<batch.length; k++) {
+			if (batch[k].getId() == 0 && batch[k].getTitle() != null) {
+				batch[k].setId( newId(chosen) );
+				assigned[k] = true;
+			}
+			ids[k] = batch[k].getId();
+		}
+		Contact[] snapshots = new Contact[batch.length];
+		Set<Long> inserted = new HashSet<Long>();
+		long last = 0;
+		ReentrantLock[] held = lockAll(ids);
+		try {
+			log.beginBatch();
+			try {
+				for(int k=0; k<batch.length; k++) {
+					Contact contact = batch[k];
+					// a concurrent writer that chose an assigned id got its stripe first
+					if (assigned[k] && find(contact.getId()) != null) contact.setId( newHeldId(chosen) );
+					if (contact.getTitle() == null || contact.getTitle().trim().isEmpty()) {
+						result[k] = WriteStatus.INVALID;
+					}
+					else if (find(contact.getId()) != null || ! inserted.add(contact.getId())) {
+						result[k] = WriteStatus.CONFLICT;
+					}
+					else {
+						snapshots[k] = contact.copy();
+						snapshots[k].setVersion( newVersion() );
+						last = log.append(ContactRecords.put(snapshots[k]));
+						result[k] = WriteStatus.CREATED;
+					}
+				}
+			} finally {
+				log.endBatch();
+			}
+			if (last > 0) log.await(last);
+			for(int k=0; k<batch.length; k++) {
+				if (snapshots[k] == null) continue;
+				publish(snapshots[k]);
+				batch[k].setVersion( snapshots[k].getVersion() );
+			}
+		} finally {
+			unlockAll(held);
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.mem.MemContactDao#updateAll(java.util.List)
+	 */
+	@Override
+	public WriteStatus[] updateAll(List<Contact> updates) {
+		Contact[] batch = updates.toArray(new Contact[updates.size()]);
+		WriteStatus[] result = new WriteStatus[batch.length];
+		long[] ids = new long[batch.length];
+		for(int k=0; k<batch.length; k++) ids[k] = batch[k].getId();
+		// the latest new snapshot of each id, since an id may be updated more than once
+		Map<Long,Contact> snapshots = new LinkedHashMap<Long,Contact>();
+		long last = 0;
+		ReentrantLock[] held = lockAll(ids);
+		try {
+			log.beginBatch();
+			try {
+				for(int k=0; k<batch.length; k++) {
+					long id = ids[k];
+					if (id == 0) {
+						result[k] = WriteStatus.INVALID;
+						continue;
+					}
+					Contact current = snapshots.containsKey(id) ? snapshots.get(id) : find(id);
+					Contact snapshot = updated(current, batch[k]);
+					if (snapshot == null) {
+						result[k] = WriteStatus.NOT_FOUND;
+						continue;
+					}
+					last = log.append(ContactRecords.put(snapshot));
+					snapshots.put(id, snapshot);
+					result[k] = WriteStatus.UPDATED;
+				}
+			} finally {
+				log.endBatch();
+			}
+			if (last > 0) log.await(last);
+			for(Contact snapshot : snapshots.values()) publish(snapshot);
+		} finally {
+			unlockAll(held);
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.mem.MemContactDao#deleteAll(long[])
+	 */
+	@Override
+	public WriteStatus[] deleteAll(long[] ids) {
+		WriteStatus[] result = new WriteStatus[ids.length];
+		Set<Long> deleted = new LinkedHashSet<Long>();
+		long last = 0;
+		ReentrantLock[] held = lockAll(ids);
+		try {
+			log.beginBatch();
+			try {
+				for(int k=0; k<ids.length; k++) {
+					if (find(ids[k]) == null || ! deleted.add(ids[k])) {
+						result[k] = WriteStatus.NOT_FOUND;
+						continue;
+					}
+					last = log.append(ContactRecords.delete(ids[k]));
+					result[k] = WriteStatus.DELETED;
+				}
+			} finally {
+				log.endBatch();
+			}
+			if (last > 0) log.await(last);
+			for(long id : deleted) super.delete(id);
+		} finally {
+			unlockAll(held);
+		}
+		return result;
+	}
+
+	/**
+	 * Write a snapshot of all contacts and delete the log segments and older
+	 * snapshots it replaces.  Writers are not blocked while the snapshot is written.
+	 * @return the new snapshot
+	 * @throws IOException if the snapshot cannot be written.  The log is still intact.
+	 */
+	public synchronized Snapshot snapshot() throws IOException {
+		// changes after this point go to the new segment, which is replayed over the snapshot
+		long segment = log.rotate();
+		// writers hold their locks until their changes are in memory, so once every
+		// lock has been free, all changes logged in older segments are in memory
+		unlockAll(lockAll(null));
+		Snapshot snapshot;
+		try (Snapshot.Writer writer = Snapshot.create(dir, segment)) {
+			// a contact changed since the rotation is also in the new segment, so any version will do
+			for(Contact contact : findAll()) writer.add(ContactRecords.put(contact));
+			snapshot = writer.commit();
+		}
+		Snapshot.deleteBefore(dir, segment);
+		log.deleteBefore(segment);
+		return snapshot;
+	}
+
+	/**
+	 * Take snapshots periodically in a background thread.
+	 * @param intervalMillis time between checks
+	 * @param minLogBytes take a snapshot only if the log is at least this long
+	 */
+	public synchronized void scheduleSnapshots(long intervalMillis, final long minLogBytes) {
+		if (snapshotter != null) snapshotter.shutdownNow();
+		snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "contact-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		snapshotter.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				if (log.size() < minLogBytes) return;
+				try {
+					snapshot();
+				} catch (IOException | DaoException e) {
+					// try again next time; the log still has everything
+					logger.log(Level.WARNING, "contact snapshot failed", e);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop background snapshots, commit outstanding log records and close the log.
+	 * The DAO must not be used afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		ScheduledExecutorService snapshotter;
+		synchronized (this) {
+			snapshotter = this.snapshotter;
+			this.snapshotter = null;
+		}
+		if (snapshotter != null) {
+			snapshotter.shutdown();
+			try {
+				snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		log.close();
+	}
+}
@@ -0,0 +1,67 @@
+package contact.service.file;
+
+import java.io.File;
+import java.io.IOException;
+
+import contact.service.DaoException;
+import contact.service.DaoFactory;
+import contact.service.file.WriteAheadLog.SyncPolicy;
+
+/**
+ * Create a FileContactDao configured by system properties:
+ * <ul>
+ * <li><code>contact.dao.dir</code> directory for the log (default "data")
+ * <li><code>contact.dao.sync</code> always, interval or never (default always)
+ * <li><code>contact.dao.sync.interval</code> milliseconds between forced writes
+ *     when the sync policy is interval (default 100)
+ * <li><code>contact.dao.snapshot.interval</code> milliseconds between checks for
+ *     a background snapshot, or 0 for no snapshots (default 60000)
+ * <li><code>contact.dao.snapshot.bytes</code> take a snapshot only once the log
+ *     is at least this many bytes (default 64 MB)
+ * </ul>
+ *
+ * @author jim
+ */
+public class FileDaoFactory extends DaoFactory {
+	public static final String DIR_PROPERTY = "contact.dao.dir";
+	public static final String SYNC_PROPERTY = "contact.dao.sync";
+	public static final String SYNC_INTERVAL_PROPERTY = "contact.dao.sync.interval";
+	public static final String SNAPSHOT_INTERVAL_PROPERTY = "contact.dao.snapshot.interval";
+	public static final String SNAPSHOT_BYTES_PROPERTY = "contact.dao.snapshot.bytes";
+
+	public FileDaoFactory() {
+		File dir = new File(System.getProperty(DIR_PROPERTY, "data"));
+		SyncPolicy policy = SyncPolicy.parse(System.getProperty(SYNC_PROPERTY, "always"));
+		long interval = Long.getLong(SYNC_INTERVAL_PROPERTY, 100L);
+		long snapshotInterval = Long.getLong(SNAPSHOT_INTERVAL_PROPERTY, 60000L);
+		long snapshotBytes = Long.getLong(SNAPSHOT_BYTES_PROPERTY, 64L * 1024 * 1024);
+		try {
+			FileContactDao dao = new FileContactDao(dir, policy, interval);
+			if (snapshotInterval > 0) dao.scheduleSnapshots(snapshotInterval, snapshotBytes);
+			daoInstance = dao;
+		} catch (IOException e) {
+			throw new DaoException("cannot open contact store in " + dir, e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.DaoFactory#isBlocking()
+	 */
+	@Override
+	protected boolean isBlocking() {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.DaoFactory#shutdown()
+	 */
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		try {
+			((FileContactDao) daoInstance).close();
+		} catch (IOException e) {
+			throw new DaoException("error closing contact store", e);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package contact.service.file;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A snapshot file holding every contact in the store, so that startup
+ * reads the snapshot and only the log segments written after it.
+ * <p>
+ * A snapshot named <code>snapshot-N.snap</code> holds the state of the
+ * store as of the start of log segment N.  It is a header, the PUT record
+ * of each contact, and a trailer:
+ * <pre>
+ * header:  int MAGIC, int FORMAT, long N
+ * records: int length, record bytes   (repeated)
+ * trailer: int -1, long record count, long CRC32 of everything before the trailer's CRC
+ * </pre>
+ * Snapshots are written to a temporary file and renamed when complete, so a
+ * crash while writing one leaves the previous snapshot in place.
+ * They are read through a memory mapping, without copying the file.
+ */
+public class Snapshot {
+	static final int MAGIC = 0x434E5350; // "CNSP"
+	static final int FORMAT = 1;
+	private static final String PREFIX = "snapshot-";
+	private static final String SUFFIX = ".snap";
+	/** Size of the header. */
+	private static final int HEADER = 4 + 4 + 8;
+	/** Size of the trailer. */
+	private static final int TRAILER = 4 + 8 + 8;
+	/** Largest part of the file that is mapped at once. */
+	private static final int WINDOW = 1 << 30;
+
+	private final File file;
+	private final long segment;
+
+	private Snapshot(File file, long segment) {
+		this.file = file;
+		this.segment = segment;
+	}
+
+	/** @return the snapshot file */
+	public File getFile() {
+		return file;
+	}
+
+	/** @return number of the first log segment that is not in this snapshot */
+	public long getSegment() {
+		return segment;
+	}
+
+	/**
+	 * Find the newest snapshot in a directory.
+	 * @param dir the data directory
+	 * @return the snapshot with the highest segment number, or null if there is none
+	 */
+	public static Snapshot latest(File dir) {
+		Snapshot latest = null;
+		String[] names = dir.list();
+		if (names == null) return null;
+		for(String name : names) {
+			long n = segmentOf(name);
+			if (n >= 0 && (latest == null || n > latest.segment)) latest = new Snapshot(new File(dir, name), n);
+		}
+		return latest;
+	}
+
+	/** @return the segment number in a snapshot file name, or -1 if name is not a snapshot */
+	private static long segmentOf(String name) {
+		if (! name.startsWith(PREFIX) || ! name.endsWith(SUFFIX)) return -1;
+		try {
+			return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Delete snapshots older than a given one, and unfinished snapshot files.
+	 * @param dir the data directory
+	 * @param segment segment number of the snapshot to keep
+	 */
+	public static void deleteBefore(File dir, long segment) {
+		String[] names = dir.list();
+		if (names == null) return;
+		for(String name : names) {
+			long n = segmentOf(name);
+			boolean unfinished = name.startsWith(PREFIX) && name.endsWith(".tmp");
+			if ((n >= 0 && n < segment) || unfinished) new File(dir, name).delete();
+		}
+	}
+
+	/**
+	 * Check the snapshot and pass each record in it to a handler.
+	 * @param handler receives the contacts
+	 * @return the number of contacts read
+	 * @throws IOException if the file cannot be read or is not a complete, valid snapshot
+	 */
+	public long read(ContactRecords.Handler handler) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER + TRAILER) throw corrupt("too short");
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+			if (header.getInt() != MAGIC || header.getInt() != FORMAT) throw corrupt("not a snapshot");
+			if (header.getLong() != segment) throw corrupt("wrong segment number");
+			ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER, TRAILER);
+			if (trailer.getInt() != -1) throw corrupt("no trailer");
+			long count = trailer.getLong();
+			long checksum = trailer.getLong();
+			// verify the whole file before applying any of it
+			CRC32 crc = new CRC32();
+			for(long pos = 0; pos < size - 8; pos += WINDOW) {
+				crc.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, size - 8 - pos)));
+			}
+			if (crc.getValue() != checksum) throw corrupt("checksum mismatch");
+
+			long end = size - TRAILER;
+			long pos = HEADER;
+			long records = 0;
+			while (pos < end) {
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, end - pos));
+				// read the records that lie wholly inside this window, then map the next one
+				while (window.remaining() >= 4) {
+					int start = window.position();
+					int length = window.getInt(start);
+					if (length < 0 || length > WriteAheadLog.MAX_RECORD) throw corrupt("bad record length");
+					if (window.remaining() < 4 + length) break;
+					ByteBuffer record = window.duplicate();
+					record.position(start + 4);
+					record.limit(start + 4 + length);
+					ContactRecords.read(record, handler);
+					window.position(start + 4 + length);
+					records++;
+				}
+				if (window.position() == 0) throw corrupt("truncated record");
+				pos += window.position();
+			}
+			if (records != count) throw corrupt("expected " + count + " records, found " + records);
+			return records;
+		}
+	}
+
+	private IOException corrupt(String reason) {
+		return new IOException("corrupt snapshot " + file + ": " + reason);
+	}
+
+	/**
+	 * Start writing a snapshot.
+	 * @param dir the data directory
+	 * @param segment number of the first log segment that will not be in the snapshot
+	 * @return a writer for the records
+	 */
+	public static Writer create(File dir, long segment) throws IOException {
+		return new Writer(dir, segment);
+	}
+
+	/**
+	 * Writes a snapshot to a temporary file.  Call {@link #add(byte[])} for
+	 * each contact, then {@link #commit()}.  Closing a writer that was not
+	 * committed deletes the temporary file.
+	 */
+	public static class Writer implements Closeable {
+		private final File dir;
+		private final long segment;
+		private final File temp;
+		private final FileOutputStream file;
+		private final CheckedOutputStream checked;
+		private final DataOutputStream out;
+		private long count;
+		private boolean done;
+
+		private Writer(File dir, long segment) throws IOException {
+			this.dir = dir;
+			this.segment = segment;
+			temp = new File(dir, PREFIX + segment + ".tmp");
+			file = new FileOutputStream(temp);
+			checked = new CheckedOutputStream(new BufferedOutputStream(file, 256 * 1024), new CRC32());
+			out = new DataOutputStream(checked);
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeLong(segment);
+		}
+
+		/**
+		 * Add a record to the snapshot.
+		 * @param record a PUT record from ContactRecords
+		 */
+		public void add(byte[] record) throws IOException {
+			out.writeInt(record.length);
+			out.write(record);
+			count++;
+		}
+
+		/**
+		 * Finish the snapshot, force it to disk, and give it its final name.
+		 * @return the new snapshot
+		 */
+		public Snapshot commit() throws IOException {
+			out.writeInt(-1);
+			out.writeLong(count);
+			out.flush();
+			// the checksum covers everything written so far
+			long checksum = checked.getChecksum().getValue();
+			out.writeLong(checksum);
+			out.flush();
+			file.getFD().sync();
+			out.close();
+			done = true;
+			File target = new File(dir, PREFIX + segment + SUFFIX);
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			return new Snapshot(target, segment);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (done) return;
+			done = true;
+			try {
+				out.close();
+			} finally {
+				temp.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,425 @@
+package contact.service.file;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import contact.service.DaoException;
+
+/**
+ * An append-only log of binary records with group commit.
+ * <p>
+ * Writers call {@link #append(byte[])}, which only queues the record and
+ * returns a sequence number, and then {@link #await(long)} to wait until the
+ * record is committed.  A single committer thread takes everything queued
+ * since its last write, writes it with one system call and, depending on
+ * the {@link SyncPolicy}, forces it to disk once.  While it is busy, more
+ * records queue up, so under load many writers share each fsync.
+ * <p>
+ * On disk each record is framed as an int length, an int CRC32 of the
+ * record, and the record bytes.  The log is a sequence of numbered segment
+ * files, <code>name-N.log</code>.  Records go to the newest segment until
+ * {@link #rotate()} starts a new one, and segments that are no longer needed,
+ * such as those covered by a snapshot, are removed with {@link #deleteBefore(long)}.
+ * When the log is opened, records are read back until the end of the last
+ * segment or the first incomplete or corrupt frame in it, such as a write
+ * torn by a crash.  The log is truncated there.  A crash can only tear the
+ * newest segment, so a bad frame in an older one fails the open rather
+ * than drop the records after it.
+ */
+public class WriteAheadLog implements Closeable {
+	/** When committed records are forced to disk. */
+	public enum SyncPolicy {
+		/** Force every group before its writers are released.  Nothing committed is lost in a crash. */
+		ALWAYS,
+		/** Release writers once their group is written, and force at most once per interval. */
+		INTERVAL,
+		/** Never force; leave it to the operating system. */
+		NEVER;
+
+		/**
+		 * Get a policy by name, ignoring case.
+		 * @param name "always", "interval" or "never"
+		 * @return the policy
+		 * @throws IllegalArgumentException if name is not a policy
+		 */
+		public static SyncPolicy parse(String name) {
+			return valueOf(name.trim().toUpperCase(Locale.ROOT));
+		}
+	}
+
+	/** Size of the length and checksum before each record. */
+	static final int FRAME_HEADER = 8;
+	/** Records larger than this are taken as corruption when reading. */
+	static final int MAX_RECORD = 64 * 1024 * 1024;
+	/** Write a group even while a batch is open once this many records are queued. */
+	static final int MAX_GROUP = 16 * 1024;
+
+	private final File dir;
+	private final String name;
+	/** The segment being written.  Only the committer thread uses it after the constructor. */
+	private FileChannel channel;
+	private final SyncPolicy policy;
+	private final long syncIntervalNanos;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	/** Signalled when records are queued or the log is closed. */
+	private final Condition queued = lock.newCondition();
+	/** Signalled when a group is committed or the committer fails. */
+	private final Condition committed = lock.newCondition();
+	// the following fields are guarded by lock
+	private List<byte[]> queue = new ArrayList<byte[]>();
+	private long appended;
+	private long durable;
+	private int openBatches;
+	/** Number of the segment being written. */
+	private long segment;
+	private boolean rotateRequested;
+	private IOException failure;
+	private boolean closed;
+
+	private final Thread committer;
+	/** Reused by the committer thread for writing groups. */
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+	/**
+	 * Open a log, read back the records it holds, and start the committer.
+	 * @param dir directory holding the segment files
+	 * @param name prefix of the segment file names
+	 * @param firstSegment number of the first segment to read. Older segments are deleted.
+	 * @param policy when to force records to disk
+	 * @param syncIntervalMillis for INTERVAL, the longest time a written record stays unforced
+	 * @param replay receives each record in the log, in order, before this constructor returns
+	 */
+	public WriteAheadLog(File dir, String name, long firstSegment, SyncPolicy policy, long syncIntervalMillis,
+			Consumer<ByteBuffer> replay) throws IOException {
+		this.dir = dir;
+		this.name = name;
+		this.policy = policy;
+		this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+		segment = firstSegment;
+		deleteBefore(firstSegment);
+		long[] numbers = segments();
+		for(int k=0; k<numbers.length; k++) {
+			if (channel != null) channel.close();
+			segment = numbers[k];
+			channel = openSegment(segment);
+			long end = recover(replay);
+			if (end < channel.size() && k < numbers.length - 1) {
+				// a crash can only tear the newest segment, and later records cannot be applied without these
+				channel.close();
+				throw new IOException("log segment " + segment + " is damaged at byte " + end + ", before later segments");
+			}
+			channel.truncate(end);
+			channel.position(end);
+		}
+		if (channel == null) channel = openSegment(segment);
+		committer = new Thread(new Runnable() {
+			public void run() {
+				commitLoop();
+			}
+		}, "contact-log-" + name);
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/** @return the file for a segment */
+	File segmentFile(long n) {
+		return new File(dir, name + "-" + n + ".log");
+	}
+
+	private FileChannel openSegment(long n) throws IOException {
+		return FileChannel.open(segmentFile(n).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/** @return numbers of the segment files in the directory, in ascending order */
+	private long[] segments() {
+		String[] names = dir.list();
+		if (names == null) return new long[0];
+		long[] result = new long[names.length];
+		int count = 0;
+		String prefix = name + "-";
+		for(String file : names) {
+			if (! file.startsWith(prefix) || ! file.endsWith(".log")) continue;
+			try {
+				result[count++] = Long.parseLong(file.substring(prefix.length(), file.length() - 4));
+			} catch (NumberFormatException e) {
+				// not a segment
+			}
+		}
+		result = Arrays.copyOf(result, count);
+		Arrays.sort(result);
+		return result;
+	}
+
+	private void deleteSegment(long n) throws IOException {
+		File file = segmentFile(n);
+		if (file.exists() && ! file.delete()) throw new IOException("cannot delete " + file);
+	}
+
+	/**
+	 * Read all valid records from the start of the current segment.
+	 * @return the position just after the last valid record
+	 */
+	private long recover(Consumer<ByteBuffer> replay) throws IOException {
+		channel.position(0);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+		CRC32 crc = new CRC32();
+		long end = 0;
+		while (true) {
+			int length;
+			int checksum;
+			byte[] record;
+			try {
+				length = in.readInt();
+				checksum = in.readInt();
+				if (length < 0 || length > MAX_RECORD) break;
+				record = new byte[length];
+				in.readFully(record);
+			} catch (EOFException e) {
+				break; // clean end of log, or a torn last frame
+			}
+			crc.reset();
+			crc.update(record, 0, record.length);
+			if ((int) crc.getValue() != checksum) break;
+			replay.accept(ByteBuffer.wrap(record));
+			end += FRAME_HEADER + length;
+		}
+		// do not close in: that would close the channel
+		return end;
+	}
+
+	/**
+	 * Queue a record to be written.
+	 * @param record the record bytes. The caller must not modify them afterwards.
+	 * @return sequence number of the record, to pass to await
+	 * @throws DaoException if the log is closed or has failed
+	 */
+	public long append(byte[] record) {
+		lock.lock();
+		try {
+			if (closed) throw new DaoException("contact log is closed");
+			if (failure != null) throw new DaoException("contact log failed", failure);
+			queue.add(record);
+			appended++;
+			if (openBatches == 0 || queue.size() >= MAX_GROUP) queued.signal();
+			return appended;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Start a batch.  Records appended until the matching endBatch are
+	 * normally written together in one group.  Every beginBatch must be
+	 * followed by endBatch, in a finally block.
+	 */
+	public void beginBatch() {
+		lock.lock();
+		try {
+			openBatches++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** End a batch started with beginBatch, releasing its records to the committer. */
+	public void endBatch() {
+		lock.lock();
+		try {
+			openBatches--;
+			if (openBatches == 0) queued.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until a record and all records before it are committed.
+	 * @param sequence a sequence number returned by append
+	 * @throws DaoException if the log failed before the record was committed
+	 */
+	public void await(long sequence) {
+		lock.lock();
+		try {
+			while (durable < sequence && failure == null) committed.awaitUninterruptibly();
+			if (durable < sequence) throw new DaoException("contact log failed", failure);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Start a new segment.  Records appended before this method returns are
+	 * in older segments, and records appended after it are in the new one.
+	 * The old segment is written and forced (unless the policy is NEVER) first.
+	 * @return number of the new segment
+	 * @throws DaoException if the log is closed or has failed
+	 */
+	public long rotate() {
+		lock.lock();
+		try {
+			if (closed) throw new DaoException("contact log is closed");
+			long target = segment + 1;
+			rotateRequested = true;
+			queued.signal();
+			while (segment < target && failure == null) committed.awaitUninterruptibly();
+			if (segment < target) throw new DaoException("contact log failed", failure);
+			return segment;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Delete segments that are no longer needed.  The current segment is never deleted.
+	 * @param n number of the first segment to keep
+	 */
+	public void deleteBefore(long n) throws IOException {
+		long current;
+		lock.lock();
+		try {
+			current = segment;
+		} finally {
+			lock.unlock();
+		}
+		for(long k : segments()) {
+			if (k >= n || k >= current) break;
+			deleteSegment(k);
+		}
+	}
+
+	/** @return the total size of the segment files in bytes */
+	public long size() {
+		long size = 0;
+		for(long n : segments()) size += segmentFile(n).length();
+		return size;
+	}
+
+	/** Body of the committer thread. */
+	private void commitLoop() {
+		long lastSync = System.nanoTime();
+		boolean unsynced = false;
+		while (true) {
+			List<byte[]> group;
+			long last;
+			boolean rotating;
+			lock.lock();
+			try {
+				while (! closed && ! rotateRequested && (queue.isEmpty() || (openBatches > 0 && queue.size() < MAX_GROUP))) {
+					if (unsynced) {
+						long wait = syncIntervalNanos - (System.nanoTime() - lastSync);
+						if (wait <= 0) break;
+						queued.awaitNanos(wait);
+					}
+					else queued.awaitUninterruptibly();
+				}
+				if (closed && queue.isEmpty()) return;
+				group = queue;
+				last = appended;
+				rotating = rotateRequested;
+				rotateRequested = false;
+				queue = new ArrayList<byte[]>();
+			} catch (InterruptedException e) {
+				continue;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				if (! group.isEmpty()) {
+					write(group);
+					unsynced = policy != SyncPolicy.NEVER;
+				}
+				if (unsynced && (policy == SyncPolicy.ALWAYS || System.nanoTime() - lastSync >= syncIntervalNanos)) {
+					channel.force(false);
+					lastSync = System.nanoTime();
+					unsynced = false;
+				}
+				long next = 0;
+				if (rotating) {
+					if (unsynced) channel.force(false);
+					unsynced = false;
+					next = segment + 1;
+					FileChannel old = channel;
+					channel = openSegment(next);
+					old.close();
+				}
+				lock.lock();
+				try {
+					if (rotating) segment = next;
+					durable = last;
+					committed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			} catch (IOException e) {
+				lock.lock();
+				try {
+					failure = e;
+					committed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+				return;
+			}
+		}
+	}
+
+	/** Frame a group of records and write them with as few system calls as possible. */
+	private void write(List<byte[]> group) throws IOException {
+		int size = 0;
+		for(byte[] record : group) size += FRAME_HEADER + record.length;
+		if (buffer.capacity() < size) buffer = ByteBuffer.allocateDirect(Math.max(size, buffer.capacity() * 2));
+		buffer.clear();
+		CRC32 crc = new CRC32();
+		for(byte[] record : group) {
+			crc.reset();
+			crc.update(record, 0, record.length);
+			buffer.putInt(record.length).putInt((int) crc.getValue()).put(record);
+		}
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+	}
+
+	/**
+	 * Commit everything queued, force it to disk, and stop the committer.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed) return;
+			closed = true;
+			queued.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			committer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			if (failure == null) channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package contact.service.jpa;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+
+/**
+ * The next id JpaContactDao may hand out.  The DAO reserves ids in blocks
+ * by raising the counter, and raises it past any id a caller chooses for a
+ * new contact in the same transaction as the insert, so an id chosen by a
+ * caller is never handed out again.
+ */
+@Entity
+@Table(name="contact_ids")
+@NamedQueries({
+	@NamedQuery(name="IdCounter.next", query="SELECT c.nextId FROM IdCounter c WHERE c.name = :name"),
+	@NamedQuery(name="IdCounter.reserve", query="UPDATE IdCounter c SET c.nextId = c.nextId + :size WHERE c.name = :name"),
+	@NamedQuery(name="IdCounter.advance", query="UPDATE IdCounter c SET c.nextId = :next WHERE c.name = :name AND c.nextId < :next")
+})
+class IdCounter {
+	@Id
+	private String name;
+	private long nextId;
+
+	/** Intended for use by persistence framework. */
+	IdCounter() { }
+
+	IdCounter(String name, long nextId) {
+		this.name = name;
+		this.nextId = nextId;
+	}
+}
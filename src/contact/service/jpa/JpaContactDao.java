@@ -0,0 +1,502 @@
+package contact.service.jpa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
+
+import contact.entity.Contact;
+import contact.service.AbstractContactDao;
+import contact.service.DaoException;
+import contact.service.WriteStatus;
+
+/**
+ * Data access object that stores contacts in a database using JPA.
+ * Each method uses its own EntityManager, so the DAO is safe to share
+ * between request threads.  Contacts returned are detached copies.
+ * <p>
+ * Bulk methods run in one transaction, look up existing ids with one
+ * query per chunk instead of one per contact, and leave the inserts,
+ * updates and deletes to the provider's JDBC batching (configured in
+ * persistence.xml).  New ids come from a counter in the database that is
+ * reserved in blocks, so inserts do not each need a round trip for an id.
+ * A contact inserted with an id chosen by the caller moves the counter
+ * past that id in the same transaction, so the id is never handed out
+ * again.  Ids already reserved by another process sharing the database
+ * are not checked, so the database should have one writer, as the
+ * embedded H2 database in persistence.xml does.
+ *
+ * @author jim
+ */
+public class JpaContactDao extends AbstractContactDao {
+	/** Largest number of ids in one IN clause, and contacts between flushes. */
+	static final int CHUNK = 1000;
+	/** Name of the counter that new contact ids come from. */
+	private static final String IDS = "contact";
+	/** First id handed out by a new database. */
+	static final long FIRST_ID = 1000;
+	/** Number of ids reserved from the counter at a time. */
+	static final long ID_BLOCK = 100;
+	/** Times an update is applied again after another writer changed the contact first. */
+	static final int UPDATE_ATTEMPTS = 8;
+
+	private final EntityManagerFactory factory;
+	/** Reserved ids not yet handed out are nextId up to, but not including, lastId.  Guarded by this. */
+	private long nextId;
+	private long lastId;
+
+	/**
+	 * Create a DAO using a persistence unit.
+	 * @param factory entity manager factory for a unit that includes Contact
+	 */
+	public JpaContactDao(EntityManagerFactory factory) {
+		this.factory = factory;
+		write(em -> {
+			if (em.find(IdCounter.class, IDS) == null) {
+				// start past any contacts already stored
+				Long max = em.createQuery("SELECT MAX(c.id) FROM Contact c", Long.class).getSingleResult();
+				em.persist(new IdCounter(IDS, (max == null) ? FIRST_ID : Math.max(FIRST_ID, max + 1)));
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Get an id for a new contact.  Ids are reserved from the database
+	 * ID_BLOCK at a time, so most calls need no round trip.
+	 */
+	private synchronized long newId() {
+		if (nextId == lastId) {
+			lastId = write(em -> {
+				em.createNamedQuery("IdCounter.reserve").setParameter("name", IDS).setParameter("size", ID_BLOCK).executeUpdate();
+				return em.createNamedQuery("IdCounter.next", Long.class).setParameter("name", IDS).getSingleResult();
+			});
+			nextId = lastId - ID_BLOCK;
+		}
+		return nextId++;
+	}
+
+	/**
+	 * Stop handing out an id chosen by a caller, if it is in the block
+	 * already reserved.  Called before the id is inserted.
+	 */
+	private synchronized void claim(long id) {
+		if (id >= nextId && id < lastId) nextId = id + 1;
+	}
+
+	/** Move the id counter past an id chosen by a caller, in the transaction that inserts it. */
+	private static void advancePast(EntityManager em, long id) {
+		em.createNamedQuery("IdCounter.advance").setParameter("name", IDS).setParameter("next", id + 1).executeUpdate();
+	}
+
+	/** Run work with a new EntityManager outside a transaction. */
+	private <T> T read(Function<EntityManager,T> work) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			return work.apply(em);
+		} catch (PersistenceException e) {
+			throw new DaoException("database error", e);
+		} finally {
+			em.close();
+		}
+	}
+
+	/** Run work in a transaction, which is committed if work returns normally. */
+	private <T> T write(Function<EntityManager,T> work) {
+		EntityManager em = factory.createEntityManager();
+		EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			T result = work.apply(em);
+			tx.commit();
+			return result;
+		} catch (PersistenceException e) {
+			throw new DaoException("database error", e);
+		} finally {
+			if (tx.isActive()) tx.rollback();
+			em.close();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#find(long)
+	 */
+	@Override
+	public Contact find(final long id) {
+		return read(em -> em.find(Contact.class, id));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findByTitle(String)
+	 */
+	@Override
+	public Contact findByTitle(String title) {
+		return findByTitle(title, false);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findByTitle(String, boolean)
+	 */
+	@Override
+	public Contact findByTitle(final String title, final boolean caseSensitive) {
+		if (title == null) return null;
+		List<Contact> found = read(em -> {
+			// both queries use an index: on title, or on the lowercase titleKey
+			TypedQuery<Contact> query = caseSensitive
+					? em.createNamedQuery("Contact.findByTitle", Contact.class).setParameter("title", title)
+					: em.createNamedQuery("Contact.findByTitleKey", Contact.class).setParameter("key", Contact.foldTitle(title));
+			return query.setMaxResults(1).getResultList();
+		});
+		return found.isEmpty() ? null : found.get(0);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#search(String, boolean, int)
+	 */
+	@Override
+	public List<Contact> search(String text, final boolean prefixOnly, final int limit) {
+		if (text == null || text.isEmpty() || limit <= 0) return new ArrayList<Contact>();
+		final String key = escapeLike(Contact.foldTitle(text));
+		return read(em -> {
+			// prefix matches come first; LIKE 'key%' can use the titleKey index
+			List<Contact> matches = new ArrayList<Contact>(em.createQuery(
+					"SELECT c FROM Contact c WHERE c.titleKey LIKE :prefix ESCAPE '\\' ORDER BY c.titleKey, c.id",
+					Contact.class)
+					.setParameter("prefix", key + "%")
+					.setMaxResults(limit)
+					.getResultList());
+			if (prefixOnly || matches.size() >= limit) return matches;
+			matches.addAll(em.createQuery(
+					"SELECT c FROM Contact c WHERE c.titleKey LIKE :text ESCAPE '\\' AND c.titleKey NOT LIKE :prefix ESCAPE '\\' ORDER BY c.id",
+					Contact.class)
+					.setParameter("text", "%" + key + "%")
+					.setParameter("prefix", key + "%")
+					.setMaxResults(limit - matches.size())
+					.getResultList());
+			return matches;
+		});
+	}
+
+	/** Escape the LIKE wildcards in text, using backslash as the escape character. */
+	static String escapeLike(String text) {
+		return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findAll()
+	 */
+	@Override
+	public List<Contact> findAll() {
+		return read(em -> em.createNamedQuery("Contact.findAll", Contact.class).getResultList());
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#count()
+	 */
+	@Override
+	public long count() {
+		return read(em -> em.createNamedQuery("Contact.count", Long.class).getSingleResult());
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findPage(long, int)
+	 */
+	@Override
+	public List<Contact> findPage(final long afterId, final int limit) {
+		return read(em -> em.createNamedQuery("Contact.findPage", Contact.class)
+				.setParameter("after", afterId)
+				.setMaxResults(limit)
+				.getResultList());
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#delete(long)
+	 */
+	@Override
+	public boolean delete(final long id) {
+		int count = write(em -> em.createNamedQuery("Contact.deleteById").setParameter("id", id).executeUpdate());
+		if (count == 0) return false;
+		fireChanged(id);
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#delete(long, long)
+	 */
+	@Override
+	public WriteStatus delete(final long id, final long expectedVersion) {
+		WriteStatus status = write(em -> {
+			int count = em.createNamedQuery("Contact.deleteByIdAndVersion")
+					.setParameter("id", id).setParameter("version", expectedVersion).executeUpdate();
+			if (count > 0) return WriteStatus.DELETED;
+			return (em.find(Contact.class, id) == null) ? WriteStatus.NOT_FOUND : WriteStatus.CONFLICT;
+		});
+		if (status == WriteStatus.DELETED) fireChanged(id);
+		return status;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#save(contact.entity.Contact)
+	 */
+	@Override
+	public boolean save(final Contact contact) {
+		final boolean chosen = (contact.getId() != 0);
+		if (chosen) claim(contact.getId());
+		else contact.setId( newId() );
+		long version = write(em -> {
+			Contact existing = chosen ? em.find(Contact.class, contact.getId()) : null;
+			if (existing == null) {
+				if (chosen) advancePast(em, contact.getId());
+				em.persist(contact);
+				em.flush();
+				return contact.getVersion();
+			}
+			existing.copyOf(contact);
+			em.flush();
+			return existing.getVersion();
+		});
+		contact.setVersion(version);
+		fireChanged(contact.getId());
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#insertAll(java.util.List)
+	 */
+	@Override
+	public WriteStatus[] insertAll(final List<Contact> batch) {
+		final WriteStatus[] result = new WriteStatus[batch.size()];
+		// ids chosen by the caller are checked for conflicts; the others are new
+		final List<Long> chosen = new ArrayList<Long>();
+		long highest = 0;
+		for(Contact contact : batch) {
+			if (contact.getId() == 0) continue;
+			chosen.add(contact.getId());
+			claim(contact.getId());
+			highest = Math.max(highest, contact.getId());
+		}
+		for(Contact contact : batch) {
+			if (contact.getId() == 0 && ! isInvalid(contact)) contact.setId( newId() );
+		}
+		final long highestChosen = highest;
+		write(em -> {
+			Set<Long> taken = existingIds(em, chosen);
+			if (highestChosen > 0) advancePast(em, highestChosen);
+			int pending = 0;
+			for(int k=0; k<result.length; k++) {
+				Contact contact = batch.get(k);
+				if (isInvalid(contact)) {
+					result[k] = WriteStatus.INVALID;
+				}
+				else if (! taken.add(contact.getId())) {
+					result[k] = WriteStatus.CONFLICT;
+				}
+				else {
+					em.persist(contact);
+					result[k] = WriteStatus.CREATED;
+					// the inserts are sent as JDBC batches when the context is flushed
+					if (++pending % CHUNK == 0) {
+						em.flush();
+						em.clear();
+					}
+				}
+			}
+			return null;
+		});
+		for(int k=0; k<result.length; k++) {
+			if (result[k] == WriteStatus.CREATED) fireChanged(batch.get(k).getId());
+		}
+		return result;
+	}
+
+	private static boolean isInvalid(Contact contact) {
+		return contact.getTitle() == null || contact.getTitle().trim().isEmpty();
+	}
+
+	/**
+	 * Find which of the ids chosen for contacts in a batch are already in use.
+	 * @return a mutable set of the ids in use
+	 */
+	private Set<Long> existingIds(EntityManager em, List<Long> ids) {
+		Set<Long> taken = new HashSet<Long>();
+		for(int from=0; from<ids.size(); from+=CHUNK) {
+			taken.addAll(em.createNamedQuery("Contact.findIds", Long.class)
+					.setParameter("ids", ids.subList(from, Math.min(from + CHUNK, ids.size())))
+					.getResultList());
+		}
+		return taken;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#update(contact.entity.Contact)
+	 */
+	@Override
+	public boolean update(final Contact update) {
+		WriteStatus status = updateOne(update);
+		if (status == WriteStatus.CONFLICT) {
+			throw new DaoException("contact " + update.getId() + " was changed by other writers "
+					+ UPDATE_ATTEMPTS + " times while it was being updated");
+		}
+		return status == WriteStatus.UPDATED;
+	}
+
+	/**
+	 * Apply an update in a transaction of its own.  If another transaction
+	 * changed the contact after it was read, the update is applied again
+	 * to the new state, up to {@value #UPDATE_ATTEMPTS} times, so no
+	 * update is lost.
+	 * @return UPDATED, NOT_FOUND, or CONFLICT if every attempt lost the race
+	 */
+	private WriteStatus updateOne(final Contact update) {
+		for(int attempt=1; attempt<=UPDATE_ATTEMPTS; attempt++) {
+			boolean found;
+			try {
+				found = write(em -> {
+					Contact contact = em.find(Contact.class, update.getId());
+					if (contact == null) return false;
+					contact.applyUpdate(update);
+					return true;
+				});
+			} catch (DaoException e) {
+				if (! isOptimisticLockFailure(e)) throw e;
+				continue;
+			}
+			if (! found) return WriteStatus.NOT_FOUND;
+			fireChanged(update.getId());
+			return WriteStatus.UPDATED;
+		}
+		return WriteStatus.CONFLICT;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#replace(contact.entity.Contact, long)
+	 */
+	@Override
+	public WriteStatus replace(final Contact contact, final long expectedVersion) {
+		final long[] version = new long[1];
+		WriteStatus status;
+		try {
+			status = write(em -> {
+				Contact existing = em.find(Contact.class, contact.getId());
+				if (existing == null) return WriteStatus.NOT_FOUND;
+				if (existing.getVersion() != expectedVersion) return WriteStatus.CONFLICT;
+				existing.copyOf(contact);
+				// the provider updates only where the version is still the one read
+				em.flush();
+				version[0] = existing.getVersion();
+				return WriteStatus.UPDATED;
+			});
+		} catch (DaoException e) {
+			if (! isOptimisticLockFailure(e)) throw e;
+			// another transaction changed the contact after it was read
+			return WriteStatus.CONFLICT;
+		}
+		if (status == WriteStatus.UPDATED) {
+			contact.setVersion(version[0]);
+			fireChanged(contact.getId());
+		}
+		return status;
+	}
+
+	/** @return true if an exception was caused by a failed version check */
+	private static boolean isOptimisticLockFailure(Throwable e) {
+		for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof OptimisticLockException) return true;
+		}
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#updateAll(java.util.List)
+	 */
+	@Override
+	public WriteStatus[] updateAll(final List<Contact> updates) {
+		final WriteStatus[] result = new WriteStatus[updates.size()];
+		try {
+			updateBatch(updates, result);
+		} catch (DaoException e) {
+			if (! isOptimisticLockFailure(e)) throw e;
+			// another transaction changed one of the contacts, and nothing was written;
+			// apply the updates one at a time, so only a contact that keeps losing is a CONFLICT
+			for(int k=0; k<result.length; k++) {
+				Contact update = updates.get(k);
+				result[k] = (update.getId() == 0) ? WriteStatus.INVALID : updateOne(update);
+			}
+			return result;
+		}
+		for(int k=0; k<result.length; k++) {
+			if (result[k] == WriteStatus.UPDATED) fireChanged(updates.get(k).getId());
+		}
+		return result;
+	}
+
+	/** Apply updates in one transaction, recording the result of each. */
+	private void updateBatch(final List<Contact> updates, final WriteStatus[] result) {
+		write(em -> {
+			List<Long> ids = new ArrayList<Long>();
+			for(Contact update : updates) if (update.getId() != 0) ids.add(update.getId());
+			Map<Long,Contact> contacts = new HashMap<Long,Contact>();
+			for(int from=0; from<ids.size(); from+=CHUNK) {
+				for(Contact c : em.createNamedQuery("Contact.findByIds", Contact.class)
+						.setParameter("ids", ids.subList(from, Math.min(from + CHUNK, ids.size())))
+						.getResultList()) contacts.put(c.getId(), c);
+			}
+			for(int k=0; k<result.length; k++) {
+				Contact update = updates.get(k);
+				Contact contact = (update.getId() == 0) ? null : contacts.get(update.getId());
+				if (update.getId() == 0) result[k] = WriteStatus.INVALID;
+				else if (contact == null) result[k] = WriteStatus.NOT_FOUND;
+				else {
+					contact.applyUpdate(update);
+					result[k] = WriteStatus.UPDATED;
+				}
+			}
+			// the changed contacts are written as a JDBC batch at commit
+			return null;
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#deleteAll(long[])
+	 */
+	@Override
+	public WriteStatus[] deleteAll(final long[] ids) {
+		final WriteStatus[] result = new WriteStatus[ids.length];
+		Arrays.fill(result, WriteStatus.NOT_FOUND);
+		write(em -> {
+			List<Long> list = new ArrayList<Long>(ids.length);
+			for(long id : ids) list.add(id);
+			Set<Long> found = new HashSet<Long>();
+			for(int from=0; from<list.size(); from+=CHUNK) {
+				List<Long> chunk = list.subList(from, Math.min(from + CHUNK, list.size()));
+				found.addAll(em.createNamedQuery("Contact.findIds", Long.class).setParameter("ids", chunk).getResultList());
+				em.createNamedQuery("Contact.deleteByIds").setParameter("ids", chunk).executeUpdate();
+			}
+			// a repeated id is deleted only once
+			for(int k=0; k<ids.length; k++) {
+				if (found.remove(ids[k])) result[k] = WriteStatus.DELETED;
+			}
+			return null;
+		});
+		for(int k=0; k<ids.length; k++) {
+			if (result[k] == WriteStatus.DELETED) fireChanged(ids[k]);
+		}
+		return result;
+	}
+
+	/** Close the entity manager factory.  The DAO must not be used afterwards. */
+	public void close() {
+		factory.close();
+	}
+}
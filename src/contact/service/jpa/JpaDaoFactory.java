@@ -0,0 +1,48 @@
+package contact.service.jpa;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+
+import contact.service.DaoException;
+import contact.service.DaoFactory;
+
+/**
+ * Create a JpaContactDao for the "contacts" persistence unit in
+ * META-INF/persistence.xml.  System properties override the properties
+ * of the unit, so the database can be chosen at startup, for example
+ * <code>-Djavax.persistence.jdbc.url=jdbc:h2:/var/lib/contacts/db</code>.
+ *
+ * @author jim
+ */
+public class JpaDaoFactory extends DaoFactory {
+	/** Name of the persistence unit. */
+	public static final String PERSISTENCE_UNIT = "contacts";
+
+	public JpaDaoFactory() {
+		EntityManagerFactory factory;
+		try {
+			factory = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, System.getProperties());
+		} catch (PersistenceException e) {
+			throw new DaoException("cannot open persistence unit " + PERSISTENCE_UNIT, e);
+		}
+		daoInstance = new JpaContactDao(factory);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.DaoFactory#isBlocking()
+	 */
+	@Override
+	protected boolean isBlocking() {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.DaoFactory#shutdown()
+	 */
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		((JpaContactDao) daoInstance).close();
+	}
+}
@@ -0,0 +1,342 @@
+package contact.service.mem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongPredicate;
+
+/**
+ * A concurrent hash map from primitive <code>long</code> keys to values.
+ * Keys are never boxed.
+ * <p>
+ * The map is split into stripes, each an open-addressing table with linear
+ * probing guarded by its own StampedLock.  Writers lock only the stripe that
+ * owns the key, so writers on different stripes never contend.
+ * Readers use an optimistic read and only fall back to the read lock
+ * if a writer touched the stripe during the lookup.
+ * <p>
+ * Null values are not allowed; null is returned to mean "no mapping".
+ * Iteration (see {@link #values()}) is weakly consistent.
+ *
+ * @param <V> type of the values
+ */
+public class ConcurrentLongMap<V> {
+	/** Default number of stripes. Must be a power of 2. */
+	private static final int DEFAULT_STRIPES = 64;
+	/** Initial capacity of each stripe. Must be a power of 2. */
+	private static final int INITIAL_STRIPE_CAPACITY = 16;
+
+	private final Stripe<V>[] stripes;
+	private final int stripeMask;
+
+	public ConcurrentLongMap() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Create a map with a given concurrency level.
+	 * @param concurrency expected number of concurrent writers; rounded up to a power of 2.
+	 */
+	@SuppressWarnings("unchecked")
+	public ConcurrentLongMap(int concurrency) {
+		int n = 1;
+		while (n < concurrency) n <<= 1;
+		stripes = new Stripe[n];
+		for(int k=0; k<n; k++) stripes[k] = new Stripe<V>();
+		stripeMask = n - 1;
+	}
+
+	/** Spread the bits of a key so that sequential ids are scattered. */
+	static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	private Stripe<V> stripeFor(int hash) {
+		// use the high bits for the stripe; the low bits select the slot
+		return stripes[(hash >>> 24) & stripeMask];
+	}
+
+	/**
+	 * Get the value mapped to key.
+	 * @param key the key to look up
+	 * @return the value, or null if there is no mapping for key
+	 */
+	public V get(long key) {
+		int h = hash(key);
+		return stripeFor(h).get(key, h);
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Map key to value, replacing any previous value.
+	 * @return the previous value or null
+	 */
+	public V put(long key, V value) {
+		if (value == null) throw new NullPointerException("null values are not allowed");
+		int h = hash(key);
+		return stripeFor(h).put(key, h, value, false);
+	}
+
+	/**
+	 * Map key to value only if key is not already mapped.
+	 * @return the existing value, or null if value was added
+	 */
+	public V putIfAbsent(long key, V value) {
+		if (value == null) throw new NullPointerException("null values are not allowed");
+		int h = hash(key);
+		return stripeFor(h).put(key, h, value, true);
+	}
+
+	/**
+	 * Remove the mapping for key.
+	 * @return the removed value or null if key was not mapped
+	 */
+	public V remove(long key) {
+		int h = hash(key);
+		return stripeFor(h).remove(key, h, null);
+	}
+
+	/**
+	 * Remove the mapping for key only if it is currently mapped to expected
+	 * (compared by identity).
+	 * @return true if the mapping was removed
+	 */
+	public boolean remove(long key, V expected) {
+		int h = hash(key);
+		return stripeFor(h).remove(key, h, expected) != null;
+	}
+
+	/**
+	 * Replace the value for key only if it is currently mapped to expected
+	 * (compared by identity).
+	 * @return true if the value was replaced
+	 */
+	public boolean replace(long key, V expected, V value) {
+		if (value == null) throw new NullPointerException("null values are not allowed");
+		int h = hash(key);
+		return stripeFor(h).replace(key, h, expected, value);
+	}
+
+	/** @return the number of mappings.  The result is exact only when there are no concurrent writers. */
+	public int size() {
+		int size = 0;
+		for(Stripe<V> s : stripes) size += s.size;
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/** Remove all mappings. */
+	public void clear() {
+		for(Stripe<V> s : stripes) s.clear();
+	}
+
+	/**
+	 * Get a snapshot of the values.  Each stripe is copied under its read lock,
+	 * but the stripes are not all locked at once.
+	 * @return a new list of the values, in no particular order
+	 */
+	public List<V> values() {
+		List<V> result = new ArrayList<V>(size());
+		for(Stripe<V> s : stripes) s.copyValues(result);
+		return result;
+	}
+
+	/**
+	 * Pass each key to visitor until it returns false.
+	 * Each stripe is visited under its read lock, so the visitor must not
+	 * modify this map.
+	 * @param visitor called with each key; return false to stop early
+	 * @return false if the visitor stopped the iteration, true otherwise
+	 */
+	public boolean forEachKey(LongPredicate visitor) {
+		for(Stripe<V> s : stripes) {
+			if (! s.forEachKey(visitor)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * One segment of the map: an open-addressing table with linear probing.
+	 * A key slot holding 0 is empty unless the matching value is non-null,
+	 * so 0 is a legal key.
+	 */
+	private static final class Stripe<V> {
+		private final StampedLock lock = new StampedLock();
+		private long[] keys = new long[INITIAL_STRIPE_CAPACITY];
+		private Object[] values = new Object[INITIAL_STRIPE_CAPACITY];
+		private volatile int size;
+
+		V get(long key, int hash) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp != 0L) {
+				V value = probe(keys, values, key, hash);
+				if (lock.validate(stamp)) return value;
+			}
+			stamp = lock.readLock();
+			try {
+				return probe(keys, values, key, hash);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		/**
+		 * Find key in the table. Safe to call on a table that is being
+		 * modified: the loop is bounded by the table length and a torn
+		 * result is discarded by the caller's validate().
+		 */
+		@SuppressWarnings("unchecked")
+		private static <V> V probe(long[] keys, Object[] values, long key, int hash) {
+			int mask = values.length - 1;
+			if (keys.length != values.length) return null; // caught mid-resize
+			int i = hash & mask;
+			for(int n=0; n<=mask; n++) {
+				Object v = values[i];
+				if (v == null) return null;
+				if (keys[i] == key) return (V) v;
+				i = (i + 1) & mask;
+			}
+			return null;
+		}
+
+		/** @return slot index of key, or -(insertion point + 1) if absent. Caller holds the write lock. */
+		private int indexOf(long key, int hash) {
+			int mask = values.length - 1;
+			int i = hash & mask;
+			while (values[i] != null) {
+				if (keys[i] == key) return i;
+				i = (i + 1) & mask;
+			}
+			return -(i + 1);
+		}
+
+		@SuppressWarnings("unchecked")
+		V put(long key, int hash, V value, boolean onlyIfAbsent) {
+			long stamp = lock.writeLock();
+			try {
+				int i = indexOf(key, hash);
+				if (i >= 0) {
+					V old = (V) values[i];
+					if (! onlyIfAbsent) values[i] = value;
+					return old;
+				}
+				if ((size + 1) * 4 > values.length * 3) {
+					resize(values.length * 2);
+					i = indexOf(key, hash);
+				}
+				i = -(i + 1);
+				keys[i] = key;
+				values[i] = value;
+				size++;
+				return null;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		boolean replace(long key, int hash, V expected, V value) {
+			long stamp = lock.writeLock();
+			try {
+				int i = indexOf(key, hash);
+				if (i < 0 || values[i] != expected) return false;
+				values[i] = value;
+				return true;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		V remove(long key, int hash, V expected) {
+			long stamp = lock.writeLock();
+			try {
+				int i = indexOf(key, hash);
+				if (i < 0) return null;
+				V old = (V) values[i];
+				if (expected != null && old != expected) return null;
+				deleteSlot(i);
+				size--;
+				return old;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		/** Backward-shift deletion, so no tombstones are needed. */
+		private void deleteSlot(int hole) {
+			int mask = values.length - 1;
+			int i = hole;
+			while (true) {
+				i = (i + 1) & mask;
+				if (values[i] == null) break;
+				int home = hash(keys[i]) & mask;
+				// move entry i into the hole if its home slot is not between hole and i (cyclically)
+				if (((i - home) & mask) >= ((i - hole) & mask)) {
+					keys[hole] = keys[i];
+					values[hole] = values[i];
+					hole = i;
+				}
+			}
+			keys[hole] = 0L;
+			values[hole] = null;
+		}
+
+		/** Rehash into a bigger table.  Caller holds the write lock. */
+		private void resize(int capacity) {
+			long[] oldKeys = keys;
+			Object[] oldValues = values;
+			long[] newKeys = new long[capacity];
+			Object[] newValues = new Object[capacity];
+			int mask = capacity - 1;
+			for(int k=0; k<oldValues.length; k++) {
+				if (oldValues[k] == null) continue;
+				int i = hash(oldKeys[k]) & mask;
+				while (newValues[i] != null) i = (i + 1) & mask;
+				newKeys[i] = oldKeys[k];
+				newValues[i] = oldValues[k];
+			}
+			keys = newKeys;
+			values = newValues;
+		}
+
+		void clear() {
+			long stamp = lock.writeLock();
+			try {
+				keys = new long[INITIAL_STRIPE_CAPACITY];
+				values = new Object[INITIAL_STRIPE_CAPACITY];
+				size = 0;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		boolean forEachKey(LongPredicate visitor) {
+			long stamp = lock.readLock();
+			try {
+				for(int k=0; k<values.length; k++) {
+					if (values[k] != null && ! visitor.test(keys[k])) return false;
+				}
+				return true;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		void copyValues(List<V> result) {
+			long stamp = lock.readLock();
+			try {
+				for(Object v : values) if (v != null) result.add((V) v);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+	}
+}
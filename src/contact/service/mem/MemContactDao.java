@@ -1,34 +1,67 @@
 package contact.service.mem;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
 
 import contact.entity.Contact;
-import contact.service.ContactDao;
+import contact.service.AbstractContactDao;
+import contact.service.WriteStatus;
 
 /**
  * Data access object for saving and retrieving contacts.
- * This DAO uses an in-memory list of person.
+ * This DAO uses an in-memory hash index of contacts keyed by id,
+ * so find, save, update and delete take constant time and
+ * are safe to call from many request threads at once.
+ * <p>
+ * Stored contacts are snapshots: save stores a copy of the caller's
+ * contact, and a stored contact is never changed, only replaced by a new
+ * snapshot with compare-and-set.  So readers never lock and never see a
+ * half-applied change, and an update that loses a race with another
+ * writer is applied again to the winner's snapshot rather than lost.
  * Use DaoFactory to get an instance of this class, such as:
  * dao = DaoFactory.getInstance().getContactDao()
  * 
  * @author jim
  */
-public class MemContactDao implements ContactDao {
-	private List<Contact> contacts;
-	private AtomicLong nextId;
+public class MemContactDao extends AbstractContactDao {
+	private final ConcurrentLongMap<Contact> contacts;
+	private final AtomicLong nextId;
+	/** Source of contact versions.  Every change takes the next value, so versions never repeat. */
+	private final AtomicLong versions;
+	/** Secondary index used by findByTitle. */
+	private final TitleIndex titles;
+	/** False while the title index is being built, so title lookups must scan. */
+	private volatile boolean titlesIndexed = true;
+	/** Ids in ascending order, for paging.  May briefly hold ids of deleted contacts. */
+	private final ConcurrentSkipListSet<Long> order;
+	/** Read-only live view of the contacts, returned by findAll. */
+	private final List<Contact> view;
 	
 	public MemContactDao() {
-		contacts = new ArrayList<Contact>();
+		this(true);
+	}
+
+	/**
+	 * Create an empty DAO, with or without the sample contact.
+	 * @param withTestContact if true add a contact with id 1 for testing
+	 */
+	protected MemContactDao(boolean withTestContact) {
+		contacts = new ConcurrentLongMap<Contact>();
 		nextId = new AtomicLong(1000L);
-		createTestContact(1);
+		versions = new AtomicLong();
+		titles = new TitleIndex();
+		order = new ConcurrentSkipListSet<Long>();
+		view = new ContactsView();
+		if (withTestContact) createTestContact(1);
 	}
 	
 	/** add a single contact with given id for testing. */
 	private void createTestContact(long id) {
 		Contact test = new Contact("Test contact", "Joe Experimental", "none@testing.com");
 		test.setId(id);
-		contacts.add(test);
+		store(test);
 	}
 
 	/* (non-Javadoc)
@@ -36,19 +69,89 @@ public class MemContactDao implements ContactDao {
 	 */
 	@Override
 	public Contact find(long id) {
-		for(Contact c : contacts) 
-			if (c.getId() == id) return c;
-		return null;
+		return contacts.get(id);
 	}
 	
 	/* (non-Javadoc)
 	 * @see contact.service.ContactDao#findByTitle(String)
 	 */
+	@Override
 	public Contact findByTitle(String title) {
-		
-		for(Contact c : contacts) 
-			if (c.getTitle().equalsIgnoreCase(title)) return c;
-		return null;
+		return findByTitle(title, false);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findByTitle(String, boolean)
+	 */
+	@Override
+	public Contact findByTitle(final String title, final boolean caseSensitive) {
+		if (title == null) return null;
+		if (! titlesIndexed) {
+			for(Contact c : view) {
+				if (c.getTitle() == null) continue;
+				if (caseSensitive ? c.getTitle().equals(title) : c.getTitle().equalsIgnoreCase(title)) return c;
+			}
+			return null;
+		}
+		final Contact[] match = new Contact[1];
+		titles.find(title, caseSensitive, new LongPredicate() {
+			public boolean test(long id) {
+				Contact c = contacts.get(id);
+				// the index may lag a concurrent writer, so verify the match
+				if (c == null || c.getTitle() == null) return true;
+				if (! (caseSensitive ? c.getTitle().equals(title) : c.getTitle().equalsIgnoreCase(title))) return true;
+				// the postings are unordered, so return the lowest id, as a scan does
+				if (match[0] == null || id < match[0].getId()) match[0] = c;
+				return true;
+			}
+		});
+		return match[0];
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#search(String, boolean, int)
+	 */
+	@Override
+	public List<Contact> search(String text, boolean prefixOnly, final int limit) {
+		final List<Contact> matches = new ArrayList<Contact>();
+		if (text == null || text.isEmpty() || limit <= 0) return matches;
+		final String key = TitleIndex.fold(text);
+		if (! titlesIndexed) {
+			// same order as the index gives: prefix matches, then other substring matches
+			for(int pass=0; pass<(prefixOnly ? 1 : 2) && matches.size() < limit; pass++) {
+				for(Contact c : view) {
+					addMatch(matches, c.getId(), key, pass == 0);
+					if (matches.size() >= limit) break;
+				}
+			}
+			return matches;
+		}
+		// prefix matches come first, since they are what type-ahead users expect
+		titles.findPrefix(key, new LongPredicate() {
+			public boolean test(long id) {
+				addMatch(matches, id, key, true);
+				return matches.size() < limit;
+			}
+		});
+		if (prefixOnly || matches.size() >= limit) return matches;
+		titles.findSubstring(key, new LongPredicate() {
+			public boolean test(long id) {
+				addMatch(matches, id, key, false);
+				return matches.size() < limit;
+			}
+		});
+		return matches;
+	}
+
+	/** Add contact with the given id to matches if its title matches and it is not already there. */
+	private void addMatch(List<Contact> matches, long id, String key, boolean prefix) {
+		Contact c = contacts.get(id);
+		if (c == null || c.getTitle() == null) return;
+		String title = TitleIndex.fold(c.getTitle());
+		if (prefix ? ! title.startsWith(key) : ! title.contains(key)) return;
+		// matches is at most a page long, so a linear check is cheap
+		for(Contact m : matches) if (m.getId() == id) return;
+		matches.add(c);
 	}
 
 	/* (non-Javadoc)
@@ -56,7 +159,29 @@ public class MemContactDao implements ContactDao {
 	 */
 	@Override
 	public List<Contact> findAll() {
-		return java.util.Collections.unmodifiableList(contacts);
+		return view;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#count()
+	 */
+	@Override
+	public long count() {
+		return contacts.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findPage(long, int)
+	 */
+	@Override
+	public List<Contact> findPage(long afterId, int limit) {
+		List<Contact> page = new ArrayList<Contact>(Math.min(limit, 1024));
+		Iterator<Long> ids = order.tailSet(afterId, false).iterator();
+		while (page.size() < limit && ids.hasNext()) {
+			Contact c = contacts.get(ids.next());
+			if (c != null) page.add(c);
+		}
+		return page;
 	}
 
 	/* (non-Javadoc)
@@ -64,13 +189,42 @@ public class MemContactDao implements ContactDao {
 	 */
 	@Override
 	public boolean delete(long id) {
-		for(int k=0; k<contacts.size(); k++) {
-			if (contacts.get(k).getId() == id) {
-				contacts.remove(k);
-				return true;
-			}
+		return remove(id);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#delete(long, long)
+	 */
+	@Override
+	public WriteStatus delete(long id, long expectedVersion) {
+		Contact current = contacts.get(id);
+		if (current == null) return WriteStatus.NOT_FOUND;
+		if (current.getVersion() != expectedVersion) return WriteStatus.CONFLICT;
+		if (! contacts.remove(id, current)) {
+			// changed or deleted since it was read
+			return contacts.containsKey(id) ? WriteStatus.CONFLICT : WriteStatus.NOT_FOUND;
 		}
-		return false;
+		unindex(id);
+		fireChanged(id);
+		return WriteStatus.DELETED;
+	}
+
+	private boolean remove(long id) {
+		if (contacts.remove(id) == null) return false;
+		unindex(id);
+		fireChanged(id);
+		return true;
+	}
+
+	/** Remove a contact that was just deleted from the title index and the id order. */
+	private void unindex(long id) {
+		titles.remove(id);
+		// a save of the same id may have indexed its title before the remove
+		Contact current = contacts.get(id);
+		if (current != null) indexTitle(current);
+		order.remove(id);
+		// and may have added its id to the order before the remove, too
+		if (contacts.containsKey(id)) order.add(id);
 	}
 	
 	/* (non-Javadoc)
@@ -78,15 +232,69 @@ public class MemContactDao implements ContactDao {
 	 */
 	@Override
 	public boolean save(Contact contact) {
+		return store(contact);
+	}
+
+	/** Save a contact.  Subclasses may override save, so other methods use this. */
+	private boolean store(Contact contact) {
+		contact.setVersion( versions.incrementAndGet() );
+		Contact snapshot = contact.copy();
 		if (contact.getId() == 0) {
-			contact.setId( getUniqueId() );
-			return contacts.add(contact);
+			// claim a fresh id atomically, so concurrent saves never share one
+			do {
+				contact.setId( nextId.getAndIncrement() );
+				snapshot.setId( contact.getId() );
+			} while (contacts.putIfAbsent(contact.getId(), snapshot) != null);
+			order.add(contact.getId());
 		}
-		// check if this contact is already in persistent storage
-		Contact other  = find(contact.getId());
-		if (other == contact) return true;
-		if ( other != null ) contacts.remove(other);
-		return contacts.add(contact);
+		// replaces the old contact with the same id, if any
+		else if (contacts.put(contact.getId(), snapshot) == null) {
+			order.add(contact.getId());
+		}
+		indexTitle(snapshot);
+		fireChanged(contact.getId());
+		return true;
+	}
+
+	/**
+	 * Index the title of a snapshot just stored.  A writer that replaced it
+	 * meanwhile may have indexed its own title first, so the title of the
+	 * current snapshot is indexed again if it is not this one.
+	 */
+	private void indexTitle(Contact snapshot) {
+		long id = snapshot.getId();
+		titles.put(id, snapshot.getTitle());
+		Contact current = contacts.get(id);
+		if (current != null && current != snapshot) titles.put(id, current.getTitle());
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#insertAll(java.util.List)
+	 */
+	@Override
+	public WriteStatus[] insertAll(List<Contact> batch) {
+		WriteStatus[] result = new WriteStatus[batch.size()];
+		int k = 0;
+		for(Contact contact : batch) {
+			result[k++] = insert(contact);
+		}
+		return result;
+	}
+
+	/** Save a contact only if its id is not in use. */
+	private WriteStatus insert(Contact contact) {
+		if (contact.getTitle() == null || contact.getTitle().trim().isEmpty()) return WriteStatus.INVALID;
+		if (contact.getId() == 0) {
+			store(contact);
+			return WriteStatus.CREATED;
+		}
+		contact.setVersion( versions.incrementAndGet() );
+		Contact snapshot = contact.copy();
+		if (contacts.putIfAbsent(contact.getId(), snapshot) != null) return WriteStatus.CONFLICT;
+		order.add(contact.getId());
+		indexTitle(snapshot);
+		fireChanged(contact.getId());
+		return WriteStatus.CREATED;
 	}
 
 	/* (non-Javadoc)
@@ -94,23 +302,205 @@ public class MemContactDao implements ContactDao {
 	 */
 	@Override
 	public boolean update(Contact update) {
-		Contact contact = find(update.getId());
-		if (contact == null) return false;
-		contact.applyUpdate(update);
-		save(contact);
-		return true;
+		return apply(update);
+	}
+
+	private boolean apply(Contact update) {
+		while (true) {
+			Contact current = contacts.get(update.getId());
+			if (current == null) return false;
+			Contact snapshot = current.copy();
+			snapshot.applyUpdate(update);
+			snapshot.setVersion( versions.incrementAndGet() );
+			if (contacts.replace(snapshot.getId(), current, snapshot)) {
+				indexTitle(snapshot);
+				fireChanged(snapshot.getId());
+				return true;
+			}
+			// another writer replaced the contact first; apply the update to its snapshot
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#replace(contact.entity.Contact, long)
+	 */
+	@Override
+	public WriteStatus replace(Contact contact, long expectedVersion) {
+		long id = contact.getId();
+		Contact current = contacts.get(id);
+		if (current == null) return WriteStatus.NOT_FOUND;
+		if (current.getVersion() != expectedVersion) return WriteStatus.CONFLICT;
+		Contact snapshot = contact.copy();
+		snapshot.setVersion( versions.incrementAndGet() );
+		if (! contacts.replace(id, current, snapshot)) {
+			// changed or deleted since it was read
+			return contacts.containsKey(id) ? WriteStatus.CONFLICT : WriteStatus.NOT_FOUND;
+		}
+		contact.setVersion( snapshot.getVersion() );
+		indexTitle(snapshot);
+		fireChanged(id);
+		return WriteStatus.UPDATED;
 	}
 	
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#updateAll(java.util.List)
+	 */
+	@Override
+	public WriteStatus[] updateAll(List<Contact> updates) {
+		WriteStatus[] result = new WriteStatus[updates.size()];
+		int k = 0;
+		for(Contact update : updates) {
+			if (update.getId() == 0) result[k++] = WriteStatus.INVALID;
+			else result[k++] = apply(update) ? WriteStatus.UPDATED : WriteStatus.NOT_FOUND;
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#deleteAll(long[])
+	 */
+	@Override
+	public WriteStatus[] deleteAll(long[] ids) {
+		WriteStatus[] result = new WriteStatus[ids.length];
+		for(int k=0; k<ids.length; k++) {
+			result[k] = remove(ids[k]) ? WriteStatus.DELETED : WriteStatus.NOT_FOUND;
+		}
+		return result;
+	}
+	
+	/**
+	 * Get an id that is not in use, for a contact that will be saved with it.
+	 * Ids are never handed out twice.
+	 * @return an unused contact id
+	 */
+	protected long newId() {
+		long id = nextId.getAndIncrement();
+		while (contacts.containsKey(id)) id = nextId.getAndIncrement();
+		return id;
+	}
+
 	/**
-	 * Get a unique contact ID.
-	 * @return unique id not in persistent storage
+	 * Get a version for a contact about to be changed by a subclass.
+	 * @return a version greater than any handed out before
 	 */
-	private synchronized long getUniqueId() {
-		long id = nextId.getAndAdd(1L);
-		while( id < Long.MAX_VALUE ) {	
-			if (find(id) == null) return id;
-			id = nextId.getAndAdd(1L);
+	protected long newVersion() {
+		return versions.incrementAndGet();
+	}
+
+	/**
+	 * Make a contact that a subclass has already made durable visible,
+	 * replacing the contact with its id, if any, and notify listeners.
+	 * The contact itself is stored, so the caller must not change it afterwards.
+	 * @param contact a contact with its id and version set
+	 */
+	protected void publish(Contact contact) {
+		if (contacts.put(contact.getId(), contact) == null) order.add(contact.getId());
+		indexTitle(contact);
+		fireChanged(contact.getId());
+	}
+
+	/**
+	 * Put back a contact exactly as it was saved before, keeping its id and version.
+	 * Used to rebuild the DAO from durable storage.  Listeners are not notified.
+	 * The contact itself is stored, so the caller must not change it afterwards.
+	 * Ids and versions handed out afterwards are greater than those restored.
+	 * @param contact a contact with its id and version set
+	 */
+	protected void restore(Contact contact) {
+		long id = contact.getId();
+		if (contacts.put(id, contact) == null) order.add(id);
+		if (titlesIndexed) titles.put(id, contact.getTitle());
+		advance(nextId, id + 1);
+		advance(versions, contact.getVersion());
+	}
+
+	/**
+	 * Stop indexing titles of restored contacts.  Indexing titles costs
+	 * much more than storing contacts, so a subclass restoring many contacts
+	 * calls this first and {@link #indexTitles()} once they are all restored.
+	 * Until then findByTitle and search scan all contacts, taking time in
+	 * proportion to the size of the store, rather than wait for the index.
+	 */
+	protected void deferTitleIndex() {
+		titlesIndexed = false;
+	}
+
+	/**
+	 * Index the titles of all contacts and switch title lookups back to the index.
+	 * Other threads may read and write contacts meanwhile.
+	 */
+	protected void indexTitles() {
+		for(Contact c : view) {
+			long id = c.getId();
+			String title = c.getTitle();
+			// a writer that got here first has indexed the contact's current title
+			if (title == null || ! titles.putIfAbsent(id, title)) continue;
+			// the contact may have been deleted before it was indexed
+			if (contacts.get(id) == null) titles.remove(id);
+		}
+		titlesIndexed = true;
+	}
+
+	/** Raise counter to at least value. */
+	private static void advance(AtomicLong counter, long value) {
+		long current = counter.get();
+		while (current < value && ! counter.compareAndSet(current, value)) current = counter.get();
+	}
+
+	/**
+	 * A read-only list view of the contacts, in id order, that always reflects
+	 * the current contents of the DAO.  Iteration is weakly consistent, so it
+	 * never throws ConcurrentModificationException.
+	 * <p>
+	 * The view is not RandomAccess: get walks the contacts from the start,
+	 * taking time in proportion to the index, and the index of a contact
+	 * changes as others are added and deleted.  Iterate it, or copy it to
+	 * index it in a loop.  size is exact only when there are no concurrent
+	 * writers.
+	 */
+	private class ContactsView extends AbstractList<Contact> {
+		@Override
+		public Contact get(int index) {
+			if (index >= 0) {
+				int k = 0;
+				for(Contact c : this) {
+					if (k++ == index) return c;
+				}
+			}
+			throw new IndexOutOfBoundsException("Index: " + index);
+		}
+
+		@Override
+		public Iterator<Contact> iterator() {
+			final Iterator<Long> ids = order.iterator();
+			return new Iterator<Contact>() {
+				private Contact next = advance();
+
+				/** skip ids of contacts deleted since they were ordered */
+				private Contact advance() {
+					while (ids.hasNext()) {
+						Contact c = contacts.get(ids.next());
+						if (c != null) return c;
+					}
+					return null;
+				}
+
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				public Contact next() {
+					if (next == null) throw new NoSuchElementException();
+					Contact c = next;
+					next = advance();
+					return c;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return contacts.size();
 		}
-		return id; // this should never happen
 	}
 }
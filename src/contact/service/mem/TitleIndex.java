@@ -0,0 +1,272 @@
+package contact.service.mem;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.LongPredicate;
+
+/**
+ * Secondary index from contact title to contact ids.
+ * Each title is indexed twice: once exactly and once case-folded,
+ * so both case-sensitive and case-insensitive lookups are a single hash probe.
+ * <p>
+ * For type-ahead search the folded titles are also kept in sorted order
+ * (for prefix search) and split into trigrams with postings lists
+ * (for substring search).  Titles are padded at the end, so every
+ * substring of 1 to 3 characters is the prefix of some indexed trigram.
+ * <p>
+ * The index only holds ids.  It remembers the title each id was indexed
+ * under, so callers may mutate a Contact and then call {@link #put(long, String)}
+ * to move it to its new title.  Lookups may briefly return a stale id while
+ * a writer is moving a contact, so callers should verify the title of the
+ * contact they fetch.
+ */
+public class TitleIndex {
+	/** Most ids a title's postings hold in an array before they move to a set. */
+	static final int SMALL_POSTINGS = 8;
+	/** Number of locks used to serialize index updates for the same id. */
+	private static final int LOCKS = 64;
+	/** Length of the n-grams used for substring search. */
+	static final int GRAM = 3;
+	/** Padding appended to titles before they are split into grams. */
+	private static final char PAD = '\u0003';
+	/** Separates title from id in sorted keys.  Sorts before any title character. */
+	private static final char SEPARATOR = '\u0000';
+
+	/**
+	 * Ids by exact and by folded title.  Each value is a long[] while it
+	 * holds at most {@value #SMALL_POSTINGS} ids, as most titles are unique,
+	 * and a ConcurrentLongMap used as a set once it holds more, so adding or
+	 * removing an id costs the same however many contacts share a title.
+	 */
+	private final ConcurrentHashMap<String,Object> exact = new ConcurrentHashMap<String,Object>();
+	private final ConcurrentHashMap<String,Object> folded = new ConcurrentHashMap<String,Object>();
+	/** The title under which each id is currently indexed. */
+	private final ConcurrentLongMap<String> indexed = new ConcurrentLongMap<String>();
+	/** Folded titles in sorted order, as "title SEPARATOR id" so duplicate titles are distinct keys. */
+	private final ConcurrentSkipListSet<String> sorted = new ConcurrentSkipListSet<String>();
+	/** Trigram postings: for each gram, the ids of contacts whose folded title contains it. */
+	private final ConcurrentSkipListMap<String,ConcurrentLongMap<Boolean>> grams =
+			new ConcurrentSkipListMap<String,ConcurrentLongMap<Boolean>>();
+	private final Object[] locks = new Object[LOCKS];
+
+	public TitleIndex() {
+		for(int k=0; k<LOCKS; k++) locks[k] = new Object();
+	}
+
+	/**
+	 * Fold a title to the key used for case-insensitive lookup.
+	 * @param title a contact title, not null
+	 * @return the case-insensitive form of title
+	 */
+	public static String fold(String title) {
+		return title.toLowerCase(Locale.ROOT);
+	}
+
+	private Object lockFor(long id) {
+		return locks[ConcurrentLongMap.hash(id) & (LOCKS - 1)];
+	}
+
+	/**
+	 * Index id under title, removing it from the title it was indexed under before.
+	 * @param id the contact id
+	 * @param title the contact's current title. If null the id is only removed.
+	 */
+	public void put(long id, String title) {
+		synchronized (lockFor(id)) {
+			String old = (title == null) ? indexed.remove(id) : indexed.put(id, title);
+			if (old != null && old.equals(title)) return;
+			if (old != null) {
+				String key = fold(old);
+				removeId(exact, old, id);
+				removeId(folded, key, id);
+				sorted.remove(sortKey(key, id));
+				// empty postings lists are kept, since dropping them would race with adders
+				for(String gram : grams(key)) {
+					ConcurrentLongMap<Boolean> ids = this.grams.get(gram);
+					if (ids != null) ids.remove(id);
+				}
+			}
+			if (title != null) {
+				String key = fold(title);
+				addId(exact, title, id);
+				addId(folded, key, id);
+				sorted.add(sortKey(key, id));
+				for(String gram : grams(key)) {
+					ConcurrentLongMap<Boolean> ids = this.grams.get(gram);
+					if (ids == null) {
+						ConcurrentLongMap<Boolean> created = new ConcurrentLongMap<Boolean>(1);
+						ids = this.grams.putIfAbsent(gram, created);
+						if (ids == null) ids = created;
+					}
+					ids.put(id, Boolean.TRUE);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Index id under title only if it is not indexed already.
+	 * Used to build the index while writers may be moving the same ids.
+	 * @param id the contact id
+	 * @param title the contact's title, not null
+	 * @return true if id was added
+	 */
+	public boolean putIfAbsent(long id, String title) {
+		synchronized (lockFor(id)) {
+			if (indexed.containsKey(id)) return false;
+			put(id, title);
+			return true;
+		}
+	}
+
+	/**
+	 * Remove id from the index.
+	 * @param id the contact id
+	 */
+	public void remove(long id) {
+		put(id, null);
+	}
+
+	/**
+	 * Pass the ids of contacts with a title to visitor, in no particular
+	 * order, until the visitor returns false.
+	 * @param title the title to look up
+	 * @param caseSensitive if false, ignore differences in letter case
+	 * @param visitor called with each id; return false to stop
+	 */
+	@SuppressWarnings("unchecked")
+	public void find(String title, boolean caseSensitive, LongPredicate visitor) {
+		Object ids = caseSensitive ? exact.get(title) : folded.get(fold(title));
+		if (ids instanceof long[]) {
+			for(long id : (long[]) ids) {
+				if (! visitor.test(id)) return;
+			}
+		}
+		else if (ids != null) ((ConcurrentLongMap<Boolean>) ids).forEachKey(visitor);
+	}
+
+	/**
+	 * Pass ids of contacts whose folded title starts with prefix to visitor,
+	 * in title order, until the visitor returns false.
+	 * The cost is proportional to the number of ids visited, not the size of the index.
+	 * @param prefix the prefix to match; letter case is ignored
+	 * @param visitor called with each matching id; return false to stop
+	 */
+	public void findPrefix(String prefix, LongPredicate visitor) {
+		String from = fold(prefix);
+		for(String key : sorted.tailSet(from)) {
+			if (! key.startsWith(from)) return;
+			long id = Long.parseLong(key.substring(key.lastIndexOf(SEPARATOR) + 1));
+			if (! visitor.test(id)) return;
+		}
+	}
+
+	/**
+	 * Pass ids of contacts whose folded title may contain text to visitor,
+	 * until the visitor returns false.  Candidates come from the smallest
+	 * postings list of the trigrams in text, so the caller must verify
+	 * each candidate.  The same id may be visited more than once when
+	 * text is shorter than a trigram.
+	 * @param text the text to match; letter case is ignored
+	 * @param visitor called with each candidate id; return false to stop
+	 */
+	public void findSubstring(String text, LongPredicate visitor) {
+		String key = fold(text);
+		if (key.isEmpty()) return;
+		if (key.length() < GRAM) {
+			// every occurrence of a short text is the start of some trigram
+			for(ConcurrentLongMap<Boolean> ids : grams.subMap(key, key + Character.MAX_VALUE).values()) {
+				if (! ids.forEachKey(visitor)) return;
+			}
+			return;
+		}
+		ConcurrentLongMap<Boolean> smallest = null;
+		for(int k=0; k+GRAM<=key.length(); k++) {
+			ConcurrentLongMap<Boolean> ids = grams.get(key.substring(k, k+GRAM));
+			if (ids == null) return; // some trigram occurs nowhere
+			if (smallest == null || ids.size() < smallest.size()) smallest = ids;
+		}
+		smallest.forEachKey(visitor);
+	}
+
+	/** Remove all entries. */
+	public void clear() {
+		exact.clear();
+		folded.clear();
+		indexed.clear();
+		sorted.clear();
+		grams.clear();
+	}
+
+	private static String sortKey(String foldedTitle, long id) {
+		return foldedTitle + SEPARATOR + id;
+	}
+
+	/**
+	 * Split a folded title into distinct trigrams.  The title is padded at
+	 * the end so short titles and title endings produce grams too.
+	 */
+	static String[] grams(String foldedTitle) {
+		StringBuilder padded = new StringBuilder(foldedTitle.length() + GRAM - 1).append(foldedTitle);
+		for(int k=1; k<GRAM; k++) padded.append(PAD);
+		int count = Math.max(padded.length() - GRAM + 1, 0);
+		String[] result = new String[count];
+		int n = 0;
+		next:
+		for(int k=0; k<count; k++) {
+			String gram = padded.substring(k, k+GRAM);
+			for(int j=0; j<n; j++) if (result[j].equals(gram)) continue next;
+			result[n++] = gram;
+		}
+		return (n == count) ? result : Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * Add an id to the postings of a key.  The map's compute runs one
+	 * writer at a time for a key, so postings need no lock of their own.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void addId(ConcurrentHashMap<String,Object> map, String key, final long id) {
+		map.compute(key, (k, ids) -> {
+			if (ids == null) return new long[] { id };
+			if (ids instanceof ConcurrentLongMap) {
+				((ConcurrentLongMap<Boolean>) ids).put(id, Boolean.TRUE);
+				return ids;
+			}
+			long[] small = (long[]) ids;
+			if (small.length < SMALL_POSTINGS) {
+				long[] grown = Arrays.copyOf(small, small.length + 1);
+				grown[small.length] = id;
+				return grown;
+			}
+			ConcurrentLongMap<Boolean> set = new ConcurrentLongMap<Boolean>(1);
+			for(long other : small) set.put(other, Boolean.TRUE);
+			set.put(id, Boolean.TRUE);
+			return set;
+		});
+	}
+
+	/** Remove an id from the postings of a key, and the key once it has no ids. */
+	@SuppressWarnings("unchecked")
+	private static void removeId(ConcurrentHashMap<String,Object> map, String key, final long id) {
+		map.computeIfPresent(key, (k, ids) -> {
+			if (ids instanceof ConcurrentLongMap) {
+				ConcurrentLongMap<Boolean> set = (ConcurrentLongMap<Boolean>) ids;
+				set.remove(id);
+				return set.isEmpty() ? null : set;
+			}
+			long[] small = (long[]) ids;
+			int n = 0;
+			while (n < small.length && small[n] != id) n++;
+			if (n == small.length) return small;
+			if (small.length == 1) return null;
+			long[] shrunk = new long[small.length - 1];
+			System.arraycopy(small, 0, shrunk, 0, n);
+			System.arraycopy(small, n + 1, shrunk, n, small.length - n - 1);
+			return shrunk;
+		});
+	}
+}
@@ -0,0 +1,194 @@
+package contact.service.offheap;
+
+import java.util.function.LongPredicate;
+
+/**
+ * An open-addressing hash table of <code>long</code> keys and values,
+ * held in two primitive arrays so it adds no objects for the garbage
+ * collector to trace.  It can be used as a map (get, put, remove) or,
+ * with {@link #add(long, long)}, as a multimap where a key has many values.
+ * Don't mix the two uses in one table.
+ * <p>
+ * Key 0 marks an empty slot, so it may not be used as a key.
+ * The table is not thread-safe.  Writers must hold a lock.  Readers may
+ * read without the lock if they validate a StampedLock stamp afterwards.
+ * A read that overlaps a write may return a wrong result, but it cannot
+ * loop forever or index outside the arrays.
+ */
+final class LongLongTable {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private long[] keys = new long[INITIAL_CAPACITY];
+	private long[] values = new long[INITIAL_CAPACITY];
+	private int size;
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	private static void checkKey(long key) {
+		if (key == 0) throw new IllegalArgumentException("key 0 is reserved");
+	}
+
+	/** @return the number of entries */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Get the value of a key.
+	 * @param key the key
+	 * @param missing value to return if key is not in the table
+	 * @return the value of the first entry for key, or missing
+	 */
+	long get(long key, long missing) {
+		long[] keys = this.keys;
+		long[] values = this.values;
+		if (keys.length != values.length) return missing; // caught mid-resize
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		for(int n=0; n<=mask; n++) {
+			long k = keys[i];
+			if (k == 0) return missing;
+			if (k == key) return values[i];
+			i = (i + 1) & mask;
+		}
+		return missing;
+	}
+
+	/** @return true if key is in the table.  Only for writers holding the lock. */
+	boolean containsKey(long key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Pass each value of a key to visitor until it returns false.
+	 * @return false if the visitor stopped early
+	 */
+	boolean forEach(long key, LongPredicate visitor) {
+		long[] keys = this.keys;
+		long[] values = this.values;
+		if (keys.length != values.length) return true;
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		for(int n=0; n<=mask; n++) {
+			long k = keys[i];
+			if (k == 0) return true;
+			if (k == key && ! visitor.test(values[i])) return false;
+			i = (i + 1) & mask;
+		}
+		return true;
+	}
+
+	/** @return slot of the first entry for key, or -1 */
+	private int indexOf(long key) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != 0) {
+			if (keys[i] == key) return i;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/** @return slot of the entry for key and value, or -1 */
+	private int indexOf(long key, long value) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != 0) {
+			if (keys[i] == key && values[i] == value) return i;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Set the value of a key, replacing its old value.
+	 * @return the old value, or missing if key was not in the table
+	 */
+	long put(long key, long value, long missing) {
+		checkKey(key);
+		int i = indexOf(key);
+		if (i >= 0) {
+			long old = values[i];
+			values[i] = value;
+			return old;
+		}
+		insert(key, value);
+		return missing;
+	}
+
+	/** Add an entry, even if the table already has entries for key. */
+	void add(long key, long value) {
+		checkKey(key);
+		insert(key, value);
+	}
+
+	private void insert(long key, long value) {
+		if ((size + 1) * 4 > keys.length * 3) resize(keys.length * 2);
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != 0) i = (i + 1) & mask;
+		// write the value first, so an unlocked reader never pairs the key with a stale value
+		values[i] = value;
+		keys[i] = key;
+		size++;
+	}
+
+	/**
+	 * Remove the entry for a key.
+	 * @return the removed value, or missing if key was not in the table
+	 */
+	long remove(long key, long missing) {
+		int i = indexOf(key);
+		if (i < 0) return missing;
+		long old = values[i];
+		deleteSlot(i);
+		return old;
+	}
+
+	/**
+	 * Remove one entry with this key and value.
+	 * @return true if an entry was removed
+	 */
+	boolean removeEntry(long key, long value) {
+		int i = indexOf(key, value);
+		if (i < 0) return false;
+		deleteSlot(i);
+		return true;
+	}
+
+	/** Backward-shift deletion, as in ConcurrentLongMap, so no tombstones are needed. */
+	private void deleteSlot(int hole) {
+		int mask = keys.length - 1;
+		int i = hole;
+		while (true) {
+			i = (i + 1) & mask;
+			if (keys[i] == 0) break;
+			int home = hash(keys[i]) & mask;
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				values[hole] = values[i];
+				keys[hole] = keys[i];
+				hole = i;
+			}
+		}
+		keys[hole] = 0L;
+		size--;
+	}
+
+	private void resize(int capacity) {
+		long[] newKeys = new long[capacity];
+		long[] newValues = new long[capacity];
+		int mask = capacity - 1;
+		for(int k=0; k<keys.length; k++) {
+			if (keys[k] == 0) continue;
+			int i = hash(keys[k]) & mask;
+			while (newKeys[i] != 0) i = (i + 1) & mask;
+			newKeys[i] = keys[k];
+			newValues[i] = values[k];
+		}
+		keys = newKeys;
+		values = newValues;
+	}
+}
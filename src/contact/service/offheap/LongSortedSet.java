@@ -0,0 +1,132 @@
+package contact.service.offheap;
+
+import java.util.Arrays;
+
+/**
+ * A sorted set of <code>long</code> values, kept as a list of sorted
+ * chunks of primitive arrays.  Adding or removing a value shifts at most
+ * one chunk, and the set holds no object per value.
+ * <p>
+ * Not thread-safe: callers must hold a lock for reading and writing.
+ */
+final class LongSortedSet {
+	/** Chunks are split when they reach this size. */
+	private static final int CHUNK = 1024;
+
+	private long[][] chunks = new long[0][];
+	private int[] counts = new int[0];
+	private int chunkCount;
+	private int size;
+
+	int size() {
+		return size;
+	}
+
+	/** @return index of the chunk that holds value or where value belongs, or -1 if there are no chunks */
+	private int chunkFor(long value) {
+		// the last chunk whose first value is <= value, else the first chunk
+		int lo = 0;
+		int hi = chunkCount - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (chunks[mid][0] <= value) lo = mid;
+			else hi = mid - 1;
+		}
+		return chunkCount == 0 ? -1 : lo;
+	}
+
+	/**
+	 * Add a value.
+	 * @return true if the value was not already in the set
+	 */
+	boolean add(long value) {
+		int c = chunkFor(value);
+		if (c < 0) {
+			insertChunk(0, new long[CHUNK], 0);
+			c = 0;
+		}
+		long[] chunk = chunks[c];
+		int n = counts[c];
+		int i = Arrays.binarySearch(chunk, 0, n, value);
+		if (i >= 0) return false;
+		i = -(i + 1);
+		if (n == CHUNK) {
+			// split the full chunk in half, then insert into the proper half
+			long[] right = new long[CHUNK];
+			int half = CHUNK / 2;
+			System.arraycopy(chunk, half, right, 0, CHUNK - half);
+			counts[c] = half;
+			insertChunk(c + 1, right, CHUNK - half);
+			if (i > half) {
+				c++;
+				i -= half;
+			}
+			chunk = chunks[c];
+			n = counts[c];
+		}
+		System.arraycopy(chunk, i, chunk, i + 1, n - i);
+		chunk[i] = value;
+		counts[c] = n + 1;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Remove a value.
+	 * @return true if the value was in the set
+	 */
+	boolean remove(long value) {
+		int c = chunkFor(value);
+		if (c < 0) return false;
+		long[] chunk = chunks[c];
+		int n = counts[c];
+		int i = Arrays.binarySearch(chunk, 0, n, value);
+		if (i < 0) return false;
+		System.arraycopy(chunk, i + 1, chunk, i, n - i - 1);
+		counts[c] = n - 1;
+		if (counts[c] == 0) removeChunk(c);
+		size--;
+		return true;
+	}
+
+	/**
+	 * Copy values greater than after, in ascending order.
+	 * @param after copy values after this one
+	 * @param dest where to put the values
+	 * @return number of values copied, at most dest.length
+	 */
+	int copyAfter(long after, long[] dest) {
+		int copied = 0;
+		int c = Math.max(chunkFor(after), 0);
+		for(; c < chunkCount && copied < dest.length; c++) {
+			int n = counts[c];
+			int i = Arrays.binarySearch(chunks[c], 0, n, after);
+			i = (i >= 0) ? i + 1 : -(i + 1);
+			int count = Math.min(n - i, dest.length - copied);
+			if (count <= 0) continue;
+			System.arraycopy(chunks[c], i, dest, copied, count);
+			copied += count;
+		}
+		return copied;
+	}
+
+	private void insertChunk(int index, long[] chunk, int count) {
+		if (chunkCount == chunks.length) {
+			int capacity = Math.max(8, chunkCount * 2);
+			chunks = Arrays.copyOf(chunks, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+		}
+		System.arraycopy(chunks, index, chunks, index + 1, chunkCount - index);
+		System.arraycopy(counts, index, counts, index + 1, chunkCount - index);
+		chunks[index] = chunk;
+		counts[index] = count;
+		chunkCount++;
+	}
+
+	private void removeChunk(int index) {
+		System.arraycopy(chunks, index + 1, chunks, index, chunkCount - index - 1);
+		System.arraycopy(counts, index + 1, counts, index, chunkCount - index - 1);
+		chunkCount--;
+		chunks[chunkCount] = null;
+	}
+}
@@ -0,0 +1,559 @@
+package contact.service.offheap;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongPredicate;
+
+import contact.entity.Contact;
+import contact.service.AbstractContactDao;
+import contact.service.DaoException;
+import contact.service.WriteStatus;
+import contact.service.file.ContactRecords;
+
+/**
+ * Data access object that keeps contacts outside the Java heap.
+ * Each contact is stored as an encoded record (see ContactRecords) in a
+ * block of direct memory, and the indexes are primitive arrays, so a store
+ * of millions of contacts adds almost nothing for the garbage collector to
+ * trace.  Contact objects are created only when a contact is read, and are
+ * copies: changing one does not change the store.
+ * <p>
+ * Each block holds the record length, a hash of the folded title, and the
+ * record.  An update that still fits its block's size class is written in
+ * place; otherwise the old block is freed and reused by a later write.
+ * <p>
+ * Every writer, including replace for PUT and PATCH, takes one exclusive
+ * store-wide lock, so writes to different contacts do not run in parallel
+ * as they do in the in-memory and file DAOs.  The block allocator, the
+ * indexes and the records themselves are shared, plain memory, and readers
+ * detect a concurrent write only through that lock.  Readers use an
+ * optimistic read and copy the record out of direct memory, and only take
+ * the read lock if a writer intervened, so they never wait for each other.
+ * A batch write takes the lock once for the whole batch, and listeners are
+ * told of its changes after the lock is released.  Direct memory is limited by the JVM option
+ * <code>-XX:MaxDirectMemorySize</code>.
+ * <p>
+ * Title lookups use a hash of the folded title.  Prefix and substring
+ * search scan all contacts, so they are slower than in MemContactDao.
+ *
+ * @author jim
+ */
+public class OffHeapContactDao extends AbstractContactDao {
+	/** Default size of each direct buffer. */
+	public static final int DEFAULT_SLAB_SIZE = 64 << 20;
+	/** Size of the block header: int record length, long title hash. */
+	private static final int HEADER = 4 + 8;
+	/** Addresses are never negative, so this means "no block". */
+	private static final long MISSING = -1L;
+	/** Number of ids copied at a time when iterating over contacts. */
+	private static final int BATCH = 256;
+
+	private final StampedLock lock = new StampedLock();
+	private final OffHeapMemory memory;
+	/** Block address of each contact, by id. */
+	private final LongLongTable addresses = new LongLongTable();
+	/** Ids of contacts by hash of folded title; hashes may collide, so callers verify. */
+	private final LongLongTable titles = new LongLongTable();
+	/** Ids in ascending order, for paging. */
+	private final LongSortedSet order = new LongSortedSet();
+	// guarded by the write lock
+	private long nextId = 1000L;
+	private long versions;
+	private final List<Contact> view = new ContactsView();
+
+	public OffHeapContactDao() {
+		this(DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * Create an empty DAO.
+	 * @param slabSize bytes of direct memory to reserve at a time, at least 1 MB
+	 */
+	public OffHeapContactDao(int slabSize) {
+		memory = new OffHeapMemory(slabSize);
+	}
+
+	/**
+	 * Hash of a folded title, for the title index.
+	 * @return a non-zero hash, or 0 if title is null
+	 */
+	static long titleHash(String title) {
+		if (title == null) return 0L;
+		String key = Contact.foldTitle(title);
+		// 64-bit FNV-1a
+		long h = 0xcbf29ce484222325L;
+		for(int k=0; k<key.length(); k++) {
+			h ^= key.charAt(k);
+			h *= 0x100000001b3L;
+		}
+		return (h == 0) ? 1 : h;
+	}
+
+	/**
+	 * Copy the record of a contact out of direct memory.
+	 * Caller holds the lock or validates a stamp afterwards.
+	 * @return the record, or null if there is no such contact
+	 */
+	private byte[] copyRecord(long id) {
+		long address = addresses.get(id, MISSING);
+		if (address == MISSING) return null;
+		int length = memory.slab(address).getInt(OffHeapMemory.offset(address));
+		if (length < 0 || length > OffHeapMemory.MAX_BLOCK) throw new IllegalStateException("bad record length " + length);
+		byte[] record = new byte[length];
+		memory.read(address, HEADER, record);
+		return record;
+	}
+
+	private static Contact decode(byte[] record) {
+		return (record == null) ? null : ContactRecords.decodePut(ByteBuffer.wrap(record));
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#find(long)
+	 */
+	@Override
+	public Contact find(long id) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0L) {
+			try {
+				byte[] record = copyRecord(id);
+				if (lock.validate(stamp)) return decode(record);
+			} catch (RuntimeException e) {
+				// a writer changed the block during the read; read again under the lock
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return decode(copyRecord(id));
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findByTitle(String)
+	 */
+	@Override
+	public Contact findByTitle(String title) {
+		return findByTitle(title, false);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findByTitle(String, boolean)
+	 */
+	@Override
+	public Contact findByTitle(String title, boolean caseSensitive) {
+		if (title == null) return null;
+		final List<Long> candidates = new ArrayList<Long>(2);
+		long stamp = lock.readLock();
+		try {
+			titles.forEach(titleHash(title), new LongPredicate() {
+				public boolean test(long id) {
+					candidates.add(id);
+					return true;
+				}
+			});
+		} finally {
+			lock.unlockRead(stamp);
+		}
+		Contact match = null;
+		for(long id : candidates) {
+			Contact c = find(id);
+			if (c == null || c.getTitle() == null) continue;
+			if (! (caseSensitive ? c.getTitle().equals(title) : c.getTitle().equalsIgnoreCase(title))) continue;
+			// the postings are unordered, so return the lowest id as other DAOs do
+			if (match == null || c.getId() < match.getId()) match = c;
+		}
+		return match;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#search(String, boolean, int)
+	 */
+	@Override
+	public List<Contact> search(String text, boolean prefixOnly, int limit) {
+		List<Contact> matches = new ArrayList<Contact>();
+		if (text == null || text.isEmpty() || limit <= 0) return matches;
+		String key = Contact.foldTitle(text);
+		// prefix matches first, then other substring matches
+		for(int pass=0; pass<(prefixOnly ? 1 : 2) && matches.size() < limit; pass++) {
+			for(Contact c : view) {
+				if (c.getTitle() == null) continue;
+				String title = Contact.foldTitle(c.getTitle());
+				boolean match = (pass == 0) ? title.startsWith(key) : ! title.startsWith(key) && title.contains(key);
+				if (match) matches.add(c);
+				if (matches.size() >= limit) break;
+			}
+		}
+		return matches;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findAll()
+	 */
+	@Override
+	public List<Contact> findAll() {
+		return view;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#count()
+	 */
+	@Override
+	public long count() {
+		return view.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#findPage(long, int)
+	 */
+	@Override
+	public List<Contact> findPage(long afterId, int limit) {
+		List<Contact> page = new ArrayList<Contact>(Math.min(limit, 1024));
+		long[] ids = new long[Math.min(limit, BATCH)];
+		while (page.size() < limit) {
+			int n = copyIds(afterId, ids);
+			if (n == 0) break;
+			for(int k=0; k<n && page.size() < limit; k++) {
+				Contact c = find(ids[k]);
+				if (c != null) page.add(c);
+			}
+			afterId = ids[n - 1];
+		}
+		return page;
+	}
+
+	/** Copy the ids after afterId, in order, into ids. */
+	private int copyIds(long afterId, long[] ids) {
+		long stamp = lock.readLock();
+		try {
+			return order.copyAfter(afterId, ids);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#delete(long)
+	 */
+	@Override
+	public boolean delete(long id) {
+		long stamp = lock.writeLock();
+		try {
+			if (! remove(id)) return false;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		fireChanged(id);
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#delete(long, long)
+	 */
+	@Override
+	public WriteStatus delete(long id, long expectedVersion) {
+		long stamp = lock.writeLock();
+		try {
+			Contact current = decode(copyRecord(id));
+			if (current == null) return WriteStatus.NOT_FOUND;
+			if (current.getVersion() != expectedVersion) return WriteStatus.CONFLICT;
+			remove(id);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		fireChanged(id);
+		return WriteStatus.DELETED;
+	}
+
+	/** Remove a contact and free its block.  Caller holds the write lock. */
+	private boolean remove(long id) {
+		long address = addresses.remove(id, MISSING);
+		if (address == MISSING) return false;
+		ByteBuffer slab = memory.slab(address);
+		int offset = OffHeapMemory.offset(address);
+		long hash = slab.getLong(offset + 4);
+		if (hash != 0) titles.removeEntry(hash, id);
+		memory.free(address, HEADER + slab.getInt(offset));
+		order.remove(id);
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#save(contact.entity.Contact)
+	 */
+	@Override
+	public boolean save(Contact contact) {
+		long stamp = lock.writeLock();
+		try {
+			if (contact.getId() == 0) contact.setId( newId() );
+			store(contact);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		fireChanged(contact.getId());
+		return true;
+	}
+
+	/** @return an id that is not in use.  Caller holds the write lock. */
+	private long newId() {
+		while (addresses.containsKey(nextId)) nextId++;
+		return nextId++;
+	}
+
+	/**
+	 * Write a contact to its block, replacing any old version.
+	 * Caller holds the write lock.
+	 */
+	private void store(Contact contact) {
+		long id = contact.getId();
+		contact.setVersion( ++versions );
+		byte[] record = ContactRecords.put(contact);
+		int size = HEADER + record.length;
+		if (size > OffHeapMemory.MAX_BLOCK) throw new DaoException("contact " + id + " is too large to store");
+		long hash = titleHash(contact.getTitle());
+		long address = addresses.get(id, MISSING);
+		if (address == MISSING) {
+			address = memory.allocate(size);
+			order.add(id);
+		}
+		else {
+			ByteBuffer slab = memory.slab(address);
+			int offset = OffHeapMemory.offset(address);
+			int oldSize = HEADER + slab.getInt(offset);
+			long oldHash = slab.getLong(offset + 4);
+			if (oldHash != 0) titles.removeEntry(oldHash, id);
+			// overwrite in place if the new record is in the same size class
+			if (! OffHeapMemory.fits(oldSize, size)) {
+				memory.free(address, oldSize);
+				address = memory.allocate(size);
+			}
+		}
+		ByteBuffer slab = memory.slab(address);
+		int offset = OffHeapMemory.offset(address);
+		slab.putInt(offset, record.length);
+		slab.putLong(offset + 4, hash);
+		memory.write(address, HEADER, record);
+		addresses.put(id, address, MISSING);
+		if (hash != 0) titles.add(hash, id);
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#insertAll(java.util.List)
+	 */
+	@Override
+	public WriteStatus[] insertAll(List<Contact> batch) {
+		WriteStatus[] result = new WriteStatus[batch.size()];
+		long stamp = lock.writeLock();
+		try {
+			int k = 0;
+			for(Contact contact : batch) {
+				if (contact.getTitle() == null || contact.getTitle().trim().isEmpty()) result[k] = WriteStatus.INVALID;
+				else if (contact.getId() != 0 && addresses.containsKey(contact.getId())) result[k] = WriteStatus.CONFLICT;
+				else {
+					if (contact.getId() == 0) contact.setId( newId() );
+					store(contact);
+					result[k] = WriteStatus.CREATED;
+				}
+				k++;
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+			// also for the contacts stored before a failure
+			int k = 0;
+			for(Contact contact : batch) {
+				if (result[k++] == WriteStatus.CREATED) fireChanged(contact.getId());
+			}
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#update(contact.entity.Contact)
+	 */
+	@Override
+	public boolean update(Contact update) {
+		long stamp = lock.writeLock();
+		try {
+			if (! change(update)) return false;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		fireChanged(update.getId());
+		return true;
+	}
+
+	/** Apply an update to the stored contact.  Caller holds the write lock. */
+	private boolean change(Contact update) {
+		Contact contact = decode(copyRecord(update.getId()));
+		if (contact == null) return false;
+		contact.applyUpdate(update);
+		store(contact);
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#replace(contact.entity.Contact, long)
+	 */
+	@Override
+	public WriteStatus replace(Contact contact, long expectedVersion) {
+		long stamp = lock.writeLock();
+		try {
+			Contact current = decode(copyRecord(contact.getId()));
+			if (current == null) return WriteStatus.NOT_FOUND;
+			if (current.getVersion() != expectedVersion) return WriteStatus.CONFLICT;
+			store(contact);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		fireChanged(contact.getId());
+		return WriteStatus.UPDATED;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#updateAll(java.util.List)
+	 */
+	@Override
+	public WriteStatus[] updateAll(List<Contact> updates) {
+		WriteStatus[] result = new WriteStatus[updates.size()];
+		long stamp = lock.writeLock();
+		try {
+			int k = 0;
+			for(Contact update : updates) {
+				if (update.getId() == 0) result[k++] = WriteStatus.INVALID;
+				else result[k++] = change(update) ? WriteStatus.UPDATED : WriteStatus.NOT_FOUND;
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+			int k = 0;
+			for(Contact update : updates) {
+				if (result[k++] == WriteStatus.UPDATED) fireChanged(update.getId());
+			}
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see contact.service.ContactDao#deleteAll(long[])
+	 */
+	@Override
+	public WriteStatus[] deleteAll(long[] ids) {
+		WriteStatus[] result = new WriteStatus[ids.length];
+		long stamp = lock.writeLock();
+		try {
+			for(int k=0; k<ids.length; k++) {
+				result[k] = remove(ids[k]) ? WriteStatus.DELETED : WriteStatus.NOT_FOUND;
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+			for(int k=0; k<ids.length; k++) {
+				if (result[k] == WriteStatus.DELETED) fireChanged(ids[k]);
+			}
+		}
+		return result;
+	}
+
+	/** @return bytes of direct memory in blocks holding contacts */
+	public long getUsedBytes() {
+		long stamp = lock.readLock();
+		try {
+			return memory.getUsedBytes();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/** @return bytes of direct memory in freed blocks waiting to be reused */
+	public long getFreeBytes() {
+		long stamp = lock.readLock();
+		try {
+			return memory.getFreeBytes();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/** @return bytes of direct memory reserved by this DAO */
+	public long getReservedBytes() {
+		long stamp = lock.readLock();
+		try {
+			return memory.getReservedBytes();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * A read-only list view of the contacts, in id order, that decodes
+	 * each contact as it is reached.  Iteration is weakly consistent.
+	 * <p>
+	 * The view is not RandomAccess: get walks the contacts from the start,
+	 * taking time in proportion to the index, and the index of a contact
+	 * changes as others are added and deleted.  Iterate it, or copy it to
+	 * index it in a loop.  size is exact only when there are no concurrent
+	 * writers.
+	 */
+	private class ContactsView extends AbstractList<Contact> {
+		@Override
+		public Contact get(int index) {
+			if (index >= 0) {
+				int k = 0;
+				for(Contact c : this) {
+					if (k++ == index) return c;
+				}
+			}
+			throw new IndexOutOfBoundsException("Index: " + index);
+		}
+
+		@Override
+		public Iterator<Contact> iterator() {
+			return new Iterator<Contact>() {
+				private final long[] ids = new long[BATCH];
+				private int count;
+				private int index;
+				private long last = Long.MIN_VALUE;
+				private Contact next = advance();
+
+				/** skip ids of contacts deleted since they were copied */
+				private Contact advance() {
+					while (true) {
+						if (index == count) {
+							count = copyIds(last, ids);
+							index = 0;
+							if (count == 0) return null;
+						}
+						last = ids[index++];
+						Contact c = find(last);
+						if (c != null) return c;
+					}
+				}
+
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				public Contact next() {
+					if (next == null) throw new NoSuchElementException();
+					Contact c = next;
+					next = advance();
+					return c;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			long stamp = lock.readLock();
+			try {
+				return addresses.size();
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+	}
+}
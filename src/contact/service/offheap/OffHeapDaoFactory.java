@@ -0,0 +1,18 @@
+package contact.service.offheap;
+
+import contact.service.DaoFactory;
+
+/**
+ * Create an OffHeapContactDao.  The system property
+ * <code>contact.dao.slab</code> sets how many bytes of direct memory
+ * are reserved at a time (default 64 MB).
+ *
+ * @author jim
+ */
+public class OffHeapDaoFactory extends DaoFactory {
+	public static final String SLAB_PROPERTY = "contact.dao.slab";
+
+	public OffHeapDaoFactory() {
+		daoInstance = new OffHeapContactDao(Integer.getInteger(SLAB_PROPERTY, OffHeapContactDao.DEFAULT_SLAB_SIZE));
+	}
+}
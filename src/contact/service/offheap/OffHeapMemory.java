@@ -0,0 +1,154 @@
+package contact.service.offheap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Blocks of memory outside the Java heap, carved from large direct
+ * ByteBuffers ("slabs").  A block is named by an address: the slab number
+ * in the high 32 bits and the offset in the low 32 bits.
+ * <p>
+ * Block sizes are rounded up to a size class: multiples of 16 bytes up to
+ * 1 KB, then powers of 2 up to {@link #MAX_BLOCK}.  Freed blocks go on a
+ * free list for their class and are reused before new space is taken
+ * from the current slab, so space freed by updates and deletes is reclaimed.
+ * <p>
+ * Allocation and freeing are not thread-safe; the caller must hold a lock.
+ * Blocks may be read without the lock, as long as the reader validates a
+ * lock stamp before trusting what it read.
+ */
+final class OffHeapMemory {
+	/** Largest block that can be allocated. */
+	static final int MAX_BLOCK = 1 << 20;
+	/** Number of 16-byte size classes, for blocks up to 1 KB. */
+	private static final int SMALL_CLASSES = 64;
+	/** Number of size classes in all, up to MAX_BLOCK. */
+	private static final int CLASSES = SMALL_CLASSES + 10;
+
+	private final int slabSize;
+	/** Replaced, never modified, when a slab is added, so unlocked readers see a complete array. */
+	private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+	/** Next free offset in the last slab. */
+	private int top;
+	/** Addresses of free blocks, a stack per size class. */
+	private final long[][] free = new long[CLASSES][];
+	private final int[] freeCount = new int[CLASSES];
+	private long usedBytes;
+	private long freeBytes;
+
+	/**
+	 * @param slabSize size of each direct buffer, at least MAX_BLOCK
+	 */
+	OffHeapMemory(int slabSize) {
+		if (slabSize < MAX_BLOCK) throw new IllegalArgumentException("slab size must be at least " + MAX_BLOCK);
+		this.slabSize = slabSize;
+		this.top = slabSize; // the first allocation adds a slab
+		for(int k=0; k<CLASSES; k++) free[k] = new long[16];
+	}
+
+	/** @return the size class for a block of size bytes */
+	static int sizeClass(int size) {
+		if (size <= 16 * SMALL_CLASSES) return Math.max(size - 1, 0) >>> 4;
+		int log = 32 - Integer.numberOfLeadingZeros(size - 1); // ceil(log2(size))
+		return SMALL_CLASSES + log - 11;
+	}
+
+	/** @return the number of bytes in blocks of a size class */
+	static int classSize(int sizeClass) {
+		if (sizeClass < SMALL_CLASSES) return (sizeClass + 1) << 4;
+		return 1 << (sizeClass - SMALL_CLASSES + 11);
+	}
+
+	/**
+	 * Allocate a block.
+	 * @param size bytes needed, at most MAX_BLOCK
+	 * @return the address of a block of at least size bytes
+	 */
+	long allocate(int size) {
+		if (size > MAX_BLOCK) throw new IllegalArgumentException("block of " + size + " bytes is too large");
+		int c = sizeClass(size);
+		int blockSize = classSize(c);
+		usedBytes += blockSize;
+		if (freeCount[c] > 0) {
+			freeBytes -= blockSize;
+			return free[c][--freeCount[c]];
+		}
+		if (top + blockSize > slabSize) {
+			// the tail of the full slab is left unused
+			ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+			grown[slabs.length] = ByteBuffer.allocateDirect(slabSize);
+			slabs = grown;
+			top = 0;
+		}
+		long address = ((long) (slabs.length - 1) << 32) | top;
+		top += blockSize;
+		return address;
+	}
+
+	/**
+	 * Return a block to its free list.
+	 * @param address address of the block
+	 * @param size the size that was requested when the block was allocated
+	 */
+	void free(long address, int size) {
+		int c = sizeClass(size);
+		if (freeCount[c] == free[c].length) free[c] = Arrays.copyOf(free[c], freeCount[c] * 2);
+		free[c][freeCount[c]++] = address;
+		usedBytes -= classSize(c);
+		freeBytes += classSize(c);
+	}
+
+	/** @return true if a block allocated for oldSize bytes also holds newSize bytes */
+	static boolean fits(int oldSize, int newSize) {
+		return sizeClass(oldSize) == sizeClass(newSize);
+	}
+
+	/** @return the slab holding a block.  Use absolute get and put only, since slabs are shared. */
+	ByteBuffer slab(long address) {
+		return slabs[(int) (address >>> 32)];
+	}
+
+	/** @return the offset of a block in its slab */
+	static int offset(long address) {
+		return (int) address;
+	}
+
+	/**
+	 * Copy bytes out of a block.
+	 * @param address the block
+	 * @param position offset within the block
+	 * @param dest where to copy to
+	 */
+	void read(long address, int position, byte[] dest) {
+		ByteBuffer view = slab(address).duplicate();
+		view.position(offset(address) + position);
+		view.get(dest);
+	}
+
+	/**
+	 * Copy bytes into a block.
+	 * @param address the block
+	 * @param position offset within the block
+	 * @param src bytes to copy
+	 */
+	void write(long address, int position, byte[] src) {
+		ByteBuffer view = slab(address).duplicate();
+		view.position(offset(address) + position);
+		view.put(src);
+	}
+
+	/** @return bytes of direct memory reserved for slabs */
+	long getReservedBytes() {
+		return (long) slabs.length * slabSize;
+	}
+
+	/** @return bytes in allocated blocks */
+	long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/** @return bytes in freed blocks waiting for reuse */
+	long getFreeBytes() {
+		return freeBytes;
+	}
+}
@@ -0,0 +1,102 @@
+package contact.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import contact.entity.Contact;
+import contact.metrics.MetricsRegistry;
+import contact.service.CachingContactDao;
+import contact.service.offheap.OffHeapContactDao;
+
+/**
+ * Test the caching DAO against a DAO that counts the lookups reaching it.
+ */
+public class CachingContactDaoTest {
+	private CountingDao backing;
+	private CachingContactDao dao;
+
+	/** Counts lookups by id and by title. */
+	static class CountingDao extends OffHeapContactDao {
+		int finds;
+		int titleFinds;
+
+		CountingDao() {
+			super(1 << 20);
+		}
+
+		@Override
+		public Contact find(long id) {
+			finds++;
+			return super.find(id);
+		}
+
+		@Override
+		public Contact findByTitle(String title, boolean caseSensitive) {
+			titleFinds++;
+			return super.findByTitle(title, caseSensitive);
+		}
+	}
+
+	@Before
+	public void setUp() {
+		backing = new CountingDao();
+		dao = new CachingContactDao(backing, 100, new MetricsRegistry());
+	}
+
+	@Test
+	public void testFindHitsCache() {
+		Contact contact = new Contact("Alpha", "Joe Contact", "joe@foo.com");
+		assertTrue( dao.save(contact) );
+		assertEquals("Joe Contact", dao.find(contact.getId()).getName());
+		assertEquals("Joe Contact", dao.find(contact.getId()).getName());
+		assertEquals(1, backing.finds);
+		assertEquals(1, dao.getContactCache().getHits());
+		assertEquals(1, dao.getContactCache().getMisses());
+	}
+
+	@Test
+	public void testNegativeCaching() {
+		assertNull( dao.find(42) );
+		assertNull( dao.find(42) );
+		assertEquals(1, backing.finds);
+		assertNull( dao.findByTitle("alpha", false) );
+		assertNull( dao.findByTitle("ALPHA", false) );
+		assertEquals(1, backing.titleFinds);
+		// saving a contact with the title makes it found
+		Contact contact = new Contact("Alpha", "Joe Contact", "joe@foo.com");
+		dao.save(contact);
+		assertEquals(contact.getId(), dao.findByTitle("alpha", false).getId());
+		assertEquals(contact.getId(), dao.findByTitle("Alpha", true).getId());
+		assertNull( dao.findByTitle("alpha", true) );
+	}
+
+	@Test
+	public void testUpdateInvalidates() {
+		Contact contact = new Contact("Alpha", "Joe Contact", "joe@foo.com");
+		dao.save(contact);
+		assertEquals(contact.getId(), dao.findByTitle("Alpha", true).getId());
+		Contact update = new Contact(contact.getId());
+		update.setTitle("Beta");
+		assertTrue( dao.update(update) );
+		assertEquals("Beta", dao.find(contact.getId()).getTitle());
+		// the old title is checked against the renamed contact
+		assertNull( dao.findByTitle("Alpha", true) );
+		assertEquals(contact.getId(), dao.findByTitle("Beta", true).getId());
+		assertTrue( dao.delete(contact.getId()) );
+		assertNull( dao.find(contact.getId()) );
+	}
+
+	@Test
+	public void testEviction() {
+		CachingContactDao small = new CachingContactDao(backing, 10, new MetricsRegistry());
+		for(int k=0; k<30; k++) {
+			Contact contact = new Contact("Title" + k, "Name" + k, "c" + k + "@foo.com");
+			backing.save(contact);
+			assertNotNull( small.find(contact.getId()) );
+		}
+		assertTrue( small.getContactCache().size() <= 10 );
+		assertEquals(20, small.getContactCache().getEvictions());
+	}
+}
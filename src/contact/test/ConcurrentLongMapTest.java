@@ -0,0 +1,90 @@
+package contact.test;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import contact.service.mem.ConcurrentLongMap;
+
+public class ConcurrentLongMapTest {
+	ConcurrentLongMap<String> map;
+
+	@Before
+	public void setUp() {
+		map = new ConcurrentLongMap<String>(4);
+	}
+
+	@Test
+	public void testPutGetRemove() {
+		assertNull( "Empty map should return null", map.get(1) );
+		assertNull( map.put(1, "one") );
+		assertEquals( "one", map.get(1) );
+		assertEquals( "put returns old value", "one", map.put(1, "uno") );
+		assertEquals( 1, map.size() );
+		// 0 is a legal key
+		map.put(0, "zero");
+		assertEquals( "zero", map.get(0) );
+		assertEquals( "uno", map.remove(1) );
+		assertNull( map.get(1) );
+		assertNull( "Already removed", map.remove(1) );
+		assertEquals( 1, map.size() );
+	}
+
+	@Test
+	public void testConditionalOperations() {
+		assertNull( map.putIfAbsent(5, "five") );
+		assertEquals( "five", map.putIfAbsent(5, "FIVE") );
+		String current = map.get(5);
+		assertFalse( map.replace(5, "not current", "x") );
+		assertTrue( map.replace(5, current, "x") );
+		assertEquals( "x", map.get(5) );
+		assertFalse( map.remove(5, current) );
+		assertTrue( map.remove(5, "x") );
+	}
+
+	@Test
+	public void testAgreesWithHashMap() {
+		// random operations on many keys force resizing and backward-shift deletes
+		Map<Long,String> expected = new HashMap<Long,String>();
+		Random rand = new Random(42);
+		for(int k=0; k<200000; k++) {
+			long key = rand.nextInt(3000);
+			String value = "v" + k;
+			switch (rand.nextInt(3)) {
+			case 0:
+				assertEquals( expected.put(key, value), map.put(key, value) );
+				break;
+			case 1:
+				assertEquals( expected.remove(key), map.remove(key) );
+				break;
+			default:
+				assertEquals( expected.get(key), map.get(key) );
+			}
+		}
+		assertEquals( expected.size(), map.size() );
+		assertEquals( expected.size(), map.values().size() );
+	}
+
+	@Test
+	public void testConcurrentWriters() throws InterruptedException {
+		final ConcurrentLongMap<Long> shared = new ConcurrentLongMap<Long>();
+		Thread[] threads = new Thread[8];
+		for(int t=0; t<threads.length; t++) {
+			final long base = t * 1000000L;
+			threads[t] = new Thread() {
+				public void run() {
+					for(long id=base; id<base+50000; id++) shared.put(id, id);
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads) t.join();
+		assertEquals( 8*50000, shared.size() );
+		assertEquals( Long.valueOf(3000123L), shared.get(3000123L) );
+	}
+}
@@ -0,0 +1,87 @@
+package contact.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import contact.entity.Contact;
+import contact.resource.ContactBinary;
+import contact.resource.ContactXml;
+
+public class ContactBinaryTest {
+
+	private static byte[] write(List<Contact> contacts) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(contacts.size(), ContactBinary.writeAll(contacts, out));
+		return out.toByteArray();
+	}
+
+	private static List<Contact> read(byte[] bytes) throws IOException {
+		ContactBinary.Reader reader = ContactBinary.createReader(new ByteArrayInputStream(bytes));
+		List<Contact> contacts = new ArrayList<Contact>();
+		Contact contact;
+		while ((contact = reader.next()) != null) contacts.add(contact);
+		return contacts;
+	}
+
+	/** Enough contacts for several blocks. */
+	private static List<Contact> manyContacts() {
+		List<Contact> contacts = new ArrayList<Contact>();
+		for(int k=1; k<=5000; k++) {
+			Contact contact = new Contact("title " + k, "name \u00e9 " + k, k + "@x.com");
+			contact.setId(k);
+			if (k % 7 == 0) contact.setPhotoUrl(null);
+			contacts.add(contact);
+		}
+		return contacts;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		List<Contact> contacts = manyContacts();
+		List<Contact> read = read(write(contacts));
+		assertEquals(contacts.size(), read.size());
+		for(int k=0; k<contacts.size(); k++) {
+			Contact a = contacts.get(k);
+			Contact b = read.get(k);
+			assertEquals(a.getId(), b.getId());
+			assertEquals(a.getTitle(), b.getTitle());
+			assertEquals(a.getName(), b.getName());
+			assertEquals(a.getEmail(), b.getEmail());
+			assertEquals(a.getPhotoUrl(), b.getPhotoUrl());
+		}
+		assertTrue( read(write(Arrays.<Contact>asList())).isEmpty() );
+	}
+
+	@Test
+	public void testDamageIsDetected() throws IOException {
+		byte[] bytes = write(manyContacts());
+		byte[] damaged = bytes.clone();
+		damaged[damaged.length / 2] ^= 1;
+		byte[] truncated = Arrays.copyOf(bytes, bytes.length - 3);
+		byte[] notContacts = "<contacts/>".getBytes("UTF-8");
+		for(byte[] bad : Arrays.asList(damaged, truncated, notContacts)) {
+			try {
+				read(bad);
+				fail("should detect a bad stream");
+			} catch (ContactBinary.FormatException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testSmallerThanXml() throws IOException {
+		List<Contact> contacts = manyContacts();
+		ByteArrayOutputStream xml = new ByteArrayOutputStream();
+		ContactXml.writeAll(contacts, xml);
+		assertTrue( write(contacts).length < xml.size() / 2 );
+	}
+}
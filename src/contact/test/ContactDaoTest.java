@@ -4,10 +4,12 @@ import static org.junit.Assert.*;
 
 import org.junit.Before;
 import org.junit.Test;
+import java.util.ArrayList;
 import java.util.List;
 
 import contact.entity.Contact;
 import contact.service.ContactDao;
+import contact.service.WriteStatus;
 import contact.service.mem.MemContactDao;
 
 public class ContactDaoTest {
@@ -71,6 +73,25 @@ public class ContactDaoTest {
 	}
 	
 
+	@Test
+	public void testFindAllByIndex() {
+		saveAllContacts();
+		List<Contact> all = dao.findAll();
+		int first = all.indexOf(contact1);
+		assertTrue(first >= 0);
+		assertEquals(contact1, all.get(first));
+		assertEquals(contact2, all.get(first + 1));
+		assertEquals(contact3, all.get(first + 2));
+		dao.delete(contact1.getId());
+		assertEquals(contact2, all.get(first));
+		try {
+			all.get(all.size());
+			fail("index past the last contact");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
 	@Test
 	public void testDelete() {
 		dao.save(contact1);
@@ -126,4 +147,235 @@ public class ContactDaoTest {
 		assertEquals("", contact2.getName() );
 		assertEquals(email, contact2.getEmail() );
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testFindByTitle() {
+		saveAllContacts();
+		assertEquals( contact2, dao.findByTitle("contact2") );
+		assertEquals( "Default ignores case", contact2, dao.findByTitle("CONTACT2") );
+		assertEquals( contact2, dao.findByTitle("CONTACT2", false) );
+		assertNull( "Case sensitive must match case", dao.findByTitle("CONTACT2", true) );
+		assertEquals( contact2, dao.findByTitle("contact2", true) );
+		// changing the title moves the contact in the index
+		Contact update = new Contact( contact2.getId() );
+		update.setTitle("Renamed");
+		dao.update(update);
+		assertNull( dao.findByTitle("contact2") );
+		assertEquals( contact2, dao.findByTitle("renamed") );
+		// deleted contacts are not found
+		dao.delete(contact2.getId());
+		assertNull( dao.findByTitle("Renamed", true) );
+	}
+
+	@Test
+	public void testSharedTitle() {
+		// more contacts than fit in a small postings array
+		List<Contact> same = new ArrayList<Contact>();
+		for(int k=0; k<50; k++) {
+			Contact c = new Contact("Same", "Person " + k, "p" + k + "@foo.com");
+			dao.save(c);
+			same.add(c);
+		}
+		assertEquals( same.get(0), dao.findByTitle("same") );
+		assertEquals( same.get(0), dao.findByTitle("Same", true) );
+		// the lowest remaining id is found after deletes and renames
+		dao.delete(same.get(0).getId());
+		Contact update = new Contact( same.get(1).getId() );
+		update.setTitle("Different");
+		dao.update(update);
+		assertEquals( same.get(2), dao.findByTitle("SAME") );
+		for(int k=2; k<50; k++) dao.delete(same.get(k).getId());
+		assertNull( dao.findByTitle("same") );
+		assertEquals( same.get(1).getId(), dao.findByTitle("different").getId() );
+	}
+
+	@Test
+	public void testSearch() {
+		Contact alpha = new Contact("Alpha Centauri", "Star One", "one@stars.org");
+		Contact alphabet = new Contact("alphabet soup", "Soup Kitchen", "soup@food.com");
+		Contact big = new Contact("Big Alpha", "Big Guy", "big@guy.com");
+		dao.save(alpha);
+		dao.save(alphabet);
+		dao.save(big);
+		List<Contact> results = dao.search("ALPHA", true, 10);
+		assertEquals( "Prefix search ignores case", 2, results.size() );
+		assertFalse( results.contains(big) );
+		results = dao.search("alpha", false, 10);
+		assertEquals( "Substring search finds titles containing text", 3, results.size() );
+		assertEquals( "Prefix matches come first", big, results.get(2) );
+		assertEquals( 1, dao.search("uri", false, 10).size() );
+		assertEquals( "Short text matches anywhere", 3, dao.search("ph", false, 10).size() );
+		assertEquals( "Result size is bounded", 2, dao.search("alpha", false, 2).size() );
+		assertEquals( 0, dao.search("nothing like this", false, 10).size() );
+		dao.delete(big.getId());
+		assertEquals( 2, dao.search("pha", false, 10).size() );
+	}
+
+	@Test
+	public void testFindPage() {
+		saveAllContacts();
+		long first = contact1.getId();
+		List<Contact> page = dao.findPage(first - 1, 2);
+		assertEquals( 2, page.size() );
+		assertEquals( "Pages are in id order", contact1, page.get(0) );
+		assertEquals( contact2, page.get(1) );
+		page = dao.findPage(page.get(1).getId(), 2);
+		assertEquals( "Last page may be short", 1, page.size() );
+		assertEquals( contact3, page.get(0) );
+		assertEquals( 0, dao.findPage(contact3.getId(), 2).size() );
+		// deleted contacts are skipped
+		dao.delete(contact2.getId());
+		page = dao.findPage(first, 10);
+		assertEquals( 1, page.size() );
+		assertEquals( contact3, page.get(0) );
+	}
+
+	@Test
+	public void testVersion() {
+		dao.save(contact1);
+		long version = contact1.getVersion();
+		assertTrue( "DAO must assign a version", version > 0 );
+		Contact update = new Contact( contact1.getId() );
+		update.setEmail("new@microsoft.com");
+		dao.update(update);
+		assertTrue( "Update must increase version", dao.find(contact1.getId()).getVersion() > version );
+		version = dao.find(contact1.getId()).getVersion();
+		dao.save(contact1);
+		assertTrue( "Save must increase version", contact1.getVersion() > version );
+		// a contact re-created with the same id never reuses an old version
+		version = contact1.getVersion();
+		dao.delete(contact1.getId());
+		Contact again = new Contact("again", "Joe Again", "joe@again.com");
+		again.setId(contact1.getId());
+		dao.save(again);
+		assertTrue( again.getVersion() > version );
+	}
+
+	@Test
+	public void testInsertAll() {
+		dao.save(contact1);
+		Contact conflict = new Contact("conflict", "Same Id", "same@id.com");
+		conflict.setId(contact1.getId());
+		Contact untitled = new Contact(null, "No Title", "none@title.com");
+		WriteStatus[] status = dao.insertAll(java.util.Arrays.asList(contact2, conflict, untitled, contact3));
+		assertEquals( 4, status.length );
+		assertEquals( WriteStatus.CREATED, status[0] );
+		assertEquals( "Existing id must not be replaced", WriteStatus.CONFLICT, status[1] );
+		assertEquals( WriteStatus.INVALID, status[2] );
+		assertEquals( WriteStatus.CREATED, status[3] );
+		assertTrue( "DAO must assign contact id", contact2.getId() > 0 );
+		assertEquals( "contact1", dao.find(contact1.getId()).getTitle() );
+		assertEquals( contact3, dao.find(contact3.getId()) );
+	}
+
+	@Test
+	public void testUpdateAllAndDeleteAll() {
+		saveAllContacts();
+		Contact update1 = new Contact( contact1.getId() );
+		update1.setEmail("joe@newmail.com");
+		Contact missing = new Contact( contact3.getId() + 1000 );
+		missing.setEmail("nobody@nowhere.com");
+		WriteStatus[] status = dao.updateAll(java.util.Arrays.asList(update1, missing, new Contact()));
+		assertEquals( WriteStatus.UPDATED, status[0] );
+		assertEquals( WriteStatus.NOT_FOUND, status[1] );
+		assertEquals( "Update without id is invalid", WriteStatus.INVALID, status[2] );
+		assertEquals( "joe@newmail.com", dao.find(contact1.getId()).getEmail() );
+		
+		status = dao.deleteAll(new long[] { contact1.getId(), contact2.getId(), contact1.getId() });
+		assertEquals( WriteStatus.DELETED, status[0] );
+		assertEquals( WriteStatus.DELETED, status[1] );
+		assertEquals( "Already deleted this contact", WriteStatus.NOT_FOUND, status[2] );
+		assertNull( dao.find(contact2.getId()) );
+		assertEquals( contact3, dao.find(contact3.getId()) );
+	}
+
+	@Test
+	public void testReplace() {
+		dao.save(contact1);
+		long version = contact1.getVersion();
+		Contact stored = dao.find(contact1.getId());
+		Contact replacement = stored.copy();
+		replacement.setName("Joe Replaced");
+		assertEquals( WriteStatus.UPDATED, dao.replace(replacement, version) );
+		assertTrue( "Replace must increase version", replacement.getVersion() > version );
+		assertEquals( "Joe Replaced", dao.find(contact1.getId()).getName() );
+		assertEquals( "Stored contact must not change", "Joe Contact", stored.getName() );
+		// a writer that read the old version loses
+		Contact stale = stored.copy();
+		stale.setName("Joe Stale");
+		assertEquals( WriteStatus.CONFLICT, dao.replace(stale, version) );
+		assertEquals( "Joe Replaced", dao.find(contact1.getId()).getName() );
+		Contact missing = new Contact( contact1.getId() + 1000 );
+		assertEquals( WriteStatus.NOT_FOUND, dao.replace(missing, 0) );
+	}
+
+	@Test
+	public void testConditionalDelete() {
+		dao.save(contact1);
+		long version = contact1.getVersion();
+		Contact update = new Contact( contact1.getId() );
+		update.setEmail("new@microsoft.com");
+		dao.update(update);
+		assertEquals( "Contact changed since it was read", WriteStatus.CONFLICT, dao.delete(contact1.getId(), version) );
+		assertNotNull( dao.find(contact1.getId()) );
+		version = dao.find(contact1.getId()).getVersion();
+		assertEquals( WriteStatus.DELETED, dao.delete(contact1.getId(), version) );
+		assertNull( dao.find(contact1.getId()) );
+		assertEquals( WriteStatus.NOT_FOUND, dao.delete(contact1.getId(), version) );
+	}
+
+	@Test
+	public void testConcurrentUpdates() throws InterruptedException {
+		dao.save(contact1);
+		final long id = contact1.getId();
+		long changes = dao.getModificationCount();
+		Thread[] threads = new Thread[4];
+		for(int t=0; t<threads.length; t++) {
+			final String email = "writer" + t + "@foo.com";
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for(int k=0; k<1000; k++) {
+						Contact update = new Contact(id);
+						update.setEmail(email);
+						dao.update(update);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for(Thread thread : threads) thread.join();
+		Contact contact = dao.find(id);
+		// every update is applied, and none is half applied
+		assertEquals( changes + 4000, dao.getModificationCount() );
+		assertTrue( contact.getVersion() > contact1.getVersion() );
+		assertEquals( "Joe Contact", contact.getName() );
+		assertTrue( contact.getEmail().matches("writer\\d@foo.com") );
+	}
+
+	@Test
+	public void testSaveRacesDelete() throws InterruptedException {
+		dao.save(contact1);
+		final long id = contact1.getId();
+		for(int round=0; round<500; round++) {
+			Thread saver = new Thread(new Runnable() {
+				public void run() {
+					Contact again = new Contact("racing", "Joe Again", "joe@again.com");
+					again.setId(id);
+					dao.save(again);
+				}
+			});
+			saver.start();
+			dao.delete(id);
+			saver.join();
+			// whichever write came last, the index must agree with the store
+			if (dao.find(id) != null) {
+				assertNotNull( "round " + round, dao.findByTitle("racing") );
+				assertEquals( "round " + round, 1, dao.findPage(id - 1, 10).size() );
+			}
+			else {
+				assertNull( dao.findByTitle("racing") );
+				assertEquals( 0, dao.findPage(id - 1, 10).size() );
+			}
+		}
+	}
+}
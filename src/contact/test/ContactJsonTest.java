@@ -0,0 +1,95 @@
+package contact.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import contact.entity.Contact;
+import contact.resource.ContactJson;
+
+public class ContactJsonTest {
+
+	private static Contact parse(String json) throws IOException {
+		return ContactJson.read(new ByteArrayInputStream(json.getBytes("UTF-8")));
+	}
+
+	@Test
+	public void testWriteContact() throws IOException {
+		Contact contact = new Contact("Tom \"&\" Jerry", "Tom\\Cat\n", "tom@cartoon.com");
+		contact.setId(42);
+		String json = new String(ContactJson.toBytes(contact), "UTF-8");
+		assertEquals("{\"id\":42,\"title\":\"Tom \\\"&\\\" Jerry\",\"name\":\"Tom\\\\Cat\\n\","
+				+ "\"email\":\"tom@cartoon.com\",\"photoUrl\":\"\"}", json);
+	}
+
+	@Test
+	public void testNullFieldsAreOmitted() throws IOException {
+		Contact contact = new Contact(-7);
+		contact.setTitle("only title");
+		assertEquals("{\"id\":-7,\"title\":\"only title\"}", new String(ContactJson.toBytes(contact), "UTF-8"));
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		// two, three and four byte UTF-8, and a control character
+		Contact contact = new Contact("Caf\u00e9 \u0e01\u0e02 \ud83d\ude00", "\u0001 name", "e@x.com");
+		contact.setId(Long.MAX_VALUE);
+		Contact read = ContactJson.read(new ByteArrayInputStream(ContactJson.toBytes(contact)));
+		assertEquals(contact.getId(), read.getId());
+		assertEquals(contact.getTitle(), read.getTitle());
+		assertEquals(contact.getName(), read.getName());
+		assertEquals(contact.getEmail(), read.getEmail());
+		assertEquals(contact.getPhotoUrl(), read.getPhotoUrl());
+	}
+
+	@Test
+	public void testReadSkipsUnknownFields() throws IOException {
+		Contact contact = parse(" { \"extra\" : {\"a\":[1, 2.5e3, true, null, \"}\"]}, \"title\":\"A\\u0042\\/C\","
+				+ " \"name\": null, \"id\": 12 }\n");
+		assertEquals(12, contact.getId());
+		assertEquals("AB/C", contact.getTitle());
+		assertNull( contact.getName() );
+	}
+
+	@Test
+	public void testWriteAllAndParse() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		List<Contact> contacts = new ArrayList<Contact>();
+		// enough to fill the write buffer several times
+		for(int k=1; k<=500; k++) contacts.add(new Contact("title " + k, "name " + k, k + "@x.com"));
+		ContactJson.writeAll(contacts, out);
+		ContactJson.Parser parser = ContactJson.createParser(new ByteArrayInputStream(out.toByteArray()));
+		int count = 0;
+		while (parser.nextContact()) {
+			Contact contact = parser.readContact();
+			assertEquals("title " + (++count), contact.getTitle());
+		}
+		assertEquals(500, count);
+
+		out.reset();
+		ContactJson.writeAll(Arrays.<Contact>asList(), out);
+		assertEquals("[]", out.toString("UTF-8"));
+		assertFalse( ContactJson.createParser(new ByteArrayInputStream(out.toByteArray())).nextContact() );
+	}
+
+	@Test
+	public void testBadDocuments() {
+		String[] bad = { "", "[]", "{\"id\":1.5}", "{\"id\":\"1\"}", "{\"title\":\"x}", "{\"title\":1,}",
+				"{} {}", "{\"title\" \"x\"}", "{\"a\":}", "{\"title\":\"\\q\"}" };
+		for(String json : bad) {
+			try {
+				parse(json);
+				fail("should reject " + json);
+			} catch (IOException e) {
+				assertTrue( e instanceof ContactJson.JsonSyntaxException );
+			}
+		}
+	}
+}
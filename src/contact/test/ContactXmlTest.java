@@ -0,0 +1,44 @@
+package contact.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import contact.entity.Contact;
+import contact.resource.ContactXml;
+
+public class ContactXmlTest {
+
+	@Test
+	public void testWriteContact() throws IOException {
+		Contact contact = new Contact("Tom & Jerry", "Tom <Cat>", "tom@cartoon.com");
+		contact.setId(42);
+		String xml = new String(ContactXml.toBytes(contact), "UTF-8");
+		assertTrue( xml.startsWith("<?xml") );
+		assertTrue( "Same shape as JAXB", xml.endsWith(
+				"<contact id=\"42\"><title>Tom &amp; Jerry</title><name>Tom &lt;Cat&gt;</name>"
+				+ "<email>tom@cartoon.com</email><photoUrl></photoUrl></contact>") );
+	}
+
+	@Test
+	public void testNullFieldsAreOmitted() throws IOException {
+		Contact contact = new Contact(7);
+		contact.setTitle("only title");
+		String xml = new String(ContactXml.toBytes(contact), "UTF-8");
+		assertTrue( xml.endsWith("<contact id=\"7\"><title>only title</title></contact>") );
+	}
+
+	@Test
+	public void testWriteAll() throws IOException {
+		Contact a = new Contact(1);
+		Contact b = new Contact(2);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ContactXml.writeAll(Arrays.asList(a, b), out);
+		String xml = out.toString("UTF-8");
+		assertTrue( xml.endsWith("<contacts><contact id=\"1\"></contact><contact id=\"2\"></contact></contacts>") );
+	}
+}
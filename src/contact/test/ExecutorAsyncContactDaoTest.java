@@ -0,0 +1,149 @@
+package contact.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+
+import contact.entity.Contact;
+import contact.service.CancellableAsyncContactDao;
+import contact.service.ExecutorAsyncContactDao;
+import contact.service.offheap.OffHeapContactDao;
+
+/**
+ * Test the async DAO, with and without its own threads.
+ */
+public class ExecutorAsyncContactDaoTest {
+
+	/** Holds its caller in find until released, to keep a pool thread busy. */
+	static class StuckDao extends OffHeapContactDao {
+		final CountDownLatch release = new CountDownLatch(1);
+
+		StuckDao() {
+			super(1 << 20);
+		}
+
+		@Override
+		public Contact find(long id) {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.find(id);
+		}
+	}
+
+	@Test
+	public void testInCaller() throws Exception {
+		ExecutorAsyncContactDao async = new ExecutorAsyncContactDao(new OffHeapContactDao(1 << 20), 0);
+		Contact contact = new Contact("Alpha", "Joe Contact", "joe@foo.com");
+		CompletableFuture<Boolean> saved = async.save(contact);
+		assertTrue( "runs in the caller", saved.isDone() );
+		assertTrue( saved.get() );
+		assertEquals("Joe Contact", async.find(contact.getId()).get().getName());
+		assertNull( async.find(contact.getId() + 1).get() );
+	}
+
+	@Test
+	public void testOnPool() throws Exception {
+		ExecutorAsyncContactDao async = new ExecutorAsyncContactDao(new OffHeapContactDao(1 << 20), 2);
+		try {
+			Contact contact = new Contact("Alpha", "Joe Contact", "joe@foo.com");
+			assertTrue( async.save(contact).get() );
+			assertEquals("Joe Contact", async.find(contact.getId()).get().getName());
+			assertEquals(1, async.count().get().longValue());
+			assertTrue( async.delete(contact.getId()).get() );
+			assertNull( async.find(contact.getId()).get() );
+		} finally {
+			async.shutdown(1000);
+		}
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		ExecutorAsyncContactDao async = new ExecutorAsyncContactDao(new OffHeapContactDao(1 << 20), 0);
+		try {
+			async.save(null).get();
+			fail("saving null should fail");
+		} catch (ExecutionException e) {
+			assertTrue( e.getCause() instanceof RuntimeException );
+		}
+	}
+
+	@Test
+	public void testQueueFull() throws Exception {
+		StuckDao dao = new StuckDao();
+		ExecutorAsyncContactDao async = new ExecutorAsyncContactDao(dao, 1, 1);
+		try {
+			CompletableFuture<Contact> running = async.find(1);
+			// the thread is held by find, so this waits in the queue, and the next is rejected
+			CompletableFuture<Boolean> queued = async.save(new Contact("Alpha", "Joe Contact", "joe@foo.com"));
+			CompletableFuture<Long> rejected = async.count();
+			try {
+				rejected.get();
+				fail("the queue is full");
+			} catch (ExecutionException e) {
+				assertTrue( e.getCause() instanceof RejectedExecutionException );
+			}
+			dao.release.countDown();
+			assertNull( running.get() );
+			assertTrue( queued.get() );
+		} finally {
+			dao.release.countDown();
+			async.shutdown(1000);
+		}
+	}
+
+	@Test
+	public void testNoQueue() throws Exception {
+		StuckDao dao = new StuckDao();
+		ExecutorAsyncContactDao async = new ExecutorAsyncContactDao(dao, 1, 0);
+		try {
+			CompletableFuture<Contact> running = async.find(1);
+			// the only thread is held by find, and nothing may wait for it
+			try {
+				async.count().get();
+				fail("no operation may wait");
+			} catch (ExecutionException e) {
+				assertTrue( e.getCause() instanceof RejectedExecutionException );
+			}
+			dao.release.countDown();
+			assertNull( running.get() );
+		} finally {
+			dao.release.countDown();
+			async.shutdown(1000);
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNegativeQueue() {
+		new ExecutorAsyncContactDao(new StuckDao(), 1, -1);
+	}
+
+	@Test
+	public void testCancelQueued() throws Exception {
+		StuckDao dao = new StuckDao();
+		ExecutorAsyncContactDao async = new ExecutorAsyncContactDao(dao, 1, 10);
+		CancellableAsyncContactDao calls = new CancellableAsyncContactDao(async);
+		try {
+			CompletableFuture<Contact> running = calls.find(1);
+			CompletableFuture<Boolean> queued = calls.save(new Contact("Alpha", "Joe Contact", "joe@foo.com"));
+			calls.cancel();
+			assertTrue( queued.isCancelled() );
+			assertTrue( "not started after cancel", calls.count().isCancelled() );
+			dao.release.countDown();
+			// the running find is not stopped, but the queued save never runs
+			async.find(1).get();
+			assertTrue( running.isCancelled() );
+			assertEquals(0, dao.count());
+		} finally {
+			dao.release.countDown();
+			async.shutdown(1000);
+		}
+	}
+}
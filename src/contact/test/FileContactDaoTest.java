@@ -0,0 +1,192 @@
+package contact.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import contact.entity.Contact;
+import contact.service.WriteStatus;
+import contact.service.file.FileContactDao;
+import contact.service.file.Snapshot;
+import contact.service.file.WriteAheadLog;
+import contact.service.file.WriteAheadLog.SyncPolicy;
+
+/**
+ * Test that FileContactDao rebuilds its contacts from the log and snapshots.
+ */
+public class FileContactDaoTest {
+	private File dir;
+	private FileContactDao dao;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("contacts").toFile();
+		dao = open();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		dao.close();
+		for(File f : dir.listFiles()) f.delete();
+		dir.delete();
+	}
+
+	private FileContactDao open() throws IOException {
+		return new FileContactDao(dir, SyncPolicy.ALWAYS, 0);
+	}
+
+	private FileContactDao reopen() throws IOException {
+		dao.close();
+		dao = open();
+		return dao;
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		Contact a = new Contact("alpha", "Alpha Person", "a@foo.com");
+		Contact b = new Contact("beta", "Beta Person", "b@foo.com");
+		dao.save(a);
+		dao.save(b);
+		Contact update = new Contact(a.getId());
+		update.setEmail("new@foo.com");
+		assertTrue( dao.update(update) );
+		assertTrue( dao.delete(b.getId()) );
+		long version = dao.find(a.getId()).getVersion();
+
+		reopen();
+		Contact found = dao.find(a.getId());
+		assertNotNull(found);
+		assertEquals("alpha", found.getTitle());
+		assertEquals("new@foo.com", found.getEmail());
+		assertEquals(version, found.getVersion());
+		assertNull( dao.find(b.getId()) );
+		assertSame( found, dao.findByTitle("ALPHA") );
+		// new ids and versions do not reuse restored ones
+		Contact c = new Contact("gamma", "Gamma", "c@foo.com");
+		dao.save(c);
+		assertTrue( c.getId() > a.getId() );
+		assertTrue( c.getVersion() > version );
+	}
+
+	@Test
+	public void testBulkReplay() throws IOException {
+		Contact[] batch = new Contact[100];
+		for(int k=0; k<batch.length; k++) batch[k] = new Contact("bulk"+k, "Person "+k, k+"@foo.com");
+		WriteStatus[] status = dao.insertAll(Arrays.asList(batch));
+		for(WriteStatus s : status) assertEquals(WriteStatus.CREATED, s);
+		long[] ids = { batch[0].getId(), batch[1].getId(), 12345L };
+		status = dao.deleteAll(ids);
+		assertEquals(WriteStatus.NOT_FOUND, status[2]);
+
+		reopen();
+		assertEquals(batch.length - 2, dao.findAll().size());
+		assertNull( dao.find(batch[0].getId()) );
+		assertEquals("bulk99", dao.find(batch[99].getId()).getTitle());
+	}
+
+	/** An id the DAO assigns never takes one that the caller chose in the same batch. */
+	@Test
+	public void testAssignedIdSkipsChosenId() throws IOException {
+		Contact first = new Contact("first", "First Person", "f@foo.com");
+		dao.save(first);
+		Contact assigned = new Contact("assigned", "Assigned Id", "a@foo.com");
+		Contact chosen = new Contact("chosen", "Chosen Id", "c@foo.com");
+		// the id the DAO would hand out next
+		chosen.setId(first.getId() + 1);
+		WriteStatus[] status = dao.insertAll(Arrays.asList(assigned, chosen));
+		assertEquals(WriteStatus.CREATED, status[0]);
+		assertEquals(WriteStatus.CREATED, status[1]);
+		assertTrue( assigned.getId() != chosen.getId() );
+		assertEquals("chosen", reopen().find(first.getId() + 1).getTitle());
+		assertEquals("assigned", dao.find(assigned.getId()).getTitle());
+	}
+
+	@Test
+	public void testTornTail() throws IOException {
+		Contact a = new Contact("alpha", "Alpha Person", "a@foo.com");
+		dao.save(a);
+		dao.save(new Contact("beta", "Beta Person", "b@foo.com"));
+		dao.close();
+		// cut the last record in half, as a crash during a write would
+		File log = new File(dir, FileContactDao.LOG_NAME + "-0.log");
+		try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+			file.setLength(file.length() - 5);
+		}
+		dao = open();
+		assertEquals(1, dao.findAll().size());
+		assertEquals("alpha", dao.find(a.getId()).getTitle());
+		// the torn record is discarded, so new records follow the good ones
+		dao.save(new Contact("gamma", "Gamma", "c@foo.com"));
+		reopen();
+		assertEquals(2, dao.findAll().size());
+	}
+
+	@Test(expected=IOException.class)
+	public void testTornOlderSegment() throws IOException {
+		WriteAheadLog log = new WriteAheadLog(dir, "test", 0, SyncPolicy.ALWAYS, 0, record -> { });
+		log.await(log.append(new byte[] { 1, 2, 3 }));
+		log.await(log.append(new byte[] { 4, 5, 6 }));
+		log.rotate();
+		log.await(log.append(new byte[] { 7, 8, 9 }));
+		log.close();
+		try (RandomAccessFile file = new RandomAccessFile(new File(dir, "test-0.log"), "rw")) {
+			file.setLength(file.length() - 2);
+		}
+		// only the newest segment can be torn by a crash; records after a damaged one are not dropped
+		new WriteAheadLog(dir, "test", 0, SyncPolicy.ALWAYS, 0, record -> { }).close();
+	}
+
+	@Test
+	public void testSnapshot() throws IOException {
+		Contact a = new Contact("alpha", "Alpha Person", "a@foo.com");
+		Contact b = new Contact("beta", "Beta Person", "b@foo.com");
+		dao.save(a);
+		dao.save(b);
+		Snapshot snapshot = dao.snapshot();
+		assertEquals(1, snapshot.getSegment());
+		assertFalse( new File(dir, FileContactDao.LOG_NAME + "-0.log").exists() );
+		// changes after the snapshot are replayed from the log
+		Contact update = new Contact(a.getId());
+		update.setName("Changed");
+		dao.update(update);
+		dao.delete(b.getId());
+		Contact c = new Contact("gamma", "Gamma", "c@foo.com");
+		dao.save(c);
+
+		reopen();
+		assertEquals(2, dao.findAll().size());
+		assertEquals("Changed", dao.find(a.getId()).getName());
+		assertNull( dao.find(b.getId()) );
+		assertEquals("gamma", dao.find(c.getId()).getTitle());
+		long version = dao.find(a.getId()).getVersion();
+
+		// a second snapshot replaces the first
+		assertEquals(2, dao.snapshot().getSegment());
+		assertFalse( snapshot.getFile().exists() );
+		reopen();
+		assertEquals(2, dao.findAll().size());
+		assertEquals(version, dao.find(a.getId()).getVersion());
+	}
+
+	@Test(expected=IOException.class)
+	public void testCorruptSnapshot() throws IOException {
+		dao.save(new Contact("alpha", "Alpha Person", "a@foo.com"));
+		File file = dao.snapshot().getFile();
+		dao.close();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(20);
+			int b = raf.read();
+			raf.seek(20);
+			raf.write(b ^ 0xFF);
+		}
+		dao = open();
+	}
+}
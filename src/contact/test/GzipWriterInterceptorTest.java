@@ -0,0 +1,110 @@
+package contact.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+
+import org.junit.Test;
+
+import contact.resource.GzipWriterInterceptor;
+import contact.resource.GzipWriterInterceptor.ThresholdGzipOutputStream;
+
+public class GzipWriterInterceptorTest {
+
+	@Test
+	public void testAcceptsGzip() {
+		assertTrue( GzipWriterInterceptor.acceptsGzip("gzip") );
+		assertTrue( GzipWriterInterceptor.acceptsGzip("deflate, GZIP;q=0.5") );
+		assertTrue( GzipWriterInterceptor.acceptsGzip("*") );
+		assertFalse( GzipWriterInterceptor.acceptsGzip(null) );
+		assertFalse( GzipWriterInterceptor.acceptsGzip("identity") );
+		assertFalse( GzipWriterInterceptor.acceptsGzip("gzip;q=0") );
+		assertFalse( GzipWriterInterceptor.acceptsGzip("x-gzip2, br") );
+		// naming gzip overrides "*", in either order
+		assertFalse( GzipWriterInterceptor.acceptsGzip("gzip;q=0, *") );
+		assertFalse( GzipWriterInterceptor.acceptsGzip("*, gzip;q=0") );
+		assertTrue( GzipWriterInterceptor.acceptsGzip("*;q=0, gzip") );
+	}
+
+	/** Response headers of a 200 with a length and a tag, as a resource leaves them. */
+	private static MultivaluedMap<String,Object> headers(int length) {
+		MultivaluedMap<String,Object> headers = new MultivaluedHashMap<String,Object>();
+		headers.putSingle(HttpHeaders.CONTENT_LENGTH, Integer.toString(length));
+		headers.putSingle(HttpHeaders.ETAG, "\"5-abc\"");
+		return headers;
+	}
+
+	private static byte[] body(int length) {
+		byte[] body = new byte[length];
+		for(int k=0; k<length; k++) body[k] = (byte) ('a' + k % 26);
+		return body;
+	}
+
+	@Test
+	public void testSmallBodyNotCompressed() throws IOException {
+		byte[] body = body(100);
+		MultivaluedMap<String,Object> headers = headers(body.length);
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		ThresholdGzipOutputStream out = new ThresholdGzipOutputStream(sent, headers, 6, 1024);
+		out.write(body);
+		out.flush();
+		assertEquals( "held back until finished", 0, sent.size() );
+		out.finish();
+		assertArrayEquals(body, sent.toByteArray());
+		assertNull( headers.getFirst(HttpHeaders.CONTENT_ENCODING) );
+		assertEquals("100", headers.getFirst(HttpHeaders.CONTENT_LENGTH));
+		assertEquals("\"5-abc\"", headers.getFirst(HttpHeaders.ETAG));
+	}
+
+	@Test
+	public void testLargeBodyCompressed() throws IOException {
+		byte[] body = body(5000);
+		MultivaluedMap<String,Object> headers = headers(body.length);
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		ThresholdGzipOutputStream out = new ThresholdGzipOutputStream(sent, headers, 6, 1024);
+		// in pieces, so the switch to gzip happens part way through
+		for(int k=0; k<body.length; k+=700) out.write(body, k, Math.min(700, body.length - k));
+		out.finish();
+		assertEquals("gzip", headers.getFirst(HttpHeaders.CONTENT_ENCODING));
+		assertFalse( "the compressed length is not known", headers.containsKey(HttpHeaders.CONTENT_LENGTH) );
+		assertEquals("\"5-abc" + GzipWriterInterceptor.GZIP_TAG_SUFFIX + "\"", headers.getFirst(HttpHeaders.ETAG));
+		assertTrue( sent.size() < body.length );
+		ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(sent.toByteArray()))) {
+			byte[] buffer = new byte[1024];
+			for(int n; (n = in.read(buffer)) > 0; ) unzipped.write(buffer, 0, n);
+		}
+		assertTrue( Arrays.equals(body, unzipped.toByteArray()) );
+	}
+
+	@Test
+	public void testBodyOfMinSizeNotCompressed() throws IOException {
+		MultivaluedMap<String,Object> headers = headers(1024);
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		ThresholdGzipOutputStream out = new ThresholdGzipOutputStream(sent, headers, 6, 1024);
+		out.write(body(1024));
+		out.finish();
+		assertEquals(1024, sent.size());
+		assertNull( headers.getFirst(HttpHeaders.CONTENT_ENCODING) );
+		// one more byte is over the threshold
+		headers = headers(1025);
+		out = new ThresholdGzipOutputStream(new ByteArrayOutputStream(), headers, 6, 1024);
+		out.write(body(1024));
+		out.write('z');
+		out.finish();
+		assertEquals("gzip", headers.getFirst(HttpHeaders.CONTENT_ENCODING));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadLevel() {
+		new GzipWriterInterceptor(10, 1024);
+	}
+}
@@ -0,0 +1,77 @@
+package contact.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import contact.metrics.Histogram;
+
+public class HistogramTest {
+	Histogram histogram;
+
+	@Before
+	public void setUp() {
+		histogram = new Histogram();
+	}
+
+	@Test
+	public void testEmpty() {
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals( 0, snapshot.getCount() );
+		assertEquals( 0, snapshot.getValueAtPercentile(99) );
+		assertEquals( 0.0, snapshot.getMean(), 0.0 );
+	}
+
+	@Test
+	public void testSmallValuesAreExact() {
+		for(int k=1; k<=100; k++) histogram.record(k);
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals( 100, snapshot.getCount() );
+		assertEquals( 50, snapshot.getValueAtPercentile(50) );
+		assertEquals( 99, snapshot.getValueAtPercentile(99) );
+		assertEquals( 100, snapshot.getValueAtPercentile(100) );
+		assertEquals( 100, snapshot.getMax() );
+		assertEquals( 50.5, snapshot.getMean(), 1e-9 );
+	}
+
+	@Test
+	public void testPercentilesWithinOnePercent() {
+		Random random = new Random(42);
+		long[] values = new long[100000];
+		for(int k=0; k<values.length; k++) {
+			// latencies from 1 microsecond to about 10 seconds
+			values[k] = (long) Math.pow(10, 3 + 7 * random.nextDouble());
+			histogram.record(values[k]);
+		}
+		Arrays.sort(values);
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		for(double p : new double[] { 50, 90, 99, 99.9 }) {
+			long expected = values[(int) Math.ceil(p / 100 * values.length) - 1];
+			long actual = snapshot.getValueAtPercentile(p);
+			assertEquals( "p" + p, expected, actual, expected * 0.01 );
+		}
+		assertEquals( values[values.length - 1], snapshot.getMax() );
+	}
+
+	@Test
+	public void testLargeAndNegativeValues() {
+		histogram.record(Long.MAX_VALUE);
+		histogram.record(-5);
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals( 2, snapshot.getCount() );
+		assertEquals( 0, snapshot.getValueAtPercentile(50) );
+		assertEquals( Long.MAX_VALUE, snapshot.getValueAtPercentile(100) );
+	}
+
+	@Test
+	public void testReset() {
+		histogram.record(1000);
+		histogram.reset();
+		assertEquals( 0, histogram.snapshot().getCount() );
+		assertEquals( 0, histogram.snapshot().getMax() );
+	}
+}
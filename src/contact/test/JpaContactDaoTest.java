@@ -0,0 +1,174 @@
+package contact.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.persistence.Persistence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import contact.entity.Contact;
+import contact.service.WriteStatus;
+import contact.service.jpa.JpaContactDao;
+import contact.service.jpa.JpaDaoFactory;
+
+/**
+ * Test JpaContactDao against an in-memory H2 database.
+ */
+public class JpaContactDaoTest {
+	private static int databases;
+	private JpaContactDao dao;
+
+	@Before
+	public void setUp() {
+		// a new database for each test
+		Map<String,String> properties = new HashMap<String,String>();
+		properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:contacts" + (++databases) + ";DB_CLOSE_DELAY=-1");
+		properties.put("eclipselink.ddl-generation", "drop-and-create-tables");
+		dao = new JpaContactDao(Persistence.createEntityManagerFactory(JpaDaoFactory.PERSISTENCE_UNIT, properties));
+	}
+
+	@After
+	public void tearDown() {
+		dao.close();
+	}
+
+	@Test
+	public void testSaveAndFind() {
+		Contact contact = new Contact("contact1", "Joe Contact", "joe@microsoft.com");
+		assertTrue( dao.save(contact) );
+		assertTrue( "id is assigned from the sequence", contact.getId() >= 1000 );
+		Contact found = dao.find(contact.getId());
+		assertEquals("Joe Contact", found.getName());
+		assertEquals(contact.getVersion(), found.getVersion());
+		// saving with the same id replaces the contact
+		Contact replacement = new Contact("contact1", "Joe Replaced", "joe@foo.com");
+		replacement.setId(contact.getId());
+		dao.save(replacement);
+		assertEquals("Joe Replaced", dao.find(contact.getId()).getName());
+		assertTrue( replacement.getVersion() > contact.getVersion() );
+		assertNull( dao.find(contact.getId() + 1) );
+	}
+
+	@Test
+	public void testFindByTitleAndSearch() {
+		dao.save(new Contact("Alpha One", "A", "a@foo.com"));
+		dao.save(new Contact("Beta Alpha", "B", "b@foo.com"));
+		dao.save(new Contact("100%_done", "C", "c@foo.com"));
+		assertEquals("A", dao.findByTitle("alpha one").getName());
+		assertNull( dao.findByTitle("alpha one", true) );
+		assertEquals("A", dao.findByTitle("Alpha One", true).getName());
+		List<Contact> matches = dao.search("ALPHA", false, 10);
+		assertEquals(2, matches.size());
+		assertEquals("Alpha One", matches.get(0).getTitle());
+		assertEquals(1, dao.search("alpha", true, 10).size());
+		// LIKE wildcards in the search text are matched literally
+		assertEquals(1, dao.search("0%_", false, 10).size());
+		assertEquals(0, dao.search("0_%", false, 10).size());
+	}
+
+	@Test
+	public void testFindPage() {
+		for(int k=0; k<5; k++) dao.save(new Contact("page"+k, "Person", "p@foo.com"));
+		List<Contact> first = dao.findPage(0, 3);
+		assertEquals(3, first.size());
+		List<Contact> rest = dao.findPage(first.get(2).getId(), 3);
+		assertEquals(2, rest.size());
+		assertTrue( rest.get(0).getId() > first.get(2).getId() );
+		assertEquals(5, dao.findAll().size());
+	}
+
+	@Test
+	public void testBulkOperations() {
+		Contact taken = new Contact("taken", "Person", "t@foo.com");
+		dao.save(taken);
+		Contact conflict = new Contact("conflict", "Person", "c@foo.com");
+		conflict.setId(taken.getId());
+		Contact[] batch = new Contact[2500];
+		for(int k=0; k<batch.length; k++) batch[k] = new Contact("bulk"+k, "Person "+k, k+"@foo.com");
+		batch[7] = conflict;
+		batch[8] = new Contact(" ", "No title", "x@foo.com");
+		WriteStatus[] status = dao.insertAll(Arrays.asList(batch));
+		assertEquals(WriteStatus.CREATED, status[0]);
+		assertEquals(WriteStatus.CONFLICT, status[7]);
+		assertEquals(WriteStatus.INVALID, status[8]);
+		assertEquals(batch.length - 1, dao.findAll().size());
+
+		Contact update = new Contact(batch[0].getId());
+		update.setName("Updated");
+		status = dao.updateAll(Arrays.asList(update, new Contact(1L), new Contact(0L)));
+		assertEquals(Arrays.asList(WriteStatus.UPDATED, WriteStatus.NOT_FOUND, WriteStatus.INVALID), Arrays.asList(status));
+		assertEquals("Updated", dao.find(batch[0].getId()).getName());
+
+		status = dao.deleteAll(new long[] { batch[0].getId(), batch[0].getId(), 1L });
+		assertEquals(Arrays.asList(WriteStatus.DELETED, WriteStatus.NOT_FOUND, WriteStatus.NOT_FOUND), Arrays.asList(status));
+		assertNull( dao.find(batch[0].getId()) );
+		assertTrue( dao.delete(batch[1].getId()) );
+		assertFalse( dao.delete(batch[1].getId()) );
+	}
+
+	@Test
+	public void testChosenIdIsNotReused() {
+		Contact chosen = new Contact("chosen", "Person", "c@foo.com");
+		chosen.setId(1050);
+		assertEquals(WriteStatus.CREATED, dao.insertAll(Arrays.asList(chosen))[0]);
+		Contact saved = new Contact("saved", "Person", "s@foo.com");
+		saved.setId(1150);
+		assertTrue( dao.save(saved) );
+		// more new contacts than one block of ids, so the counter is read again
+		for(int k=0; k<250; k++) {
+			Contact contact = new Contact("new"+k, "Person", k+"@foo.com");
+			assertTrue( dao.save(contact) );
+			assertTrue( contact.getId() != 1050 && contact.getId() != 1150 );
+		}
+		assertEquals(252, dao.count());
+		assertEquals("chosen", dao.find(1050).getTitle());
+		assertEquals("saved", dao.find(1150).getTitle());
+	}
+
+	/** Overlapping batch updates of the same contacts, as two PATCH /contacts/batch jobs make. */
+	@Test
+	public void testConcurrentUpdateAll() throws Exception {
+		final List<Contact> saved = new ArrayList<Contact>();
+		for(int k=0; k<20; k++) {
+			Contact contact = new Contact("title" + k, "Person " + k, "p" + k + "@foo.com");
+			dao.save(contact);
+			saved.add(contact);
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<WriteStatus[]>> jobs = new ArrayList<Future<WriteStatus[]>>();
+			for(int j=0; j<8; j++) {
+				final String name = "Job " + j;
+				jobs.add(pool.submit(() -> {
+					List<Contact> updates = new ArrayList<Contact>();
+					for(Contact contact : saved) {
+						Contact update = new Contact(contact.getId());
+						update.setName(name);
+						updates.add(update);
+					}
+					return dao.updateAll(updates);
+				}));
+			}
+			// a lost race is retried or reported per contact, never thrown
+			for(Future<WriteStatus[]> job : jobs) {
+				for(WriteStatus status : job.get()) {
+					assertTrue( status.toString(), status == WriteStatus.UPDATED || status == WriteStatus.CONFLICT );
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		for(Contact contact : saved) assertTrue( dao.find(contact.getId()).getName().startsWith("Job ") );
+	}
+}
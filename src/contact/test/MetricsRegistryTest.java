@@ -0,0 +1,70 @@
+package contact.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import contact.entity.Contact;
+import contact.metrics.Histogram;
+import contact.metrics.MetricsRegistry;
+import contact.service.ContactDao;
+import contact.service.InstrumentedContactDao;
+import contact.service.mem.MemContactDao;
+
+public class MetricsRegistryTest {
+	MetricsRegistry registry;
+
+	@Before
+	public void setUp() {
+		registry = new MetricsRegistry();
+	}
+
+	private String text() throws IOException {
+		StringWriter out = new StringWriter();
+		registry.write(out);
+		return out.toString();
+	}
+
+	@Test
+	public void testTextFormat() throws IOException {
+		Histogram latency = registry.summary("test_duration_seconds", "Test durations.", MetricsRegistry.label("op", "a"));
+		latency.record(2000000); // 2 ms
+		registry.counter("test_total", "Test count.", "").add(3);
+		registry.gauge("test_size", "Test size.", MetricsRegistry.label("kind", "say \"hi\""), () -> 7);
+		String text = text();
+		assertTrue( text, text.contains("# TYPE test_duration_seconds summary\n") );
+		assertTrue( text, text.contains("test_duration_seconds{op=\"a\",quantile=\"0.5\"} 0.002") );
+		assertTrue( text, text.contains("test_duration_seconds_count{op=\"a\"} 1\n") );
+		assertTrue( text, text.contains("# TYPE test_total counter\ntest_total 3\n") );
+		assertTrue( "label values are escaped", text.contains("test_size{kind=\"say \\\"hi\\\"\"} 7\n") );
+	}
+
+	@Test
+	public void testSameMetricReturned() {
+		assertSame( registry.counter("a_total", "A.", ""), registry.counter("a_total", "A.", "") );
+		assertNotSame( registry.counter("a_total", "A.", "x=\"1\""), registry.counter("a_total", "A.", "") );
+		try {
+			registry.summary("a_total", "A.", "");
+			fail("a name has one type");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testInstrumentedDao() throws IOException {
+		ContactDao dao = new InstrumentedContactDao(new MemContactDao(), registry);
+		Contact contact = new Contact("metrics", "Metric Man", "metric@example.com");
+		dao.save(contact);
+		dao.find(contact.getId());
+		dao.find(contact.getId());
+		String text = text();
+		assertTrue( text, text.contains("contact_dao_operation_duration_seconds_count{operation=\"find\"} 2\n") );
+		assertTrue( text, text.contains("contact_dao_operation_duration_seconds_count{operation=\"save\"} 1\n") );
+		assertTrue( text, text.contains("contact_store_size " + dao.count() + "\n") );
+	}
+}
@@ -0,0 +1,152 @@
+package contact.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import contact.entity.Contact;
+import contact.service.WriteStatus;
+import contact.service.offheap.OffHeapContactDao;
+
+/**
+ * Test the off-heap DAO, including reuse of freed memory.
+ */
+public class OffHeapContactDaoTest {
+	private OffHeapContactDao dao;
+
+	@Before
+	public void setUp() {
+		// small slabs, so tests cross slab boundaries
+		dao = new OffHeapContactDao(1 << 20);
+	}
+
+	@Test
+	public void testSaveFindUpdateDelete() {
+		Contact contact = new Contact("Alpha", "Joe Contact", "joe@foo.com");
+		dao.save(contact);
+		assertTrue(contact.getId() > 0);
+		Contact found = dao.find(contact.getId());
+		assertEquals("Joe Contact", found.getName());
+		assertEquals(contact.getVersion(), found.getVersion());
+		assertNotSame( "contacts are copies", contact, found );
+
+		Contact update = new Contact(contact.getId());
+		update.setEmail("a much longer email address than before, so the record moves@foo.com");
+		assertTrue( dao.update(update) );
+		found = dao.find(contact.getId());
+		assertEquals("Joe Contact", found.getName());
+		assertEquals(update.getEmail(), found.getEmail());
+		assertTrue( found.getVersion() > contact.getVersion() );
+
+		assertSame( null, dao.findByTitle("beta") );
+		assertEquals(contact.getId(), dao.findByTitle("ALPHA").getId());
+		assertNull( dao.findByTitle("ALPHA", true) );
+		assertTrue( dao.delete(contact.getId()) );
+		assertNull( dao.find(contact.getId()) );
+		assertNull( dao.findByTitle("alpha") );
+		assertFalse( dao.delete(contact.getId()) );
+	}
+
+	@Test
+	public void testReplace() {
+		Contact contact = new Contact("Alpha", "Joe Contact", "joe@foo.com");
+		dao.save(contact);
+		Contact replacement = dao.find(contact.getId());
+		replacement.setTitle("Beta");
+		assertEquals(WriteStatus.UPDATED, dao.replace(replacement, contact.getVersion()));
+		assertEquals(replacement.getVersion(), dao.find(contact.getId()).getVersion());
+		assertEquals(contact.getId(), dao.findByTitle("beta").getId());
+		assertNull( dao.findByTitle("alpha") );
+		assertEquals(WriteStatus.CONFLICT, dao.replace(contact, contact.getVersion()));
+		assertTrue( dao.delete(contact.getId()) );
+		assertEquals(WriteStatus.NOT_FOUND, dao.replace(replacement, replacement.getVersion()));
+	}
+
+	@Test
+	public void testFreedMemoryIsReused() {
+		Contact contact = new Contact("Alpha", "Joe Contact", "joe@foo.com");
+		dao.save(contact);
+		for(int k=0; k<1000; k++) {
+			Contact c = new Contact("temp" + k, "Temporary", "t@foo.com");
+			dao.save(c);
+			dao.delete(c.getId());
+		}
+		long used = dao.getUsedBytes();
+		long reserved = dao.getReservedBytes();
+		for(int k=0; k<10000; k++) {
+			Contact update = new Contact(contact.getId());
+			update.setName( (k % 2 == 0) ? "Joe" : "Joseph with a name long enough to change size class" );
+			dao.update(update);
+			Contact c = new Contact("temp" + k, "Temporary", "t@foo.com");
+			dao.save(c);
+			dao.delete(c.getId());
+		}
+		assertEquals(reserved, dao.getReservedBytes());
+		assertTrue( dao.getUsedBytes() <= used + 64 );
+	}
+
+	@Test
+	public void testAgreesWithTreeMap() {
+		TreeMap<Long,String> expected = new TreeMap<Long,String>();
+		Random random = new Random(42);
+		for(int k=0; k<20000; k++) {
+			long id = 1 + random.nextInt(2000);
+			switch (random.nextInt(3)) {
+			case 0:
+				Contact c = new Contact("title" + random.nextInt(100), "name" + k, "e");
+				c.setId(id);
+				dao.save(c);
+				expected.put(id, c.getName());
+				break;
+			case 1:
+				Contact u = new Contact(id);
+				u.setName("updated" + k);
+				assertEquals(expected.containsKey(id), dao.update(u));
+				if (expected.containsKey(id)) expected.put(id, u.getName());
+				break;
+			default:
+				assertEquals(expected.remove(id) != null, dao.delete(id));
+			}
+		}
+		assertEquals(expected.size(), dao.findAll().size());
+		int n = 0;
+		for(Contact c : dao.findAll()) {
+			assertEquals(expected.get(c.getId()), c.getName());
+			n++;
+		}
+		assertEquals(expected.size(), n);
+		// page through in id order
+		long after = 0;
+		int paged = 0;
+		List<Contact> page;
+		while (! (page = dao.findPage(after, 300)).isEmpty()) {
+			assertEquals(expected.higherKey(after), Long.valueOf(page.get(0).getId()));
+			after = page.get(page.size() - 1).getId();
+			paged += page.size();
+		}
+		assertEquals(expected.size(), paged);
+	}
+
+	@Test
+	public void testBulkAndSearch() {
+		Contact taken = new Contact("Beta Alpha", "B", "b@foo.com");
+		dao.save(taken);
+		Contact conflict = new Contact("conflict", "C", "c@foo.com");
+		conflict.setId(taken.getId());
+		WriteStatus[] status = dao.insertAll(Arrays.asList(
+				new Contact("Alpha One", "A", "a@foo.com"), conflict, new Contact("", "D", "d@foo.com")));
+		assertEquals(Arrays.asList(WriteStatus.CREATED, WriteStatus.CONFLICT, WriteStatus.INVALID), Arrays.asList(status));
+		List<Contact> matches = dao.search("alpha", false, 10);
+		assertEquals(2, matches.size());
+		assertEquals("Alpha One", matches.get(0).getTitle());
+		assertEquals(1, dao.search("alpha", true, 10).size());
+		status = dao.deleteAll(new long[] { taken.getId(), taken.getId() });
+		assertEquals(Arrays.asList(WriteStatus.DELETED, WriteStatus.NOT_FOUND), Arrays.asList(status));
+	}
+}
@@ -0,0 +1,53 @@
+package contact.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import contact.resource.RepresentationCache;
+
+/**
+ * Test the cache of encoded contacts.
+ */
+public class RepresentationCacheTest {
+
+	@Test
+	public void testFillAndInvalidate() {
+		RepresentationCache cache = new RepresentationCache(100);
+		byte[] bytes = { 1, 2, 3 };
+		Object ticket = cache.reserve(7, RepresentationCache.XML);
+		cache.fill(7, RepresentationCache.XML, ticket, 5, bytes);
+		assertSame( bytes, cache.get(7, RepresentationCache.XML, 5) );
+		assertNull( "other versions are not returned", cache.get(7, RepresentationCache.XML, 6) );
+		assertNull( cache.get(7, RepresentationCache.JSON, 5) );
+		cache.contactChanged(7);
+		assertNull( cache.get(7, RepresentationCache.XML, 5) );
+	}
+
+	@Test
+	public void testChangeDuringFill() {
+		RepresentationCache cache = new RepresentationCache(100);
+		Object ticket = cache.reserve(7, RepresentationCache.XML);
+		cache.contactChanged(7);
+		cache.fill(7, RepresentationCache.XML, ticket, 5, new byte[1]);
+		assertNull( cache.get(7, RepresentationCache.XML, 5) );
+	}
+
+	@Test
+	public void testNewEntriesAfterFull() {
+		RepresentationCache cache = new RepresentationCache(10);
+		for(long id=1; id<=1000; id++) {
+			cache.fill(id, RepresentationCache.XML, cache.reserve(id, RepresentationCache.XML), 1, new byte[1]);
+		}
+		// the oldest were evicted to make room, so the newest are cached
+		assertNotNull( cache.get(1000, RepresentationCache.XML, 1) );
+		assertNull( cache.get(1, RepresentationCache.XML, 1) );
+	}
+
+	@Test
+	public void testDisabled() {
+		RepresentationCache cache = new RepresentationCache(0);
+		cache.fill(7, RepresentationCache.XML, cache.reserve(7, RepresentationCache.XML), 5, new byte[1]);
+		assertNull( cache.get(7, RepresentationCache.XML, 5) );
+	}
+}
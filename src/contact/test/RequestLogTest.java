@@ -0,0 +1,110 @@
+package contact.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import contact.log.RequestLog;
+import contact.log.RequestLog.Level;
+
+/**
+ * Test that RequestLog writes buffered entries to its file and rolls files over.
+ */
+public class RequestLogTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("requests").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		for(File f : dir.listFiles()) f.delete();
+		dir.delete();
+	}
+
+	private List<String> lines(String name) throws IOException {
+		return Files.readAllLines(new File(dir, name).toPath(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testEntriesWritten() throws IOException {
+		RequestLog log = new RequestLog(dir, Level.INFO, 16, 1 << 20, 2);
+		for(int k=0; k<1000; k++) {
+			// a full buffer drops entries instead of waiting, so retry as a test
+			while (! log.record(0, "127.0.0.1", "GET", "/contacts/" + k, k % 2 == 0 ? null : "a=\"b\"", 200, 1500000)) {
+				Thread.yield();
+			}
+		}
+		log.close();
+		List<String> lines = lines(RequestLog.FILE_NAME);
+		int entries = 0;
+		String second = null;
+		for(String line : lines) {
+			if (line.contains("\"uri\"")) entries++;
+			if (line.contains("\"/contacts/1\"")) second = line;
+		}
+		assertEquals( 1000, entries );
+		assertEquals( "{\"time\":\"1970-01-01T00:00:00Z\",\"remote\":\"127.0.0.1\",\"method\":\"GET\","
+				+ "\"uri\":\"/contacts/1\",\"query\":\"a=\\\"b\\\"\",\"status\":200,\"micros\":1500}",
+				second );
+		assertFalse( "closed log drops entries", log.record(0, "x", "GET", "/", null, 200, 0) );
+	}
+
+	@Test
+	public void testLevels() {
+		assertTrue( Level.INFO.accepts(200) );
+		assertFalse( Level.WARN.accepts(304) );
+		assertTrue( Level.WARN.accepts(404) );
+		assertFalse( Level.ERROR.accepts(404) );
+		assertTrue( Level.ERROR.accepts(503) );
+		assertFalse( Level.OFF.accepts(500) );
+	}
+
+	@Test
+	public void testRollOver() throws IOException {
+		RequestLog log = new RequestLog(dir, Level.INFO, 1024, 1000, 2);
+		for(int k=0; k<200; k++) {
+			while (! log.record(0, "127.0.0.1", "DELETE", "/contacts/" + k, null, 200, 0)) Thread.yield();
+		}
+		log.close();
+		assertTrue( new File(dir, RequestLog.FILE_NAME + ".1").exists() );
+		assertTrue( new File(dir, RequestLog.FILE_NAME + ".2").exists() );
+		assertFalse( "only 2 old files are kept", new File(dir, RequestLog.FILE_NAME + ".3").exists() );
+		assertTrue( new File(dir, RequestLog.FILE_NAME + ".1").length() < 1200 );
+		List<String> last = lines(RequestLog.FILE_NAME);
+		assertTrue( last.get(last.size() - 1).contains("/contacts/199") );
+	}
+
+	/** close must return even if the file can no longer be written, e.g. when the disk is full. */
+	@Test
+	public void testCloseWhenWritesFail() throws Exception {
+		File full = new File("/dev/full");
+		Assume.assumeTrue(full.exists());
+		Files.createSymbolicLink(new File(dir, RequestLog.FILE_NAME).toPath(), full.toPath());
+		final RequestLog log = new RequestLog(dir, Level.INFO, 4096, 1 << 20, 2);
+		// more than the writer's 64 KB buffer, so writes fail, not just flushes
+		for(int k=0; k<4000; k++) log.record(System.currentTimeMillis(), "127.0.0.1", "GET", "/contacts/" + k, null, 200, 1000);
+		Thread closer = new Thread(() -> {
+			try {
+				log.close();
+			} catch (IOException e) {
+				// the buffered output cannot be flushed either
+			}
+		});
+		closer.setDaemon(true);
+		closer.start();
+		closer.join(10000);
+		assertFalse( "close returned", closer.isAlive() );
+	}
+}
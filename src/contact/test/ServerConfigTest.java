@@ -0,0 +1,62 @@
+package contact.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import contact.ServerConfig;
+
+public class ServerConfigTest {
+
+	@Test
+	public void testDefaults() {
+		ServerConfig config = ServerConfig.fromSystemProperties();
+		assertEquals( 8080, config.getPort() );
+		assertFalse( config.isVirtualThreads() );
+		assertFalse( config.isHttp2() );
+		assertEquals( 6, config.getGzipLevel() );
+		assertEquals( 1024, config.getGzipMinSize() );
+	}
+
+	@Test
+	public void testCompressionSettings() {
+		ServerConfig config = ServerConfig.fromSystemProperties("gzip.level=0", "gzip.min=0", "http2=true");
+		assertEquals( 0, config.getGzipLevel() );
+		assertEquals( 0, config.getGzipMinSize() );
+		assertTrue( config.isHttp2() );
+	}
+
+	@Test
+	public void testArgsOverrideProperties() {
+		System.setProperty(ServerConfig.PREFIX + "port", "9000");
+		try {
+			assertEquals( 9000, ServerConfig.fromSystemProperties().getPort() );
+			ServerConfig config = ServerConfig.fromSystemProperties("--port=9001", "threads=virtual", "threads.max=400");
+			assertEquals( 9001, config.getPort() );
+			assertTrue( config.isVirtualThreads() );
+		} finally {
+			System.clearProperty(ServerConfig.PREFIX + "port");
+		}
+	}
+
+	@Test
+	public void testBadSettings() {
+		String[][] bad = {
+			{ "threads=green" },
+			{ "threads.max=abc" },
+			{ "threads.min=10", "threads.max=5" },
+			{ "queue=-1" },
+			{ "gzip.level=10" },
+			{ "http2=yes" },
+			{ "port" },
+		};
+		for(String[] args : bad) {
+			try {
+				ServerConfig.fromSystemProperties(args);
+				fail("should reject " + args[args.length - 1]);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}
@@ -1,12 +1,25 @@
 package contact.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.ws.rs.core.Response;
 
 import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.util.StringContentProvider;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -16,6 +29,8 @@ import contact.JettyMain;
 import contact.entity.Contact;
 import contact.resource.ContactResource;
 import contact.service.ContactDao;
+import contact.service.ContactListener;
+import contact.service.DaoFactory;
 
 /**
  * Unit test for contact web service. This provide a quick testing solution for rapid development.
@@ -24,6 +39,9 @@ import contact.service.ContactDao;
  *
  */
 public class WebServiceTest {
+	private static final String URL = "http://localhost:8080/contacts";
+	private static final String XML = "application/xml";
+	private static final String JSON = "application/json";
 	private static Boolean serviceUrl;
 	
 	ContactResource cr;
@@ -63,9 +81,180 @@ public class WebServiceTest {
     
     }
     
+    @After
+    public void tearDown() throws Exception {
+    	client.stop();
+    }
+    
     @Test
     public void testGetAllContacts() {
     	
     	
     }
+
+	/** POST a contact and return its URL; the response's ETag goes in tag[0]. */
+	private String create(Contact contact, String[] tag) throws Exception {
+		ContentResponse response = send("POST", URL, toXml(contact), null);
+		assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+		String location = response.getHeaders().get("Location");
+		assertNotNull("Location", location);
+		tag[0] = response.getHeaders().get("ETag");
+		assertNotNull("ETag", tag[0]);
+		return URL + location.substring(location.lastIndexOf('/'));
+	}
+
+	/** Send an XML request, with an If-Match header unless ifMatch is null. */
+	private ContentResponse send(String method, String url, String body, String ifMatch) throws Exception {
+		Request request = client.newRequest(url)
+				.method(method)
+				.header("Accept", XML);
+		if (ifMatch != null) request.header("If-Match", ifMatch);
+		if (body != null) request.content(new StringContentProvider(body), XML);
+		return request.timeout(10, TimeUnit.SECONDS).send();
+	}
+
+	private static String toXml(Contact contact) {
+		StringBuilder xml = new StringBuilder("<contact>");
+		if (contact.getTitle() != null) xml.append("<title>").append(contact.getTitle()).append("</title>");
+		if (contact.getName() != null) xml.append("<name>").append(contact.getName()).append("</name>");
+		if (contact.getEmail() != null) xml.append("<email>").append(contact.getEmail()).append("</email>");
+		return xml.append("</contact>").toString();
+	}
+
+	@Test
+	public void testConditionalGet() throws Exception {
+		String[] created = new String[1];
+		String url = create(contact1, created);
+		ContentResponse response = send("GET", url, null, null);
+		assertEquals(200, response.getStatus());
+		String tag = response.getHeaders().get("ETag");
+		assertNotNull("ETag", tag);
+		ContentResponse notModified = client.newRequest(url)
+				.method("GET")
+				.header("Accept", XML)
+				.header("If-None-Match", tag)
+				.send();
+		assertEquals(Response.Status.NOT_MODIFIED.getStatusCode(), notModified.getStatus());
+		// after a change the old tag no longer matches
+		assertEquals(200, send("PATCH", url, "<contact><name>Joe Changed</name></contact>", null).getStatus());
+		ContentResponse changed = client.newRequest(url)
+				.method("GET")
+				.header("Accept", XML)
+				.header("If-None-Match", tag)
+				.send();
+		assertEquals(200, changed.getStatus());
+		assertTrue(changed.getContentAsString().contains("Joe Changed"));
+		assertFalse(tag.equals(changed.getHeaders().get("ETag")));
+	}
+
+	@Test
+	public void testConditionalPut() throws Exception {
+		String[] created = new String[1];
+		String url = create(contact2, created);
+		String tag = created[0];
+		contact2.setName("Sally First");
+		ContentResponse first = send("PUT", url, toXml(contact2), tag);
+		assertEquals(200, first.getStatus());
+		String newTag = first.getHeaders().get("ETag");
+		assertFalse(tag.equals(newTag));
+		// the tag the first PUT matched is stale now
+		contact2.setName("Sally Second");
+		assertEquals(Response.Status.PRECONDITION_FAILED.getStatusCode(), send("PUT", url, toXml(contact2), tag).getStatus());
+		assertTrue(send("GET", url, null, null).getContentAsString().contains("Sally First"));
+		assertEquals(200, send("PUT", url, toXml(contact2), newTag).getStatus());
+		assertTrue(send("GET", url, null, null).getContentAsString().contains("Sally Second"));
+	}
+
+	/** A JSON client that sends no Accept header may use the JSON tag in If-Match. */
+	@Test
+	public void testJsonPutWithJsonTag() throws Exception {
+		String[] created = new String[1];
+		String url = create(new Contact("json", "Jason Tag", "jason@foo.com"), created);
+		ContentResponse json = client.newRequest(url)
+				.method("GET")
+				.header("Accept", JSON)
+				.send();
+		assertEquals(200, json.getStatus());
+		String tag = json.getHeaders().get("ETag");
+		assertTrue(tag, tag.contains("-json"));
+		ContentResponse put = client.newRequest(url)
+				.method("PUT")
+				.header("If-Match", tag)
+				.content(new StringContentProvider("{\"title\":\"json\",\"name\":\"Jason Put\",\"email\":\"jason@foo.com\"}"), JSON)
+				.send();
+		assertEquals(200, put.getStatus());
+		assertTrue(send("GET", url, null, null).getContentAsString().contains("Jason Put"));
+		// the JSON tag is stale now, whichever representation it is compared with
+		ContentResponse stale = client.newRequest(url)
+				.method("PUT")
+				.header("If-Match", tag)
+				.content(new StringContentProvider("{\"title\":\"json\",\"name\":\"Jason Late\"}"), JSON)
+				.send();
+		assertEquals(Response.Status.PRECONDITION_FAILED.getStatusCode(), stale.getStatus());
+	}
+
+	@Test
+	public void testConditionalPatch() throws Exception {
+		String[] created = new String[1];
+		String url = create(contact3, created);
+		String tag = created[0];
+		ContentResponse first = send("PATCH", url, "<contact><email>first@barclub.com</email></contact>", tag);
+		assertEquals(200, first.getStatus());
+		assertEquals(Response.Status.PRECONDITION_FAILED.getStatusCode(),
+				send("PATCH", url, "<contact><email>second@barclub.com</email></contact>", tag).getStatus());
+		String body = send("GET", url, null, null).getContentAsString();
+		assertTrue(body.contains("first@barclub.com"));
+		assertTrue(body.contains("Foo Bar"));
+	}
+
+	@Test
+	public void testPutAndPatchMissingContact() throws Exception {
+		String url = URL + "/987654321";
+		assertEquals(Response.Status.NOT_FOUND.getStatusCode(), send("PUT", url, toXml(contact1), null).getStatus());
+		assertEquals(Response.Status.NOT_FOUND.getStatusCode(),
+				send("PATCH", url, "<contact><name>Nobody</name></contact>", null).getStatus());
+		assertEquals(Response.Status.NOT_FOUND.getStatusCode(),
+				send("PATCH", url, "<contact><name>Nobody</name></contact>", "\"1-0-xml\"").getStatus());
+	}
+
+	/**
+	 * Unconditional PATCHes of one contact from many clients.  A request
+	 * that loses a race retries, and gives up with 409 Conflict after
+	 * ContactResource.MAX_REPLACE_ATTEMPTS; how many do depends on timing,
+	 * so the test checks that every request either changed the contact
+	 * exactly once or got 409, and no change was lost.
+	 */
+	@Test
+	public void testConcurrentPatches() throws Exception {
+		String[] created = new String[1];
+		final String url = create(new Contact("racer", "Race Condition", "race@foo.com"), created);
+		final long id = Long.parseLong(url.substring(url.lastIndexOf('/') + 1));
+		final AtomicInteger changes = new AtomicInteger();
+		ContactDao dao = DaoFactory.getInstance().getContactDao();
+		ContactListener listener = new ContactListener() {
+			@Override
+			public void contactChanged(long changed) {
+				if (changed == id) changes.incrementAndGet();
+			}
+		};
+		dao.addContactListener(listener);
+		ExecutorService pool = Executors.newFixedThreadPool(16);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for(int k=0; k<400; k++) {
+				final String body = "<contact><name>Racer " + k + "</name></contact>";
+				results.add(pool.submit(() -> send("PATCH", url, body, null).getStatus()));
+			}
+			int ok = 0;
+			for(Future<Integer> result : results) {
+				int status = result.get();
+				if (status == 200) ok++;
+				else assertEquals(Response.Status.CONFLICT.getStatusCode(), status);
+			}
+			assertEquals(ok, changes.get());
+		} finally {
+			pool.shutdown();
+			dao.removeContactListener(listener);
+		}
+	}
 }